@@ -80,7 +80,7 @@ public class CapFile {
      * @param manifest
      * @param files
      */
-    void read(Manifest manifest, Map<String, byte[]> files) {
+    void read(Manifest manifest, CapFileSource files) {
         // remember manifest
         mManifest = manifest;
         // read main attributes
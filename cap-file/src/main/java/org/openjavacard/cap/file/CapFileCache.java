@@ -0,0 +1,277 @@
+/*
+ * openjavacard-tools: Development tools for JavaCard
+ * Copyright (C) 2019 Ingo Albrecht <copyright@promovicz.org>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package org.openjavacard.cap.file;
+
+import org.openjavacard.util.HexUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cache of parsed CAP files
+ * <p/>
+ * Files are looked up by canonical path, size and modification
+ * time. A file that is not known by these is hashed with SHA-256,
+ * and files with identical content share one parsed CapFile.
+ * <p/>
+ * Objects derived from a CAP file, such as load files or parsed
+ * component models, can be cached along with it.
+ * <p/>
+ * The least recently used files are evicted when the estimated
+ * memory use exceeds the budget. The estimate for a file is the
+ * size of its archive plus twice the size of its components, to
+ * account for inflated components and for derived objects.
+ * <p/>
+ * Thread-safe. Parsing happens outside the lock.
+ */
+public class CapFileCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CapFileCache.class);
+
+    /** Default memory budget */
+    public static final long DEFAULT_BUDGET = 64 * 1024 * 1024;
+
+    private static final CapFileCache DEFAULT = new CapFileCache(DEFAULT_BUDGET);
+
+    /** @return the process-wide cache */
+    public static CapFileCache getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Function computing derived objects
+     * @param <T> type of the object
+     */
+    public interface Derivation<T> {
+        T derive(CapFile file) throws IOException;
+    }
+
+    private final long mBudget;
+
+    /** File status by canonical path */
+    private final Map<String, FileKey> mByPath = new HashMap<>();
+    /** Entries by content hash, in access order */
+    private final LinkedHashMap<String, Entry> mByHash = new LinkedHashMap<>(16, 0.75f, true);
+    /** Entries by parsed file */
+    private final IdentityHashMap<CapFile, Entry> mByFile = new IdentityHashMap<>();
+
+    private long mWeight;
+    private long mHits;
+    private long mMisses;
+
+    /**
+     * Construct a cache
+     * @param budget for estimated memory use, in bytes
+     */
+    public CapFileCache(long budget) {
+        mBudget = budget;
+    }
+
+    /**
+     * Read a CAP file through the cache
+     * @param file to read
+     * @return the parsed file
+     * @throws IOException on error
+     */
+    public CapFile read(File file) throws IOException {
+        String path = file.getCanonicalPath();
+        long size = file.length();
+        long modified = file.lastModified();
+        // look up by file status
+        synchronized (this) {
+            FileKey key = mByPath.get(path);
+            if (key != null && key.mSize == size && key.mModified == modified) {
+                Entry entry = mByHash.get(key.mHash);
+                if (entry != null) {
+                    LOG.trace("hit for " + path);
+                    mHits++;
+                    return entry.mFile;
+                }
+            }
+        }
+        // open and hash the file
+        CapZipSource source = new CapZipSource(file);
+        String hash;
+        try {
+            hash = HexUtil.bytesToHex(source.digest("SHA-256"));
+        } catch (NoSuchAlgorithmException e) {
+            throw new Error("SHA-256 not available", e);
+        }
+        // look up by content
+        synchronized (this) {
+            mByPath.put(path, new FileKey(size, modified, hash));
+            Entry entry = mByHash.get(hash);
+            if (entry != null) {
+                LOG.trace("content hit for " + path);
+                mHits++;
+                return entry.mFile;
+            }
+            mMisses++;
+        }
+        // parse it
+        LOG.debug("parsing " + path + " (" + hash + ")");
+        CapFile capFile = CapFileReader.readSource(source);
+        long weight = source.getArchiveSize();
+        for (CapFilePackage pkg : capFile.getPackages()) {
+            for (CapFileComponent component : pkg.getComponents()) {
+                weight += 2L * component.getSize();
+            }
+        }
+        // insert unless someone was faster
+        synchronized (this) {
+            Entry entry = mByHash.get(hash);
+            if (entry != null) {
+                return entry.mFile;
+            }
+            entry = new Entry(capFile, hash, weight);
+            mByHash.put(hash, entry);
+            mByFile.put(capFile, entry);
+            mWeight += weight;
+            evict();
+        }
+        return capFile;
+    }
+
+    /**
+     * Get the content hash of a cached file
+     * @param file that was read from this cache
+     * @return hex SHA-256 of the archive, null if not cached
+     */
+    public synchronized String getHash(CapFile file) {
+        Entry entry = mByFile.get(file);
+        return entry == null ? null : entry.mHash;
+    }
+
+    /**
+     * Get an object derived from a CAP file
+     * <p/>
+     * The object is computed on first request and kept for
+     * as long as the file stays in the cache. Objects for files
+     * that are not in the cache are computed on each request.
+     * <p/>
+     * @param file to get the object for
+     * @param key identifying the object, including any parameters
+     * @param derivation computing the object
+     * @param <T> type of the object
+     * @return the derived object
+     * @throws IOException if the derivation fails
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T getDerived(CapFile file, String key, Derivation<T> derivation) throws IOException {
+        Entry entry;
+        synchronized (this) {
+            entry = mByFile.get(file);
+        }
+        if (entry == null) {
+            return derivation.derive(file);
+        }
+        Object result = entry.mDerived.get(key);
+        if (result == null) {
+            result = derivation.derive(file);
+            Object previous = entry.mDerived.putIfAbsent(key, result);
+            if (previous != null) {
+                result = previous;
+            }
+        }
+        return (T) result;
+    }
+
+    /** @return number of cached files */
+    public synchronized int getSize() {
+        return mByHash.size();
+    }
+
+    /** @return estimated memory use of cached files */
+    public synchronized long getWeight() {
+        return mWeight;
+    }
+
+    /** @return number of reads served from the cache */
+    public synchronized long getHits() {
+        return mHits;
+    }
+
+    /** @return number of reads that required parsing */
+    public synchronized long getMisses() {
+        return mMisses;
+    }
+
+    /** Drop all cached files */
+    public synchronized void clear() {
+        mByPath.clear();
+        mByHash.clear();
+        mByFile.clear();
+        mWeight = 0;
+    }
+
+    private void evict() {
+        Iterator<Entry> it = mByHash.values().iterator();
+        // keep at least the newest entry, even if it is too large
+        while (mWeight > mBudget && mByHash.size() > 1 && it.hasNext()) {
+            Entry eldest = it.next();
+            LOG.debug("evicting " + eldest.mHash);
+            it.remove();
+            mByFile.remove(eldest.mFile);
+            mWeight -= eldest.mWeight;
+        }
+        // forget paths of evicted content
+        Iterator<FileKey> keys = mByPath.values().iterator();
+        while (keys.hasNext()) {
+            if (!mByHash.containsKey(keys.next().mHash)) {
+                keys.remove();
+            }
+        }
+    }
+
+    /** Status of a file when it was hashed */
+    private static class FileKey {
+        final long mSize;
+        final long mModified;
+        final String mHash;
+        FileKey(long size, long modified, String hash) {
+            mSize = size;
+            mModified = modified;
+            mHash = hash;
+        }
+    }
+
+    /** Cached file with derived objects */
+    private static class Entry {
+        final CapFile mFile;
+        final String mHash;
+        final long mWeight;
+        final ConcurrentHashMap<String, Object> mDerived = new ConcurrentHashMap<>();
+        Entry(CapFile file, String hash, long weight) {
+            mFile = file;
+            mHash = hash;
+            mWeight = weight;
+        }
+    }
+
+}
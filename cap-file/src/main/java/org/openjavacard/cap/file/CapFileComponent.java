@@ -19,20 +19,40 @@
 
 package org.openjavacard.cap.file;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
 /**
  * Component in a CAP file
+ * <p/>
+ * Components of CAP files read from disk are loaded
+ * from their archive when their data is first needed.
  */
 public class CapFileComponent {
 
     private final CapComponentType mType;
 
-    private final byte[] mData;
+    private final CapFileSource mSource;
+    private final String mFilename;
+    private final long mSize;
+
+    private byte[] mData;
 
     CapFileComponent(CapComponentType type, byte[] data) {
         mType = type;
+        mSource = null;
+        mFilename = null;
+        mSize = data.length;
         mData = data;
     }
 
+    CapFileComponent(CapComponentType type, CapFileSource source, String filename) {
+        mType = type;
+        mSource = source;
+        mFilename = filename;
+        mSize = source.getSize(filename);
+    }
+
     public String getName() {
         return mType.name();
     }
@@ -45,12 +65,32 @@ public class CapFileComponent {
         return mType;
     }
 
-    public byte[] getData() {
+    /** @return true if the data of the component is in memory */
+    public synchronized boolean isLoaded() {
+        return mData != null;
+    }
+
+    /**
+     * Get the data of the component, reading it if required
+     * @return data of the component
+     * @throws UncheckedIOException if the data can not be read or is corrupt
+     */
+    public synchronized byte[] getData() {
+        if (mData == null) {
+            try {
+                mData = mSource.read(mFilename);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Error reading component " + mFilename, e);
+            }
+        }
         return mData;
     }
 
     public int getSize() {
-        return mData.length;
+        if (mSize >= 0) {
+            return (int) mSize;
+        }
+        return getData().length;
     }
 
     public String toString() {
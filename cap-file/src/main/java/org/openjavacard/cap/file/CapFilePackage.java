@@ -169,7 +169,7 @@ public class CapFilePackage implements VerboseString {
      * @param attributes
      * @param files
      */
-    void read(String componentName, Attributes attributes, Map<String, byte[]> files) {
+    void read(String componentName, Attributes attributes, CapFileSource files) {
         mName = componentName;
         mAttributes = attributes;
         // process attributes
@@ -225,15 +225,13 @@ public class CapFilePackage implements VerboseString {
         }
         // process components
         String jcPkgPrefix = mName + "/javacard/";
-        for(Map.Entry<String, byte[]> entry: files.entrySet()) {
-            String key = entry.getKey();
-            byte[] data = entry.getValue();
+        for(String key: files.getNames()) {
             if(key.startsWith(jcPkgPrefix)) {
                 String name = key.substring(jcPkgPrefix.length());
                 CapComponentType type = CapComponentType.forFilename(name);
                 LOG.trace("component " + name);
                 if(type != null) {
-                    CapFileComponent com = new CapFileComponent(type, data);
+                    CapFileComponent com = new CapFileComponent(type, files, key);
                     addComponent(com);
                 }
             }
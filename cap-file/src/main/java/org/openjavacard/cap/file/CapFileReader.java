@@ -25,25 +25,40 @@ import org.slf4j.LoggerFactory;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Hashtable;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.jar.Manifest;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
 /**
  * Reader class for CAP files
+ * <p/>
+ * Files on disk are opened for random access: only the
+ * manifest and the ZIP directory are parsed up front, and
+ * components are read when their data is first needed.
+ * <p/>
+ * Streams are read completely, skipping everything except
+ * the manifest and the components.
  */
 public class CapFileReader {
 
     private static final Logger LOG = LoggerFactory.getLogger(CapFileReader.class);
 
     private static final String FILE_MANIFEST = "META-INF/MANIFEST.MF";
+    private static final String SUFFIX_COMPONENT = ".cap";
 
     /**
      * Read a CAP file from a file
+     * <p/>
+     * Only the manifest and the ZIP directory are checked here.
+     * Errors in component data, such as CRC or inflate failures,
+     * are reported when the data is first needed, as an
+     * {@link java.io.UncheckedIOException} from
+     * {@link CapFileComponent#getData()}.
+     * <p/>
      * @param file to read
      * @return CAPFile loaded from the file
      * @throws IOException on error
@@ -64,13 +79,23 @@ public class CapFileReader {
         return reader.read(stream);
     }
 
+    /**
+     * Internal: read a CAP file from an opened archive
+     * @param source to read
+     * @return CAPFile loaded from the archive
+     * @throws IOException on error
+     */
+    static CapFile readSource(CapZipSource source) throws IOException {
+        CapFileReader reader = new CapFileReader();
+        return reader.read(source.read(FILE_MANIFEST), source);
+    }
+
     private CapFileReader() {
     }
 
     private CapFile read(File file) throws IOException {
         LOG.debug("reading file " + file);
-        FileInputStream fis = new FileInputStream(file);
-        return read(fis);
+        return readSource(new CapZipSource(file));
     }
 
     private CapFile read(InputStream stream) throws IOException {
@@ -80,18 +105,25 @@ public class CapFileReader {
         // zip entry during iteration
         ZipEntry ze;
         // manifest once read
-        Manifest manifest = null;
-        // collected files
-        Hashtable<String, byte[]> files = new Hashtable<>();
+        byte[] manifest = null;
+        // collected components
+        final HashMap<String, byte[]> files = new HashMap<>();
 
-        // read all files in the zip, parsing the manifest
+        // read the manifest and all components in the zip
         while ((ze = zis.getNextEntry()) != null) {
             String name = ze.getName();
+            boolean isManifest = name.equals(FILE_MANIFEST);
+            // skip export files and other extras
+            if (!isManifest && !name.endsWith(SUFFIX_COMPONENT)) {
+                LOG.trace("skipping " + name);
+                continue;
+            }
             byte[] bytes = readZipEntry(zis, ze);
             LOG.trace("entry " + name + " (" + bytes.length + " bytes)");
-            files.put(name, bytes);
-            if (name.equals(FILE_MANIFEST)) {
-                manifest = new Manifest(new ByteArrayInputStream(bytes));
+            if (isManifest) {
+                manifest = bytes;
+            } else {
+                files.put(name, bytes);
             }
         }
 
@@ -101,16 +133,39 @@ public class CapFileReader {
         }
 
         // parse the CAP contents
+        return read(manifest, new CapFileSource() {
+            @Override
+            public Collection<String> getNames() {
+                return files.keySet();
+            }
+            @Override
+            public long getSize(String name) {
+                byte[] bytes = files.get(name);
+                return bytes == null ? -1 : bytes.length;
+            }
+            @Override
+            public byte[] read(String name) throws IOException {
+                byte[] bytes = files.get(name);
+                if (bytes == null) {
+                    throw new IOException("No file " + name);
+                }
+                return bytes;
+            }
+        });
+    }
+
+    private CapFile read(byte[] manifestBytes, CapFileSource files) throws IOException {
+        Manifest manifest = new Manifest(new ByteArrayInputStream(manifestBytes));
         CapFile capFile = new CapFile();
         capFile.read(manifest, files);
-
-        // return the result
         return capFile;
     }
 
     private byte[] readZipEntry(ZipInputStream zis, ZipEntry entry) throws IOException {
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        byte[] buf = new byte[1024];
+        // presize the buffer if the size is known
+        long size = entry.getSize();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(size > 0 ? (int) size : 8192);
+        byte[] buf = new byte[8192];
         int c;
         while ((c = zis.read(buf)) > 0) {
             bos.write(buf, 0, c);
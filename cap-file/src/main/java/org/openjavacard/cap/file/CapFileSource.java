@@ -0,0 +1,48 @@
+/*
+ * openjavacard-tools: Development tools for JavaCard
+ * Copyright (C) 2019 Ingo Albrecht <copyright@promovicz.org>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package org.openjavacard.cap.file;
+
+import java.io.IOException;
+import java.util.Collection;
+
+/**
+ * Internal: source of the files in a CAP archive
+ */
+interface CapFileSource {
+
+    /** @return names of all files in the archive */
+    Collection<String> getNames();
+
+    /**
+     * Get the size of a file without reading it
+     * @param name of the file
+     * @return size in bytes, or -1 if not known
+     */
+    long getSize(String name);
+
+    /**
+     * Read a file
+     * @param name of the file
+     * @return contents of the file
+     * @throws IOException on error
+     */
+    byte[] read(String name) throws IOException;
+
+}
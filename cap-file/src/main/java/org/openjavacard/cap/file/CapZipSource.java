@@ -0,0 +1,269 @@
+/*
+ * openjavacard-tools: Development tools for JavaCard
+ * Copyright (C) 2019 Ingo Albrecht <copyright@promovicz.org>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package org.openjavacard.cap.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Internal: random-access source for CAP files on disk
+ * <p/>
+ * Only the central directory of the archive is parsed when
+ * opening. File contents are located and inflated when read.
+ * <p/>
+ * Small archives are read into memory with a single read,
+ * large ones are memory-mapped. In both cases the file is
+ * closed after opening, so no descriptors are held however
+ * many archives are open.
+ * <p/>
+ * Supports stored and deflated entries, which is what
+ * CAP converters produce. ZIP64 is not supported.
+ */
+class CapZipSource implements CapFileSource {
+
+    /** Archives larger than this are memory-mapped */
+    static final int MAP_THRESHOLD = 256 * 1024;
+
+    private static final int SIG_LOCAL = 0x04034b50;
+    private static final int SIG_CENTRAL = 0x02014b50;
+    private static final int SIG_END = 0x06054b50;
+
+    private static final int LOCAL_LENGTH = 30;
+    private static final int CENTRAL_LENGTH = 46;
+    private static final int END_LENGTH = 22;
+
+    private static final int METHOD_STORED = 0;
+    private static final int METHOD_DEFLATED = 8;
+
+    private final File mFile;
+    private final ByteBuffer mBuffer;
+    private final Map<String, Entry> mEntries;
+
+    /**
+     * Open an archive
+     * @param file to open
+     * @throws IOException on error or if the archive is invalid
+     */
+    CapZipSource(File file) throws IOException {
+        mFile = file;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("File too large: " + file);
+            }
+            ByteBuffer buffer;
+            if (size > MAP_THRESHOLD) {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            } else {
+                buffer = ByteBuffer.allocate((int) size);
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer) < 0) {
+                        throw new IOException("Unexpected end of file: " + file);
+                    }
+                }
+                buffer.flip();
+            }
+            mBuffer = buffer.order(ByteOrder.LITTLE_ENDIAN);
+        }
+        mEntries = readDirectory();
+    }
+
+    /** @return size of the archive */
+    int getArchiveSize() {
+        return mBuffer.limit();
+    }
+
+    /**
+     * Compute a digest over the whole archive
+     * @param algorithm to use
+     * @return the digest
+     * @throws NoSuchAlgorithmException if the algorithm is not available
+     */
+    byte[] digest(String algorithm) throws NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance(algorithm);
+        digest.update(mBuffer.duplicate());
+        return digest.digest();
+    }
+
+    @Override
+    public Collection<String> getNames() {
+        return Collections.unmodifiableCollection(mEntries.keySet());
+    }
+
+    @Override
+    public long getSize(String name) {
+        Entry entry = mEntries.get(name);
+        return entry == null ? -1 : entry.mSize;
+    }
+
+    @Override
+    public byte[] read(String name) throws IOException {
+        Entry entry = mEntries.get(name);
+        if (entry == null) {
+            throw new IOException("No file " + name + " in " + mFile);
+        }
+        // locate the data behind the local header
+        ByteBuffer buffer = mBuffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int local = entry.mOffset;
+        checkRange(local, LOCAL_LENGTH);
+        if (buffer.getInt(local) != SIG_LOCAL) {
+            throw new IOException("Bad local header for " + name + " in " + mFile);
+        }
+        int start = local + LOCAL_LENGTH
+                + (buffer.getShort(local + 26) & 0xFFFF)
+                + (buffer.getShort(local + 28) & 0xFFFF);
+        checkRange(start, entry.mCompressedSize);
+        buffer.position(start);
+        buffer.limit(start + entry.mCompressedSize);
+        // copy or inflate into a presized array
+        byte[] data = new byte[entry.mSize];
+        if (entry.mMethod == METHOD_STORED) {
+            if (entry.mCompressedSize != entry.mSize) {
+                throw new IOException("Bad size for " + name + " in " + mFile);
+            }
+            buffer.get(data);
+        } else {
+            inflate(name, buffer, data);
+        }
+        // check integrity
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        if ((int) crc.getValue() != entry.mCrc) {
+            throw new IOException("CRC mismatch for " + name + " in " + mFile);
+        }
+        return data;
+    }
+
+    private void inflate(String name, ByteBuffer buffer, byte[] data) throws IOException {
+        Inflater inflater = new Inflater(true);
+        try {
+            if (buffer.hasArray()) {
+                inflater.setInput(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            } else {
+                // mapped buffers must be copied
+                byte[] compressed = new byte[buffer.remaining()];
+                buffer.get(compressed);
+                inflater.setInput(compressed);
+            }
+            int done = 0;
+            while (done < data.length) {
+                int count = inflater.inflate(data, done, data.length - done);
+                if (count == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                done += count;
+            }
+            if (done != data.length) {
+                throw new IOException("Truncated data for " + name + " in " + mFile);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Bad compressed data for " + name + " in " + mFile, e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private Map<String, Entry> readDirectory() throws IOException {
+        ByteBuffer buffer = mBuffer;
+        int size = buffer.limit();
+        // find the end record, which may be followed by a comment
+        int end = -1;
+        for (int pos = size - END_LENGTH; pos >= 0 && pos >= size - END_LENGTH - 0xFFFF; pos--) {
+            if (buffer.getInt(pos) == SIG_END) {
+                end = pos;
+                break;
+            }
+        }
+        if (end < 0) {
+            throw new IOException("Not a ZIP archive: " + mFile);
+        }
+        int count = buffer.getShort(end + 10) & 0xFFFF;
+        long directoryOffset = buffer.getInt(end + 16) & 0xFFFFFFFFL;
+        if (count == 0xFFFF || directoryOffset == 0xFFFFFFFFL) {
+            throw new IOException("ZIP64 archives are not supported: " + mFile);
+        }
+        // read the central directory
+        Map<String, Entry> entries = new LinkedHashMap<>(count * 2);
+        int pos = (int) directoryOffset;
+        for (int i = 0; i < count; i++) {
+            checkRange(pos, CENTRAL_LENGTH);
+            if (buffer.getInt(pos) != SIG_CENTRAL) {
+                throw new IOException("Bad central directory in " + mFile);
+            }
+            Entry entry = new Entry();
+            entry.mMethod = buffer.getShort(pos + 10) & 0xFFFF;
+            entry.mCrc = buffer.getInt(pos + 16);
+            long compressedSize = buffer.getInt(pos + 20) & 0xFFFFFFFFL;
+            long uncompressedSize = buffer.getInt(pos + 24) & 0xFFFFFFFFL;
+            int nameLength = buffer.getShort(pos + 28) & 0xFFFF;
+            int extraLength = buffer.getShort(pos + 30) & 0xFFFF;
+            int commentLength = buffer.getShort(pos + 32) & 0xFFFF;
+            long offset = buffer.getInt(pos + 42) & 0xFFFFFFFFL;
+            if (compressedSize > size || uncompressedSize > Integer.MAX_VALUE || offset > size) {
+                throw new IOException("Bad sizes in central directory of " + mFile);
+            }
+            if (entry.mMethod != METHOD_STORED && entry.mMethod != METHOD_DEFLATED) {
+                throw new IOException("Unsupported compression method " + entry.mMethod + " in " + mFile);
+            }
+            entry.mCompressedSize = (int) compressedSize;
+            entry.mSize = (int) uncompressedSize;
+            entry.mOffset = (int) offset;
+            checkRange(pos + CENTRAL_LENGTH, nameLength);
+            byte[] name = new byte[nameLength];
+            ByteBuffer nameBuffer = buffer.duplicate();
+            nameBuffer.position(pos + CENTRAL_LENGTH);
+            nameBuffer.get(name);
+            entries.put(new String(name, StandardCharsets.UTF_8), entry);
+            pos += CENTRAL_LENGTH + nameLength + extraLength + commentLength;
+        }
+        return entries;
+    }
+
+    private void checkRange(long offset, long length) throws IOException {
+        if (offset < 0 || length < 0 || offset + length > mBuffer.limit()) {
+            throw new IOException("Truncated archive " + mFile);
+        }
+    }
+
+    /** Central directory information for one file */
+    private static class Entry {
+        int mMethod;
+        int mCrc;
+        int mCompressedSize;
+        int mSize;
+        int mOffset;
+    }
+
+}
@@ -0,0 +1,108 @@
+/*
+ * openjavacard-tools: Development tools for JavaCard
+ * Copyright (C) 2019 Ingo Albrecht <copyright@promovicz.org>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package org.openjavacard.cap.file;
+
+import junit.framework.TestCase;
+import org.junit.Assert;
+import org.openjavacard.cap.test.CapTestFiles;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class CapFileCacheTest extends TestCase {
+
+    public void testCache() throws IOException {
+        List<byte[]> contents = CapTestFiles.getBytes();
+        byte[] first = contents.get(0);
+        byte[] second = contents.get(contents.size() - 1);
+        List<File> files = new ArrayList<>();
+        try {
+            File a = writeTemp(first, files);
+            File b = writeTemp(first, files);
+            File c = writeTemp(second, files);
+            CapFileCache cache = new CapFileCache(CapFileCache.DEFAULT_BUDGET);
+            // same path is served from the cache
+            CapFile capA = cache.read(a);
+            Assert.assertSame(capA, cache.read(a));
+            // same content is shared
+            Assert.assertSame(capA, cache.read(b));
+            Assert.assertEquals(1, cache.getMisses());
+            Assert.assertEquals(2, cache.getHits());
+            Assert.assertEquals(1, cache.getSize());
+            // different content is not
+            CapFile capC = cache.read(c);
+            Assert.assertNotSame(capA, capC);
+            Assert.assertNotEquals(cache.getHash(capA), cache.getHash(capC));
+            Assert.assertEquals(2, cache.getSize());
+            // changed files are read again
+            try (FileOutputStream fos = new FileOutputStream(b)) {
+                fos.write(second);
+            }
+            Assert.assertSame(capC, cache.read(b));
+            // derived objects are kept
+            final AtomicInteger count = new AtomicInteger();
+            CapFileCache.Derivation<Object> derivation = new CapFileCache.Derivation<Object>() {
+                @Override
+                public Object derive(CapFile file) {
+                    count.incrementAndGet();
+                    return new Object();
+                }
+            };
+            Object derived = cache.getDerived(capA, "test", derivation);
+            Assert.assertSame(derived, cache.getDerived(capA, "test", derivation));
+            Assert.assertEquals(1, count.get());
+        } finally {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    public void testEviction() throws IOException {
+        List<File> files = new ArrayList<>();
+        try {
+            CapFileCache cache = new CapFileCache(1);
+            CapFile last = null;
+            for (byte[] data : CapTestFiles.getBytes()) {
+                last = cache.read(writeTemp(data, files));
+            }
+            // only the newest file fits
+            Assert.assertEquals(1, cache.getSize());
+            Assert.assertNotNull(cache.getHash(last));
+            Assert.assertSame(last, cache.read(files.get(files.size() - 1)));
+            Assert.assertNotSame(last, cache.read(files.get(0)));
+        } finally {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    private static File writeTemp(byte[] data, List<File> files) throws IOException {
+        File file = CapTestFiles.writeTempFile(data);
+        files.add(file);
+        return file;
+    }
+
+}
@@ -20,11 +20,20 @@
 package org.openjavacard.cap.file;
 
 import junit.framework.TestCase;
+import org.junit.Assert;
 import org.openjavacard.cap.test.CapTestFiles;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
 
 public class CapFileReaderTest extends TestCase {
 
@@ -35,4 +44,121 @@ public class CapFileReaderTest extends TestCase {
         }
     }
 
+    public void testLazyFiles() throws IOException {
+        for(byte[] bytes: CapTestFiles.getBytes()) {
+            checkLazy(bytes, bytes);
+        }
+    }
+
+    public void testMappedFiles() throws IOException {
+        for(byte[] bytes: CapTestFiles.getBytes()) {
+            // add a large extra so that the archive gets mapped
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            try(ZipOutputStream zos = new ZipOutputStream(bos)) {
+                ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(bytes));
+                for(ZipEntry entry; (entry = zis.getNextEntry()) != null; ) {
+                    zos.putNextEntry(new ZipEntry(entry.getName()));
+                    zos.write(CapTestFiles.getBytes(zis));
+                    zos.closeEntry();
+                }
+                ZipEntry extra = new ZipEntry("extra.bin");
+                extra.setMethod(ZipEntry.STORED);
+                byte[] data = new byte[CapZipSource.MAP_THRESHOLD];
+                extra.setSize(data.length);
+                CRC32 crc = new CRC32();
+                crc.update(data);
+                extra.setCrc(crc.getValue());
+                zos.putNextEntry(extra);
+                zos.write(data);
+                zos.closeEntry();
+            }
+            checkLazy(bos.toByteArray(), bytes);
+        }
+    }
+
+    public void testCorruptComponent() throws IOException {
+        byte[] bytes = CapTestFiles.getBytes().get(0);
+        // store entries uncompressed so that their data can be found
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte[] method = null;
+        try(ZipOutputStream zos = new ZipOutputStream(bos)) {
+            ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(bytes));
+            for(ZipEntry entry; (entry = zis.getNextEntry()) != null; ) {
+                byte[] data = CapTestFiles.getBytes(zis);
+                if(entry.getName().endsWith("/Method.cap")) {
+                    method = data;
+                }
+                ZipEntry stored = new ZipEntry(entry.getName());
+                stored.setMethod(ZipEntry.STORED);
+                stored.setSize(data.length);
+                CRC32 crc = new CRC32();
+                crc.update(data);
+                stored.setCrc(crc.getValue());
+                zos.putNextEntry(stored);
+                zos.write(data);
+                zos.closeEntry();
+            }
+        }
+        Assert.assertNotNull(method);
+        byte[] archive = bos.toByteArray();
+        int offset = indexOf(archive, method);
+        Assert.assertTrue(offset > 0);
+        archive[offset + method.length - 1] ^= 0x01;
+        File file = CapTestFiles.writeTempFile(archive);
+        try {
+            // reading succeeds since component data is not checked yet
+            CapFilePackage pkg = CapFileReader.readFile(file).getPackage();
+            Assert.assertNotNull(pkg.getComponentByType(CapComponentType.Header).getData());
+            // the corrupt component fails when its data is needed
+            try {
+                pkg.getComponentByType(CapComponentType.Method).getData();
+                fail("Read corrupt component");
+            } catch (UncheckedIOException e) {
+                Assert.assertNotNull(e.getCause());
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static int indexOf(byte[] haystack, byte[] needle) {
+        for(int i = 0; i + needle.length <= haystack.length; i++) {
+            boolean match = true;
+            for(int j = 0; j < needle.length && match; j++) {
+                match = haystack[i + j] == needle[j];
+            }
+            if(match) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void checkLazy(byte[] archive, byte[] reference) throws IOException {
+        File file = CapTestFiles.writeTempFile(archive);
+        try {
+            CapFile lazy = CapFileReader.readFile(file);
+            CapFile eager = CapFileReader.readStream(new ByteArrayInputStream(reference));
+            Assert.assertEquals(eager.getPackages().size(), lazy.getPackages().size());
+            for(int i = 0; i < eager.getPackages().size(); i++) {
+                CapFilePackage ePkg = eager.getPackages().get(i);
+                CapFilePackage lPkg = lazy.getPackages().get(i);
+                Assert.assertEquals(ePkg.getPackageAID(), lPkg.getPackageAID());
+                Assert.assertEquals(ePkg.getApplets().size(), lPkg.getApplets().size());
+                Assert.assertEquals(ePkg.getComponents().size(), lPkg.getComponents().size());
+                for(CapFileComponent eCom: ePkg.getComponents()) {
+                    CapFileComponent lCom = lPkg.getComponentByType(eCom.getType());
+                    // metadata does not need component data
+                    Assert.assertFalse(lCom.isLoaded());
+                    Assert.assertEquals(eCom.getSize(), lCom.getSize());
+                    Assert.assertFalse(lCom.isLoaded());
+                    Assert.assertArrayEquals(eCom.getData(), lCom.getData());
+                    Assert.assertTrue(lCom.isLoaded());
+                }
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
 }
@@ -0,0 +1,80 @@
+/*
+ * openjavacard-tools: Development tools for JavaCard
+ * Copyright (C) 2019 Ingo Albrecht <copyright@promovicz.org>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package org.openjavacard.cap.base;
+
+import org.openjavacard.cap.file.CapFilePackage;
+import org.openjavacard.cap.file.CapFileReader;
+import org.openjavacard.cap.test.CapTestFiles;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark for CAP structure parsing
+ * <p/>
+ * Parses the packages bundled with cap-testing. The files are
+ * read once in setup, so only model decoding is measured.
+ * <p/>
+ * Components are decoded lazily, so both a full decode and
+ * the typical inventory access are measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CapStructureReaderBenchmark {
+
+    private List<CapFilePackage> mPackages;
+
+    @Setup
+    public void setup() throws IOException {
+        mPackages = new ArrayList<>();
+        for (InputStream stream : CapTestFiles.getFiles()) {
+            mPackages.add(CapFileReader.readStream(stream).getPackage());
+        }
+    }
+
+    @Benchmark
+    public void readPackages(Blackhole blackhole) throws IOException {
+        for (CapFilePackage pkg : mPackages) {
+            blackhole.consume(new CapPackageReader().read(pkg).getComponents());
+        }
+    }
+
+    @Benchmark
+    public void readHeaderAndApplets(Blackhole blackhole) throws IOException {
+        for (CapFilePackage pkg : mPackages) {
+            CapPackage capPackage = new CapPackageReader().read(pkg);
+            blackhole.consume(capPackage.getHeader());
+            blackhole.consume(capPackage.getApplets());
+        }
+    }
+
+}
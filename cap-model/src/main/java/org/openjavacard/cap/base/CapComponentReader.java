@@ -19,34 +19,35 @@
 
 package org.openjavacard.cap.base;
 
-import org.openjavacard.cap.file.CapFileComponent;
+import org.openjavacard.cap.file.CapComponentType;
 import org.openjavacard.cap.structure.CapClassRef;
 import org.openjavacard.cap.structure.CapMethodRef;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public class CapComponentReader extends CapStructureReader {
 
     private static final Logger LOG = LoggerFactory.getLogger(CapComponentReader.class);
 
     private final CapPackageReader mPackageReader;
-    private final CapFileComponent mFileComponent;
+    private final CapComponentType mType;
 
-    CapComponentReader(CapPackageReader packageReader, CapFileComponent fileComponent) {
-        super(fileComponent.getData());
+    CapComponentReader(CapPackageReader packageReader, CapComponentType type, ByteBuffer data) {
+        super(data);
         mPackageReader = packageReader;
-        mFileComponent = fileComponent;
+        mType = type;
     }
 
     public int readComponentHeader() throws IOException {
         int tag = readU1();
         int size = readU2();
-        if(tag != mFileComponent.getType().tag()) {
-            throw new IOException("Bad component type: expected " + mFileComponent.getType().tag() + " got " + tag);
+        if(tag != mType.tag()) {
+            throw new IOException("Bad component type: expected " + mType.tag() + " got " + tag);
         }
-        if(size != mStream.available()) {
+        if(size != available()) {
             throw new IOException("Invalid component length");
         }
         return size;
@@ -31,12 +31,35 @@ import org.openjavacard.cap.component.CapImportComponent;
 import org.openjavacard.cap.component.CapMethodComponent;
 import org.openjavacard.cap.component.CapReferenceLocationComponent;
 import org.openjavacard.cap.component.CapStaticFieldComponent;
+import org.openjavacard.cap.file.CapComponentType;
+import org.openjavacard.cap.file.CapFileComponent;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.EnumMap;
 
+/**
+ * Package of a CAP file
+ * <p/>
+ * Components are decoded when they are first accessed,
+ * so that tools looking only at the header or the applets
+ * do not pay for decoding methods and constants.
+ * <p/>
+ * Component bodies are kept as slices of the file data.
+ * <p/>
+ * Errors found while decoding are thrown from the getters as
+ * {@link UncheckedIOException}. Use {@link #decodeAll()} to
+ * check the whole package up front.
+ */
 public class CapPackage {
 
-    ArrayList<CapComponent> mComponents;
+    private final CapPackageReader mReader;
+
+    private final ArrayList<CapComponentType> mOrder;
+    private final EnumMap<CapComponentType, CapFileComponent> mFileComponents;
+    private final EnumMap<CapComponentType, ByteBuffer> mBodies;
 
     CapHeaderComponent mHeader;
     CapDirectoryComponent mDirectory;
@@ -50,57 +73,252 @@ public class CapPackage {
     CapReferenceLocationComponent mReferenceLocation;
     CapDescriptorComponent mDescriptor;
 
-    CapPackage() {
-        mComponents = new ArrayList<>();
+    CapPackage(CapPackageReader reader) {
+        mReader = reader;
+        mOrder = new ArrayList<>();
+        mFileComponents = new EnumMap<>(CapComponentType.class);
+        mBodies = new EnumMap<>(CapComponentType.class);
     }
 
+    void addFileComponent(CapFileComponent fileComponent) {
+        CapComponentType type = fileComponent.getType();
+        if(!mFileComponents.containsKey(type)) {
+            mOrder.add(type);
+        }
+        mFileComponents.put(type, fileComponent);
+    }
+
+    /** @return all components in file order, decoding all of them */
     @JsonIgnore
-    public ArrayList<CapComponent> getComponents() {
-        return mComponents;
+    public synchronized ArrayList<CapComponent> getComponents() {
+        ArrayList<CapComponent> res = new ArrayList<>();
+        for(CapComponentType type: mOrder) {
+            CapComponent component = getComponent(type);
+            if(component != null) {
+                res.add(component);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Decode all components
+     * <p/>
+     * Reports any problem in the package as an IOException.
+     * <p/>
+     * @throws IOException on error
+     */
+    public synchronized void decodeAll() throws IOException {
+        try {
+            getComponents();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Get a component, decoding it if required
+     * @param type of the component
+     * @return the component or null if not present
+     */
+    public CapComponent getComponent(CapComponentType type) {
+        switch (type) {
+            case Header:
+                return getHeader();
+            case Directory:
+                return getDirectory();
+            case Import:
+                return getImports();
+            case Applet:
+                return getApplets();
+            case Class:
+                return getClasses();
+            case Method:
+                return getMethods();
+            case StaticField:
+                return getStaticFields();
+            case Export:
+                return getExports();
+            case ConstantPool:
+                return getConstantPool();
+            case ReferenceLocation:
+                return getReferenceLocation();
+            case Descriptor:
+                return getDescriptor();
+            default:
+                return null;
+        }
     }
 
-    public CapHeaderComponent getHeader() {
+    /**
+     * Get the undecoded body of a component
+     * @param type of the component
+     * @return read-only view of the body or null if not present
+     */
+    @JsonIgnore
+    public synchronized ByteBuffer getComponentBody(CapComponentType type) {
+        ByteBuffer body = findBody(type);
+        if(body == null) {
+            return null;
+        }
+        return body.duplicate();
+    }
+
+    /** @return true if the given component has been decoded */
+    public synchronized boolean isDecoded(CapComponentType type) {
+        return getDecoded(type) != null;
+    }
+
+    public synchronized CapHeaderComponent getHeader() {
+        if(mHeader == null) {
+            mHeader = decode(CapComponentType.Header, CapHeaderComponent.class);
+        }
         return mHeader;
     }
 
-    public CapDirectoryComponent getDirectory() {
+    public synchronized CapDirectoryComponent getDirectory() {
+        if(mDirectory == null) {
+            mDirectory = decode(CapComponentType.Directory, CapDirectoryComponent.class);
+        }
         return mDirectory;
     }
 
-    public CapImportComponent getImports() {
+    public synchronized CapImportComponent getImports() {
+        if(mImports == null) {
+            mImports = decode(CapComponentType.Import, CapImportComponent.class);
+        }
         return mImports;
     }
 
-    public CapAppletComponent getApplets() {
+    public synchronized CapAppletComponent getApplets() {
+        if(mApplets == null) {
+            mApplets = decode(CapComponentType.Applet, CapAppletComponent.class);
+        }
         return mApplets;
     }
 
-    public CapClassComponent getClasses() {
+    public synchronized CapClassComponent getClasses() {
+        if(mClasses == null) {
+            mClasses = decode(CapComponentType.Class, CapClassComponent.class);
+        }
         return mClasses;
     }
 
-    public CapMethodComponent getMethods() {
+    public synchronized CapMethodComponent getMethods() {
+        if(mMethods == null) {
+            CapMethodComponent methods = decode(CapComponentType.Method, CapMethodComponent.class);
+            // method info can only be decoded with the descriptor,
+            // which is therefore decoded along with the methods
+            if(methods != null) {
+                CapDescriptorComponent descriptor = getDescriptor();
+                if(descriptor != null) {
+                    methods.decodeMethodInfo(descriptor);
+                }
+            }
+            mMethods = methods;
+        }
         return mMethods;
     }
 
-    public CapStaticFieldComponent getStaticFields() {
+    public synchronized CapStaticFieldComponent getStaticFields() {
+        if(mStaticFields == null) {
+            mStaticFields = decode(CapComponentType.StaticField, CapStaticFieldComponent.class);
+        }
         return mStaticFields;
     }
 
-    public CapExportComponent getExports() {
+    public synchronized CapExportComponent getExports() {
+        if(mExports == null) {
+            mExports = decode(CapComponentType.Export, CapExportComponent.class);
+        }
         return mExports;
     }
 
-    public CapConstantPoolComponent getConstantPool() {
+    public synchronized CapConstantPoolComponent getConstantPool() {
+        if(mConstantPool == null) {
+            mConstantPool = decode(CapComponentType.ConstantPool, CapConstantPoolComponent.class);
+        }
         return mConstantPool;
     }
 
-    public CapReferenceLocationComponent getReferenceLocation() {
+    public synchronized CapReferenceLocationComponent getReferenceLocation() {
+        if(mReferenceLocation == null) {
+            mReferenceLocation = decode(CapComponentType.ReferenceLocation, CapReferenceLocationComponent.class);
+        }
         return mReferenceLocation;
     }
 
-    public CapDescriptorComponent getDescriptor() {
+    public synchronized CapDescriptorComponent getDescriptor() {
+        if(mDescriptor == null) {
+            mDescriptor = decode(CapComponentType.Descriptor, CapDescriptorComponent.class);
+        }
         return mDescriptor;
     }
 
+    private CapComponent getDecoded(CapComponentType type) {
+        switch (type) {
+            case Header:
+                return mHeader;
+            case Directory:
+                return mDirectory;
+            case Import:
+                return mImports;
+            case Applet:
+                return mApplets;
+            case Class:
+                return mClasses;
+            case Method:
+                return mMethods;
+            case StaticField:
+                return mStaticFields;
+            case Export:
+                return mExports;
+            case ConstantPool:
+                return mConstantPool;
+            case ReferenceLocation:
+                return mReferenceLocation;
+            case Descriptor:
+                return mDescriptor;
+            default:
+                return null;
+        }
+    }
+
+    private ByteBuffer findBody(CapComponentType type) {
+        ByteBuffer body = mBodies.get(type);
+        if(body == null) {
+            CapFileComponent fileComponent = mFileComponents.get(type);
+            if(fileComponent == null) {
+                return null;
+            }
+            try {
+                body = mReader.readComponentBody(fileComponent);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Error reading component " + type, e);
+            }
+            // the directory describes all other components
+            if(type != CapComponentType.Header && type != CapComponentType.Directory) {
+                CapDirectoryComponent directory = getDirectory();
+                if(directory != null && body.remaining() != directory.getComponentSize(type)) {
+                    throw new UncheckedIOException(
+                            new IOException("Component size disagrees with directory for " + type));
+                }
+            }
+            mBodies.put(type, body);
+        }
+        return body;
+    }
+
+    private <C extends CapComponent> C decode(CapComponentType type, Class<C> componentClass) {
+        ByteBuffer body = findBody(type);
+        if(body == null) {
+            return null;
+        }
+        try {
+            return mReader.readComponent(type, body.duplicate(), componentClass);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error decoding component " + type, e);
+        }
+    }
+
 }
@@ -19,17 +19,6 @@
 
 package org.openjavacard.cap.base;
 
-import org.openjavacard.cap.component.CapAppletComponent;
-import org.openjavacard.cap.component.CapClassComponent;
-import org.openjavacard.cap.component.CapConstantPoolComponent;
-import org.openjavacard.cap.component.CapDescriptorComponent;
-import org.openjavacard.cap.component.CapDirectoryComponent;
-import org.openjavacard.cap.component.CapExportComponent;
-import org.openjavacard.cap.component.CapHeaderComponent;
-import org.openjavacard.cap.component.CapImportComponent;
-import org.openjavacard.cap.component.CapMethodComponent;
-import org.openjavacard.cap.component.CapReferenceLocationComponent;
-import org.openjavacard.cap.component.CapStaticFieldComponent;
 import org.openjavacard.cap.file.CapComponentType;
 import org.openjavacard.cap.file.CapFileComponent;
 import org.openjavacard.cap.file.CapFilePackage;
@@ -39,6 +28,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -70,80 +60,59 @@ public class CapPackageReader {
         LOG.trace("resolving " + mMethodRefs.size() + " method references");
     }
 
+    /**
+     * Read a package
+     * <p/>
+     * Components are registered but not decoded. The package
+     * decodes each of them when it is first accessed, so errors
+     * in a component are only reported at that point, as an
+     * {@link java.io.UncheckedIOException}. Call
+     * {@link CapPackage#decodeAll()} to check everything here.
+     * <p/>
+     * @param filePackage to read
+     * @return the package
+     * @throws IOException on error
+     */
     public CapPackage read(CapFilePackage filePackage) throws IOException {
-        CapPackage pkg = new CapPackage();
+        CapPackage pkg = new CapPackage(this);
         List<CapFileComponent> fileComponents = filePackage.getLoadComponents();
         for(CapFileComponent fileComponent: fileComponents) {
-            LOG.debug("reading component " + fileComponent.getType());
-            CapComponentReader reader = new CapComponentReader(this, fileComponent);
-            CapComponentType type = fileComponent.getType();
-            int size = reader.readComponentHeader();
-            if(pkg.mDirectory != null) {
-                if(size != pkg.mDirectory.getComponentSize(type)) {
-                    throw new IOException("Component size disagrees with directory");
-                }
-            }
-            switch (type) {
-                case Header:
-                    pkg.mHeader = reader.readStructure(CapHeaderComponent.class);
-                    pkg.mComponents.add(pkg.mHeader);
-                    break;
-                case Directory:
-                    pkg.mDirectory = reader.readStructure(CapDirectoryComponent.class);
-                    pkg.mComponents.add(pkg.mDirectory);
-                    break;
-                case Import:
-                    pkg.mImports = reader.readStructure(CapImportComponent.class);
-                    pkg.mComponents.add(pkg.mImports);
-                    break;
-                case Applet:
-                    pkg.mApplets = reader.readStructure(CapAppletComponent.class);
-                    pkg.mComponents.add(pkg.mApplets);
-                    break;
-                case Class:
-                    pkg.mClasses = reader.readStructure(CapClassComponent.class);
-                    pkg.mComponents.add(pkg.mClasses);
-                    break;
-                case Method:
-                    pkg.mMethods = reader.readStructure(CapMethodComponent.class);
-                    pkg.mComponents.add(pkg.mMethods);
-                    break;
-                case StaticField:
-                    pkg.mStaticFields = reader.readStructure(CapStaticFieldComponent.class);
-                    pkg.mComponents.add(pkg.mStaticFields);
-                    break;
-                case Export:
-                    pkg.mExports = reader.readStructure(CapExportComponent.class);
-                    pkg.mComponents.add(pkg.mExports);
-                    break;
-                case ConstantPool:
-                    pkg.mConstantPool = reader.readStructure(CapConstantPoolComponent.class);
-                    pkg.mComponents.add(pkg.mConstantPool);
-                    break;
-                case ReferenceLocation:
-                    pkg.mReferenceLocation = reader.readStructure(CapReferenceLocationComponent.class);
-                    pkg.mComponents.add(pkg.mReferenceLocation);
-                    break;
-                case Descriptor:
-                    pkg.mDescriptor = reader.readStructure(CapDescriptorComponent.class);
-                    pkg.mComponents.add(pkg.mDescriptor);
-                    // parse methods in the method component now
-                    // that we have the required descriptor data
-                    pkg.mMethods.decodeMethodInfo(pkg.mDescriptor);
-                    break;
-                default:
-                    LOG.warn("ignoring component " + type);
-                    break;
-            }
+            pkg.addFileComponent(fileComponent);
+        }
+        return pkg;
+    }
 
-            if(reader.hasMore()) {
-                throw new IOException("Trailing data in component " + type);
-            }
+    /**
+     * Split off the body of a component
+     * @param fileComponent to split
+     * @return read-only view of the component body
+     * @throws IOException on error
+     */
+    ByteBuffer readComponentBody(CapFileComponent fileComponent) throws IOException {
+        CapComponentType type = fileComponent.getType();
+        CapComponentReader reader = new CapComponentReader(this, type, ByteBuffer.wrap(fileComponent.getData()));
+        int size = reader.readComponentHeader();
+        return reader.readSlice(size);
+    }
 
-            resolveClassRefs();
-            resolveMethodRefs();
+    /**
+     * Decode a component from its body
+     * @param type of the component
+     * @param body of the component
+     * @param componentClass to decode into
+     * @return the decoded component
+     * @throws IOException on error
+     */
+    <C extends CapComponent> C readComponent(CapComponentType type, ByteBuffer body, Class<C> componentClass) throws IOException {
+        LOG.debug("reading component " + type);
+        CapComponentReader reader = new CapComponentReader(this, type, body);
+        C component = reader.readStructure(componentClass);
+        if(reader.hasMore()) {
+            throw new IOException("Trailing data in component " + type);
         }
-        return pkg;
+        resolveClassRefs();
+        resolveMethodRefs();
+        return component;
     }
 
 }
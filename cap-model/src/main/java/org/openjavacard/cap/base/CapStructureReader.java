@@ -25,65 +25,88 @@ import org.openjavacard.iso.AID;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedInputStream;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 
+/**
+ * Reader for CAP structures
+ * <p/>
+ * Reads from a big-endian ByteBuffer using absolute offsets.
+ * Bounds are checked once per read, and once for each array,
+ * so that parsing runs as a tight loop over the buffer.
+ * <p/>
+ * Raw sections can be taken as zero-copy slices.
+ */
 public class CapStructureReader {
 
     private static final Logger LOG = LoggerFactory.getLogger(CapStructureReader.class);
 
-    protected final BufferedInputStream mStream;
+    private final ByteBuffer mBuffer;
+    private final int mLimit;
+    private int mPosition;
 
     CapStructureReader(byte[] data) {
-        mStream = new BufferedInputStream(new ByteArrayInputStream(data));
+        this(ByteBuffer.wrap(data));
+    }
+
+    CapStructureReader(ByteBuffer buffer) {
+        mBuffer = buffer.slice().order(ByteOrder.BIG_ENDIAN);
+        mLimit = mBuffer.limit();
+        mPosition = 0;
     }
 
     public void error(String message) throws IOException {
         throw new IOException(message);
     }
 
-    public int available() throws IOException {
-        return mStream.available();
+    public int available() {
+        return mLimit - mPosition;
     }
 
-    public boolean hasMore() throws IOException {
-        return mStream.available() > 0;
+    public boolean hasMore() {
+        return mPosition < mLimit;
     }
 
     public int peekByte() throws IOException {
-        mStream.mark(1);
-        int res = mStream.read();
-        if(res == -1) {
-            throw new IOException("Unexpected end of file");
-        }
-        mStream.reset();
-        return res;
+        needBytes(1);
+        return mBuffer.get(mPosition) & 0xFF;
     }
 
     public int readByte() throws IOException {
-        int res = mStream.read();
-        if(res == -1) {
-            throw new IOException("Unexpected end of file");
-        }
-        return res;
+        needBytes(1);
+        return mBuffer.get(mPosition++) & 0xFF;
     }
 
     public byte[] readBytes(int count) throws IOException {
+        needBytes(count);
         byte[] res = new byte[count];
-        if(count == 0) {
-            return res;
-        }
-        if(mStream.read(res) != count) {
-            throw new IOException("Unexpected end of file");
-        }
+        ByteBuffer source = mBuffer.duplicate();
+        source.position(mPosition);
+        source.get(res);
+        mPosition += count;
         return res;
     }
 
+    /**
+     * Read a raw section without copying
+     * @param count of bytes in the section
+     * @return read-only view of the section
+     * @throws IOException if the data ends early
+     */
+    public ByteBuffer readSlice(int count) throws IOException {
+        needBytes(count);
+        ByteBuffer res = mBuffer.asReadOnlyBuffer();
+        res.position(mPosition);
+        res.limit(mPosition + count);
+        mPosition += count;
+        return res.slice();
+    }
+
     public void needBytes(int count) throws IOException {
-        if(count > mStream.available()) {
+        if(count < 0 || count > mLimit - mPosition) {
             throw new IOException("Unexpected end of file");
         }
     }
@@ -99,35 +122,37 @@ public class CapStructureReader {
     public int[] readU1Array(int count) throws IOException {
         needBytes(count);
         int[] res = new int[count];
+        int pos = mPosition;
         for(int i = 0; i < count; i++) {
-            res[i] = readU1();
+            res[i] = mBuffer.get(pos + i) & 0xFF;
         }
+        mPosition = pos + count;
         return res;
     }
 
     public int readU2() throws IOException {
         needBytes(2);
-        int first = mStream.read();
-        int second = mStream.read();
-        return (first << 8) | second;
+        int res = mBuffer.getShort(mPosition) & 0xFFFF;
+        mPosition += 2;
+        return res;
     }
 
     public int[] readU2Array(int count) throws IOException {
         needBytes(count * 2);
         int[] res = new int[count];
+        int pos = mPosition;
         for(int i = 0; i < count; i++) {
-            res[i] = readU2();
+            res[i] = mBuffer.getShort(pos + i * 2) & 0xFFFF;
         }
+        mPosition = pos + count * 2;
         return res;
     }
 
     public long readU4() throws IOException {
         needBytes(4);
-        int first = mStream.read();
-        int second = mStream.read();
-        int third = mStream.read();
-        int fourth = mStream.read();
-        return (first << 24) | (second << 16) | (third << 8) | fourth;
+        long res = mBuffer.getInt(mPosition);
+        mPosition += 4;
+        return res;
     }
 
     public AID readAID() throws IOException {
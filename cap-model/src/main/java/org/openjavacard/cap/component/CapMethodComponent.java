@@ -30,6 +30,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 
 public class CapMethodComponent extends CapComponent {
@@ -42,15 +43,25 @@ public class CapMethodComponent extends CapComponent {
 
     private ArrayList<CapExceptionHandlerInfo> mExceptionHandlerInfos;
 
-    private byte[] mRawMethodInfo;
+    private ByteBuffer mRawMethodInfo;
 
     public ArrayList<CapExceptionHandlerInfo> getExceptionHandlerInfos() {
         return mExceptionHandlerInfos;
     }
 
+    /** @return copy of the undecoded method info */
     @JsonIgnore
     public byte[] getRawMethodInfo() {
-        return mRawMethodInfo;
+        ByteBuffer buffer = mRawMethodInfo.duplicate();
+        byte[] res = new byte[buffer.remaining()];
+        buffer.get(res);
+        return res;
+    }
+
+    /** @return read-only view of the undecoded method info */
+    @JsonIgnore
+    public ByteBuffer getRawMethodInfoBuffer() {
+        return mRawMethodInfo.duplicate();
     }
 
     @Override
@@ -59,8 +70,8 @@ public class CapMethodComponent extends CapComponent {
         LOG.trace("reading " + handlerCount + " handlers");
         mExceptionHandlerInfos = reader.readStructureArray(handlerCount, CapExceptionHandlerInfo.class);
         int methodInfoLength = reader.available();
-        LOG.trace("method info is " + reader.available() + " bytes");
-        mRawMethodInfo = reader.readBytes(methodInfoLength);
+        LOG.trace("method info is " + methodInfoLength + " bytes");
+        mRawMethodInfo = reader.readSlice(methodInfoLength);
     }
 
     public void decodeMethodInfo(CapDescriptorComponent descriptorComponent) {
@@ -0,0 +1,191 @@
+/*
+ * openjavacard-tools: Development tools for JavaCard
+ * Copyright (C) 2019 Ingo Albrecht <copyright@promovicz.org>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package org.openjavacard.cap.base;
+
+import junit.framework.TestCase;
+import org.junit.Assert;
+import org.openjavacard.cap.file.CapComponentType;
+import org.openjavacard.cap.file.CapFilePackage;
+import org.openjavacard.cap.file.CapFileReader;
+import org.openjavacard.cap.test.CapTestFiles;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+public class CapPackageTest extends TestCase {
+
+    private static List<CapFilePackage> readPackages() throws IOException {
+        List<CapFilePackage> res = new ArrayList<>();
+        for (InputStream stream : CapTestFiles.getFiles()) {
+            res.add(CapFileReader.readStream(stream).getPackage());
+        }
+        return res;
+    }
+
+    public void testLazyHeader() throws IOException {
+        for (CapFilePackage pkg : readPackages()) {
+            CapPackage capPackage = new CapPackageReader().read(pkg);
+            Assert.assertFalse(capPackage.isDecoded(CapComponentType.Header));
+            Assert.assertNotNull(capPackage.getHeader());
+            // libraries have no applets
+            boolean applets = pkg.getComponentByType(CapComponentType.Applet) != null;
+            Assert.assertEquals(applets, capPackage.getApplets() != null);
+            Assert.assertTrue(capPackage.isDecoded(CapComponentType.Header));
+            // nothing else was decoded
+            Assert.assertFalse(capPackage.isDecoded(CapComponentType.Method));
+            Assert.assertFalse(capPackage.isDecoded(CapComponentType.Descriptor));
+            Assert.assertFalse(capPackage.isDecoded(CapComponentType.ConstantPool));
+            // methods pull in the descriptor
+            Assert.assertNotNull(capPackage.getMethods());
+            Assert.assertTrue(capPackage.isDecoded(CapComponentType.Descriptor));
+        }
+    }
+
+    public void testLazyMatchesFull() throws IOException {
+        for (CapFilePackage pkg : readPackages()) {
+            List<CapComponent> full = new CapPackageReader().read(pkg).getComponents();
+            CapPackage lazy = new CapPackageReader().read(pkg);
+            lazy.getHeader();
+            lazy.getApplets();
+            lazy.getMethods();
+            List<CapComponent> components = lazy.getComponents();
+            Assert.assertEquals(pkg.getLoadComponents().size(), components.size());
+            Assert.assertEquals(full.size(), components.size());
+            for (int i = 0; i < full.size(); i++) {
+                CapComponent expected = full.get(i);
+                CapComponent actual = components.get(i);
+                CapComponentType type = expected.getComponentType();
+                Assert.assertEquals(type, actual.getComponentType());
+                Assert.assertSame(expected.getClass(), actual.getClass());
+                // components are decoded once
+                Assert.assertSame(actual, lazy.getComponent(type));
+            }
+            CapPackage reference = new CapPackageReader().read(pkg);
+            reference.decodeAll();
+            Assert.assertEquals(reference.getHeader().getInfo().getAID(), lazy.getHeader().getInfo().getAID());
+            if (reference.getApplets() != null) {
+                Assert.assertEquals(reference.getApplets().getApplets().size(), lazy.getApplets().getApplets().size());
+            }
+            Assert.assertEquals(reference.getClasses().getClasses().size(), lazy.getClasses().getClasses().size());
+            Assert.assertEquals(reference.getDescriptor().getClassInfos().size(),
+                    lazy.getDescriptor().getClassInfos().size());
+            Assert.assertArrayEquals(reference.getMethods().getRawMethodInfo(), lazy.getMethods().getRawMethodInfo());
+        }
+    }
+
+    public void testComponentBody() throws IOException {
+        CapFilePackage pkg = readPackages().get(0);
+        CapPackage capPackage = new CapPackageReader().read(pkg);
+        byte[] data = pkg.getComponentByType(CapComponentType.Method).getData();
+        ByteBuffer body = capPackage.getComponentBody(CapComponentType.Method);
+        // the body follows the tag and size
+        Assert.assertEquals(data.length - 3, body.remaining());
+        Assert.assertTrue(body.isReadOnly());
+        byte[] bytes = new byte[body.remaining()];
+        body.get(bytes);
+        Assert.assertArrayEquals(Arrays.copyOfRange(data, 3, data.length), bytes);
+        // views are independent
+        Assert.assertEquals(data.length - 3, capPackage.getComponentBody(CapComponentType.Method).remaining());
+    }
+
+    public void testCorruptComponent() throws IOException {
+        // truncated component
+        CapFilePackage truncated = rewriteMethod(new Rewrite() {
+            @Override
+            public byte[] rewrite(byte[] data) {
+                return Arrays.copyOf(data, data.length - 1);
+            }
+        });
+        checkCorrupt(truncated);
+        // component disagreeing with the directory
+        CapFilePackage extended = rewriteMethod(new Rewrite() {
+            @Override
+            public byte[] rewrite(byte[] data) {
+                byte[] res = Arrays.copyOf(data, data.length + 1);
+                int size = ((res[1] & 0xFF) << 8 | (res[2] & 0xFF)) + 1;
+                res[1] = (byte) (size >> 8);
+                res[2] = (byte) size;
+                return res;
+            }
+        });
+        checkCorrupt(extended);
+    }
+
+    private void checkCorrupt(CapFilePackage pkg) {
+        CapPackage capPackage;
+        try {
+            capPackage = new CapPackageReader().read(pkg);
+        } catch (IOException e) {
+            throw new AssertionError("Reading should not decode components", e);
+        }
+        // unaffected components still work
+        Assert.assertNotNull(capPackage.getHeader());
+        Assert.assertEquals(1, capPackage.getApplets().getApplets().size());
+        // the corrupt one fails when accessed
+        try {
+            capPackage.getMethods();
+            fail("Decoded corrupt component");
+        } catch (UncheckedIOException e) {
+            Assert.assertNotNull(e.getCause());
+        }
+        // and is reported as an I/O error when checked up front
+        try {
+            capPackage.decodeAll();
+            fail("Decoded corrupt package");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private interface Rewrite {
+        byte[] rewrite(byte[] data);
+    }
+
+    private static CapFilePackage rewriteMethod(Rewrite rewrite) throws IOException {
+        // the demo applet is last
+        List<byte[]> files = CapTestFiles.getBytes();
+        byte[] archive = files.get(files.size() - 1);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (ZipOutputStream zos = new ZipOutputStream(bos)) {
+            ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(archive));
+            for (ZipEntry entry; (entry = zis.getNextEntry()) != null; ) {
+                byte[] data = CapTestFiles.getBytes(zis);
+                if (entry.getName().endsWith("/Method.cap")) {
+                    data = rewrite.rewrite(data);
+                }
+                zos.putNextEntry(new ZipEntry(entry.getName()));
+                zos.write(data);
+                zos.closeEntry();
+            }
+        }
+        return CapFileReader.readStream(new ByteArrayInputStream(bos.toByteArray())).getPackage();
+    }
+
+}
@@ -19,6 +19,10 @@
 
 package org.openjavacard.cap.test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
@@ -42,4 +46,59 @@ public class CapTestFiles {
         return streams;
     }
 
+    /**
+     * Read the contents of all test files
+     * @return list of file contents, in the same order as getFiles()
+     * @throws IOException on error
+     */
+    public static List<byte[]> getBytes() throws IOException {
+        ArrayList<byte[]> res = new ArrayList<>();
+        for(InputStream stream: getFiles()) {
+            try {
+                res.add(getBytes(stream));
+            } finally {
+                stream.close();
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Read the remainder of a stream
+     * <p/>
+     * The stream is not closed, so this also works for zip entries.
+     * <p/>
+     * @param stream to read
+     * @return bytes read
+     * @throws IOException on error
+     */
+    public static byte[] getBytes(InputStream stream) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        for(int c; (c = stream.read(buf)) > 0; ) {
+            bos.write(buf, 0, c);
+        }
+        return bos.toByteArray();
+    }
+
+    /**
+     * Write data to a new temporary CAP file
+     * <p/>
+     * The caller is responsible for deleting the file.
+     * <p/>
+     * @param data to write
+     * @return the new file
+     * @throws IOException on error
+     */
+    public static File writeTempFile(byte[] data) throws IOException {
+        File file = File.createTempFile("test", ".cap");
+        try(FileOutputStream fos = new FileOutputStream(file)) {
+            fos.write(data);
+        } catch (IOException e) {
+            file.delete();
+            throw e;
+        }
+        return file;
+    }
+
 }
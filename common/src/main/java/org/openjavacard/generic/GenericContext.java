@@ -34,8 +34,32 @@ public class GenericContext {
 
     protected final Logger LOG;
 
+    /** Source of terminals */
+    private final CardTerminals mTerminals;
+
+    /**
+     * Construct a context using the default terminal factory
+     */
     public GenericContext() {
+        this(TerminalFactory.getDefault().terminals());
+    }
+
+    /**
+     * Construct a context using the given terminals
+     * <p/>
+     * This allows operation on terminals not provided by the
+     * default terminal factory, such as simulated terminals.
+     * <p/>
+     * @param terminals to operate on
+     */
+    public GenericContext(CardTerminals terminals) {
         LOG = LoggerFactory.getLogger(getClass());
+        mTerminals = terminals;
+    }
+
+    /** @return the terminals used by this context */
+    public CardTerminals getTerminals() {
+        return mTerminals;
     }
 
     public GenericCard findSingleCard(String prefix) {
@@ -80,10 +104,8 @@ public class GenericContext {
     public List<CardTerminal> findTerminals(String prefix) {
         LOG.debug("findTerminals()");
         ArrayList<CardTerminal> found = new ArrayList<>();
-        TerminalFactory tf = TerminalFactory.getDefault();
-        CardTerminals ts = tf.terminals();
         try {
-            List<CardTerminal> terminals = ts.list();
+            List<CardTerminal> terminals = mTerminals.list();
             for (CardTerminal terminal : terminals) {
                 String name = terminal.getName();
                 LOG.trace("terminal \"" + name + "\"");
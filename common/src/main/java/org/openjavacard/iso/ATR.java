@@ -19,6 +19,10 @@
 
 package org.openjavacard.iso;
 
+import org.openjavacard.util.HexUtil;
+
+import java.util.Arrays;
+
 public class ATR {
 
     private static final byte MIN_LENGTH = 2;
@@ -93,8 +97,25 @@ public class ATR {
     };
 
 
+    /** Category indicator: compact-TLV objects followed by a status indicator */
+    private static final byte CATEGORY_TLV_STATUS_LAST = (byte) 0x00;
+    /** Category indicator: compact-TLV objects, possibly including a status indicator */
+    private static final byte CATEGORY_TLV = (byte) 0x80;
+
+    /** Compact-TLV tag for card capabilities */
+    private static final int CTLV_TAG_CARD_CAPABILITIES = 0x7;
+
+    /** Card capabilities, third software function table: command chaining */
+    private static final byte CAPS3_COMMAND_CHAINING = (byte) 0x80;
+    /** Card capabilities, third software function table: extended Lc and Le */
+    private static final byte CAPS3_EXTENDED_LENGTH = (byte) 0x40;
+
     private final byte[] mData;
 
+    /** Offset of the historical bytes */
+    private final int mHistoricalOffset;
+    /** Number of historical bytes */
+    private final int mHistoricalLength;
 
     public ATR(byte[] data) {
         // check for valid length range
@@ -102,6 +123,109 @@ public class ATR {
             throw new IllegalArgumentException("ATR must be between 2 and 33 bytes long");
         }
         mData = data;
+        // skip over interface bytes to find the historical bytes
+        int t0 = data[OFFSET_T0] & 0xFF;
+        int off = OFFSET_T0 + 1;
+        int y = t0 >> 4;
+        while (y != 0) {
+            int td = -1;
+            for (int i = SUBOFFSET_TA; i <= SUBOFFSET_TD; i++) {
+                if ((y & (1 << i)) != 0) {
+                    if (off >= data.length) {
+                        throw new IllegalArgumentException("ATR is truncated");
+                    }
+                    if (i == SUBOFFSET_TD) {
+                        td = data[off] & 0xFF;
+                    }
+                    off++;
+                }
+            }
+            y = (td < 0) ? 0 : (td >> 4);
+        }
+        int length = t0 & 0x0F;
+        if (off + length > data.length) {
+            throw new IllegalArgumentException("ATR is truncated");
+        }
+        mHistoricalOffset = off;
+        mHistoricalLength = length;
+    }
+
+    /** @return the raw bytes of the ATR */
+    public byte[] getBytes() {
+        return mData.clone();
+    }
+
+    /** @return the historical bytes of the ATR */
+    public byte[] getHistoricalBytes() {
+        return Arrays.copyOfRange(mData, mHistoricalOffset, mHistoricalOffset + mHistoricalLength);
+    }
+
+    /**
+     * Get the card capabilities from the historical bytes
+     * <p/>
+     * These are the software function tables of ISO7816-4.
+     * <p/>
+     * @return content of the card capabilities object or null if absent
+     */
+    public byte[] getCardCapabilities() {
+        return findCompactTLV(CTLV_TAG_CARD_CAPABILITIES);
+    }
+
+    /** @return true if the card indicates support for command chaining */
+    public boolean isCommandChainingSupported() {
+        return hasCapability3(CAPS3_COMMAND_CHAINING);
+    }
+
+    /** @return true if the card indicates support for extended length fields */
+    public boolean isExtendedLengthSupported() {
+        return hasCapability3(CAPS3_EXTENDED_LENGTH);
+    }
+
+    private boolean hasCapability3(byte flag) {
+        byte[] caps = getCardCapabilities();
+        if (caps == null || caps.length < 3) {
+            return false;
+        }
+        return (caps[2] & flag) != 0;
+    }
+
+    /**
+     * Internal: find a compact-TLV object in the historical bytes
+     * @param tag to look for
+     * @return value of the object or null if absent
+     */
+    private byte[] findCompactTLV(int tag) {
+        if (mHistoricalLength == 0) {
+            return null;
+        }
+        int off = mHistoricalOffset;
+        int end = mHistoricalOffset + mHistoricalLength;
+        byte category = mData[off++];
+        if (category == CATEGORY_TLV_STATUS_LAST) {
+            // last three bytes are the status indicator
+            end -= 3;
+        } else if (category != CATEGORY_TLV) {
+            // no compact-TLV objects
+            return null;
+        }
+        while (off < end) {
+            int tl = mData[off++] & 0xFF;
+            int objTag = tl >> 4;
+            int objLen = tl & 0x0F;
+            if (off + objLen > end) {
+                break;
+            }
+            if (objTag == tag) {
+                return Arrays.copyOfRange(mData, off, off + objLen);
+            }
+            off += objLen;
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return HexUtil.bytesToHex(mData);
     }
 
 }
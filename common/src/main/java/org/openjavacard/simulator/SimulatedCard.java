@@ -0,0 +1,156 @@
+/*
+ * openjavacard-tools: Development tools for JavaCard
+ * Copyright (C) 2019 Ingo Albrecht <copyright@promovicz.org>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package org.openjavacard.simulator;
+
+import javax.smartcardio.ATR;
+import javax.smartcardio.Card;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Connection to a simulated device
+ * <p/>
+ * Only the basic channel is supported.
+ * <p/>
+ */
+public class SimulatedCard extends Card {
+
+    /** Terminal we are connected through */
+    private final SimulatedTerminal mTerminal;
+    /** Generation of the terminal at connection time */
+    private final int mGeneration;
+    /** ATR of the device */
+    private final ATR mATR;
+    /** Protocol in use */
+    private final String mProtocol;
+    /** The basic channel */
+    private final SimulatedChannel mBasicChannel;
+
+    /** True after disconnect */
+    private volatile boolean mDisconnected;
+
+    SimulatedCard(SimulatedTerminal terminal, int generation, byte[] atr, String protocol) {
+        mTerminal = terminal;
+        mGeneration = generation;
+        mATR = new ATR(atr);
+        mProtocol = protocol;
+        mBasicChannel = new SimulatedChannel(this);
+    }
+
+    /** @return the terminal of this connection */
+    public SimulatedTerminal getTerminal() {
+        return mTerminal;
+    }
+
+    @Override
+    public ATR getATR() {
+        return mATR;
+    }
+
+    @Override
+    public String getProtocol() {
+        return mProtocol;
+    }
+
+    @Override
+    public CardChannel getBasicChannel() {
+        checkConnected();
+        return mBasicChannel;
+    }
+
+    @Override
+    public CardChannel openLogicalChannel() throws CardException {
+        checkConnected();
+        throw new CardException("Logical channels are not supported");
+    }
+
+    @Override
+    public void beginExclusive() throws CardException {
+        checkConnected();
+        mTerminal.checkDevice(mGeneration);
+        mTerminal.getExclusiveLock().lock();
+    }
+
+    @Override
+    public void endExclusive() throws CardException {
+        checkConnected();
+        ReentrantLock lock = mTerminal.getExclusiveLock();
+        if (!lock.isHeldByCurrentThread()) {
+            throw new IllegalStateException("Exclusive access not held");
+        }
+        lock.unlock();
+    }
+
+    @Override
+    public byte[] transmitControlCommand(int controlCode, byte[] command) throws CardException {
+        checkConnected();
+        throw new CardException("Control commands are not supported");
+    }
+
+    @Override
+    public void disconnect(boolean reset) throws CardException {
+        if (mDisconnected) {
+            return;
+        }
+        mDisconnected = true;
+        // release exclusive access if we hold it
+        ReentrantLock lock = mTerminal.getExclusiveLock();
+        while (lock.isHeldByCurrentThread()) {
+            lock.unlock();
+        }
+        // reset the device if requested and still present
+        if (reset) {
+            try {
+                mTerminal.reset(mGeneration);
+            } catch (CardException e) {
+                // card is gone, nothing to reset
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SimulatedCard in " + mTerminal.getName() + ", protocol " + mProtocol;
+    }
+
+    /**
+     * Internal: transmit a command
+     * @param command to transmit
+     * @return the response
+     * @throws CardException on error
+     */
+    ResponseAPDU transmit(CommandAPDU command) throws CardException {
+        checkConnected();
+        return mTerminal.transmit(mGeneration, command);
+    }
+
+    /**
+     * Internal: check that we are still connected
+     */
+    private void checkConnected() {
+        if (mDisconnected) {
+            throw new IllegalStateException("Card has been disconnected");
+        }
+    }
+
+}
@@ -0,0 +1,71 @@
+/*
+ * openjavacard-tools: Development tools for JavaCard
+ * Copyright (C) 2019 Ingo Albrecht <copyright@promovicz.org>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package org.openjavacard.simulator;
+
+import javax.smartcardio.Card;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+import java.nio.ByteBuffer;
+
+/**
+ * Basic channel of a simulated card
+ */
+public class SimulatedChannel extends CardChannel {
+
+    /** Card this channel belongs to */
+    private final SimulatedCard mCard;
+
+    SimulatedChannel(SimulatedCard card) {
+        mCard = card;
+    }
+
+    @Override
+    public Card getCard() {
+        return mCard;
+    }
+
+    @Override
+    public int getChannelNumber() {
+        return 0;
+    }
+
+    @Override
+    public ResponseAPDU transmit(CommandAPDU command) throws CardException {
+        return mCard.transmit(command);
+    }
+
+    @Override
+    public int transmit(ByteBuffer command, ByteBuffer response) throws CardException {
+        byte[] commandBytes = new byte[command.remaining()];
+        command.get(commandBytes);
+        ResponseAPDU rapdu = transmit(new CommandAPDU(commandBytes));
+        byte[] rapduBytes = rapdu.getBytes();
+        response.put(rapduBytes);
+        return rapduBytes.length;
+    }
+
+    @Override
+    public void close() throws CardException {
+        throw new IllegalStateException("Cannot close the basic channel");
+    }
+
+}
@@ -0,0 +1,55 @@
+/*
+ * openjavacard-tools: Development tools for JavaCard
+ * Copyright (C) 2019 Ingo Albrecht <copyright@promovicz.org>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package org.openjavacard.simulator;
+
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+/**
+ * Interface for simulated cards
+ * <p/>
+ * Devices are inserted into a SimulatedTerminal, which
+ * serializes access so implementations need not be thread-safe.
+ * <p/>
+ */
+public interface SimulatedDevice {
+
+    /** @return the ATR of the device */
+    byte[] getATR();
+
+    /**
+     * Reset the device
+     * <p/>
+     * Called when a connection is disconnected with reset.
+     * <p/>
+     */
+    void reset();
+
+    /**
+     * Process a command
+     * <p/>
+     * Errors must be reported as a status word.
+     * <p/>
+     * @param command to process
+     * @return the response
+     */
+    ResponseAPDU process(CommandAPDU command);
+
+}
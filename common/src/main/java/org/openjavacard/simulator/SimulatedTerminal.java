@@ -0,0 +1,295 @@
+/*
+ * openjavacard-tools: Development tools for JavaCard
+ * Copyright (C) 2019 Ingo Albrecht <copyright@promovicz.org>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package org.openjavacard.simulator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.smartcardio.Card;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Terminal holding a simulated device
+ * <p/>
+ * Devices can be inserted and removed at any time. Connections
+ * to a removed device fail like they would with a real reader.
+ * <p/>
+ * A fixed latency can be configured that will be applied
+ * to every command, emulating the transmission time of a reader.
+ * <p/>
+ */
+public class SimulatedTerminal extends CardTerminal {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SimulatedTerminal.class);
+
+    /** Protocol reported for connections */
+    private static final String PROTOCOL = "T=1";
+
+    /** Name of the terminal */
+    private final String mName;
+    /** Lock for exclusive access */
+    private final ReentrantLock mExclusive = new ReentrantLock();
+    /** Number of commands processed */
+    private final AtomicLong mCommandCount = new AtomicLong();
+
+    /** Terminal list we belong to, if any */
+    private SimulatedTerminals mTerminals;
+    /** Device currently present */
+    private SimulatedDevice mDevice;
+    /** Incremented on each insertion and removal */
+    private int mGeneration;
+    /** Latency applied to each command in nanoseconds */
+    private long mLatency;
+
+    /**
+     * Construct an empty terminal
+     * @param name of the terminal
+     */
+    public SimulatedTerminal(String name) {
+        this(name, null);
+    }
+
+    /**
+     * Construct a terminal with a device
+     * @param name of the terminal
+     * @param device to insert
+     */
+    public SimulatedTerminal(String name, SimulatedDevice device) {
+        mName = name;
+        mDevice = device;
+    }
+
+    @Override
+    public String getName() {
+        return mName;
+    }
+
+    /** @return the device currently present, null if none */
+    public synchronized SimulatedDevice getDevice() {
+        return mDevice;
+    }
+
+    /** @return latency applied to each command in nanoseconds */
+    public long getLatency() {
+        return mLatency;
+    }
+
+    /** @return number of commands processed by this terminal */
+    public long getCommandCount() {
+        return mCommandCount.get();
+    }
+
+    /**
+     * Set the latency to apply to each command
+     * @param latency to apply
+     * @param unit of the latency
+     */
+    public void setLatency(long latency, TimeUnit unit) {
+        if (latency < 0) {
+            throw new IllegalArgumentException("Latency must not be negative");
+        }
+        mLatency = unit.toNanos(latency);
+    }
+
+    /**
+     * Insert a device into the terminal
+     * @param device to insert
+     */
+    public void insertCard(SimulatedDevice device) {
+        synchronized (this) {
+            if (mDevice != null) {
+                throw new IllegalStateException("Terminal " + mName + " already has a card");
+            }
+            LOG.debug("card inserted into " + mName);
+            mDevice = device;
+            mGeneration++;
+            notifyAll();
+        }
+        notifyTerminals();
+    }
+
+    /**
+     * Remove the device from the terminal
+     * @return the device that was removed, null if none
+     */
+    public SimulatedDevice removeCard() {
+        SimulatedDevice device;
+        synchronized (this) {
+            device = mDevice;
+            if (device != null) {
+                LOG.debug("card removed from " + mName);
+                mDevice = null;
+                mGeneration++;
+                notifyAll();
+            }
+        }
+        if (device != null) {
+            notifyTerminals();
+        }
+        return device;
+    }
+
+    @Override
+    public Card connect(String protocol) throws CardException {
+        if (!protocol.equals("*") && !protocol.equals(PROTOCOL)) {
+            throw new CardException("Unsupported protocol " + protocol);
+        }
+        synchronized (this) {
+            if (mDevice == null) {
+                throw new CardException("No card present in " + mName);
+            }
+            return new SimulatedCard(this, mGeneration, mDevice.getATR(), PROTOCOL);
+        }
+    }
+
+    @Override
+    public synchronized boolean isCardPresent() {
+        return mDevice != null;
+    }
+
+    @Override
+    public boolean waitForCardPresent(long timeout) throws CardException {
+        return waitForPresence(true, timeout);
+    }
+
+    @Override
+    public boolean waitForCardAbsent(long timeout) throws CardException {
+        return waitForPresence(false, timeout);
+    }
+
+    @Override
+    public String toString() {
+        return "SimulatedTerminal " + mName;
+    }
+
+    /**
+     * Internal: attach to a terminal list
+     * @param terminals to notify about changes
+     */
+    synchronized void setTerminals(SimulatedTerminals terminals) {
+        mTerminals = terminals;
+    }
+
+    /**
+     * Internal: transmit a command to the device
+     * <p/>
+     * Commands are serialized per terminal.
+     * <p/>
+     * @param generation of the connection
+     * @param command to transmit
+     * @return response from the device
+     * @throws CardException if the card has been removed
+     */
+    ResponseAPDU transmit(int generation, CommandAPDU command) throws CardException {
+        // emulate transmission time
+        if (mLatency > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(mLatency);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CardException("Interrupted during transmission", e);
+            }
+        }
+        // process the command
+        synchronized (this) {
+            SimulatedDevice device = checkDevice(generation);
+            mCommandCount.incrementAndGet();
+            return device.process(command);
+        }
+    }
+
+    /**
+     * Internal: reset the device
+     * @param generation of the connection
+     * @throws CardException if the card has been removed
+     */
+    synchronized void reset(int generation) throws CardException {
+        checkDevice(generation).reset();
+    }
+
+    /**
+     * Internal: check that the card of a connection is still present
+     * @param generation of the connection
+     * @return the device
+     * @throws CardException if the card has been removed
+     */
+    synchronized SimulatedDevice checkDevice(int generation) throws CardException {
+        if (mDevice == null || generation != mGeneration) {
+            throw new CardException("Card has been removed from " + mName);
+        }
+        return mDevice;
+    }
+
+    /** @return lock used for exclusive access */
+    ReentrantLock getExclusiveLock() {
+        return mExclusive;
+    }
+
+    /**
+     * Internal: wait for a presence state
+     * @param present state to wait for
+     * @param timeout in milliseconds, 0 for infinite
+     * @return true if the state was reached
+     * @throws CardException when interrupted
+     */
+    private synchronized boolean waitForPresence(boolean present, long timeout) throws CardException {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("Timeout must not be negative");
+        }
+        long deadline = System.currentTimeMillis() + timeout;
+        try {
+            while ((mDevice != null) != present) {
+                if (timeout == 0) {
+                    wait();
+                } else {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    wait(remaining);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CardException("Interrupted while waiting", e);
+        }
+        return true;
+    }
+
+    /**
+     * Internal: notify our terminal list about a change
+     */
+    private void notifyTerminals() {
+        SimulatedTerminals terminals;
+        synchronized (this) {
+            terminals = mTerminals;
+        }
+        if (terminals != null) {
+            terminals.terminalChanged();
+        }
+    }
+
+}
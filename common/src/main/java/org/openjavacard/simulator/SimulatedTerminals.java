@@ -0,0 +1,185 @@
+/*
+ * openjavacard-tools: Development tools for JavaCard
+ * Copyright (C) 2019 Ingo Albrecht <copyright@promovicz.org>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package org.openjavacard.simulator;
+
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.CardTerminals;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * List of simulated terminals
+ * <p/>
+ * This can be given to a GenericContext or used directly
+ * in place of the terminals of a TerminalFactory.
+ * <p/>
+ */
+public class SimulatedTerminals extends CardTerminals {
+
+    /** All terminals in the list */
+    private final ArrayList<SimulatedTerminal> mTerminals = new ArrayList<>();
+
+    /** Terminals with a card present as of the last waitForChange() */
+    private HashSet<SimulatedTerminal> mKnownPresent = null;
+    /** Terminals that changed during the last waitForChange() */
+    private HashSet<SimulatedTerminal> mChanged = new HashSet<>();
+
+    /**
+     * Add a terminal to the list
+     * @param terminal to add
+     */
+    public void addTerminal(SimulatedTerminal terminal) {
+        terminal.setTerminals(this);
+        synchronized (this) {
+            mTerminals.add(terminal);
+            notifyAll();
+        }
+    }
+
+    /**
+     * Add a new terminal with the given device
+     * @param name of the new terminal
+     * @param device to insert, may be null
+     * @return the new terminal
+     */
+    public SimulatedTerminal addTerminal(String name, SimulatedDevice device) {
+        SimulatedTerminal terminal = new SimulatedTerminal(name, device);
+        addTerminal(terminal);
+        return terminal;
+    }
+
+    /**
+     * Remove a terminal from the list
+     * @param terminal to remove
+     */
+    public void removeTerminal(SimulatedTerminal terminal) {
+        synchronized (this) {
+            mTerminals.remove(terminal);
+            notifyAll();
+        }
+        terminal.setTerminals(null);
+    }
+
+    /** @return all simulated terminals */
+    public synchronized List<SimulatedTerminal> getSimulatedTerminals() {
+        return new ArrayList<>(mTerminals);
+    }
+
+    @Override
+    public synchronized List<CardTerminal> list(State state) throws CardException {
+        ArrayList<CardTerminal> res = new ArrayList<>();
+        for (SimulatedTerminal terminal : mTerminals) {
+            boolean present = terminal.isCardPresent();
+            boolean changed = mChanged.contains(terminal);
+            switch (state) {
+                case ALL:
+                    res.add(terminal);
+                    break;
+                case CARD_PRESENT:
+                    if (present) {
+                        res.add(terminal);
+                    }
+                    break;
+                case CARD_ABSENT:
+                    if (!present) {
+                        res.add(terminal);
+                    }
+                    break;
+                case CARD_INSERTION:
+                    if (changed && present) {
+                        res.add(terminal);
+                    }
+                    break;
+                case CARD_REMOVAL:
+                    if (changed && !present) {
+                        res.add(terminal);
+                    }
+                    break;
+            }
+        }
+        return res;
+    }
+
+    @Override
+    public synchronized boolean waitForChange(long timeout) throws CardException {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("Timeout must not be negative");
+        }
+        // first call establishes the baseline
+        if (mKnownPresent == null) {
+            mKnownPresent = findPresent();
+        }
+        long deadline = System.currentTimeMillis() + timeout;
+        try {
+            while (true) {
+                HashSet<SimulatedTerminal> present = findPresent();
+                if (!present.equals(mKnownPresent)) {
+                    // remember what changed
+                    HashSet<SimulatedTerminal> changed = new HashSet<>();
+                    for (SimulatedTerminal terminal : mTerminals) {
+                        if (present.contains(terminal) != mKnownPresent.contains(terminal)) {
+                            changed.add(terminal);
+                        }
+                    }
+                    mChanged = changed;
+                    mKnownPresent = present;
+                    return true;
+                }
+                if (timeout == 0) {
+                    wait();
+                } else {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        mChanged = new HashSet<>();
+                        return false;
+                    }
+                    wait(remaining);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CardException("Interrupted while waiting", e);
+        }
+    }
+
+    /**
+     * Internal: called by terminals when their card changes
+     */
+    synchronized void terminalChanged() {
+        notifyAll();
+    }
+
+    /**
+     * Internal: determine terminals with a card present
+     * @return set of terminals
+     */
+    private HashSet<SimulatedTerminal> findPresent() {
+        HashSet<SimulatedTerminal> res = new HashSet<>();
+        for (SimulatedTerminal terminal : mTerminals) {
+            if (terminal.isCardPresent()) {
+                res.add(terminal);
+            }
+        }
+        return res;
+    }
+
+}
@@ -158,7 +158,25 @@ public class APDUUtil {
      * @return
      */
     public static CommandAPDU buildCommand(byte cla, byte ins, byte p1, byte p2, byte[] data) {
-        return new CommandAPDU(cla, ins, p1, p2, data, 256);
+        return buildCommand(cla, ins, p1, p2, data, 256);
+    }
+
+    /**
+     * Convenience method for building command APDUs
+     * <p/>
+     * Extended length encoding will be used if the data
+     * or the expected response length require it.
+     * <p/>
+     * @param cla
+     * @param ins
+     * @param p1
+     * @param p2
+     * @param data
+     * @param ne
+     * @return
+     */
+    public static CommandAPDU buildCommand(byte cla, byte ins, byte p1, byte p2, byte[] data, int ne) {
+        return new CommandAPDU(cla, ins, p1, p2, data, ne);
     }
 
 }
@@ -0,0 +1,65 @@
+/*
+ * openjavacard-tools: Development tools for JavaCard
+ * Copyright (C) 2018 Ingo Albrecht <copyright@promovicz.org>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package org.openjavacard.iso;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.BlockJUnit4ClassRunner;
+import org.openjavacard.util.HexUtil;
+
+@RunWith(BlockJUnit4ClassRunner.class)
+public class ATRTest {
+
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(ATRTest.class);
+    }
+
+    @Test
+    public void testHistoricalBytes() {
+        ATR atr = new ATR(HexUtil.hexToBytes("3BF81300008131FE454A434F5076323431B7"));
+        Assert.assertArrayEquals(HexUtil.hexToBytes("4A434F5076323431"), atr.getHistoricalBytes());
+        // no compact-TLV in these historical bytes
+        Assert.assertNull(atr.getCardCapabilities());
+        Assert.assertFalse(atr.isExtendedLengthSupported());
+    }
+
+    @Test
+    public void testCardCapabilities() {
+        ATR atr = new ATR(HexUtil.hexToBytes("3B8A80018031F873F741E08290007B"));
+        Assert.assertArrayEquals(HexUtil.hexToBytes("8031F873F741E0829000"), atr.getHistoricalBytes());
+        Assert.assertArrayEquals(HexUtil.hexToBytes("F741E0"), atr.getCardCapabilities());
+        Assert.assertTrue(atr.isCommandChainingSupported());
+        Assert.assertTrue(atr.isExtendedLengthSupported());
+    }
+
+    @Test
+    public void testCardCapabilitiesShort() {
+        ATR atr = new ATR(HexUtil.hexToBytes("3B8A80018031F873F741808290003B"));
+        Assert.assertTrue(atr.isCommandChainingSupported());
+        Assert.assertFalse(atr.isExtendedLengthSupported());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTruncated() {
+        new ATR(HexUtil.hexToBytes("3B8A800180"));
+    }
+
+}
@@ -0,0 +1,81 @@
+/*
+ * openjavacard-tools: Development tools for JavaCard
+ * Copyright (C) 2019 Ingo Albrecht <copyright@promovicz.org>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package org.openjavacard.gp.scp;
+
+import org.openjavacard.gp.keys.GPKeySet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import javax.smartcardio.CardException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark for the SCP03 wrap/unwrap path
+ * <p/>
+ * Uses the array-based variants, which should not allocate
+ * once the session is set up. Run with "-prof gc" to check.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SCP03WrapperBenchmark {
+
+    @Param({"false", "true"})
+    public boolean encrypt;
+
+    @Param({"16", "239"})
+    public int length;
+
+    private SCP03Wrapper mWrapper;
+    private byte[] mData;
+    private byte[] mCommand;
+    private byte[] mResponse;
+
+    @Setup
+    public void setup() {
+        SCP03Parameters parameters = (SCP03Parameters) SCPParameters.decode(0x03, 0x70);
+        mWrapper = new SCP03Wrapper(GPKeySet.GLOBALPLATFORM, parameters);
+        if (encrypt) {
+            mWrapper.startENC();
+        }
+        mData = new byte[length];
+        for (int i = 0; i < mData.length; i++) {
+            mData[i] = (byte) i;
+        }
+        mCommand = new byte[length + SCP03Wrapper.MAX_OVERHEAD];
+        mResponse = new byte[2];
+    }
+
+    @Benchmark
+    public int wrapUnwrap() throws CardException {
+        int wrapped = mWrapper.wrap(0x80, 0xE8, 0x00, 0x00,
+                mData, 0, mData.length, 0, mCommand, 0);
+        mResponse[0] = (byte) 0x90;
+        mResponse[1] = (byte) 0x00;
+        return wrapped + mWrapper.unwrap(mResponse, 0, mResponse.length);
+    }
+
+}
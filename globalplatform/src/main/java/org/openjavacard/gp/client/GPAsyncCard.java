@@ -0,0 +1,273 @@
+/*
+ * openjavacard-tools: Development tools for JavaCard
+ * Copyright (C) 2019 Ingo Albrecht <copyright@promovicz.org>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package org.openjavacard.gp.client;
+
+import org.openjavacard.iso.AID;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.smartcardio.CardException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Asynchronous facade for a GlobalPlatform card
+ * <p/>
+ * Operations are queued and performed one at a time, in
+ * submission order, on a thread dedicated to the card. Each
+ * operation returns a future that completes with its result
+ * or exceptionally with the exception it failed with.
+ * <p/>
+ * A dedicated thread is required because PC/SC binds exclusive
+ * card access to the thread that acquired it. Threads are made
+ * by the thread factory of the context or, by default, are
+ * virtual threads when the runtime provides them.
+ * <p/>
+ * The underlying GPCard must not be used directly while
+ * operations are pending.
+ */
+public class GPAsyncCard {
+
+    private static final Logger LOG = LoggerFactory.getLogger(GPAsyncCard.class);
+
+    /** Shared default thread factory, created on demand */
+    private static ThreadFactory sDefaultThreadFactory;
+
+    /**
+     * Operation on a card
+     * @param <T> of the result
+     */
+    public interface Operation<T> {
+        T perform(GPCard card) throws CardException;
+    }
+
+    /** Card to operate on */
+    private final GPCard mCard;
+    /** Executor serializing our operations */
+    private final ExecutorService mExecutor;
+
+    /**
+     * Construct using the thread factory of the card context
+     * @param card to operate on
+     */
+    public GPAsyncCard(GPCard card) {
+        this(card, card.getContext().getThreadFactory());
+    }
+
+    /**
+     * Construct using the given thread factory
+     * @param card to operate on
+     * @param threadFactory to create our thread with, null for the default
+     */
+    public GPAsyncCard(GPCard card, ThreadFactory threadFactory) {
+        mCard = card;
+        mExecutor = Executors.newSingleThreadExecutor(
+                threadFactory == null ? getDefaultThreadFactory() : threadFactory);
+    }
+
+    /** @return the underlying card */
+    public GPCard getCard() {
+        return mCard;
+    }
+
+    /**
+     * Release the thread of this facade
+     * <p/>
+     * Operations already queued will still be performed.
+     */
+    public void close() {
+        mExecutor.shutdown();
+    }
+
+    /**
+     * Queue an arbitrary operation
+     * @param operation to perform
+     * @param <T> of the result
+     * @return future for the result
+     */
+    public <T> CompletableFuture<T> submit(final Operation<T> operation) {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                if (future.isDone()) {
+                    return;
+                }
+                try {
+                    future.complete(operation.perform(mCard));
+                } catch (CardException | RuntimeException e) {
+                    LOG.debug("operation failed", e);
+                    future.completeExceptionally(e);
+                }
+            }
+        };
+        try {
+            mExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Connect to the card
+     * @return future for this facade
+     * @see GPCard#connect()
+     */
+    public CompletableFuture<GPAsyncCard> connect() {
+        return submit(new Operation<GPAsyncCard>() {
+            @Override
+            public GPAsyncCard perform(GPCard card) throws CardException {
+                card.connect();
+                return GPAsyncCard.this;
+            }
+        });
+    }
+
+    /**
+     * Disconnect from the card
+     * @return future for completion
+     * @see GPCard#disconnect()
+     */
+    public CompletableFuture<Void> disconnect() {
+        return submit(new Operation<Void>() {
+            @Override
+            public Void perform(GPCard card) throws CardException {
+                card.disconnect();
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Load a file onto the card
+     * @param file to load
+     * @return future for completion
+     * @see GPIssuerDomain#loadFile(GPLoadFile)
+     */
+    public CompletableFuture<Void> loadFile(final GPLoadFile file) {
+        return submit(new Operation<Void>() {
+            @Override
+            public Void perform(GPCard card) throws CardException {
+                card.getIssuerDomain().loadFile(file);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Install an applet
+     * @param packageAID AID of the package to install
+     * @param moduleAID AID of the module to install
+     * @param appletAID AID for the new applet (optional)
+     * @param appletPrivs privileges for the new applet (optional)
+     * @param appletParams parameters for the new applet (optional)
+     * @return future for completion
+     * @see GPIssuerDomain#installApplet(AID, AID, AID, byte[], byte[])
+     */
+    public CompletableFuture<Void> installApplet(final AID packageAID, final AID moduleAID, final AID appletAID,
+                                                 final byte[] appletPrivs, final byte[] appletParams) {
+        return submit(new Operation<Void>() {
+            @Override
+            public Void perform(GPCard card) throws CardException {
+                card.getIssuerDomain().installApplet(packageAID, moduleAID, appletAID, appletPrivs, appletParams);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Delete an object
+     * @param aid of the object
+     * @param deleteRelated true to delete related objects
+     * @return future for completion
+     * @see GPIssuerDomain#deleteObject(AID, boolean)
+     */
+    public CompletableFuture<Void> deleteObject(final AID aid, final boolean deleteRelated) {
+        return submit(new Operation<Void>() {
+            @Override
+            public Void perform(GPCard card) throws CardException {
+                card.getIssuerDomain().deleteObject(aid, deleteRelated);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Refresh the registry
+     * @return future for the updated registry
+     * @see GPRegistry#update()
+     */
+    public CompletableFuture<GPRegistry> updateRegistry() {
+        return submit(new Operation<GPRegistry>() {
+            @Override
+            public GPRegistry perform(GPCard card) throws CardException {
+                GPRegistry registry = card.getRegistry();
+                registry.update();
+                return registry;
+            }
+        });
+    }
+
+    /**
+     * Get the shared default thread factory
+     * <p/>
+     * Creates virtual threads when the runtime supports them,
+     * otherwise daemon platform threads.
+     * <p/>
+     * @return the default thread factory
+     */
+    public static synchronized ThreadFactory getDefaultThreadFactory() {
+        if (sDefaultThreadFactory == null) {
+            sDefaultThreadFactory = createDefaultThreadFactory();
+        }
+        return sDefaultThreadFactory;
+    }
+
+    /** Internal: create the default thread factory */
+    private static ThreadFactory createDefaultThreadFactory() {
+        try {
+            // implementation classes are not public, so use the public interface
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class)
+                    .invoke(builder, "gp-async-", 1L);
+            ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            LOG.debug("using virtual threads");
+            return factory;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOG.debug("using platform threads");
+        }
+        return new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "gp-async-" + mCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+}
@@ -30,7 +30,9 @@ import org.openjavacard.gp.scp.SCPProtocolPolicy;
 import org.openjavacard.gp.scp.SCPSecurityPolicy;
 import org.openjavacard.gp.wrapper.GPBasicWrapper;
 import org.openjavacard.gp.wrapper.GPSecureWrapper;
+import org.openjavacard.gp.scp.SCPWrapper;
 import org.openjavacard.iso.AID;
+import org.openjavacard.iso.ATR;
 import org.openjavacard.iso.ISO7816;
 import org.openjavacard.iso.SWException;
 import org.openjavacard.util.HexUtil;
@@ -41,6 +43,8 @@ import javax.smartcardio.Card;
 import javax.smartcardio.CardChannel;
 import javax.smartcardio.CardException;
 import javax.smartcardio.CardTerminal;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Service object for a GlobalPlatform card
@@ -69,6 +73,9 @@ public class GPCard {
             AID_GP, AID_NXP, AID_GEMALTO
     };
 
+    /** Default command length limit for cards with extended length support */
+    private static final int EXTENDED_COMMAND_LENGTH_DEFAULT = 2048;
+
     /** Library context in use */
     private final GPContext mContext;
     /** SmartcardIO terminal handle */
@@ -87,6 +94,12 @@ public class GPCard {
     private SCPProtocolPolicy mProtocolPolicy;
     /** Security policy for secure channel */
     private SCPSecurityPolicy mSecurityPolicy;
+    /** True if extended length should be used regardless of detection */
+    private boolean mForceExtendedLength;
+    /** Command length limit for extended length */
+    private int mExtendedCommandLength = EXTENDED_COMMAND_LENGTH_DEFAULT;
+    /** True if extended length APDUs are in use */
+    private boolean mExtendedLength;
     /** Card issuer identification number */
     private byte[] mCardIIN;
     /** Card image number */
@@ -107,6 +120,10 @@ public class GPCard {
     private GPRegistry mRegistry;
     /** Issuer domain access object */
     private GPIssuerDomain mIssuerDomain;
+    /** Profile for the card, null if not used */
+    private GPCardProfile mProfile;
+    /** True if the profile has been confirmed for this card */
+    private boolean mProfileTrusted;
     /** True when we are connected to an ISD */
     private boolean mIsConnected;
 
@@ -129,6 +146,10 @@ public class GPCard {
     public GPContext getContext() {
         return mContext;
     }
+    /** @return true if connected to the ISD */
+    public boolean isConnected() {
+        return mIsConnected;
+    }
     /** @return the terminal in use */
     public CardTerminal getTerminal() {
         return mTerminal;
@@ -158,6 +179,11 @@ public class GPCard {
         return mSecurityPolicy;
     }
 
+    /** @return true if extended length APDUs are used in this session */
+    public boolean isExtendedLength() {
+        return mExtendedLength;
+    }
+
     /** @return the active security protocol */
     public SCPParameters getProtocol() {
         // check status of secure channel first
@@ -203,6 +229,10 @@ public class GPCard {
     public GPIssuerDomain getIssuerDomain() {
         return mIssuerDomain;
     }
+    /** @return profile of the card, null if not used or not confirmed */
+    public GPCardProfile getProfile() {
+        return mProfileTrusted ? mProfile : null;
+    }
 
     /**
      * Returns a lifetime identifier for the card
@@ -220,6 +250,30 @@ public class GPCard {
         return null;
     }
 
+    /**
+     * Returns the identity of the card for caching and journaling
+     * <p/>
+     * Combines the lifetime identifier with card identity
+     * records and the ISD in use.
+     * <p/>
+     * @return identity string or null if the card can not be identified
+     */
+    public String getIdentity() {
+        String lifetime = getLifetimeIdentifier();
+        if (lifetime == null && mCardCIN == null) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append(lifetime);
+        sb.append("/");
+        sb.append(mCardIIN == null ? "" : HexUtil.bytesToHex(mCardIIN));
+        sb.append("/");
+        sb.append(mCardCIN == null ? "" : HexUtil.bytesToHex(mCardCIN));
+        sb.append("/");
+        sb.append(mISD.toString());
+        return sb.toString();
+    }
+
     /**
      * Set the ISD to use for talking to the card
      * @param isd to be used
@@ -265,6 +319,30 @@ public class GPCard {
         mSecurityPolicy = policy;
     }
 
+    /**
+     * Force the use of extended length APDUs
+     * <p/>
+     * Normally this is detected using the card capabilities in the ATR.
+     * <p/>
+     * @param force true to use extended length regardless of detection
+     */
+    public void setForceExtendedLength(boolean force) {
+        ensureNotConnected();
+        mForceExtendedLength = force;
+    }
+
+    /**
+     * Set the command length limit for extended length APDUs
+     * @param length limit for command data
+     */
+    public void setExtendedCommandLength(int length) {
+        ensureNotConnected();
+        if (length <= SCPWrapper.SHORT_MAX_LENGTH || length > SCPWrapper.EXTENDED_MAX_LENGTH) {
+            throw new IllegalArgumentException("Invalid extended command length " + length);
+        }
+        mExtendedCommandLength = length;
+    }
+
     /**
      * Internal: Ensure that the client is not connected
      */
@@ -342,6 +420,9 @@ public class GPCard {
             // build a fresh command wrapper
             mBasicWrapper = new GPBasicWrapper(mBasicChannel);
 
+            // look for a known profile
+            findProfile();
+
             // check for ISD and detect if needed
             if (mISD == null && !detect(true)) {
                 throw new CardException("Could not determine ISD");
@@ -368,6 +449,9 @@ public class GPCard {
             // read card identity records for use in key selection
             updateIdentity();
 
+            // check if the profile applies to this card
+            checkProfile();
+
             // get key information, which must be present
             mCardKeyInfo = mBasicWrapper.readKeyInfo();
             if (mCardKeyInfo == null) {
@@ -385,6 +469,14 @@ public class GPCard {
             mSecureChannel.setProtocolPolicy(mProtocolPolicy);
             mSecureChannel.setSecurityPolicy(mSecurityPolicy);
 
+            // use extended length if possible
+            mExtendedLength = mForceExtendedLength || detectExtendedLength();
+            if (mExtendedLength) {
+                LOG.debug("using extended length with limit " + mExtendedCommandLength);
+                mSecureChannel.setLengthLimits(mExtendedCommandLength,
+                        SCPWrapper.EXTENDED_MAX_LENGTH + 1);
+            }
+
             // set protocol expectation of secure channel
             if (mCardData != null) {
                 mSecureChannel.expectProtocol(
@@ -393,6 +485,11 @@ public class GPCard {
             } else {
                 int version = mProtocolPolicy.mScpVersion;
                 int parameters = mProtocolPolicy.mScpParameters;
+                if((version == 0 || parameters == 0) && mProfileTrusted && mProfile.getScpProtocol() != 0) {
+                    LOG.debug("using SCP protocol from profile");
+                    version = mProfile.getScpProtocol();
+                    parameters = mProfile.getScpParameters();
+                }
                 if(version == 0 || parameters == 0) {
                     throw new CardException("Card provides no card data. Must specify SCP protocol and parameters.");
                 } else {
@@ -409,6 +506,21 @@ public class GPCard {
             // construct new client objects
             mIssuerDomain = new GPIssuerDomain(this, mSecureWrapper);
             mRegistry = new GPRegistry(this, mSecureWrapper);
+            if (mProfileTrusted) {
+                mRegistry.applyProfile(mProfile);
+            }
+
+            // use cached registry if possible
+            GPRegistryCache registryCache = mContext.getRegistryCache();
+            if (registryCache != null) {
+                String identity = getIdentity();
+                byte[] sequence = mSecureChannel.getSequence();
+                if (identity == null || sequence == null) {
+                    LOG.debug("card can not use the registry cache");
+                } else {
+                    mRegistry.attachCache(registryCache, identity, sequence);
+                }
+            }
 
             // mark as connected
             mIsConnected = true;
@@ -425,6 +537,10 @@ public class GPCard {
      * @throws CardException on error
      */
     public void disconnect() throws CardException {
+        // remember what we learned about the card
+        if (mIsConnected) {
+            saveProfile();
+        }
         // tear down the secure channel
         if (mSecureChannel != null) {
             mSecureChannel.close();
@@ -442,6 +558,9 @@ public class GPCard {
             mCard = null;
         }
         // mark as disconnected
+        mProfile = null;
+        mProfileTrusted = false;
+        mExtendedLength = false;
         mIsConnected = false;
         // log about it
         LOG.debug("disconnected");
@@ -470,6 +589,25 @@ public class GPCard {
         }
     }
 
+    /**
+     * Determine if the card supports extended length APDUs
+     * <p/>
+     * This uses the card capabilities in the historical bytes.
+     * <p/>
+     * @return true if the card indicates support
+     */
+    private boolean detectExtendedLength() {
+        try {
+            ATR atr = new ATR(mCard.getATR().getBytes());
+            boolean supported = atr.isExtendedLengthSupported();
+            LOG.debug("card " + (supported ? "supports" : "does not indicate") + " extended length");
+            return supported;
+        } catch (IllegalArgumentException e) {
+            LOG.warn("could not parse ATR", e);
+            return false;
+        }
+    }
+
     /**
      * Try to determine the ISD of the card
      *
@@ -481,8 +619,18 @@ public class GPCard {
         AID isd = mISD;
         // if we do not know our AID
         if(isd == null) {
-            // try selecting each probable AID
+            // try the AID from the profile first
+            List<AID> probe = new ArrayList<>();
+            if(mProfile != null && mProfile.getISD() != null) {
+                probe.add(mProfile.getISD());
+            }
             for (AID name : PROBE_AIDS) {
+                if(!probe.contains(name)) {
+                    probe.add(name);
+                }
+            }
+            // try selecting each probable AID
+            for (AID name : probe) {
                 try {
                     // select the possible ISD
                     mBasicWrapper.selectFileByName(name);
@@ -508,6 +656,95 @@ public class GPCard {
         return isd;
     }
 
+    /**
+     * Look up the profile for the card
+     * <p/>
+     * Only the ATR is known at this point.
+     * <p/>
+     */
+    private void findProfile() {
+        mProfile = null;
+        mProfileTrusted = false;
+        GPCardProfiles profiles = mContext.getCardProfiles();
+        if (profiles != null) {
+            byte[] atr = mCard.getATR().getBytes();
+            mProfile = profiles.find(atr);
+            if (mProfile == null) {
+                LOG.debug("no profile for card");
+                mProfile = new GPCardProfile(atr);
+            } else {
+                LOG.debug("found " + mProfile);
+            }
+        }
+    }
+
+    /**
+     * Check the profile against the model of the card
+     * <p/>
+     * This must be called after card data and identity have been retrieved.
+     * <p/>
+     */
+    private void checkProfile() {
+        if (mProfile != null) {
+            String model = getModel();
+            if (model.equals(mProfile.getModel())) {
+                LOG.debug("using profile for model " + model);
+            } else {
+                // start learning from scratch
+                LOG.debug("profile does not match model " + model);
+                mProfile.reset();
+                mProfile.setModel(model);
+            }
+            mProfileTrusted = true;
+        }
+    }
+
+    /**
+     * Record what we have learned in the profile of the card
+     */
+    private void saveProfile() {
+        GPCardProfiles profiles = mContext.getCardProfiles();
+        if (profiles != null && mProfileTrusted) {
+            mProfile.setISD(mISD);
+            SCPParameters protocol = getProtocol();
+            if (protocol != null) {
+                mProfile.setProtocol(protocol.scpVersion, protocol.scpParameters);
+            }
+            mRegistry.updateProfile(mProfile);
+            profiles.save(mProfile);
+        }
+    }
+
+    /**
+     * Returns a string describing the model of the card
+     * <p/>
+     * This is constructed from the IC information in
+     * the lifecycle structure and from the card data.
+     * <p/>
+     * @return model string
+     */
+    public String getModel() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("ic=");
+        if (mCPLC != null) {
+            sb.append(mCPLC.getFieldHex(CPLC.Field.ICFabricator));
+            sb.append(mCPLC.getFieldHex(CPLC.Field.ICType));
+        }
+        sb.append("/gp=");
+        if (mCardData != null) {
+            if (mCardData.getGlobalPlatformVersion() != null) {
+                sb.append(mCardData.getGlobalPlatformVersionString());
+            }
+            sb.append("/scp=");
+            sb.append(HexUtil.hex8(mCardData.getSecurityProtocol()));
+            sb.append("-");
+            sb.append(HexUtil.hex8(mCardData.getSecurityParameters()));
+            sb.append("/unique=");
+            sb.append(mCardData.isUniquelyIdentifiable());
+        }
+        return sb.toString();
+    }
+
     /**
      * Update records pertaining to card identity
      * <p/>
@@ -0,0 +1,247 @@
+/*
+ * openjavacard-tools: Development tools for JavaCard
+ * Copyright (C) 2019 Ingo Albrecht <copyright@promovicz.org>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package org.openjavacard.gp.client;
+
+import org.openjavacard.iso.AID;
+import org.openjavacard.util.HexUtil;
+
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * Known-good settings for a card model
+ * <p/>
+ * Profiles are found using the ATR of the card, which is all
+ * we know before selecting the ISD. The ISD is used right away.
+ * <p/>
+ * The remaining settings are only trusted once the model string,
+ * which is derived from CPLC and card data, has been confirmed.
+ * <p/>
+ */
+public class GPCardProfile {
+
+    private static final String PROP_MODEL = "model";
+    private static final String PROP_ISD = "isd";
+    private static final String PROP_SCP_PROTOCOL = "scp.protocol";
+    private static final String PROP_SCP_PARAMETERS = "scp.parameters";
+    private static final String PROP_BLOCK_SIZE = "load.blocksize";
+    private static final String PROP_LEGACY_GENERIC = "registry.legacy-generic";
+    private static final String PROP_LEGACY_ELF = "registry.legacy-elf";
+    private static final String PROP_TERSE_ELF = "registry.terse-elf";
+    private static final String PROP_RATE_PREFIX = "load.rate.";
+
+    /** ATR of the card */
+    private final byte[] mATR;
+    /** Model string, null if not known */
+    private String mModel;
+    /** AID of the ISD, null if not known */
+    private AID mISD;
+    /** SCP protocol, 0 if not known */
+    private int mScpProtocol;
+    /** SCP parameters, 0 if not known */
+    private int mScpParameters;
+    /** Largest LOAD block size known to work, 0 if not known */
+    private int mMaxBlockSize;
+    /** Measured LOAD throughput in bytes per second, by block size */
+    private final TreeMap<Integer, Integer> mLoadRates = new TreeMap<>();
+    /** Registry uses legacy format for applications and domains */
+    private boolean mUseLegacyGeneric;
+    /** Registry uses legacy format for ELFs */
+    private boolean mUseLegacyELF;
+    /** Registry uses ELF format without modules */
+    private boolean mUseTerseELF;
+
+    /**
+     * Main constructor
+     * @param atr of the card
+     */
+    public GPCardProfile(byte[] atr) {
+        mATR = atr.clone();
+    }
+
+    /** @return the ATR of the card */
+    public byte[] getATR() {
+        return mATR.clone();
+    }
+
+    /** @return the model string, null if not known */
+    public String getModel() {
+        return mModel;
+    }
+
+    /** @return AID of the ISD, null if not known */
+    public AID getISD() {
+        return mISD;
+    }
+
+    /** @return SCP protocol, 0 if not known */
+    public int getScpProtocol() {
+        return mScpProtocol;
+    }
+
+    /** @return SCP parameters, 0 if not known */
+    public int getScpParameters() {
+        return mScpParameters;
+    }
+
+    /** @return largest LOAD block size known to work, 0 if not known */
+    public int getMaxBlockSize() {
+        return mMaxBlockSize;
+    }
+
+    /**
+     * Get measured LOAD throughput
+     * @param blockSize to check
+     * @return throughput in bytes per second, 0 if not measured
+     */
+    public int getLoadRate(int blockSize) {
+        Integer rate = mLoadRates.get(blockSize);
+        return (rate == null) ? 0 : rate;
+    }
+
+    /**
+     * Get the block size with the best measured throughput
+     * @param limit for the block size
+     * @return the block size, 0 if none has been measured
+     */
+    public int getBestBlockSize(int limit) {
+        int best = 0;
+        int bestRate = 0;
+        for (Map.Entry<Integer, Integer> entry : mLoadRates.entrySet()) {
+            if (entry.getKey() <= limit && entry.getValue() > bestRate) {
+                best = entry.getKey();
+                bestRate = entry.getValue();
+            }
+        }
+        return best;
+    }
+
+    /** @return true if the registry uses legacy format for applications and domains */
+    public boolean isUseLegacyGeneric() {
+        return mUseLegacyGeneric;
+    }
+
+    /** @return true if the registry uses legacy format for ELFs */
+    public boolean isUseLegacyELF() {
+        return mUseLegacyELF;
+    }
+
+    /** @return true if the registry uses ELF format without modules */
+    public boolean isUseTerseELF() {
+        return mUseTerseELF;
+    }
+
+    void setModel(String model) {
+        mModel = model;
+    }
+
+    void setISD(AID isd) {
+        mISD = isd;
+    }
+
+    void setProtocol(int protocol, int parameters) {
+        mScpProtocol = protocol;
+        mScpParameters = parameters;
+    }
+
+    void setMaxBlockSize(int maxBlockSize) {
+        mMaxBlockSize = maxBlockSize;
+    }
+
+    void setLoadRate(int blockSize, int rate) {
+        mLoadRates.put(blockSize, rate);
+    }
+
+    void setRegistryFormats(boolean legacyGeneric, boolean legacyELF, boolean terseELF) {
+        mUseLegacyGeneric = legacyGeneric;
+        mUseLegacyELF = legacyELF;
+        mUseTerseELF = terseELF;
+    }
+
+    /**
+     * Forget everything learned about the model
+     * <p/>
+     * Only the ISD is retained.
+     * <p/>
+     */
+    void reset() {
+        mModel = null;
+        mScpProtocol = 0;
+        mScpParameters = 0;
+        mMaxBlockSize = 0;
+        mLoadRates.clear();
+        mUseLegacyGeneric = false;
+        mUseLegacyELF = false;
+        mUseTerseELF = false;
+    }
+
+    /**
+     * Read settings from properties
+     * @param props to read from
+     */
+    void readProperties(Properties props) {
+        mModel = props.getProperty(PROP_MODEL);
+        String isd = props.getProperty(PROP_ISD);
+        mISD = (isd == null) ? null : new AID(isd);
+        mScpProtocol = HexUtil.unsigned8(props.getProperty(PROP_SCP_PROTOCOL, "00"));
+        mScpParameters = HexUtil.unsigned8(props.getProperty(PROP_SCP_PARAMETERS, "00"));
+        mMaxBlockSize = Integer.parseInt(props.getProperty(PROP_BLOCK_SIZE, "0"));
+        mUseLegacyGeneric = Boolean.parseBoolean(props.getProperty(PROP_LEGACY_GENERIC));
+        mUseLegacyELF = Boolean.parseBoolean(props.getProperty(PROP_LEGACY_ELF));
+        mUseTerseELF = Boolean.parseBoolean(props.getProperty(PROP_TERSE_ELF));
+        mLoadRates.clear();
+        for (String name : props.stringPropertyNames()) {
+            if (name.startsWith(PROP_RATE_PREFIX)) {
+                int blockSize = Integer.parseInt(name.substring(PROP_RATE_PREFIX.length()));
+                mLoadRates.put(blockSize, Integer.parseInt(props.getProperty(name)));
+            }
+        }
+    }
+
+    /**
+     * Write settings to properties
+     * @return properties
+     */
+    Properties toProperties() {
+        Properties props = new Properties();
+        if (mModel != null) {
+            props.setProperty(PROP_MODEL, mModel);
+        }
+        if (mISD != null) {
+            props.setProperty(PROP_ISD, mISD.toString());
+        }
+        props.setProperty(PROP_SCP_PROTOCOL, HexUtil.hex8(mScpProtocol));
+        props.setProperty(PROP_SCP_PARAMETERS, HexUtil.hex8(mScpParameters));
+        props.setProperty(PROP_BLOCK_SIZE, Integer.toString(mMaxBlockSize));
+        props.setProperty(PROP_LEGACY_GENERIC, Boolean.toString(mUseLegacyGeneric));
+        props.setProperty(PROP_LEGACY_ELF, Boolean.toString(mUseLegacyELF));
+        props.setProperty(PROP_TERSE_ELF, Boolean.toString(mUseTerseELF));
+        for (Map.Entry<Integer, Integer> entry : mLoadRates.entrySet()) {
+            props.setProperty(PROP_RATE_PREFIX + entry.getKey(), Integer.toString(entry.getValue()));
+        }
+        return props;
+    }
+
+    public String toString() {
+        return "profile " + HexUtil.bytesToHex(mATR) + " model " + mModel + " isd " + mISD;
+    }
+
+}
@@ -0,0 +1,158 @@
+/*
+ * openjavacard-tools: Development tools for JavaCard
+ * Copyright (C) 2019 Ingo Albrecht <copyright@promovicz.org>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package org.openjavacard.gp.client;
+
+import org.openjavacard.util.HexUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Properties;
+
+/**
+ * On-disk store of card profiles
+ * <p/>
+ * Each profile is a properties file named after the ATR
+ * of the card, so it can be edited by hand if required.
+ * <p/>
+ * Like the registry cache this is purely an optimization.
+ * Errors are logged and cause the card to be probed as usual.
+ * <p/>
+ */
+public class GPCardProfiles {
+
+    private static final Logger LOG = LoggerFactory.getLogger(GPCardProfiles.class);
+
+    /** Suffix for profile files */
+    private static final String SUFFIX = ".profile";
+
+    /** Directory containing profiles */
+    private final File mDirectory;
+
+    /**
+     * Main constructor
+     * @param directory to keep profiles in, created if required
+     */
+    public GPCardProfiles(File directory) {
+        mDirectory = directory;
+    }
+
+    /** @return the directory containing profiles */
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    /**
+     * Find the profile for a card
+     * @param atr of the card
+     * @return the profile or null if not known
+     */
+    public GPCardProfile find(byte[] atr) {
+        File file = getFile(atr);
+        if (!file.exists()) {
+            return null;
+        }
+        try (InputStream is = new FileInputStream(file)) {
+            Properties props = new Properties();
+            props.load(is);
+            GPCardProfile profile = new GPCardProfile(atr);
+            profile.readProperties(props);
+            return profile;
+        } catch (IOException | IllegalArgumentException e) {
+            LOG.warn("could not read card profile " + file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Save a profile
+     * <p/>
+     * Nothing is written if the profile has not changed.
+     * <p/>
+     * @param profile to save
+     */
+    public void save(GPCardProfile profile) {
+        File file = getFile(profile.getATR());
+        Properties props = profile.toProperties();
+        // avoid rewriting unchanged profiles
+        GPCardProfile existing = find(profile.getATR());
+        if (existing != null && existing.toProperties().equals(props)) {
+            return;
+        }
+        try {
+            if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+                throw new IOException("Could not create directory " + mDirectory);
+            }
+            // write to a temporary file first
+            File temp = File.createTempFile("profile", ".tmp", mDirectory);
+            try {
+                try (OutputStream os = new FileOutputStream(temp)) {
+                    props.store(os, "Card profile for ATR " + HexUtil.bytesToHex(profile.getATR()));
+                }
+                // then replace the profile
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                if (temp.exists() && !temp.delete()) {
+                    LOG.warn("could not delete " + temp);
+                }
+            }
+        } catch (IOException e) {
+            LOG.warn("could not write card profile " + file, e);
+        }
+    }
+
+    /**
+     * Remove all profiles
+     */
+    public void clear() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(SUFFIX) && !file.delete()) {
+                    LOG.warn("could not delete " + file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Determine the profile file for an ATR
+     */
+    private File getFile(byte[] atr) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = Arrays.copyOf(digest.digest(atr), 16);
+            return new File(mDirectory, HexUtil.bytesToHex(hash) + SUFFIX);
+        } catch (NoSuchAlgorithmException e) {
+            throw new Error("SHA-256 not available", e);
+        }
+    }
+
+}
@@ -24,6 +24,8 @@ import org.openjavacard.gp.scp.SCPSecurityPolicy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.concurrent.ThreadFactory;
+
 public class GPContext {
 
     private static final Logger LOG = LoggerFactory.getLogger(GPContext.class);
@@ -33,6 +35,14 @@ public class GPContext {
     private SCPProtocolPolicy mProtocolPolicy = SCPProtocolPolicy.PERMISSIVE;
     private SCPSecurityPolicy mSecurityPolicy = SCPSecurityPolicy.CMAC;
 
+    private GPRegistryCache mRegistryCache = null;
+
+    private GPCardProfiles mCardProfiles = null;
+
+    private ThreadFactory mThreadFactory = null;
+
+    private GPJournal mJournal = null;
+
     /**
      * Main constructor
      */
@@ -62,6 +72,63 @@ public class GPContext {
         mSecurityPolicy = securityPolicy;
     }
 
+    /** @return the registry snapshot cache, null if disabled */
+    public GPRegistryCache getRegistryCache() {
+        return mRegistryCache;
+    }
+
+    /**
+     * Set the registry snapshot cache
+     * @param registryCache to use, null to disable
+     */
+    public void setRegistryCache(GPRegistryCache registryCache) {
+        LOG.info("new registry cache " + (registryCache == null ? null : registryCache.getDirectory()));
+        mRegistryCache = registryCache;
+    }
+
+    /** @return the card profile store, null if disabled */
+    public GPCardProfiles getCardProfiles() {
+        return mCardProfiles;
+    }
+
+    /**
+     * Set the card profile store
+     * @param cardProfiles to use, null to disable
+     */
+    public void setCardProfiles(GPCardProfiles cardProfiles) {
+        LOG.info("new card profiles " + (cardProfiles == null ? null : cardProfiles.getDirectory()));
+        mCardProfiles = cardProfiles;
+    }
+
+    /** @return the operation journal, null if disabled */
+    public GPJournal getJournal() {
+        return mJournal;
+    }
+
+    /**
+     * Set the operation journal
+     * @param journal to use, null to disable
+     */
+    public void setJournal(GPJournal journal) {
+        LOG.info("new journal " + (journal == null ? null : journal.getFile()));
+        mJournal = journal;
+    }
+
+    /** @return the thread factory for asynchronous operations, null for the default */
+    public ThreadFactory getThreadFactory() {
+        return mThreadFactory;
+    }
+
+    /**
+     * Set the thread factory for asynchronous operations
+     * @param threadFactory to use, null for the default
+     * @see GPAsyncCard
+     */
+    public void setThreadFactory(ThreadFactory threadFactory) {
+        LOG.info("new thread factory " + threadFactory);
+        mThreadFactory = threadFactory;
+    }
+
     /**
      * Enable logging of keys
      */
@@ -42,7 +42,7 @@ import org.slf4j.LoggerFactory;
 
 import javax.smartcardio.CardException;
 import java.io.ByteArrayOutputStream;
-import java.util.List;
+import java.io.IOException;
 
 /**
  * Client for GlobalPlatform issuer domain functionality
@@ -61,6 +61,49 @@ public class GPIssuerDomain {
         mWrapper = wrapper;
     }
 
+    /**
+     * Get the maximum size of blocks for LOAD and STORE DATA
+     * <p/>
+     * This depends on the secure channel protocol, its current
+     * security level and the use of extended length APDUs.
+     * <p/>
+     * @return maximum block size in bytes
+     */
+    public int getMaxBlockSize() {
+        return mCard.getSecureChannel().getMaxCommandSize();
+    }
+
+    /**
+     * Determine the block size to use for LOAD
+     * <p/>
+     * This is the largest legal block size for the session
+     * unless the card profile knows a faster one.
+     * <p/>
+     * When tuning, block sizes that have not been measured
+     * yet are tried first. Throughput is measured by loadFile().
+     * <p/>
+     * @param tune true to try unmeasured block sizes
+     * @return block size in bytes
+     */
+    public int getLoadBlockSize(boolean tune) {
+        int max = getMaxBlockSize();
+        GPCardProfile profile = mCard.getProfile();
+        if (profile == null) {
+            return max;
+        }
+        if (tune) {
+            int[] candidates = {max, max / 2, Math.min(max, 128)};
+            for (int candidate : candidates) {
+                if (profile.getLoadRate(candidate) == 0) {
+                    LOG.debug("trying block size " + candidate);
+                    return candidate;
+                }
+            }
+        }
+        int best = profile.getBestBlockSize(max);
+        return (best > 0) ? best : max;
+    }
+
     /**
      * Change the identity values of the card
      * <p/>
@@ -91,14 +134,19 @@ public class GPIssuerDomain {
         req.cardCIN = cin;
         req.cardISD = isd;
         // split the request
-        byte[][] blocks = ArrayUtil.splitBlocks(req.toBytes(), 128); // TODO arbitrary
+        byte[][] blocks = ArrayUtil.splitBlocks(req.toBytes(), getMaxBlockSize());
         int count = blocks.length;
         // transmit the request as a chain of STORE DATA commands
-        for(byte i = 0; i < blocks.length; i++) {
-            boolean lastBlock = i == (blocks.length - 1);
-            byte[] data = blocks[i];
-            LOG.debug("sending block " + (i+1) + "/" + count + ", " + data.length + " bytes");
-            mWrapper.performStoreData(data, i, lastBlock);
+        try {
+            for(byte i = 0; i < blocks.length; i++) {
+                boolean lastBlock = i == (blocks.length - 1);
+                byte[] data = blocks[i];
+                LOG.debug("sending block " + (i+1) + "/" + count + ", " + data.length + " bytes");
+                mWrapper.performStoreData(data, i, lastBlock);
+            }
+        } finally {
+            // the ISD may have changed, so read the registry again
+            mCard.getRegistry().dirty();
         }
         // finish up
         LOG.debug("change complete");
@@ -114,19 +162,53 @@ public class GPIssuerDomain {
      */
     public void loadFile(GPLoadFile file) throws CardException {
         LOG.debug("loading package " + file.getPackageAID());
+        // check block size against the channel
+        int maxBlockSize = getMaxBlockSize();
+        if(file.getBlockSize() > maxBlockSize) {
+            throw new CardException("Load file block size " + file.getBlockSize()
+                    + " exceeds channel limit of " + maxBlockSize);
+        }
         // prepare parameters
         GPInstallForLoadRequest request = new GPInstallForLoadRequest();
         request.packageAID = file.getPackageAID();
-        // perform INSTALL [for LOAD]
-        GPInstallForLoadResponse response = mWrapper.performInstallForLoad(request);
-        // load blocks using LOAD
-        List<byte[]> blocks = file.getBlocks();
-        int count = blocks.size();
-        int last = count - 1;
-        for(int i = 0; i < count; i++) {
-            byte[] data = blocks.get(i);
-            LOG.debug("loading block " + (i+1) + "/" + count + ", " + data.length + " bytes");
-            mWrapper.performLoad(data, i, i == last);
+        long begin = System.nanoTime();
+        long start;
+        long duration;
+        try {
+            // perform INSTALL [for LOAD]
+            GPInstallForLoadResponse response = mWrapper.performInstallForLoad(request);
+            // load blocks using LOAD
+            LOG.debug("loading " + file.getNumBlocks() + " blocks");
+            start = System.nanoTime();
+            mWrapper.performLoadSequence(file.blockIterator());
+            duration = System.nanoTime() - start;
+        } catch (CardException e) {
+            // card state is unknown now
+            mCard.getRegistry().dirty();
+            journal(GPJournal.Operation.LOAD, file.getHash(), e, begin, file.getPackageAID());
+            throw e;
+        }
+        // remember the block size that worked
+        GPCardProfile profile = mCard.getProfile();
+        if (profile != null && file.getBlockSize() > profile.getMaxBlockSize()) {
+            profile.setMaxBlockSize(file.getBlockSize());
+        }
+        // measure throughput if the block size was used throughout
+        if (profile != null && file.getNumBlocks() > 1 && duration > 0) {
+            int rate = (int) Math.min(Integer.MAX_VALUE, file.getTotalSize() * 1000000000L / duration);
+            int previous = profile.getLoadRate(file.getBlockSize());
+            if (previous > 0) {
+                rate = (rate + previous) / 2;
+            }
+            LOG.debug("load rate " + rate + " bytes/s with block size " + file.getBlockSize());
+            profile.setLoadRate(file.getBlockSize(), rate);
+        }
+        // update the registry
+        try {
+            mCard.getRegistry().applyLoad(file, mCard.getISD());
+        } finally {
+            // record afterwards so a journal failure can not skip the update
+            journal(GPJournal.Operation.LOAD, file.getHash(), null, begin, file.getPackageAID());
         }
         // finish up
         LOG.debug("load complete");
@@ -178,7 +260,22 @@ public class GPIssuerDomain {
         request.privileges = appletPrivs;
         request.installParameters = appletParams;
         // perform the request
-        GPInstallForInstallResponse response = mWrapper.performInstallForInstall(request);
+        long begin = System.nanoTime();
+        try {
+            GPInstallForInstallResponse response = mWrapper.performInstallForInstall(request);
+        } catch (CardException e) {
+            // card state is unknown now
+            mCard.getRegistry().dirty();
+            journal(GPJournal.Operation.INSTALL, e, begin, appletAID, packageAID, moduleAID);
+            throw e;
+        }
+        // update the registry
+        try {
+            mCard.getRegistry().applyInstall(packageAID, appletAID, appletPrivs, mCard.getISD());
+        } finally {
+            // record afterwards so a journal failure can not skip the update
+            journal(GPJournal.Operation.INSTALL, null, begin, appletAID, packageAID, moduleAID);
+        }
         // finish up
         LOG.debug("install complete");
     }
@@ -190,7 +287,17 @@ public class GPIssuerDomain {
         request.objectAID = objectAID;
         request.domainAID = domainAID;
         // perform the request
-        GPInstallForExtraditeResponse response = mWrapper.performInstallForExtradite(request);
+        long begin = System.nanoTime();
+        try {
+            GPInstallForExtraditeResponse response = mWrapper.performInstallForExtradite(request);
+        } catch (CardException e) {
+            journal(GPJournal.Operation.EXTRADITE, e, begin, objectAID, domainAID);
+            throw e;
+        } finally {
+            // associations changed, so read the registry again
+            mCard.getRegistry().dirty();
+        }
+        journal(GPJournal.Operation.EXTRADITE, null, begin, objectAID, domainAID);
         // finish up
         LOG.debug("extradition complete");
     }
@@ -224,7 +331,22 @@ public class GPIssuerDomain {
     public void deleteObject(AID aid, boolean deleteRelated) throws CardException {
         LOG.debug("deleting object " + aid + (deleteRelated?" and related":""));
         // perform the operation
-        mWrapper.performDelete(aid, deleteRelated);
+        long begin = System.nanoTime();
+        try {
+            mWrapper.performDelete(aid, deleteRelated);
+        } catch (CardException e) {
+            // card state is unknown now
+            mCard.getRegistry().dirty();
+            journal(GPJournal.Operation.DELETE, e, begin, aid);
+            throw e;
+        }
+        // update the registry
+        try {
+            mCard.getRegistry().applyDelete(aid, deleteRelated);
+        } finally {
+            // record afterwards so a journal failure can not skip the update
+            journal(GPJournal.Operation.DELETE, null, begin, aid);
+        }
         // log about it
         LOG.debug("deletion finished");
     }
@@ -326,7 +448,7 @@ public class GPIssuerDomain {
      */
     public void cardInitialized() throws CardException {
         LOG.debug("cardInitialized()");
-        mWrapper.performSetStatusISD(mCard.getISD(), GP.CARD_STATE_INITIALIZED);
+        setCardState(GP.CARD_STATE_INITIALIZED);
     }
 
     /**
@@ -335,7 +457,7 @@ public class GPIssuerDomain {
      */
     public void cardSecured() throws CardException {
         LOG.debug("cardSecured()");
-        mWrapper.performSetStatusISD(mCard.getISD(), GP.CARD_STATE_SECURED);
+        setCardState(GP.CARD_STATE_SECURED);
     }
 
     /**
@@ -344,7 +466,7 @@ public class GPIssuerDomain {
      */
     public void lockCard() throws CardException {
         LOG.debug("lockCard()");
-        mWrapper.performSetStatusISD(mCard.getISD(), GP.CARD_STATE_LOCKED);
+        setCardState(GP.CARD_STATE_LOCKED);
     }
 
     /**
@@ -353,7 +475,7 @@ public class GPIssuerDomain {
      */
     public void unlockCard() throws CardException {
         LOG.debug("unlockCard()");
-        mWrapper.performSetStatusISD(mCard.getISD(), GP.CARD_STATE_SECURED);
+        setCardState(GP.CARD_STATE_SECURED);
     }
 
     /**
@@ -362,7 +484,21 @@ public class GPIssuerDomain {
      */
     public void terminateCard() throws CardException {
         LOG.debug("terminateCard()");
-        mWrapper.performSetStatusISD(mCard.getISD(), GP.CARD_STATE_TERMINATED);
+        setCardState(GP.CARD_STATE_TERMINATED);
+    }
+
+    /**
+     * Internal: change the card state using SET STATUS
+     * @param state to change to
+     * @throws CardException on error
+     */
+    private void setCardState(byte state) throws CardException {
+        try {
+            mWrapper.performSetStatusISD(mCard.getISD(), state);
+        } finally {
+            // the state of the ISD changed, so read the registry again
+            mCard.getRegistry().dirty();
+        }
     }
 
     /**
@@ -385,4 +521,49 @@ public class GPIssuerDomain {
         throw new RuntimeException("Not implemented");
     }
 
+    /**
+     * Internal: record an operation in the journal, if enabled
+     * <p/>
+     * Failures of successful operations are raised since the
+     * caller relies on the journal. Failures while recording
+     * a failed operation are only logged so the original
+     * error is not masked.
+     * <p/>
+     * @param operation performed
+     * @param error that occurred, null on success
+     * @param begin time of the operation in nanoseconds
+     * @param aids involved, primary object first
+     * @throws CardException if a success could not be recorded
+     */
+    private void journal(GPJournal.Operation operation, CardException error, long begin, AID... aids)
+            throws CardException {
+        journal(operation, null, error, begin, aids);
+    }
+
+    /**
+     * Internal: record an operation with content in the journal, if enabled
+     * @param operation performed
+     * @param content identifying what was operated on, null if none
+     * @param error that occurred, null on success
+     * @param begin time of the operation in nanoseconds
+     * @param aids involved, primary object first
+     * @throws CardException if a success could not be recorded
+     */
+    private void journal(GPJournal.Operation operation, String content, CardException error, long begin, AID... aids)
+            throws CardException {
+        GPJournal journal = mCard.getContext().getJournal();
+        if (journal == null) {
+            return;
+        }
+        String identity = mCard.getIdentity();
+        try {
+            journal.record(identity, operation, content, error, System.nanoTime() - begin, aids);
+        } catch (IOException e) {
+            LOG.error("could not journal " + operation + " of " + aids[0], e);
+            if (error == null) {
+                throw new CardException("Could not journal " + operation + " of " + aids[0], e);
+            }
+        }
+    }
+
 }
@@ -0,0 +1,537 @@
+/*
+ * openjavacard-tools: Development tools for JavaCard
+ * Copyright (C) 2019 Ingo Albrecht <copyright@promovicz.org>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package org.openjavacard.gp.client;
+
+import org.openjavacard.iso.AID;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Append-only journal of card management operations
+ * <p/>
+ * Records card identity, operation, AIDs, content, result and
+ * timing of every journaled operation, one line per entry.
+ * The content identifies what was loaded, such as the hash
+ * of a load file, so that resuming can tell versions apart.
+ * <p/>
+ * Writes use group commit: a writer thread appends whatever
+ * entries are pending and syncs the file once for all of them.
+ * Callers return when their entry is durable, so concurrent
+ * workers share the cost of each sync.
+ * <p/>
+ * An entry truncated by a crash is discarded on open.
+ * <p/>
+ * The journal also tracks the last successful operation
+ * for every object on every card, allowing interrupted
+ * runs to be resumed.
+ */
+public class GPJournal implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(GPJournal.class);
+
+    /** Separator between fields of an entry */
+    private static final char SEPARATOR = '\t';
+
+    /** Result string for success */
+    private static final String RESULT_OK = "OK";
+
+    /** Content string for entries without content */
+    private static final String CONTENT_NONE = "-";
+
+    /**
+     * Journaled operations
+     */
+    public enum Operation {
+        LOAD, INSTALL, DELETE, EXTRADITE
+    }
+
+    /**
+     * Entry in the journal
+     */
+    public static class Entry {
+        private final long mTime;
+        private final String mCard;
+        private final Operation mOperation;
+        private final List<AID> mAIDs;
+        private final String mContent;
+        private final String mError;
+        private final long mNanos;
+
+        /**
+         * Main constructor
+         * @param time of completion in milliseconds since the epoch
+         * @param card identity of the card
+         * @param operation performed
+         * @param aids involved, primary object first
+         * @param error message, null on success
+         * @param nanos the operation took
+         */
+        public Entry(long time, String card, Operation operation, List<AID> aids, String error, long nanos) {
+            this(time, card, operation, aids, null, error, nanos);
+        }
+
+        /**
+         * Constructor with content
+         * @param time of completion in milliseconds since the epoch
+         * @param card identity of the card
+         * @param operation performed
+         * @param aids involved, primary object first
+         * @param content identifying what was operated on, null if none
+         * @param error message, null on success
+         * @param nanos the operation took
+         */
+        public Entry(long time, String card, Operation operation, List<AID> aids,
+                     String content, String error, long nanos) {
+            mTime = time;
+            mCard = card;
+            mOperation = operation;
+            mAIDs = Collections.unmodifiableList(new ArrayList<>(aids));
+            mContent = content;
+            mError = error;
+            mNanos = nanos;
+        }
+
+        public long getTime() {
+            return mTime;
+        }
+
+        public String getCard() {
+            return mCard;
+        }
+
+        public Operation getOperation() {
+            return mOperation;
+        }
+
+        public List<AID> getAIDs() {
+            return mAIDs;
+        }
+
+        /** @return primary object of the operation */
+        public AID getAID() {
+            return mAIDs.get(0);
+        }
+
+        /** @return content identifying what was operated on, null if none */
+        public String getContent() {
+            return mContent;
+        }
+
+        public boolean isSuccess() {
+            return mError == null;
+        }
+
+        public String getError() {
+            return mError;
+        }
+
+        public long getNanos() {
+            return mNanos;
+        }
+
+        /** @return the entry as a journal line */
+        String toLine() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(mTime).append(SEPARATOR);
+            sb.append(mCard).append(SEPARATOR);
+            sb.append(mOperation).append(SEPARATOR);
+            for (int i = 0; i < mAIDs.size(); i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                sb.append(mAIDs.get(i));
+            }
+            sb.append(SEPARATOR);
+            sb.append(mContent == null ? CONTENT_NONE : mContent).append(SEPARATOR);
+            sb.append(mNanos).append(SEPARATOR);
+            if (mError == null) {
+                sb.append(RESULT_OK);
+            } else {
+                sb.append("ERROR ").append(mError.replaceAll("\\s", " "));
+            }
+            sb.append('\n');
+            return sb.toString();
+        }
+
+        /**
+         * Parse a journal line
+         * <p/>
+         * Lines written before content was recorded lack
+         * the content field and are read without content.
+         * <p/>
+         * @param line to parse
+         * @return the entry
+         * @throws IllegalArgumentException if the line is invalid
+         */
+        static Entry fromLine(String line) {
+            String[] fields = line.split(String.valueOf(SEPARATOR), -1);
+            int count = fields.length;
+            if (count != 6 && count != 7) {
+                throw new IllegalArgumentException("Invalid journal line");
+            }
+            List<AID> aids = new ArrayList<>();
+            for (String aid : fields[3].split(",")) {
+                aids.add(new AID(aid));
+            }
+            String content = null;
+            if (count == 7 && !fields[4].equals(CONTENT_NONE)) {
+                content = fields[4];
+            }
+            String result = fields[count - 1];
+            String error = null;
+            if (!result.equals(RESULT_OK)) {
+                error = result.startsWith("ERROR ") ? result.substring(6) : result;
+            }
+            return new Entry(Long.parseLong(fields[0]), fields[1], Operation.valueOf(fields[2]),
+                    aids, content, error, Long.parseLong(fields[count - 2]));
+        }
+
+        @Override
+        public String toString() {
+            return toLine().trim();
+        }
+    }
+
+    /** File of the journal */
+    private final File mFile;
+    /** Channel for appending */
+    private final FileChannel mChannel;
+    /** Writer performing group commits */
+    private final Thread mWriter;
+
+    /** Lock for the fields below */
+    private final Object mLock = new Object();
+    /** Lines waiting to be written */
+    private StringBuilder mPending = new StringBuilder();
+    /** Sequence number of the last queued entry */
+    private long mQueued;
+    /** Sequence number of the last durable entry */
+    private long mDurable;
+    /** Number of syncs performed */
+    private long mSyncs;
+    /** Failure of the writer, fatal for the journal */
+    private IOException mFailure;
+    /** True once closing */
+    private boolean mClosing;
+    /** Last successful entry by card and object */
+    private final Map<String, Entry> mLatest = new HashMap<>();
+
+    /**
+     * Open or create a journal
+     * @param file for the journal
+     * @throws IOException on error
+     */
+    public GPJournal(File file) throws IOException {
+        mFile = file;
+        long valid = 0;
+        if (file.exists()) {
+            valid = replay(file);
+        }
+        mChannel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        // drop any entry truncated by a crash
+        if (mChannel.size() > valid) {
+            LOG.warn("discarding " + (mChannel.size() - valid) + " trailing bytes of journal " + file);
+            mChannel.truncate(valid);
+        }
+        mChannel.position(valid);
+        mWriter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writerLoop();
+            }
+        }, "gp-journal");
+        mWriter.setDaemon(true);
+        mWriter.start();
+    }
+
+    /** @return file of the journal */
+    public File getFile() {
+        return mFile;
+    }
+
+    /** @return number of syncs performed since opening */
+    public long getSyncCount() {
+        synchronized (mLock) {
+            return mSyncs;
+        }
+    }
+
+    /**
+     * Check if an operation is the last one completed on an object
+     * @param card identity of the card
+     * @param operation to check for
+     * @param aid of the object
+     * @return true if the operation was the last to succeed on the object
+     */
+    public boolean isCompleted(String card, Operation operation, AID aid) {
+        synchronized (mLock) {
+            Entry latest = mLatest.get(card + "/" + aid);
+            return latest != null && latest.getOperation() == operation;
+        }
+    }
+
+    /**
+     * Check if an operation with specific content is the last one completed on an object
+     * @param card identity of the card
+     * @param operation to check for
+     * @param aid of the object
+     * @param content that the operation must have recorded
+     * @return true if the operation was the last to succeed on the object, with the given content
+     */
+    public boolean isCompleted(String card, Operation operation, AID aid, String content) {
+        synchronized (mLock) {
+            Entry latest = mLatest.get(card + "/" + aid);
+            return latest != null && latest.getOperation() == operation
+                    && content.equals(latest.getContent());
+        }
+    }
+
+    /**
+     * Record an entry
+     * <p/>
+     * Returns once the entry is durable.
+     * <p/>
+     * @param entry to record
+     * @throws IOException on error
+     */
+    public void record(Entry entry) throws IOException {
+        String line = entry.toLine();
+        synchronized (mLock) {
+            if (mClosing) {
+                throw new IOException("Journal is closed");
+            }
+            if (mFailure != null) {
+                throw new IOException("Journal has failed", mFailure);
+            }
+            mPending.append(line);
+            long sequence = ++mQueued;
+            track(entry);
+            mLock.notifyAll();
+            while (mDurable < sequence) {
+                if (mFailure != null) {
+                    throw new IOException("Journal has failed", mFailure);
+                }
+                try {
+                    mLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for journal");
+                }
+            }
+        }
+    }
+
+    /**
+     * Record an operation
+     * @param card identity of the card
+     * @param operation performed
+     * @param error that occurred, null on success
+     * @param nanos the operation took
+     * @param aids involved, primary object first
+     * @throws IOException on error
+     */
+    public void record(String card, Operation operation, Exception error, long nanos, AID... aids)
+            throws IOException {
+        record(card, operation, null, error, nanos, aids);
+    }
+
+    /**
+     * Record an operation with content
+     * @param card identity of the card
+     * @param operation performed
+     * @param content identifying what was operated on, null if none
+     * @param error that occurred, null on success
+     * @param nanos the operation took
+     * @param aids involved, primary object first
+     * @throws IOException on error
+     */
+    public void record(String card, Operation operation, String content, Exception error, long nanos, AID... aids)
+            throws IOException {
+        String message = null;
+        if (error != null) {
+            message = (error.getMessage() == null) ? error.getClass().getSimpleName() : error.getMessage();
+        }
+        record(new Entry(System.currentTimeMillis(), card, operation, Arrays.asList(aids), content, message, nanos));
+    }
+
+    /**
+     * Close the journal
+     * <p/>
+     * Pending entries are written first.
+     * <p/>
+     * @throws IOException on error
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (mLock) {
+            mClosing = true;
+            mLock.notifyAll();
+        }
+        try {
+            mWriter.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted closing journal");
+        } finally {
+            mChannel.close();
+        }
+        synchronized (mLock) {
+            if (mFailure != null) {
+                throw mFailure;
+            }
+        }
+    }
+
+    /**
+     * Read all entries of a journal
+     * @param file to read
+     * @return list of entries in order
+     * @throws IOException on error
+     */
+    public static List<Entry> readEntries(File file) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                try {
+                    entries.add(Entry.fromLine(line));
+                } catch (IllegalArgumentException e) {
+                    LOG.debug("skipping invalid journal line");
+                }
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Internal: replay an existing journal
+     * @param file to replay
+     * @return length of the valid part of the file
+     * @throws IOException on error
+     */
+    private long replay(File file) throws IOException {
+        long valid = 0;
+        long position = 0;
+        int count = 0;
+        try (InputStream is = new BufferedInputStream(new FileInputStream(file))) {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int b;
+            while ((b = is.read()) >= 0) {
+                position++;
+                if (b != '\n') {
+                    line.write(b);
+                    continue;
+                }
+                String text = new String(line.toByteArray(), StandardCharsets.UTF_8);
+                line.reset();
+                try {
+                    track(Entry.fromLine(text));
+                    count++;
+                } catch (IllegalArgumentException e) {
+                    LOG.warn("skipping invalid journal line " + text);
+                }
+                valid = position;
+            }
+        }
+        LOG.debug("replayed " + count + " journal entries");
+        return valid;
+    }
+
+    /**
+     * Internal: track object state from an entry
+     * <p/>
+     * Must be called with the lock held.
+     * <p/>
+     * @param entry to track
+     */
+    private void track(Entry entry) {
+        if (entry.isSuccess()) {
+            mLatest.put(entry.getCard() + "/" + entry.getAID(), entry);
+        }
+    }
+
+    /**
+     * Internal: writer performing group commits
+     */
+    private void writerLoop() {
+        while (true) {
+            String batch;
+            long target;
+            synchronized (mLock) {
+                while (mPending.length() == 0 && !mClosing) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        // only closing stops us
+                    }
+                }
+                if (mPending.length() == 0) {
+                    return;
+                }
+                batch = mPending.toString();
+                mPending = new StringBuilder();
+                target = mQueued;
+            }
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(batch.getBytes(StandardCharsets.UTF_8));
+                while (buffer.hasRemaining()) {
+                    mChannel.write(buffer);
+                }
+                mChannel.force(false);
+            } catch (IOException e) {
+                LOG.error("error writing journal " + mFile, e);
+                synchronized (mLock) {
+                    mFailure = e;
+                    mLock.notifyAll();
+                }
+                return;
+            }
+            synchronized (mLock) {
+                mDurable = target;
+                mSyncs++;
+                mLock.notifyAll();
+            }
+        }
+    }
+
+}
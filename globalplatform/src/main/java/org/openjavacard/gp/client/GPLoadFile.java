@@ -20,17 +20,27 @@
 package org.openjavacard.gp.client;
 
 import org.openjavacard.cap.file.CapComponentType;
+import org.openjavacard.cap.file.CapFile;
+import org.openjavacard.cap.file.CapFileApplet;
+import org.openjavacard.cap.file.CapFileCache;
 import org.openjavacard.cap.file.CapFileComponent;
 import org.openjavacard.cap.file.CapFilePackage;
 import org.openjavacard.iso.AID;
 import org.openjavacard.tlv.TLVLength;
 import org.openjavacard.tlv.TLVTag;
 import org.openjavacard.util.ArrayUtil;
+import org.openjavacard.util.HexUtil;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 
 /**
  * Representation of a CAP file prepared for loading
@@ -41,11 +51,20 @@ import java.util.List;
  * Once loaded each of these will become an ELF on the card.
  * <p/>
  * These objects can be produced from a CapFilePackage.
+ * <p/>
+ * Load files produced from a package do not hold a copy of
+ * their data. They refer to the component buffers and cut
+ * blocks from them when asked for, so only the block being
+ * sent needs additional memory.
+ * <p/>
  */
 public class GPLoadFile {
 
     private final static int TAG_LOAD_FILE = 0xC400;
 
+    /** Largest block size accepted by any secure channel using short APDUs */
+    public static final int DEFAULT_BLOCK_SIZE = 239;
+
     /** AID of the package */
     private final AID mPackageAID;
 
@@ -54,12 +73,38 @@ public class GPLoadFile {
     /** Total size of the load file */
     private int mTotalSize = 0;
 
-    /** List of the actual blocks */
-    private final List<byte[]> mBlocks = new ArrayList<>();
+    /** List of the actual blocks, null if streaming */
+    private final List<byte[]> mBlocks;
+    /** Segments to cut blocks from, null if not streaming */
+    private final List<byte[]> mSegments;
+
+    /** AIDs of modules contained in the file, if known */
+    private final List<AID> mModuleAIDs = new ArrayList<>();
+
+    /** Hash of the content, computed on first use */
+    private String mHash;
 
     /** Construct a new load file */
     public GPLoadFile(AID packageAID) {
         mPackageAID = packageAID;
+        mBlocks = new ArrayList<>();
+        mSegments = null;
+    }
+
+    /**
+     * Internal: construct a streaming load file
+     * @param packageAID of the package
+     * @param segments to cut blocks from
+     * @param blockSize for cutting blocks
+     */
+    private GPLoadFile(AID packageAID, List<byte[]> segments, int blockSize) {
+        mPackageAID = packageAID;
+        mBlocks = null;
+        mSegments = segments;
+        for (byte[] segment : segments) {
+            mTotalSize += segment.length;
+        }
+        mBlockSize = Math.min(blockSize, mTotalSize);
     }
 
     /** @return the AID of the package contained in this load file */
@@ -67,6 +112,23 @@ public class GPLoadFile {
         return mPackageAID;
     }
 
+    /** @return AIDs of modules contained in this load file, empty if unknown */
+    public List<AID> getModuleAIDs() {
+        return mModuleAIDs;
+    }
+
+    /**
+     * Declare a module contained in the load file
+     * <p/>
+     * This is informational and used to keep the registry
+     * model updated after loading.
+     * <p/>
+     * @param moduleAID to add
+     */
+    public void addModuleAID(AID moduleAID) {
+        mModuleAIDs.add(moduleAID);
+    }
+
     /** @return the maximum block size (in bytes) of this load file */
     public int getBlockSize() {
         return mBlockSize;
@@ -79,12 +141,53 @@ public class GPLoadFile {
 
     /** @return the number of blocks in this load file */
     public int getNumBlocks() {
-        return mBlocks.size();
+        if (mSegments == null) {
+            return mBlocks.size();
+        }
+        return (mTotalSize + mBlockSize - 1) / mBlockSize;
     }
 
-    /** @return the blocks comprising this load file */
+    /**
+     * Get the blocks comprising this load file
+     * <p/>
+     * For streaming load files each access cuts a new block.
+     * Use blockIterator() for sequential access.
+     * <p/>
+     * @return list of blocks
+     */
     public List<byte[]> getBlocks() {
-        return mBlocks;
+        if (mSegments == null) {
+            return Collections.unmodifiableList(mBlocks);
+        }
+        return new AbstractList<byte[]>() {
+            @Override
+            public byte[] get(int index) {
+                if (index < 0 || index >= size()) {
+                    throw new IndexOutOfBoundsException("Block " + index + " of " + size());
+                }
+                BlockIterator it = new BlockIterator();
+                it.skip(index * mBlockSize);
+                return it.next();
+            }
+            @Override
+            public int size() {
+                return getNumBlocks();
+            }
+        };
+    }
+
+    /**
+     * Iterate over the blocks comprising this load file
+     * <p/>
+     * For streaming load files blocks are cut as they are requested.
+     * <p/>
+     * @return iterator over blocks
+     */
+    public Iterator<byte[]> blockIterator() {
+        if (mSegments == null) {
+            return Collections.unmodifiableList(mBlocks).iterator();
+        }
+        return new BlockIterator();
     }
 
     /**
@@ -95,6 +198,9 @@ public class GPLoadFile {
      * @param block to add
      */
     public void addBlock(byte[] block) {
+        if (mBlocks == null) {
+            throw new IllegalStateException("Can not add blocks to a streaming load file");
+        }
         int length = block.length;
         // keep total size
         mTotalSize += length;
@@ -104,58 +210,166 @@ public class GPLoadFile {
         }
         // add the block
         mBlocks.add(block);
+        // content has changed
+        mHash = null;
+    }
+
+    /**
+     * Get a hash of the content of this load file
+     * <p/>
+     * The hash covers the data of all blocks and does
+     * not depend on how the data is split into blocks.
+     * <p/>
+     * @return hex string of the SHA-256 digest of the content
+     */
+    public String getHash() {
+        String hash = mHash;
+        if (hash == null) {
+            try {
+                MessageDigest digest = MessageDigest.getInstance("SHA-256");
+                Iterator<byte[]> blocks = blockIterator();
+                while (blocks.hasNext()) {
+                    digest.update(blocks.next());
+                }
+                hash = HexUtil.bytesToHex(digest.digest());
+            } catch (NoSuchAlgorithmException e) {
+                throw new Error("SHA-256 not available", e);
+            }
+            mHash = hash;
+        }
+        return hash;
     }
 
 
     /**
      * Generate a combined load file
+     * <p/>
+     * The result refers to the component buffers of the package.
+     * <p/>
      * @param blockSize for the file
      * @return a GPLoadFile
+     * @throws IOException if component data can not be read
      */
-    public static GPLoadFile generateCombinedLoadFile(CapFilePackage capFilePackage, int blockSize) {
-        GPLoadFile res = new GPLoadFile(capFilePackage.getPackageAID());
-        try {
-            // need to know total length
-            int totalSize = 0;
-            // need to know components to emit
-            List<CapFileComponent> components = new ArrayList<>();
-
-            // find components in load order
-            for (CapComponentType type : CapComponentType.LOAD_ORDER) {
-                CapFileComponent component = capFilePackage.getComponentByType(type);
-                // if we have a component of the given type
-                if (component != null) {
-                    byte[] data = component.getData();
-                    // add up the total size
-                    totalSize += data.length;
-                    // remember the components
-                    components.add(component);
+    public static GPLoadFile generateCombinedLoadFile(CapFilePackage capFilePackage, int blockSize)
+            throws IOException {
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("Invalid block size " + blockSize);
+        }
+        // need to know total length
+        int totalSize = 0;
+        // need to know component data to emit
+        List<byte[]> segments = new ArrayList<>();
+        // reserve space for the header
+        segments.add(null);
+
+        // find components in load order
+        for (CapComponentType type : CapComponentType.LOAD_ORDER) {
+            CapFileComponent component = capFilePackage.getComponentByType(type);
+            // if we have a component of the given type
+            if (component != null) {
+                byte[] data;
+                try {
+                    data = component.getData();
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
                 }
+                // add up the total size
+                totalSize += data.length;
+                // remember the data
+                segments.add(data);
             }
+        }
+
+        // emit one tag with all the components
+        byte[] header = ArrayUtil.concatenate(
+                TLVTag.tagBytes(TAG_LOAD_FILE),
+                TLVLength.lengthBytes(totalSize));
+        segments.set(0, header);
+
+        // construct the result
+        GPLoadFile res = new GPLoadFile(capFilePackage.getPackageAID(), segments, blockSize);
+        // remember the modules for registry maintenance
+        for (CapFileApplet applet : capFilePackage.getApplets()) {
+            res.addModuleAID(applet.getAID());
+        }
+        return res;
+    }
 
-            // emit one tag with all the components
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            bos.write(TLVTag.tagBytes(TAG_LOAD_FILE));
-            bos.write(TLVLength.lengthBytes(totalSize));
-            for(CapFileComponent component : components) {
-                byte[] data = component.getData();
-                bos.write(data);
+    /**
+     * Get a combined load file through a CAP file cache
+     * <p/>
+     * The load file is generated once per package and block size
+     * and kept for as long as the CAP file stays in the cache.
+     * <p/>
+     * @param cache holding the CAP file
+     * @param capFile containing the package
+     * @param capFilePackage to generate the load file for
+     * @param blockSize for the file
+     * @return a GPLoadFile
+     * @throws IOException if component data can not be read
+     */
+    public static GPLoadFile getCombinedLoadFile(CapFileCache cache, CapFile capFile,
+                                                 final CapFilePackage capFilePackage, final int blockSize)
+            throws IOException {
+        String key = "load-file:" + capFilePackage.getPackageAID() + ":" + blockSize;
+        return cache.getDerived(capFile, key, new CapFileCache.Derivation<GPLoadFile>() {
+            @Override
+            public GPLoadFile derive(CapFile file) throws IOException {
+                return generateCombinedLoadFile(capFilePackage, blockSize);
             }
+        });
+    }
+
+    /**
+     * Iterator cutting blocks from segments
+     */
+    private final class BlockIterator implements Iterator<byte[]> {
+        /** Index of the current segment */
+        private int mSegment = 0;
+        /** Offset into the current segment */
+        private int mOffset = 0;
+        /** Bytes remaining in the file */
+        private int mRemaining = mTotalSize;
 
-            // get ourselves an array with all the data
-            byte[] raw = bos.toByteArray();
+        @Override
+        public boolean hasNext() {
+            return mRemaining > 0;
+        }
 
-            // split the result into appropriate blocks
-            byte[][] blocks = ArrayUtil.splitBlocks(raw, blockSize);
+        @Override
+        public byte[] next() {
+            if (mRemaining <= 0) {
+                throw new NoSuchElementException();
+            }
+            int length = Math.min(mBlockSize, mRemaining);
+            byte[] block = new byte[length];
+            copy(block, length);
+            return block;
+        }
 
-            // add the blocks to the load file
-            for(byte[] block: blocks) {
-                res.addBlock(block);
+        /** Skip the given number of bytes */
+        void skip(int length) {
+            copy(null, length);
+        }
+
+        /** Consume bytes, copying them if a destination is given */
+        private void copy(byte[] dst, int length) {
+            int pos = 0;
+            while (pos < length) {
+                byte[] segment = mSegments.get(mSegment);
+                int chunk = Math.min(length - pos, segment.length - mOffset);
+                if (dst != null) {
+                    System.arraycopy(segment, mOffset, dst, pos, chunk);
+                }
+                pos += chunk;
+                mOffset += chunk;
+                if (mOffset == segment.length) {
+                    mSegment++;
+                    mOffset = 0;
+                }
             }
-        } catch (IOException e) {
-            throw new Error("Error generating load file", e);
+            mRemaining -= length;
         }
-        return res;
     }
 
 }
@@ -28,13 +28,21 @@ import org.openjavacard.iso.ISO7816;
 import org.openjavacard.iso.SWException;
 import org.openjavacard.tlv.TLVException;
 import org.openjavacard.tlv.TLVPrimitive;
+import org.openjavacard.util.ArrayUtil;
 import org.openjavacard.util.VerboseString;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.smartcardio.CardException;
+import java.io.ByteArrayOutputStream;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Client for GlobalPlatform registry functionality
@@ -52,6 +60,20 @@ import java.util.List;
  * dirty flag is used to keep information updated. Your mileage
  * may vary with regards to information provided by the card.
  * <p/>
+ * Entries are indexed by AID, module AID and domain AID whenever
+ * the registry is updated, so lookups take constant time. Lists
+ * returned by this class are unmodifiable snapshots that remain
+ * valid and unchanged when the registry is updated.
+ * <p/>
+ * Changes made through {@link GPIssuerDomain} are applied to the
+ * model directly instead of reading the whole registry again.
+ * Optionally these changes can be verified by reading back only
+ * the affected entries.
+ * <p/>
+ * Lookups of specific AIDs while the registry is dirty are done
+ * using GET STATUS search criteria, avoiding a full enumeration.
+ * Cards that reject criteria cause a fallback to a full update.
+ * <p/>
  */
 public class GPRegistry {
 
@@ -78,6 +100,10 @@ public class GPRegistry {
 
     /** True if data needs refreshing */
     private boolean mDirty = true;
+    /** True if locally applied changes should be verified */
+    private boolean mVerifyChanges = false;
+    /** False once the card has rejected GET STATUS search criteria */
+    private boolean mUseCriteria = true;
 
     /** Flag indicating use of legacy entry format for apps and domains */
     private boolean mUseLegacyGeneric;
@@ -87,15 +113,31 @@ public class GPRegistry {
     private boolean mUseTerseELF;
 
     /** List of all registry entries */
-    private ArrayList<Entry> mAllEntries = new ArrayList<>();
+    private List<Entry> mAllEntries = Collections.emptyList();
     /** Entry for the ISD */
     private ISDEntry mISD = null;
     /** List of all applet entries */
-    private ArrayList<AppEntry> mAllApps = new ArrayList<>();
+    private List<AppEntry> mAllApps = Collections.emptyList();
     /** List of all SSD entries */
-    private ArrayList<AppEntry> mAllSSDs = new ArrayList<>();
+    private List<AppEntry> mAllSSDs = Collections.emptyList();
     /** List of all ELF entries */
-    private ArrayList<ELFEntry> mAllELFs = new ArrayList<>();
+    private List<ELFEntry> mAllELFs = Collections.emptyList();
+
+    /** Applet and SSD entries by AID */
+    private Map<AID, AppEntry> mAppsByAID = Collections.emptyMap();
+    /** ELF entries by AID */
+    private Map<AID, ELFEntry> mELFsByAID = Collections.emptyMap();
+    /** ELF entries by AID of contained modules */
+    private Map<AID, ELFEntry> mELFsByModule = Collections.emptyMap();
+    /** Entries by AID of their associated security domain */
+    private Map<AID, List<Entry>> mChildrenByDomain = Collections.emptyMap();
+
+    /** Snapshot cache, null if not used */
+    private GPRegistryCache mCache;
+    /** Identity of the card in the snapshot cache */
+    private String mCacheIdentity;
+    /** Sequence counter of the current session */
+    private byte[] mCacheSequence;
 
     /**
      * Main constructor
@@ -116,25 +158,25 @@ public class GPRegistry {
     /** @return all registry entries */
     public List<Entry> getAllEntries() {
         ensureUpdated();
-        return new ArrayList<>(mAllEntries);
+        return mAllEntries;
     }
 
     /** @return list of applet entries */
     public List<AppEntry> getAllApps() {
         ensureUpdated();
-        return new ArrayList<>(mAllApps);
+        return mAllApps;
     }
 
     /** @return list of SSD entries */
     public List<AppEntry> getAllSSDs() {
         ensureUpdated();
-        return new ArrayList<>(mAllSSDs);
+        return mAllSSDs;
     }
 
     /** @return list of ELF entries */
     public List<ELFEntry> getAllELFs() {
         ensureUpdated();
-        return new ArrayList<>(mAllELFs);
+        return mAllELFs;
     }
 
     /**
@@ -145,7 +187,6 @@ public class GPRegistry {
      * @param aid to search for
      */
     public Entry findAppletOrPackage(AID aid) {
-        ensureUpdated();
         Entry res;
         res = findApplet(aid);
         if(res != null) {
@@ -159,18 +200,20 @@ public class GPRegistry {
     }
 
     /**
-     * Find an applet entry
+     * Find an applet or SSD entry
      * @param aid to search for
      * @return applet entry or null
      */
     public AppEntry findApplet(AID aid) {
-        ensureUpdated();
-        for(AppEntry app: mAllApps) {
-            if(app.mAID.equals(aid)) {
-                return app;
+        if (mDirty && mUseCriteria) {
+            try {
+                return findExact(queryApplets(aid), aid);
+            } catch (CardException e) {
+                throw new RuntimeException("Error querying registry", e);
             }
         }
-        return null;
+        ensureUpdated();
+        return mAppsByAID.get(aid);
     }
 
     /**
@@ -188,13 +231,15 @@ public class GPRegistry {
      * @return package entry or null
      */
     public ELFEntry findPackage(AID aid) {
-        ensureUpdated();
-        for (ELFEntry elf : mAllELFs) {
-            if (elf.mAID.equals(aid)) {
-                return elf;
+        if (mDirty && mUseCriteria) {
+            try {
+                return findExact(queryPackages(aid), aid);
+            } catch (CardException e) {
+                throw new RuntimeException("Error querying registry", e);
             }
         }
-        return null;
+        ensureUpdated();
+        return mELFsByAID.get(aid);
     }
 
     /**
@@ -213,22 +258,205 @@ public class GPRegistry {
      */
     public ELFEntry findPackageForModule(AID aid) {
         ensureUpdated();
-        for (ELFEntry elf : mAllELFs) {
-            for (AID mod : elf.mModules) {
-                if (mod.equals(aid)) {
-                    return elf;
-                }
+        return mELFsByModule.get(aid);
+    }
+
+    /**
+     * Query applet and SSD entries by AID prefix
+     * <p/>
+     * Answered from the model if it is current. Otherwise a
+     * targeted GET STATUS is performed without updating
+     * the model.
+     * <p/>
+     * @param prefix to search for, may be a complete AID
+     * @return list of entries, empty if none
+     * @throws CardException on error
+     */
+    public List<AppEntry> queryApplets(AID prefix) throws CardException {
+        LOG.debug("queryApplets(" + prefix + ")");
+        if (mDirty && mUseCriteria) {
+            try {
+                return filterPrefix(readEntriesAppAndSSD(buildCriteria(prefix)), prefix);
+            } catch (SWException e) {
+                handleCriteriaRejected(e);
+            }
+        }
+        if (mDirty) {
+            update();
+        }
+        List<AppEntry> res = filterPrefix(mAllApps, prefix);
+        res.addAll(filterPrefix(mAllSSDs, prefix));
+        return res;
+    }
+
+    /**
+     * Query ELF entries by AID prefix
+     * <p/>
+     * Answered from the model if it is current. Otherwise a
+     * targeted GET STATUS is performed without updating
+     * the model.
+     * <p/>
+     * @param prefix to search for, may be a complete AID
+     * @return list of entries, empty if none
+     * @throws CardException on error
+     */
+    public List<ELFEntry> queryPackages(AID prefix) throws CardException {
+        LOG.debug("queryPackages(" + prefix + ")");
+        if (mDirty && mUseCriteria) {
+            try {
+                return filterPrefix(readEntriesELF(buildCriteria(prefix)), prefix);
+            } catch (SWException e) {
+                handleCriteriaRejected(e);
+            }
+        }
+        if (mDirty) {
+            update();
+        }
+        return filterPrefix(mAllELFs, prefix);
+    }
+
+    /**
+     * Internal: decide if a failed query should fall back to a full update
+     * @param e that occurred
+     * @throws SWException if the error is unrelated to criteria
+     */
+    private void handleCriteriaRejected(SWException e) throws SWException {
+        switch (e.getCode()) {
+            case ISO7816.SW_WRONG_DATA:
+            case ISO7816.SW_FUNC_NOT_SUPPORTED:
+            case ISO7816.SW_INCORRECT_P1P2:
+                LOG.debug("card rejected GET STATUS criteria, will not use them again");
+                mUseCriteria = false;
+                break;
+            default:
+                throw e;
+        }
+    }
+
+    /**
+     * Internal: find the entry with exactly the given AID
+     */
+    private static <E extends Entry> E findExact(List<E> entries, AID aid) {
+        for (E entry : entries) {
+            if (aid.equals(entry.mAID)) {
+                return entry;
             }
         }
         return null;
     }
 
+    /**
+     * Internal: filter entries by AID prefix
+     * <p/>
+     * Also used on card results, since cards do not all
+     * implement matching the same way.
+     * <p/>
+     */
+    private static <E extends Entry> List<E> filterPrefix(List<E> entries, AID prefix) {
+        byte[] prefixBytes = prefix.getBytes();
+        List<E> res = new ArrayList<>();
+        for (E entry : entries) {
+            if (ArrayUtil.startsWith(entry.mAID.getBytes(), prefixBytes)) {
+                res.add(entry);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Find entries associated with a security domain
+     * <p/>
+     * Only works for cards that report the associated domain,
+     * which legacy status formats do not.
+     * <p/>
+     * @param domain AID of the security domain
+     * @return list of entries, empty if none
+     */
+    public List<Entry> findChildren(AID domain) {
+        ensureUpdated();
+        List<Entry> res = mChildrenByDomain.get(domain);
+        if (res == null) {
+            res = Collections.emptyList();
+        }
+        return res;
+    }
+
     /**
      * Mark registry as dirty
      */
     public void dirty() {
         LOG.debug("dirty()");
         mDirty = true;
+        if (mCache != null) {
+            mCache.invalidate(mCacheIdentity);
+        }
+    }
+
+    /**
+     * Internal: use registry formats from a card profile
+     * <p/>
+     * This avoids probing for formats the card does not support.
+     * <p/>
+     * @param profile to apply
+     */
+    void applyProfile(GPCardProfile profile) {
+        mUseLegacyGeneric = profile.isUseLegacyGeneric();
+        mUseLegacyELF = profile.isUseLegacyELF();
+        mUseTerseELF = profile.isUseTerseELF();
+    }
+
+    /**
+     * Internal: record registry formats in a card profile
+     * @param profile to update
+     */
+    void updateProfile(GPCardProfile profile) {
+        profile.setRegistryFormats(mUseLegacyGeneric, mUseLegacyELF, mUseTerseELF);
+    }
+
+    /**
+     * Internal: attach a snapshot cache
+     * <p/>
+     * Uses the cached snapshot for the card if it is still valid
+     * for the current session. Validity is checked using a single
+     * GET STATUS for applications and security domains. The registry
+     * will then be saved to the cache whenever it changes.
+     * <p/>
+     * @param cache to use
+     * @param identity of the card
+     * @param sequence counter of the current session
+     * @throws CardException on error
+     */
+    void attachCache(GPRegistryCache cache, String identity, byte[] sequence) throws CardException {
+        LOG.debug("attachCache(" + identity + ")");
+        mCache = cache;
+        mCacheIdentity = identity;
+        mCacheSequence = sequence.clone();
+        List<AppEntry> status = readEntriesAppAndSSD(null);
+        List<Entry> entries = cache.load(identity, sequence, status);
+        if (entries != null) {
+            LOG.debug("using cached registry with " + entries.size() + " entries");
+            setEntries(entries);
+            mDirty = false;
+            // move the snapshot to this session
+            saveSnapshot();
+        }
+    }
+
+    /** @return true if locally applied changes are verified with the card */
+    public boolean isVerifyChanges() {
+        return mVerifyChanges;
+    }
+
+    /**
+     * Enable verification of locally applied changes
+     * <p/>
+     * When enabled, entries affected by LOAD, INSTALL and DELETE
+     * are read back from the card using targeted GET STATUS.
+     * <p/>
+     * @param verifyChanges true to enable
+     */
+    public void setVerifyChanges(boolean verifyChanges) {
+        mVerifyChanges = verifyChanges;
     }
 
     /**
@@ -239,47 +467,281 @@ public class GPRegistry {
 
         try {
             // read all entries on the card
-            List<ISDEntry> isdEntries = readEntriesISD();
-            List<AppEntry> appEntries = readEntriesAppAndSSD();
-            List<ELFEntry> elfEntries = readEntriesELF();
+            List<ISDEntry> isdEntries = readEntriesISD(null);
+            List<AppEntry> appEntries = readEntriesAppAndSSD(null);
+            List<ELFEntry> elfEntries = readEntriesELF(null);
 
-            // we produce various lists sorted by type
-            ISDEntry isdEntry = null;
+            // collect all results, keeping only the first ISD
             ArrayList<Entry> allEntries = new ArrayList<>();
-            ArrayList<AppEntry> allApps = new ArrayList<>();
-            ArrayList<AppEntry> allSSDs = new ArrayList<>();
-            ArrayList<ELFEntry> allELFs = new ArrayList<>();
-
-            // check each set of results
             if (!isdEntries.isEmpty()) {
-                allEntries.addAll(isdEntries);
-                isdEntry = isdEntries.get(0);
-            }
-            if (!appEntries.isEmpty()) {
-                allEntries.addAll(appEntries);
-                for (AppEntry appEntry : appEntries) {
-                    allApps.add(appEntry);
-                }
-            }
-            if (!elfEntries.isEmpty()) {
-                allEntries.addAll(elfEntries);
-                allELFs.addAll(elfEntries);
+                allEntries.add(isdEntries.get(0));
             }
+            allEntries.addAll(appEntries);
+            allEntries.addAll(elfEntries);
 
             // update state
-            mISD = isdEntry;
-            mAllEntries = allEntries;
-            mAllApps = allApps;
-            mAllELFs = allELFs;
-            mAllSSDs = allSSDs;
+            setEntries(allEntries);
 
             // no longer dirty
             mDirty = false;
+
+            // remember for the next session
+            saveSnapshot();
         } catch (CardException e) {
             throw new CardException("Error updating registry", e);
         }
     }
 
+    /**
+     * Re-read registry entries for a specific AID
+     * <p/>
+     * Uses GET STATUS with search criteria to read only entries
+     * with the given AID, replacing them in the model. The whole
+     * registry is marked dirty if the card rejects the query.
+     * <p/>
+     * @param aid to refresh
+     * @throws CardException on error
+     */
+    public void refresh(AID aid) throws CardException {
+        LOG.debug("refresh(" + aid + ")");
+        // a full update will happen anyway
+        if (mDirty) {
+            return;
+        }
+        // no way to refresh selectively
+        if (!mUseCriteria) {
+            dirty();
+            return;
+        }
+        byte[] criteria = buildCriteria(aid);
+        List<Entry> found = new ArrayList<>();
+        try {
+            found.addAll(readEntriesAppAndSSD(criteria));
+            found.addAll(readEntriesELF(criteria));
+        } catch (SWException e) {
+            handleCriteriaRejected(e);
+            dirty();
+            return;
+        }
+        // criteria match prefixes, so filter for the exact AID
+        List<Entry> exact = new ArrayList<>();
+        for (Entry entry : found) {
+            if (aid.equals(entry.mAID)) {
+                exact.add(entry);
+            }
+        }
+        replaceEntries(Collections.singleton(aid), exact);
+    }
+
+    /**
+     * Internal: apply the effects of LOAD to the model
+     * @param file that was loaded
+     * @param domainAID of the associated domain
+     * @throws CardException on verification error
+     */
+    void applyLoad(GPLoadFile file, AID domainAID) throws CardException {
+        AID packageAID = file.getPackageAID();
+        LOG.trace("applyLoad(" + packageAID + ")");
+        if (mDirty) {
+            return;
+        }
+        ELFEntry elf = new ELFEntry();
+        elf.mAID = packageAID;
+        elf.mState = GP.ELF_STATE_LOADED;
+        elf.mPrivileges = new byte[1];
+        elf.mModules = new ArrayList<>(file.getModuleAIDs());
+        elf.mDomain = domainAID;
+        replaceEntries(Collections.singleton(packageAID), Collections.<Entry>singletonList(elf));
+        if (mVerifyChanges) {
+            refresh(packageAID);
+        }
+    }
+
+    /**
+     * Internal: apply the effects of INSTALL to the model
+     * @param packageAID of the package used
+     * @param appletAID of the new applet
+     * @param privileges of the new applet
+     * @param domainAID of the associated domain
+     * @throws CardException on verification error
+     */
+    void applyInstall(AID packageAID, AID appletAID, byte[] privileges, AID domainAID) throws CardException {
+        LOG.trace("applyInstall(" + appletAID + ")");
+        if (mDirty) {
+            return;
+        }
+        AppEntry app = new AppEntry();
+        app.mAID = appletAID;
+        app.mPrivileges = privileges.clone();
+        app.mState = app.isSSD() ? GP.DOMAIN_STATE_SELECTABLE : GP.APPLET_STATE_SELECTABLE;
+        app.mPackage = packageAID;
+        app.mDomain = domainAID;
+        replaceEntries(Collections.singleton(appletAID), Collections.<Entry>singletonList(app));
+        if (mVerifyChanges) {
+            refresh(appletAID);
+        }
+    }
+
+    /**
+     * Internal: apply the effects of DELETE to the model
+     * @param aid of the deleted object
+     * @param deleteRelated true if related objects were deleted
+     * @throws CardException on verification error
+     */
+    void applyDelete(AID aid, boolean deleteRelated) throws CardException {
+        LOG.trace("applyDelete(" + aid + ")");
+        if (mDirty) {
+            return;
+        }
+        Set<AID> removed = new HashSet<>();
+        removed.add(aid);
+        if (deleteRelated) {
+            // a package takes its applets with it
+            ELFEntry elf = mELFsByAID.get(aid);
+            if (elf != null) {
+                List<AppEntry> apps = new ArrayList<>(mAllApps);
+                apps.addAll(mAllSSDs);
+                for (AppEntry app : apps) {
+                    if (app.mPackage == null) {
+                        // legacy entries do not tell us their package
+                        dirty();
+                        return;
+                    }
+                    if (app.mPackage.equals(aid)) {
+                        removed.add(app.mAID);
+                    }
+                }
+            }
+            // domains take associated objects with them
+            if (mAppsByAID.containsKey(aid) && mAppsByAID.get(aid).isSSD()) {
+                dirty();
+                return;
+            }
+        }
+        replaceEntries(removed, Collections.<Entry>emptyList());
+        if (mVerifyChanges) {
+            for (AID removedAID : removed) {
+                refresh(removedAID);
+            }
+        }
+    }
+
+    /**
+     * Internal: replace entries in the model
+     * <p/>
+     * The ISD entry is never removed by this.
+     * <p/>
+     * @param remove AIDs of entries to remove
+     * @param add entries to add
+     */
+    private void replaceEntries(Collection<AID> remove, List<Entry> add) {
+        ArrayList<Entry> allEntries = new ArrayList<>(mAllEntries.size() + add.size());
+        for (Entry entry : mAllEntries) {
+            if (entry == mISD || !remove.contains(entry.mAID)) {
+                allEntries.add(entry);
+            }
+        }
+        allEntries.addAll(add);
+        setEntries(allEntries);
+        saveSnapshot();
+    }
+
+    /**
+     * Internal: save the model to the snapshot cache
+     */
+    private void saveSnapshot() {
+        if (mCache != null && !mDirty) {
+            mCache.save(mCacheIdentity, mCacheSequence, mAllEntries);
+        }
+    }
+
+    /**
+     * Internal: set entries of the model
+     * <p/>
+     * Sorts entries by type and rebuilds indexes.
+     * <p/>
+     * @param entries to use
+     */
+    private void setEntries(List<Entry> entries) {
+        ISDEntry isdEntry = null;
+        ArrayList<AppEntry> allApps = new ArrayList<>();
+        ArrayList<AppEntry> allSSDs = new ArrayList<>();
+        ArrayList<ELFEntry> allELFs = new ArrayList<>();
+        for (Entry entry : entries) {
+            if (entry instanceof ISDEntry) {
+                isdEntry = (ISDEntry) entry;
+            } else if (entry instanceof AppEntry) {
+                AppEntry appEntry = (AppEntry) entry;
+                if (appEntry.isSSD()) {
+                    allSSDs.add(appEntry);
+                } else {
+                    allApps.add(appEntry);
+                }
+            } else if (entry instanceof ELFEntry) {
+                allELFs.add((ELFEntry) entry);
+            }
+        }
+        mISD = isdEntry;
+        mAllEntries = Collections.unmodifiableList(entries);
+        mAllApps = Collections.unmodifiableList(allApps);
+        mAllELFs = Collections.unmodifiableList(allELFs);
+        mAllSSDs = Collections.unmodifiableList(allSSDs);
+        rebuildIndexes();
+    }
+
+    /**
+     * Internal: build GET STATUS criteria for an AID
+     * @param aid to search for
+     * @return criteria
+     */
+    private static byte[] buildCriteria(AID aid) {
+        byte[] aidBytes = aid.getBytes();
+        byte[] criteria = new byte[aidBytes.length + 2];
+        criteria[0] = 0x4F;
+        criteria[1] = (byte) aidBytes.length;
+        System.arraycopy(aidBytes, 0, criteria, 2, aidBytes.length);
+        return criteria;
+    }
+
+    /**
+     * Internal: rebuild lookup indexes from entry lists
+     */
+    private void rebuildIndexes() {
+        HashMap<AID, AppEntry> appsByAID = new HashMap<>();
+        HashMap<AID, ELFEntry> elfsByAID = new HashMap<>();
+        HashMap<AID, ELFEntry> elfsByModule = new HashMap<>();
+        HashMap<AID, List<Entry>> childrenByDomain = new HashMap<>();
+        for (AppEntry app : mAllApps) {
+            appsByAID.put(app.mAID, app);
+        }
+        for (AppEntry ssd : mAllSSDs) {
+            appsByAID.put(ssd.mAID, ssd);
+        }
+        for (ELFEntry elf : mAllELFs) {
+            elfsByAID.put(elf.mAID, elf);
+            for (AID module : elf.mModules) {
+                elfsByModule.put(module, elf);
+            }
+        }
+        for (Entry entry : mAllEntries) {
+            if (entry.mDomain != null && entry != mISD) {
+                List<Entry> children = childrenByDomain.get(entry.mDomain);
+                if (children == null) {
+                    children = new ArrayList<>();
+                    childrenByDomain.put(entry.mDomain, children);
+                }
+                children.add(entry);
+            }
+        }
+        for (Map.Entry<AID, List<Entry>> children : childrenByDomain.entrySet()) {
+            children.setValue(Collections.unmodifiableList(children.getValue()));
+        }
+        mAppsByAID = appsByAID;
+        mELFsByAID = elfsByAID;
+        mELFsByModule = elfsByModule;
+        mChildrenByDomain = childrenByDomain;
+    }
+
     /**
      * Internal: update registry immediately if dirty
      */
@@ -297,22 +759,24 @@ public class GPRegistry {
 
     /**
      * Read ISD entries using GET STATUS
+     * @param criteria for the search or null for all
      * @return entries found
      * @throws CardException
      */
-    private List<ISDEntry> readEntriesISD() throws CardException {
+    private List<ISDEntry> readEntriesISD(byte[] criteria) throws CardException {
         LOG.trace("readEntriesISD()");
-        return readStatusGeneric(GP.GET_STATUS_P1_ISD_ONLY, ISDEntry.class);
+        return readStatusGeneric(GP.GET_STATUS_P1_ISD_ONLY, ISDEntry.class, criteria);
     }
 
     /**
      * Read Application and SSD entries using GET STATUS
+     * @param criteria for the search or null for all
      * @return entries found
      * @throws CardException
      */
-    private List<AppEntry> readEntriesAppAndSSD() throws CardException {
+    private List<AppEntry> readEntriesAppAndSSD(byte[] criteria) throws CardException {
         LOG.trace("readEntriesAppAndSSD()");
-        return readStatusGeneric(GP.GET_STATUS_P1_APP_AND_SD_ONLY, AppEntry.class);
+        return readStatusGeneric(GP.GET_STATUS_P1_APP_AND_SD_ONLY, AppEntry.class, criteria);
     }
 
     /**
@@ -321,10 +785,14 @@ public class GPRegistry {
      * The case of ELFs is special because TLV format offers optional ExM information,
      * which some cards do not provide. We therefore have an additional fallback here.
      * <p/>
+     * Format fallbacks are only performed without criteria, since a card
+     * rejecting the criteria can not be told apart from one rejecting the format.
+     * <p/>
+     * @param criteria for the search or null for all
      * @return entries found
      * @throws CardException
      */
-    private List<ELFEntry> readEntriesELF() throws CardException {
+    private List<ELFEntry> readEntriesELF(byte[] criteria) throws CardException {
         LOG.trace("readEntriesELF()");
         List<ELFEntry> elfEntries = null;
 
@@ -333,8 +801,12 @@ public class GPRegistry {
                 // try TLV with module information
                 LOG.trace("reading ELF TLV with module information");
                 try {
-                    elfEntries = readStatusTLV(GP.GET_STATUS_P1_EXM_AND_ELF_ONLY, ELFEntry.class);
+                    elfEntries = readStatusTLV(GP.GET_STATUS_P1_EXM_AND_ELF_ONLY, ELFEntry.class, criteria);
                 } catch (SWException e) {
+                    // may be a rejection of the criteria, handled by the caller
+                    if (criteria != null) {
+                        throw e;
+                    }
                     switch (e.getCode()) {
                         // TLV not supported - try legacy
                         case ISO7816.SW_FUNC_NOT_SUPPORTED:
@@ -362,8 +834,12 @@ public class GPRegistry {
             // try TLV without module information
             LOG.trace("reading ELF TLV without module information");
             try {
-                elfEntries = readStatusTLV(GP.GET_STATUS_P1_ELF_ONLY, ELFEntry.class);
+                elfEntries = readStatusTLV(GP.GET_STATUS_P1_ELF_ONLY, ELFEntry.class, criteria);
             } catch (SWException e) {
+                // may be a rejection of the criteria, handled by the caller
+                if (criteria != null) {
+                    throw e;
+                }
                 switch(e.getCode()) {
                     case ISO7816.SW_FUNC_NOT_SUPPORTED:
                     case ISO7816.SW_INCORRECT_P1P2:
@@ -388,7 +864,7 @@ public class GPRegistry {
 
         // try only the variant without module information
         LOG.trace("reading ELF legacy");
-        elfEntries = readStatusLegacy(GP.GET_STATUS_P1_ELF_ONLY, ELFEntry.class);
+        elfEntries = readStatusLegacy(GP.GET_STATUS_P1_ELF_ONLY, ELFEntry.class, criteria);
         if(elfEntries != null) {
             return elfEntries;
         }
@@ -402,20 +878,25 @@ public class GPRegistry {
      *
      * @param p1Subset subset parameter
      * @param clazz to instantiate
+     * @param criteria for the search or null for all
      * @param <E> class of entries
      * @return list of entries
      * @throws CardException on error
      */
     private <E extends Entry>
-    List<E> readStatusGeneric(byte p1Subset, Class<E> clazz) throws CardException {
+    List<E> readStatusGeneric(byte p1Subset, Class<E> clazz, byte[] criteria) throws CardException {
         LOG.trace("readStatusGeneric()");
         List<E> res = null;
         // guarded attempt at using TLV
         if(!mUseLegacyGeneric) {
             LOG.trace("reading TLV");
             try {
-                res = readStatusTLV(p1Subset, clazz);
+                res = readStatusTLV(p1Subset, clazz, criteria);
             } catch (SWException e) {
+                // may be a rejection of the criteria, handled by the caller
+                if (criteria != null) {
+                    throw e;
+                }
                 switch (e.getCode()) {
                     case ISO7816.SW_INCORRECT_P1P2:
                         // TLV not supported - continue with legacy format
@@ -441,7 +922,7 @@ public class GPRegistry {
 
         // read in legacy format
         LOG.trace("reading legacy");
-        res = readStatusLegacy(p1Subset, clazz);
+        res = readStatusLegacy(p1Subset, clazz, criteria);
         // return result
         return res;
     }
@@ -451,14 +932,15 @@ public class GPRegistry {
      *
      * @param p1Subset subset parameter
      * @param clazz to instantiate
+     * @param criteria for the search or null for all
      * @param <E> class of entries
      * @return list of entries
      * @throws CardException on error
      */
     private <E extends Entry>
-    List<E> readStatusLegacy(byte p1Subset, Class<E> clazz) throws CardException {
+    List<E> readStatusLegacy(byte p1Subset, Class<E> clazz, byte[] criteria) throws CardException {
         byte format = GP.GET_STATUS_P2_FORMAT_LEGACY;
-        List<byte[]> chunks = mWrapper.performReadStatus(p1Subset, format);
+        List<byte[]> chunks = performReadStatus(p1Subset, format, criteria);
         List<E> res = new ArrayList<>();
         for (byte[] chunk: chunks) {
             int off = 0;
@@ -480,14 +962,15 @@ public class GPRegistry {
      *
      * @param p1Subset subset parameter
      * @param clazz to instantiate
+     * @param criteria for the search or null for all
      * @param <E> class of entry
      * @return list of entries
      * @throws CardException on error
      */
     private <E extends Entry>
-    List<E> readStatusTLV(byte p1Subset, Class<E> clazz) throws CardException, TLVException {
+    List<E> readStatusTLV(byte p1Subset, Class<E> clazz, byte[] criteria) throws CardException, TLVException {
         byte format = GP.GET_STATUS_P2_FORMAT_TLV;
-        List<byte[]> chunks = mWrapper.performReadStatus(p1Subset, format);
+        List<byte[]> chunks = performReadStatus(p1Subset, format, criteria);
         List<E> res = new ArrayList<>();
         for (byte[] chunk : chunks) {
             List<TLVPrimitive> tlvs = TLVPrimitive.readPrimitives(chunk);
@@ -504,6 +987,17 @@ public class GPRegistry {
         return res;
     }
 
+    /**
+     * Perform GET STATUS with optional criteria
+     */
+    private List<byte[]> performReadStatus(byte p1Subset, byte format, byte[] criteria) throws CardException {
+        if (criteria == null) {
+            return mWrapper.performReadStatus(p1Subset, format);
+        } else {
+            return mWrapper.performReadStatus(p1Subset, format, criteria);
+        }
+    }
+
     /**
      * Types of registry entries
      */
@@ -538,6 +1032,14 @@ public class GPRegistry {
             return mModules;
         }
 
+        public AID getPackage() {
+            return mPackage;
+        }
+
+        public AID getDomain() {
+            return mDomain;
+        }
+
         public boolean hasModule(AID moduleAID) {
             return mModules.contains(moduleAID);
         }
@@ -592,6 +1094,36 @@ public class GPRegistry {
             mModules = modules;
         }
 
+        byte[] toTLV() {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            writeTLV(bos, TAG_GP_REGISTRY_AID, mAID.getBytes());
+            writeTLV(bos, TAG_GP_REGISTRY_STATE, new byte[] { mState });
+            if (mPrivileges != null) {
+                writeTLV(bos, TAG_GP_REGISTRY_PRIVILEGES, mPrivileges);
+            }
+            for (AID module : mModules) {
+                writeTLV(bos, TAG_GP_REGISTRY_MODULE, module.getBytes());
+            }
+            if (mPackage != null) {
+                writeTLV(bos, TAG_GP_REGISTRY_PACKAGE, mPackage.getBytes());
+            }
+            if (mDomain != null) {
+                writeTLV(bos, TAG_GP_REGISTRY_DOMAIN, mDomain.getBytes());
+            }
+            if (mVersion != null) {
+                writeTLV(bos, TAG_GP_REGISTRY_VERSION, mVersion);
+            }
+            for (byte selection : mImplicitSelection) {
+                writeTLV(bos, TAG_GP_REGISTRY_IMPLICIT_SELECTION, new byte[] { selection });
+            }
+            return bos.toByteArray();
+        }
+
+        private static void writeTLV(ByteArrayOutputStream bos, int tag, byte[] value) {
+            byte[] encoded = new TLVPrimitive(tag, value).getEncoded();
+            bos.write(encoded, 0, encoded.length);
+        }
+
         public int readLegacy(byte[] data, int off) {
             return readLegacyCommon(data, off);
         }
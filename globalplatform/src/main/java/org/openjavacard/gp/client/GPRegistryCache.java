@@ -0,0 +1,306 @@
+/*
+ * openjavacard-tools: Development tools for JavaCard
+ * Copyright (C) 2019 Ingo Albrecht <copyright@promovicz.org>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package org.openjavacard.gp.client;
+
+import org.openjavacard.tlv.TLVException;
+import org.openjavacard.util.HexUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * On-disk cache of registry snapshots
+ * <p/>
+ * Snapshots are stored per card identity together with the
+ * sequence counter of the secure channel session they were
+ * taken in and a digest of their application and security
+ * domain entries. A snapshot is only trusted by a session
+ * whose sequence counter directly follows the stored one
+ * and when the digest matches that of a fresh GET STATUS
+ * for applications and security domains.
+ * <p/>
+ * The counter only shows that no other secure channel with
+ * the same keys was opened, so it can not rule out changes
+ * made through other channels or security domains. The
+ * digest check catches those for applications and domains,
+ * but not changes that only affect load files.
+ * <p/>
+ * The cache is purely an optimization. Errors are logged and
+ * cause the registry to be read from the card as usual.
+ * <p/>
+ */
+public class GPRegistryCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(GPRegistryCache.class);
+
+    /** Magic number of snapshot files */
+    private static final int MAGIC = 0x4F4A4752;
+    /** Version of the snapshot format */
+    private static final int VERSION = 2;
+    /** Suffix for snapshot files */
+    private static final String SUFFIX = ".registry";
+
+    /** Directory containing snapshots */
+    private final File mDirectory;
+
+    /**
+     * Main constructor
+     * @param directory to keep snapshots in, created if required
+     */
+    public GPRegistryCache(File directory) {
+        mDirectory = directory;
+    }
+
+    /** @return the directory containing snapshots */
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    /**
+     * Remove all snapshots
+     */
+    public void clear() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(SUFFIX) && !file.delete()) {
+                    LOG.warn("could not delete " + file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Load a snapshot if it is valid for the given session
+     * <p/>
+     * Snapshots that are not valid are removed.
+     * <p/>
+     * @param identity of the card
+     * @param sequence counter of the current session
+     * @param status application and SSD entries read from the card
+     * @return the entries or null if no valid snapshot exists
+     */
+    List<GPRegistry.Entry> load(String identity, byte[] sequence, List<? extends GPRegistry.Entry> status) {
+        File file = getFile(identity);
+        if (!file.exists()) {
+            return null;
+        }
+        List<GPRegistry.Entry> res = null;
+        try (DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (is.readInt() != MAGIC || is.readInt() != VERSION) {
+                throw new IOException("Invalid snapshot header");
+            }
+            byte[] previous = new byte[is.readUnsignedShort()];
+            is.readFully(previous);
+            byte[] digest = new byte[is.readUnsignedShort()];
+            is.readFully(digest);
+            if (!isSuccessor(previous, sequence)) {
+                LOG.debug("registry snapshot is stale");
+            } else if (!Arrays.equals(digest, digest(status))) {
+                LOG.debug("registry snapshot does not match the card");
+            } else {
+                res = readEntries(is);
+            }
+        } catch (IOException | TLVException e) {
+            LOG.warn("could not read registry snapshot " + file, e);
+        }
+        if (res == null) {
+            invalidate(identity);
+        }
+        return res;
+    }
+
+    /**
+     * Save a snapshot
+     * @param identity of the card
+     * @param sequence counter of the current session
+     * @param entries to save
+     */
+    void save(String identity, byte[] sequence, List<GPRegistry.Entry> entries) {
+        File file = getFile(identity);
+        try {
+            if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+                throw new IOException("Could not create directory " + mDirectory);
+            }
+            // write to a temporary file first
+            File temp = File.createTempFile("snapshot", ".tmp", mDirectory);
+            try {
+                try (DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+                    os.writeInt(MAGIC);
+                    os.writeInt(VERSION);
+                    os.writeShort(sequence.length);
+                    os.write(sequence);
+                    byte[] digest = digest(entries);
+                    os.writeShort(digest.length);
+                    os.write(digest);
+                    os.writeInt(entries.size());
+                    for (GPRegistry.Entry entry : entries) {
+                        byte[] tlv = entry.toTLV();
+                        os.writeByte(entry.getType().ordinal());
+                        os.writeInt(tlv.length);
+                        os.write(tlv);
+                    }
+                }
+                // then replace the snapshot
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                if (temp.exists() && !temp.delete()) {
+                    LOG.warn("could not delete " + temp);
+                }
+            }
+        } catch (IOException e) {
+            LOG.warn("could not write registry snapshot " + file, e);
+            invalidate(identity);
+        }
+    }
+
+    /**
+     * Remove the snapshot for a card
+     * @param identity of the card
+     */
+    void invalidate(String identity) {
+        File file = getFile(identity);
+        if (file.exists() && !file.delete()) {
+            LOG.warn("could not delete " + file);
+        }
+    }
+
+    /**
+     * Read entries of a snapshot
+     */
+    private static List<GPRegistry.Entry> readEntries(DataInputStream is) throws IOException, TLVException {
+        GPRegistry.Type[] types = GPRegistry.Type.values();
+        int count = is.readInt();
+        List<GPRegistry.Entry> res = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int type = is.readUnsignedByte();
+            byte[] tlv = new byte[is.readInt()];
+            is.readFully(tlv);
+            if (type >= types.length) {
+                throw new IOException("Invalid entry type " + type);
+            }
+            GPRegistry.Entry entry;
+            switch (types[type]) {
+                case ISD:
+                    entry = new GPRegistry.ISDEntry();
+                    break;
+                case APP:
+                case SSD:
+                    entry = new GPRegistry.AppEntry();
+                    break;
+                case ELF:
+                    entry = new GPRegistry.ELFEntry();
+                    break;
+                default:
+                    throw new IOException("Invalid entry type " + type);
+            }
+            entry.readTLV(tlv);
+            res.add(entry);
+        }
+        return res;
+    }
+
+    /**
+     * Check if a sequence counter directly follows another
+     * @param previous sequence counter
+     * @param current sequence counter
+     * @return true if current is previous plus one
+     */
+    static boolean isSuccessor(byte[] previous, byte[] current) {
+        if (previous.length != current.length || previous.length == 0) {
+            return false;
+        }
+        long p = 0, c = 0;
+        for (int i = 0; i < previous.length; i++) {
+            p = (p << 8) | (previous[i] & 0xFF);
+            c = (c << 8) | (current[i] & 0xFF);
+        }
+        return c == p + 1;
+    }
+
+    /**
+     * Compute the digest of application and SSD entries
+     * <p/>
+     * Entries are sorted by AID so that the digest does not
+     * depend on the order in which the card reports them.
+     * <p/>
+     * @param entries to digest, other types are ignored
+     * @return SHA-256 digest of the entries
+     */
+    static byte[] digest(List<? extends GPRegistry.Entry> entries) {
+        List<GPRegistry.Entry> apps = new ArrayList<>();
+        for (GPRegistry.Entry entry : entries) {
+            GPRegistry.Type type = entry.getType();
+            if (type == GPRegistry.Type.APP || type == GPRegistry.Type.SSD) {
+                apps.add(entry);
+            }
+        }
+        Collections.sort(apps, new Comparator<GPRegistry.Entry>() {
+            @Override
+            public int compare(GPRegistry.Entry a, GPRegistry.Entry b) {
+                return a.getAID().toString().compareTo(b.getAID().toString());
+            }
+        });
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (GPRegistry.Entry entry : apps) {
+                byte[] tlv = entry.toTLV();
+                digest.update((byte) (tlv.length >> 8));
+                digest.update((byte) tlv.length);
+                digest.update(tlv);
+            }
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new Error("SHA-256 not available", e);
+        }
+    }
+
+    /**
+     * Determine the snapshot file for a card
+     */
+    private File getFile(String identity) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest(identity.getBytes(StandardCharsets.UTF_8));
+            return new File(mDirectory, HexUtil.bytesToHex(hash) + SUFFIX);
+        } catch (NoSuchAlgorithmException e) {
+            throw new Error("SHA-256 not available", e);
+        }
+    }
+
+}
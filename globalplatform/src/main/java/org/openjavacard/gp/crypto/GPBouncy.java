@@ -24,65 +24,141 @@
  */
 package org.openjavacard.gp.crypto;
 
-import org.bouncycastle.crypto.BlockCipher;
 import org.bouncycastle.crypto.engines.AESEngine;
-import org.bouncycastle.crypto.generators.KDFCounterBytesGenerator;
 import org.bouncycastle.crypto.macs.CMac;
-import org.bouncycastle.crypto.params.KDFCounterParameters;
 import org.bouncycastle.crypto.params.KeyParameter;
 import org.openjavacard.gp.keys.GPKey;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
 import java.util.Arrays;
 
+/**
+ * Cryptographic functions implemented using the BouncyCastle light API
+ */
 public class GPBouncy {
 
-    public static byte[] scp03_mac(GPKey key, byte[] msg, int lengthbits) {
-        return scp03_mac(key.getSecret(), msg, lengthbits);
+    /** Length of the fixed part of SCP03 KDF input preceding the counter */
+    private static final int KDF_PREFIX_LENGTH = 15;
+
+    /**
+     * Stateful AES-CMAC for streaming use
+     * <p/>
+     * Instances are keyed once and can then compute any number of
+     * MACs over data supplied in slices. Computing a MAC resets the
+     * instance for the next one, so no allocation is required per
+     * message.
+     * <p/>
+     * Instances are not thread-safe.
+     * <p/>
+     */
+    public static final class StreamMAC {
+
+        /** Underlying CMAC */
+        private final CMac mMac;
+
+        /**
+         * Construct a MAC keyed with the given key
+         * @param key to use
+         */
+        public StreamMAC(GPKey key) {
+            mMac = new CMac(new AESEngine());
+            byte[] secret = key.getSecret();
+            mMac.init(new KeyParameter(secret));
+            Arrays.fill(secret, (byte) 0);
+        }
+
+        /** @return length of a full MAC in bytes */
+        public int getMacSize() {
+            return mMac.getMacSize();
+        }
+
+        /**
+         * Feed a single byte
+         * @param b to feed
+         */
+        public void update(byte b) {
+            mMac.update(b);
+        }
+
+        /**
+         * Feed a slice of data
+         * @param buf containing data
+         * @param off of data
+         * @param len of data
+         */
+        public void update(byte[] buf, int off, int len) {
+            mMac.update(buf, off, len);
+        }
+
+        /**
+         * Finish the MAC and reset for the next message
+         * @param out to write the MAC to
+         * @param off to write at
+         * @return length of the MAC
+         */
+        public int doFinal(byte[] out, int off) {
+            return mMac.doFinal(out, off);
+        }
+
+        /**
+         * Finish the MAC and reset for the next message
+         * @return the MAC
+         */
+        public byte[] doFinal() {
+            byte[] out = new byte[mMac.getMacSize()];
+            mMac.doFinal(out, 0);
+            return out;
+        }
+
+        /**
+         * Discard any data fed since the last MAC
+         */
+        public void reset() {
+            mMac.reset();
+        }
     }
 
-    private static byte[] scp03_mac(byte[] keybytes, byte[] msg, int lengthBits) {
-        // Use BouncyCastle light interface.
-        BlockCipher cipher = new AESEngine();
-        CMac cmac = new CMac(cipher);
-        cmac.init(new KeyParameter(keybytes));
-        cmac.update(msg, 0, msg.length);
-        byte[] out = new byte[cmac.getMacSize()];
-        cmac.doFinal(out, 0);
-        return Arrays.copyOf(out, lengthBits / 8);
+    public static byte[] scp03_mac(GPKey key, byte[] msg, int lengthbits) {
+        StreamMAC mac = new StreamMAC(key);
+        mac.update(msg, 0, msg.length);
+        return Arrays.copyOf(mac.doFinal(), lengthbits / 8);
     }
 
     public static byte[] scp03_kdf(GPKey key, byte constant, byte[] context, int blocklen_bits) {
-        return scp03_kdf(key.getSecret(), constant, context, blocklen_bits);
+        return scp03_kdf(new StreamMAC(key), constant, context, blocklen_bits);
     }
 
-    private static byte[] scp03_kdf(byte[] key, byte constant, byte[] context, int blocklen_bits) {
-        // 11 bytes
-        byte[] label = new byte[]{0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00};
-        ByteArrayOutputStream bo = new ByteArrayOutputStream();
-        try {
-            bo.write(label); // 11 bytes of label
-            bo.write(constant); // constant for the last byte
-            bo.write(0x00); // separator
-            bo.write((blocklen_bits >> 8) & 0xFF); // block size in two bytes
-            bo.write(blocklen_bits & 0xFF);
-        } catch (IOException ioe) {
-            throw new RuntimeException(ioe);
+    /**
+     * SCP03 key derivation using a keyed MAC
+     * <p/>
+     * This is the NIST SP 800-108 KDF in counter mode with the
+     * data layout required by SCP03: 11 bytes of label, the
+     * derivation constant, a separator, the output length in bits,
+     * an 8-bit counter and finally the context.
+     * <p/>
+     * @param mac keyed with the key to derive from
+     * @param constant for the derivation
+     * @param context for the derivation
+     * @param blocklen_bits length of output in bits
+     * @return derived bytes
+     */
+    public static byte[] scp03_kdf(StreamMAC mac, byte constant, byte[] context, int blocklen_bits) {
+        // 11 bytes of label, constant, separator, length in two bytes
+        byte[] prefix = new byte[KDF_PREFIX_LENGTH];
+        prefix[11] = constant;
+        prefix[13] = (byte) ((blocklen_bits >> 8) & 0xFF);
+        prefix[14] = (byte) (blocklen_bits & 0xFF);
+        // generate as many blocks as needed
+        byte[] result = new byte[blocklen_bits / 8];
+        byte[] block = new byte[mac.getMacSize()];
+        int counter = 1;
+        for (int pos = 0; pos < result.length; pos += block.length) {
+            mac.update(prefix, 0, prefix.length);
+            mac.update((byte) counter++);
+            mac.update(context, 0, context.length);
+            mac.doFinal(block, 0);
+            System.arraycopy(block, 0, result, pos, Math.min(block.length, result.length - pos));
         }
-        byte[] blocka = bo.toByteArray();
-        byte[] blockb = context;
-        return scp03_kdf(key, blocka, blockb, blocklen_bits/8);
-    }
-
-    private static byte[] scp03_kdf(byte[] key, byte[] a, byte[] b, int bytes) {
-        BlockCipher cipher = new AESEngine();
-        CMac cmac = new CMac(cipher);
-        KDFCounterBytesGenerator kdf = new KDFCounterBytesGenerator(cmac);
-        kdf.init(new KDFCounterParameters(key, a, b, 8));
-        byte[] cgram = new byte[bytes];
-        kdf.generateBytes(cgram, 0, cgram.length);
-        return cgram;
+        return result;
     }
 
 }
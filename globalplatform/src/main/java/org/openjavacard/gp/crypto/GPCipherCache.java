@@ -0,0 +1,167 @@
+/*
+ * openjavacard-tools: Development tools for JavaCard
+ * Copyright (C) 2019 Ingo Albrecht <copyright@promovicz.org>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package org.openjavacard.gp.crypto;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Per-thread cache of initialized JCE ciphers
+ * <p/>
+ * Secure messaging processes many short messages, so provider
+ * lookup and cipher initialization dominate its cost.
+ * <p/>
+ * This keeps one cipher per transformation, direction and key
+ * for each thread. A cipher is only initialized again when its
+ * IV changes, and the least recently used entry is dropped
+ * when the cache is full.
+ * <p/>
+ * Keys are compared by identity, which works because GPKey
+ * hands out the same SecretKey object on every call.
+ * <p/>
+ */
+final class GPCipherCache {
+
+    /** Maximum number of ciphers per thread */
+    private static final int MAX_ENTRIES = 32;
+
+    /** Cache instances, one per thread */
+    private static final ThreadLocal<GPCipherCache> CACHES = new ThreadLocal<GPCipherCache>() {
+        @Override
+        protected GPCipherCache initialValue() {
+            return new GPCipherCache();
+        }
+    };
+
+    /**
+     * Get a cipher ready for use
+     * <p/>
+     * The cipher must be used up with doFinal() before the
+     * next call to this method on the same thread.
+     * <p/>
+     * @param transformation of the cipher
+     * @param mode of the cipher
+     * @param key to initialize with
+     * @param iv to initialize with, or null for none
+     * @return an initialized cipher
+     * @throws GeneralSecurityException on error
+     */
+    static Cipher getCipher(String transformation, int mode, Key key, byte[] iv)
+            throws GeneralSecurityException {
+        return CACHES.get().get(transformation, mode, key, iv);
+    }
+
+    /**
+     * Drop all ciphers of the current thread
+     * <p/>
+     * Used after errors, which leave ciphers in an unknown state.
+     * <p/>
+     */
+    static void clear() {
+        CACHES.get().mEntries.clear();
+    }
+
+    /** Entries by transformation, mode and key, in access order */
+    private final LinkedHashMap<EntryKey, Entry> mEntries =
+            new LinkedHashMap<EntryKey, Entry>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<EntryKey, Entry> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+
+    /** Reusable lookup key */
+    private final EntryKey mLookup = new EntryKey();
+
+    private GPCipherCache() {
+    }
+
+    private Cipher get(String transformation, int mode, Key key, byte[] iv)
+            throws GeneralSecurityException {
+        // find an existing entry
+        mLookup.transformation = transformation;
+        mLookup.mode = mode;
+        mLookup.key = key;
+        Entry entry = mEntries.get(mLookup);
+        mLookup.key = null;
+        // create it if required
+        if (entry == null) {
+            EntryKey entryKey = new EntryKey();
+            entryKey.transformation = transformation;
+            entryKey.mode = mode;
+            entryKey.key = key;
+            entry = new Entry(Cipher.getInstance(transformation));
+            mEntries.put(entryKey, entry);
+        }
+        // initialize unless already done with the same IV
+        if (!entry.initialized || !Arrays.equals(entry.iv, iv)) {
+            entry.initialized = false;
+            if (iv == null) {
+                entry.cipher.init(mode, key);
+                entry.iv = null;
+            } else {
+                entry.cipher.init(mode, key, new IvParameterSpec(iv));
+                entry.iv = iv.clone();
+            }
+            entry.initialized = true;
+        }
+        return entry.cipher;
+    }
+
+    /** Cache entry */
+    private static final class Entry {
+        final Cipher cipher;
+        boolean initialized;
+        byte[] iv;
+
+        Entry(Cipher cipher) {
+            this.cipher = cipher;
+        }
+    }
+
+    /** Key of cache entries */
+    private static final class EntryKey {
+        String transformation;
+        int mode;
+        Key key;
+
+        @Override
+        public int hashCode() {
+            return (transformation.hashCode() * 31 + mode) * 31 + System.identityHashCode(key);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof EntryKey)) {
+                return false;
+            }
+            EntryKey other = (EntryKey) o;
+            return key == other.key
+                    && mode == other.mode
+                    && transformation.equals(other.transformation);
+        }
+    }
+
+}
@@ -30,7 +30,6 @@ import org.openjavacard.gp.keys.GPKeyCipher;
 
 import javax.crypto.Cipher;
 import javax.crypto.SecretKey;
-import javax.crypto.spec.IvParameterSpec;
 import java.io.ByteArrayOutputStream;
 import java.security.Key;
 import java.util.Arrays;
@@ -172,30 +171,144 @@ public class GPCrypto {
         return enc(DES3_CBC_NOPAD, secretKey, text, 0, text.length, iv);
     }
 
+    /**
+     * Decrypt using 3DES-CBC with a null IV
+     *
+     * @param key
+     * @param text
+     * @return
+     */
+    public static byte[] dec_3des_cbc_nulliv(GPKey key, byte[] text) {
+        return dec_3des_cbc(key, text, ZEROES_8);
+    }
+
+    /**
+     * Decrypt using 3DES-CBC
+     *
+     * @param key
+     * @param text
+     * @param iv
+     * @return
+     */
+    public static byte[] dec_3des_cbc(GPKey key, byte[] text, byte[] iv) {
+        SecretKey secretKey = checkKeyCipher(key, GPKeyCipher.DES3);
+        return dec(DES3_CBC_NOPAD, secretKey, text, 0, text.length, iv);
+    }
+
+    /**
+     * Encrypt using AES-ECB into a caller-supplied buffer
+     *
+     * @param key to use
+     * @param text buffer with plaintext
+     * @param offset of plaintext
+     * @param length of plaintext
+     * @param out buffer for ciphertext
+     * @param outOffset for ciphertext
+     * @return length of ciphertext
+     */
+    public static int enc_aes_ecb(GPKey key, byte[] text, int offset, int length, byte[] out, int outOffset) {
+        Key secretKey = key.getSecretKey(GPKeyCipher.AES);
+        return enc(AES_ECB_NOPAD, secretKey, text, offset, length, null, out, outOffset);
+    }
+
+    /**
+     * Encrypt using AES-CBC into a caller-supplied buffer
+     *
+     * @param key to use
+     * @param text buffer with plaintext
+     * @param offset of plaintext
+     * @param length of plaintext
+     * @param iv to use
+     * @param out buffer for ciphertext
+     * @param outOffset for ciphertext
+     * @return length of ciphertext
+     */
+    public static int enc_aes_cbc(GPKey key, byte[] text, int offset, int length, byte[] iv, byte[] out, int outOffset) {
+        Key secretKey = key.getSecretKey(GPKeyCipher.AES);
+        return enc(AES_CBC_NOPAD, secretKey, text, offset, length, iv, out, outOffset);
+    }
+
+    /**
+     * Decrypt using AES-CBC into a caller-supplied buffer
+     *
+     * @param key to use
+     * @param text buffer with ciphertext
+     * @param offset of ciphertext
+     * @param length of ciphertext
+     * @param iv to use
+     * @param out buffer for plaintext
+     * @param outOffset for plaintext
+     * @return length of plaintext
+     */
+    public static int dec_aes_cbc(GPKey key, byte[] text, int offset, int length, byte[] iv, byte[] out, int outOffset) {
+        Key secretKey = key.getSecretKey(GPKeyCipher.AES);
+        return dec(AES_CBC_NOPAD, secretKey, text, offset, length, iv, out, outOffset);
+    }
+
+    /**
+     * Encrypt using 3DES-CBC into a caller-supplied buffer
+     *
+     * @param key to use
+     * @param text buffer with plaintext
+     * @param offset of plaintext
+     * @param length of plaintext
+     * @param iv to use
+     * @param out buffer for ciphertext
+     * @param outOffset for ciphertext
+     * @return length of ciphertext
+     */
+    public static int enc_3des_cbc(GPKey key, byte[] text, int offset, int length, byte[] iv, byte[] out, int outOffset) {
+        SecretKey secretKey = checkKeyCipher(key, GPKeyCipher.DES3);
+        return enc(DES3_CBC_NOPAD, secretKey, text, offset, length, iv, out, outOffset);
+    }
+
+    /**
+     * Decrypt using 3DES-CBC into a caller-supplied buffer
+     *
+     * @param key to use
+     * @param text buffer with ciphertext
+     * @param offset of ciphertext
+     * @param length of ciphertext
+     * @param iv to use
+     * @param out buffer for plaintext
+     * @param outOffset for plaintext
+     * @return length of plaintext
+     */
+    public static int dec_3des_cbc(GPKey key, byte[] text, int offset, int length, byte[] iv, byte[] out, int outOffset) {
+        SecretKey secretKey = checkKeyCipher(key, GPKeyCipher.DES3);
+        return dec(DES3_CBC_NOPAD, secretKey, text, offset, length, iv, out, outOffset);
+    }
+
     private static byte[] enc(String cipherSpec, Key key, byte[] text, int offset, int length, byte[] iv) {
+        byte[] result = new byte[length];
+        enc(cipherSpec, key, text, offset, length, iv, result, 0);
+        return result;
+    }
+
+    private static int enc(String cipherSpec, Key key, byte[] text, int offset, int length, byte[] iv,
+                           byte[] out, int outOffset) {
         try {
-            Cipher cipher = Cipher.getInstance(cipherSpec);
-            if (iv == null) {
-                cipher.init(Cipher.ENCRYPT_MODE, key);
-            } else {
-                cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(iv));
-            }
-            return cipher.doFinal(text, offset, length);
+            Cipher cipher = GPCipherCache.getCipher(cipherSpec, Cipher.ENCRYPT_MODE, key, iv);
+            return cipher.doFinal(text, offset, length, out, outOffset);
         } catch (Exception e) {
+            GPCipherCache.clear();
             throw new RuntimeException("Encryption failed", e);
         }
     }
 
     private static byte[] dec(String cipherSpec, Key key, byte[] text, int offset, int length, byte[] iv) {
+        byte[] result = new byte[length];
+        dec(cipherSpec, key, text, offset, length, iv, result, 0);
+        return result;
+    }
+
+    private static int dec(String cipherSpec, Key key, byte[] text, int offset, int length, byte[] iv,
+                           byte[] out, int outOffset) {
         try {
-            Cipher cipher = Cipher.getInstance(cipherSpec);
-            if (iv == null) {
-                cipher.init(Cipher.DECRYPT_MODE, key);
-            } else {
-                cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(iv));
-            }
-            return cipher.doFinal(text, offset, length);
+            Cipher cipher = GPCipherCache.getCipher(cipherSpec, Cipher.DECRYPT_MODE, key, iv);
+            return cipher.doFinal(text, offset, length, out, outOffset);
         } catch (Exception e) {
+            GPCipherCache.clear();
             throw new RuntimeException("Decryption failed", e);
         }
     }
@@ -213,8 +326,6 @@ public class GPCrypto {
         final int macLength = 8;
         final int blockLength = 16;
         try {
-            Cipher cipher = Cipher.getInstance(AES_CBC_NOPAD);
-
             // pad if required
             boolean padded = (text.length % blockLength) != 0;
             byte[] input = Arrays.copyOfRange(text, offset, offset + length);
@@ -224,8 +335,8 @@ public class GPCrypto {
 
             // derive padding secrets
             byte[] L = new byte[blockLength];
-            cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(iv));
-            cipher.update(ZEROES_16, 0, L.length, L, 0);
+            Cipher cipher = GPCipherCache.getCipher(AES_CBC_NOPAD, Cipher.ENCRYPT_MODE, key, iv);
+            cipher.doFinal(ZEROES_16, 0, L.length, L, 0);
             byte[] Lu1 = mac_aes_doubleLu(L);
             byte[] Lu2 = mac_aes_doubleLu(Lu1);
 
@@ -240,12 +351,13 @@ public class GPCrypto {
             }
 
             // perform CBC operation
-            cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(iv));
+            cipher = GPCipherCache.getCipher(AES_CBC_NOPAD, Cipher.ENCRYPT_MODE, key, iv);
             byte[] raw = cipher.doFinal(input, 0, input.length);
 
             // truncate result and return
             return Arrays.copyOfRange(raw, 0, macLength);
         } catch (Exception e) {
+            GPCipherCache.clear();
             throw new RuntimeException("MAC computation failed", e);
         }
     }
@@ -305,13 +417,13 @@ public class GPCrypto {
 
     private static byte[] mac_3des(Key key, byte[] text, int offset, int length, byte[] iv) {
         try {
-            Cipher cipher = Cipher.getInstance(DES3_CBC_NOPAD);
-            cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(iv));
+            Cipher cipher = GPCipherCache.getCipher(DES3_CBC_NOPAD, Cipher.ENCRYPT_MODE, key, iv);
             byte[] result = new byte[8];
             byte[] res = cipher.doFinal(text, offset, length);
             System.arraycopy(res, res.length - 8, result, 0, 8);
             return result;
         } catch (Exception e) {
+            GPCipherCache.clear();
             throw new RuntimeException("MAC computation failed", e);
         }
     }
@@ -331,39 +443,60 @@ public class GPCrypto {
      * @return
      */
     public static byte[] mac_des_3des(GPKey key, byte[] text, byte[] iv) {
-        checkKeyCipher(key, GPKeyCipher.DES3);
-        byte[] padded = pad80(text, 8);
-        return mac_des_3des(key, padded, 0, padded.length, iv);
+        byte[] result = new byte[8];
+        mac_des_3des(key, text, 0, text.length, iv, result, 0);
+        return result;
     }
 
-    private static byte[] mac_des_3des(GPKey key, byte[] text, int offset, int length, byte[] iv) {
+    /**
+     * MAC function using DES+3DES-CBC into a caller-supplied buffer
+     * <p/>
+     * Padding is applied internally without copying the message.
+     * <p/>
+     * @param key to use
+     * @param text buffer with the message
+     * @param offset of the message
+     * @param length of the message
+     * @param iv to use
+     * @param out buffer for the 8-byte MAC
+     * @param outOffset for the MAC
+     */
+    public static void mac_des_3des(GPKey key, byte[] text, int offset, int length, byte[] iv,
+                                    byte[] out, int outOffset) {
+        checkKeyCipher(key, GPKeyCipher.DES3);
         try {
-            // get ciphers
-            Cipher cipherA = Cipher.getInstance(DES3_CBC_NOPAD);
-            Cipher cipherB = Cipher.getInstance(DES_CBC_NOPAD);
             // get keys (truncated version for DES)
             SecretKey keyA = key.getSecretKey(GPKeyCipher.DES3);
             SecretKey keyB = key.getSecretKey(GPKeyCipher.DES);
 
+            // the final block contains the tail of the message and the padding
+            int tailLength = length % 8;
+            int fullLength = length - tailLength;
+            byte[] last = new byte[8];
+            System.arraycopy(text, offset + fullLength, last, 0, tailLength);
+            last[tailLength] = (byte) 0x80;
+
             // IV for final round depends on whether we have previous rounds
             byte[] finalIV = iv;
 
             // pre-final rounds
-            if (length > 8) {
+            if (fullLength > 0) {
                 // long messages get all but the last block hashed using DES
-                cipherB.init(Cipher.ENCRYPT_MODE, keyB, new IvParameterSpec(iv));
-                byte[] partial = cipherB.doFinal(text, offset, length - 8);
+                Cipher cipherB = GPCipherCache.getCipher(DES_CBC_NOPAD, Cipher.ENCRYPT_MODE, keyB, iv);
+                byte[] chain = new byte[8];
+                for (int i = 0; i < fullLength; i += 8) {
+                    cipherB.update(text, offset + i, 8, chain, 0);
+                }
+                cipherB.doFinal(chain, 0, 0, chain, 0);
                 // and use the output from that as the IV for the 3DES final round
-                finalIV = Arrays.copyOfRange(partial, partial.length - 8, partial.length);
+                finalIV = chain;
             }
 
             // final round
-            cipherA.init(Cipher.ENCRYPT_MODE, keyA, new IvParameterSpec(finalIV));
-            byte[] finalCipher = cipherA.doFinal(text, (offset + length) - 8, 8);
-
-            // copy result and return
-            return Arrays.copyOfRange(finalCipher, finalCipher.length - 8, finalCipher.length);
+            Cipher cipherA = GPCipherCache.getCipher(DES3_CBC_NOPAD, Cipher.ENCRYPT_MODE, keyA, finalIV);
+            cipherA.doFinal(last, 0, 8, out, outOffset);
         } catch (Exception e) {
+            GPCipherCache.clear();
             throw new RuntimeException("MAC computation failed", e);
         }
     }
@@ -0,0 +1,102 @@
+/*
+ * openjavacard-tools: Development tools for JavaCard
+ * Copyright (C) 2019 Ingo Albrecht <copyright@promovicz.org>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package org.openjavacard.gp.deploy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Aggregate report of a deployment run
+ */
+public class GPDeployReport {
+
+    private static final double NANOS_PER_SECOND = 1e9;
+    private static final double SECONDS_PER_HOUR = 3600;
+
+    /** Per-card results in order of completion */
+    private final List<GPDeployResult> mResults;
+    /** Wall clock duration in nanoseconds */
+    private final long mNanos;
+
+    GPDeployReport(List<GPDeployResult> results, long nanos) {
+        mResults = Collections.unmodifiableList(new ArrayList<>(results));
+        mNanos = nanos;
+    }
+
+    /** @return per-card results in order of completion */
+    public List<GPDeployResult> getResults() {
+        return mResults;
+    }
+
+    /** @return wall clock duration in nanoseconds */
+    public long getNanos() {
+        return mNanos;
+    }
+
+    /** @return number of cards deployed successfully */
+    public int getSucceeded() {
+        int count = 0;
+        for (GPDeployResult result : mResults) {
+            if (result.isSuccess()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /** @return number of cards that failed */
+    public int getFailed() {
+        return mResults.size() - getSucceeded();
+    }
+
+    /** @return total number of secure commands sent */
+    public long getCommands() {
+        long count = 0;
+        for (GPDeployResult result : mResults) {
+            count += result.getCommands();
+        }
+        return count;
+    }
+
+    /** @return successful cards per hour of wall clock time */
+    public double getCardsPerHour() {
+        if (mNanos <= 0) {
+            return 0;
+        }
+        return getSucceeded() * SECONDS_PER_HOUR * NANOS_PER_SECOND / mNanos;
+    }
+
+    /** @return commands per second of wall clock time */
+    public double getCommandsPerSecond() {
+        if (mNanos <= 0) {
+            return 0;
+        }
+        return getCommands() * NANOS_PER_SECOND / mNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d cards ok, %d failed in %.1f s: %.0f cards/hour, %.1f APDUs/s",
+                getSucceeded(), getFailed(), mNanos / NANOS_PER_SECOND,
+                getCardsPerHour(), getCommandsPerSecond());
+    }
+
+}
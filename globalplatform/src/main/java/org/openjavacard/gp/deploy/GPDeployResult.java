@@ -0,0 +1,83 @@
+/*
+ * openjavacard-tools: Development tools for JavaCard
+ * Copyright (C) 2019 Ingo Albrecht <copyright@promovicz.org>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package org.openjavacard.gp.deploy;
+
+/**
+ * Result of deploying to one card
+ */
+public class GPDeployResult {
+
+    /** Name of the terminal */
+    private final String mTerminal;
+    /** Identity of the card, null if unknown */
+    private final String mCard;
+    /** Error that occurred, null on success */
+    private final Exception mError;
+    /** Number of secure commands sent */
+    private final long mCommands;
+    /** Duration in nanoseconds */
+    private final long mNanos;
+
+    GPDeployResult(String terminal, String card, Exception error, long commands, long nanos) {
+        mTerminal = terminal;
+        mCard = card;
+        mError = error;
+        mCommands = commands;
+        mNanos = nanos;
+    }
+
+    /** @return name of the terminal */
+    public String getTerminal() {
+        return mTerminal;
+    }
+
+    /** @return identity of the card, null if unknown */
+    public String getCard() {
+        return mCard;
+    }
+
+    /** @return true if the deployment succeeded */
+    public boolean isSuccess() {
+        return mError == null;
+    }
+
+    /** @return the error, null on success */
+    public Exception getError() {
+        return mError;
+    }
+
+    /** @return number of secure commands sent */
+    public long getCommands() {
+        return mCommands;
+    }
+
+    /** @return duration in nanoseconds */
+    public long getNanos() {
+        return mNanos;
+    }
+
+    @Override
+    public String toString() {
+        return mTerminal + ": card " + mCard
+                + (isSuccess() ? " ok" : " failed (" + mError.getMessage() + ")")
+                + ", " + mCommands + " commands in " + (mNanos / 1000000) + " ms";
+    }
+
+}
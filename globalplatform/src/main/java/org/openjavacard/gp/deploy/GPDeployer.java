@@ -0,0 +1,329 @@
+/*
+ * openjavacard-tools: Development tools for JavaCard
+ * Copyright (C) 2019 Ingo Albrecht <copyright@promovicz.org>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package org.openjavacard.gp.deploy;
+
+import org.openjavacard.cap.file.CapFile;
+import org.openjavacard.cap.file.CapFilePackage;
+import org.openjavacard.gp.client.GPCard;
+import org.openjavacard.gp.client.GPIssuerDomain;
+import org.openjavacard.gp.client.GPJournal;
+import org.openjavacard.gp.client.GPLoadFile;
+import org.openjavacard.gp.client.GPRegistry;
+import org.openjavacard.iso.AID;
+import org.openjavacard.util.HexUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Engine deploying to the cards in many terminals
+ * <p/>
+ * Each terminal gets its own worker thread, so cards
+ * are provisioned concurrently while commands to any
+ * one card stay strictly sequential.
+ * <p/>
+ * The deployment is shared by all workers, so CAP
+ * files are parsed and sliced only once.
+ * <p/>
+ * When resuming, steps that the journal of the card context
+ * records as completed for a card are skipped. Loads are only
+ * skipped if the journal recorded the same load file content.
+ */
+public class GPDeployer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(GPDeployer.class);
+
+    /**
+     * Source of configured cards
+     */
+    public interface CardFactory {
+        /**
+         * Create a client for the card in a terminal
+         * <p/>
+         * The client should be configured but not connected.
+         * <p/>
+         * @param terminal to create a client for
+         * @return the new client
+         */
+        GPCard createCard(CardTerminal terminal);
+    }
+
+    /**
+     * Listener for results as they become available
+     */
+    public interface Listener {
+        /**
+         * Called from the worker when a card is done
+         * @param result for the card
+         */
+        void cardFinished(GPDeployResult result);
+    }
+
+    /** Deployment to perform */
+    private final GPDeployment mDeployment;
+    /** Factory for card clients */
+    private final CardFactory mCardFactory;
+    /** Listener for results, may be null */
+    private Listener mListener;
+    /** True if completed steps should be skipped */
+    private boolean mResume;
+
+    /**
+     * Main constructor
+     * @param deployment to perform
+     * @param cardFactory to create card clients with
+     */
+    public GPDeployer(GPDeployment deployment, CardFactory cardFactory) {
+        mDeployment = deployment;
+        mCardFactory = cardFactory;
+    }
+
+    /**
+     * Set a listener for per-card results
+     * @param listener to notify, null for none
+     */
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Set resume mode
+     * <p/>
+     * Requires a journal in the context of the cards.
+     * <p/>
+     * @param resume true to skip steps recorded as completed
+     */
+    public void setResume(boolean resume) {
+        mResume = resume;
+    }
+
+    /**
+     * Deploy to the cards in the given terminals
+     * <p/>
+     * Blocks until all cards are done. Failures are
+     * reported in the results and do not affect other cards.
+     * <p/>
+     * @param terminals to deploy on
+     * @return report on the run
+     * @throws InterruptedException when interrupted while waiting
+     */
+    public GPDeployReport deploy(List<CardTerminal> terminals) throws InterruptedException {
+        final List<GPDeployResult> results = Collections.synchronizedList(new ArrayList<GPDeployResult>());
+        List<Thread> workers = new ArrayList<>();
+        long start = System.nanoTime();
+        for (final CardTerminal terminal : terminals) {
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    GPDeployResult result = deployOne(terminal);
+                    results.add(result);
+                    if (mListener != null) {
+                        mListener.cardFinished(result);
+                    }
+                }
+            }, "gp-deploy-" + terminal.getName());
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+        try {
+            for (Thread worker : workers) {
+                worker.join();
+            }
+        } catch (InterruptedException e) {
+            for (Thread worker : workers) {
+                worker.interrupt();
+            }
+            throw e;
+        }
+        return new GPDeployReport(results, System.nanoTime() - start);
+    }
+
+    /**
+     * Deploy to the card in one terminal
+     * @param terminal to deploy on
+     * @return result for the card
+     */
+    public GPDeployResult deployOne(CardTerminal terminal) {
+        String name = terminal.getName();
+        long start = System.nanoTime();
+        GPCard card = null;
+        String identity = null;
+        long commands = 0;
+        try {
+            card = mCardFactory.createCard(terminal);
+            card.connect();
+            byte[] cin = card.getCardCIN();
+            identity = (cin == null) ? card.getLifetimeIdentifier() : HexUtil.bytesToHex(cin);
+            deployCard(card);
+            commands = card.getSecureChannel().getTiming().getCommands();
+            card.disconnect();
+            card = null;
+            LOG.info("deployed to card " + identity + " in " + name);
+            return new GPDeployResult(name, identity, null, commands, System.nanoTime() - start);
+        } catch (CardException | RuntimeException e) {
+            LOG.warn("deployment to card " + identity + " in " + name + " failed", e);
+            if (card != null) {
+                if (card.getSecureChannel() != null) {
+                    commands = card.getSecureChannel().getTiming().getCommands();
+                }
+                try {
+                    card.disconnect();
+                } catch (CardException | RuntimeException ex) {
+                    LOG.debug("error disconnecting", ex);
+                }
+            }
+            return new GPDeployResult(name, identity, e, commands, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Internal: perform the deployment on a connected card
+     * @param card to deploy to
+     * @throws CardException on error
+     */
+    private void deployCard(GPCard card) throws CardException {
+        GPRegistry registry = card.getRegistry();
+        GPIssuerDomain issuer = card.getIssuerDomain();
+        GPJournal journal = card.getContext().getJournal();
+        String identity = card.getIdentity();
+        boolean resume = mResume && journal != null && identity != null;
+        int blockSize = issuer.getLoadBlockSize(false);
+
+        // skip cards that are known to be done
+        if (resume && isComplete(journal, identity, blockSize)) {
+            LOG.info("card " + identity + " already complete");
+            return;
+        }
+        registry.update();
+
+        // check packages in reverse so dependents are deleted first
+        List<CapFile> capFiles = mDeployment.getCapFiles();
+        List<CapFilePackage> toLoad = new ArrayList<>();
+        for (int i = capFiles.size() - 1; i >= 0; i--) {
+            CapFilePackage pkg = capFiles.get(i).getPackage();
+            AID aid = pkg.getPackageAID();
+            if (resume && isLoaded(journal, identity, pkg, blockSize)
+                    && registry.hasPackage(aid)) {
+                LOG.debug("already loaded package " + aid);
+                continue;
+            }
+            if (registry.hasPackage(aid)) {
+                if (!mDeployment.isReload()) {
+                    LOG.debug("keeping package " + aid);
+                    continue;
+                }
+                LOG.debug("deleting package " + aid);
+                issuer.deleteObject(aid, true);
+            }
+            toLoad.add(0, pkg);
+        }
+
+        // load missing packages in order
+        for (CapFilePackage pkg : toLoad) {
+            LOG.debug("loading package " + pkg.getPackageAID());
+            issuer.loadFile(getLoadFile(pkg, blockSize));
+        }
+
+        // install applets, replacing old instances
+        for (GPDeployment.Applet applet : mDeployment.getApplets()) {
+            AID appletAID = applet.getAppletAID();
+            if (resume && journal.isCompleted(identity, GPJournal.Operation.INSTALL, appletAID)
+                    && registry.hasApplet(appletAID)) {
+                LOG.debug("already installed applet " + appletAID);
+                continue;
+            }
+            if (registry.hasApplet(appletAID)) {
+                LOG.debug("deleting applet " + appletAID);
+                issuer.deleteObject(appletAID);
+            }
+            AID packageAID = applet.getPackageAID();
+            if (packageAID == null) {
+                GPRegistry.ELFEntry elf = registry.findPackageForModule(applet.getModuleAID());
+                if (elf == null) {
+                    throw new CardException("Could not find module " + applet.getModuleAID());
+                }
+                packageAID = elf.getAID();
+            }
+            LOG.debug("installing applet " + appletAID);
+            issuer.installApplet(packageAID, applet.getModuleAID(), appletAID,
+                    applet.getPrivileges(), applet.getParameters());
+        }
+    }
+
+    /**
+     * Internal: check if the journal records all steps as completed
+     * @param journal to check
+     * @param identity of the card
+     * @param blockSize for load files
+     * @return true if nothing is left to do
+     * @throws CardException on error
+     */
+    private boolean isComplete(GPJournal journal, String identity, int blockSize) throws CardException {
+        for (CapFile capFile : mDeployment.getCapFiles()) {
+            if (!isLoaded(journal, identity, capFile.getPackage(), blockSize)) {
+                return false;
+            }
+        }
+        for (GPDeployment.Applet applet : mDeployment.getApplets()) {
+            if (!journal.isCompleted(identity, GPJournal.Operation.INSTALL, applet.getAppletAID())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Internal: check if the journal records loading of the current package content
+     * @param journal to check
+     * @param identity of the card
+     * @param pkg to check for
+     * @param blockSize for load files
+     * @return true if the package was loaded with the same content
+     * @throws CardException on error
+     */
+    private boolean isLoaded(GPJournal journal, String identity, CapFilePackage pkg, int blockSize)
+            throws CardException {
+        String hash = getLoadFile(pkg, blockSize).getHash();
+        return journal.isCompleted(identity, GPJournal.Operation.LOAD, pkg.getPackageAID(), hash);
+    }
+
+    /**
+     * Internal: get the load file for a package
+     * @param pkg to get the load file for
+     * @param blockSize to use
+     * @return the load file
+     * @throws CardException on error
+     */
+    private GPLoadFile getLoadFile(CapFilePackage pkg, int blockSize) throws CardException {
+        try {
+            return mDeployment.getLoadFile(pkg, blockSize);
+        } catch (IOException e) {
+            throw new CardException("Error generating load file for " + pkg.getPackageAID(), e);
+        }
+    }
+
+}
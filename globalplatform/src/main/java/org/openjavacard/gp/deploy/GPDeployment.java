@@ -0,0 +1,251 @@
+/*
+ * openjavacard-tools: Development tools for JavaCard
+ * Copyright (C) 2019 Ingo Albrecht <copyright@promovicz.org>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package org.openjavacard.gp.deploy;
+
+import org.openjavacard.cap.file.CapFile;
+import org.openjavacard.cap.file.CapFileCache;
+import org.openjavacard.cap.file.CapFilePackage;
+import org.openjavacard.gp.client.GPLoadFile;
+import org.openjavacard.gp.protocol.GPPrivilege;
+import org.openjavacard.iso.AID;
+import org.openjavacard.util.HexUtil;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Description of what to deploy onto a card
+ * <p/>
+ * Consists of CAP files to load, in dependency order,
+ * and applets to install from them.
+ * <p/>
+ * CAP files are parsed once and shared by all cards.
+ * Load files are generated once per block size in use.
+ * <p/>
+ * Manifests are property files of the following form,
+ * with file names relative to the manifest:
+ * <pre>
+ * cap.1 = library.cap
+ * cap.2 = applet.cap
+ * applet.1.module = D27600017710010101
+ * applet.1.package = D276000177100101 (optional)
+ * applet.1.aid = D27600017710010102 (optional)
+ * applet.1.privileges = CARD_RESET (optional, comma-separated)
+ * applet.1.parameters = 0102 (optional, hex)
+ * reload = true (optional)
+ * </pre>
+ */
+public class GPDeployment {
+
+    /**
+     * An applet to install
+     */
+    public static class Applet {
+        private final AID mPackageAID;
+        private final AID mModuleAID;
+        private final AID mAppletAID;
+        private final byte[] mPrivileges;
+        private final byte[] mParameters;
+
+        /**
+         * Main constructor
+         * @param packageAID of the package, null to search by module
+         * @param moduleAID of the module
+         * @param appletAID for the applet, null to use the module AID
+         * @param privileges for the applet, null for none
+         * @param parameters for the applet, null for none
+         */
+        public Applet(AID packageAID, AID moduleAID, AID appletAID, byte[] privileges, byte[] parameters) {
+            if (moduleAID == null) {
+                throw new IllegalArgumentException("Module AID is required");
+            }
+            mPackageAID = packageAID;
+            mModuleAID = moduleAID;
+            mAppletAID = (appletAID == null) ? moduleAID : appletAID;
+            mPrivileges = privileges;
+            mParameters = parameters;
+        }
+
+        public AID getPackageAID() {
+            return mPackageAID;
+        }
+
+        public AID getModuleAID() {
+            return mModuleAID;
+        }
+
+        public AID getAppletAID() {
+            return mAppletAID;
+        }
+
+        /** @return privileges, null for none */
+        public byte[] getPrivileges() {
+            return mPrivileges;
+        }
+
+        /** @return install parameters, null for none */
+        public byte[] getParameters() {
+            return mParameters;
+        }
+    }
+
+    /** CAP files in load order */
+    private final List<CapFile> mCapFiles = new ArrayList<>();
+    /** Applets in install order */
+    private final List<Applet> mApplets = new ArrayList<>();
+    /** True if present packages should be replaced */
+    private boolean mReload;
+    /** Load files already generated, by block size and package */
+    private final ConcurrentHashMap<Integer, ConcurrentHashMap<AID, GPLoadFile>> mLoadFiles
+            = new ConcurrentHashMap<>();
+
+    /** @return CAP files in load order */
+    public List<CapFile> getCapFiles() {
+        return Collections.unmodifiableList(mCapFiles);
+    }
+
+    /** @return applets in install order */
+    public List<Applet> getApplets() {
+        return Collections.unmodifiableList(mApplets);
+    }
+
+    /** @return true if present packages should be replaced */
+    public boolean isReload() {
+        return mReload;
+    }
+
+    /**
+     * Add a CAP file to load after the ones already added
+     * @param capFile to add
+     */
+    public void addCapFile(CapFile capFile) {
+        mCapFiles.add(capFile);
+    }
+
+    /**
+     * Add an applet to install after the ones already added
+     * @param applet to add
+     */
+    public void addApplet(Applet applet) {
+        mApplets.add(applet);
+    }
+
+    /**
+     * Set reload behaviour
+     * <p/>
+     * When reloading, packages already on a card are deleted
+     * together with their applets. Otherwise they are kept.
+     * <p/>
+     * @param reload true to replace present packages
+     */
+    public void setReload(boolean reload) {
+        mReload = reload;
+    }
+
+    /**
+     * Get the load file for a package
+     * <p/>
+     * Load files are generated on first use and shared afterwards.
+     * <p/>
+     * @param pkg to get the load file for
+     * @param blockSize to use
+     * @return the load file
+     * @throws IOException if component data can not be read
+     */
+    public GPLoadFile getLoadFile(CapFilePackage pkg, int blockSize) throws IOException {
+        ConcurrentHashMap<AID, GPLoadFile> files = mLoadFiles.get(blockSize);
+        if (files == null) {
+            mLoadFiles.putIfAbsent(blockSize, new ConcurrentHashMap<AID, GPLoadFile>());
+            files = mLoadFiles.get(blockSize);
+        }
+        AID aid = pkg.getPackageAID();
+        GPLoadFile file = files.get(aid);
+        if (file == null) {
+            files.putIfAbsent(aid, GPLoadFile.generateCombinedLoadFile(pkg, blockSize));
+            file = files.get(aid);
+        }
+        return file;
+    }
+
+    /**
+     * Read a deployment manifest
+     * @param manifest to read
+     * @return the deployment
+     * @throws IOException on error
+     */
+    public static GPDeployment readManifest(File manifest) throws IOException {
+        Properties props = new Properties();
+        try (InputStream is = new FileInputStream(manifest)) {
+            props.load(is);
+        }
+        File base = manifest.getAbsoluteFile().getParentFile();
+        GPDeployment deployment = new GPDeployment();
+        deployment.setReload(Boolean.parseBoolean(props.getProperty("reload", "false")));
+        try {
+            for (int i = 1; props.containsKey("cap." + i); i++) {
+                File file = new File(props.getProperty("cap." + i));
+                if (!file.isAbsolute()) {
+                    file = new File(base, file.getPath());
+                }
+                deployment.addCapFile(CapFileCache.getDefault().read(file));
+            }
+            for (int i = 1; props.containsKey("applet." + i + ".module"); i++) {
+                String prefix = "applet." + i + ".";
+                deployment.addApplet(new Applet(
+                        readAID(props, prefix + "package"),
+                        readAID(props, prefix + "module"),
+                        readAID(props, prefix + "aid"),
+                        readPrivileges(props, prefix + "privileges"),
+                        HexUtil.hexToBytes(props.getProperty(prefix + "parameters", ""))));
+            }
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid manifest " + manifest, e);
+        }
+        return deployment;
+    }
+
+    /** Internal: read an optional AID property */
+    private static AID readAID(Properties props, String key) {
+        String value = props.getProperty(key);
+        return (value == null) ? null : new AID(value.trim());
+    }
+
+    /** Internal: read an optional privilege list property */
+    private static byte[] readPrivileges(Properties props, String key) {
+        String value = props.getProperty(key);
+        List<GPPrivilege> privileges = new ArrayList<>();
+        if (value != null) {
+            for (String name : value.split(",")) {
+                if (!name.trim().isEmpty()) {
+                    privileges.add(GPPrivilege.valueOf(name.trim()));
+                }
+            }
+        }
+        return GPPrivilege.toBytes(privileges);
+    }
+
+}
@@ -50,6 +50,9 @@ public class GPKey {
     /** Secret corresponding to this key */
     private final byte[] mSecret;
 
+    /** JCE keys derived from the secret, indexed by cipher */
+    private final SecretKey[] mSecretKeys = new SecretKey[GPKeyCipher.values().length];
+
     /**
      * Constructs a key object for the provided data
      *
@@ -139,6 +142,10 @@ public class GPKey {
      * <p/>
      * Will coerce the key if required, such as for GENERIC keys.
      * <p/>
+     * The result is cached, so repeated calls return the same
+     * object. This allows ciphers initialized with the key to
+     * be reused by GPCrypto.
+     * <p/>
      * @param cipher for the new key
      * @return the secret key
      */
@@ -146,6 +153,23 @@ public class GPKey {
         if(!isCompatible(cipher)) {
             throw new UnsupportedOperationException("Cannot use " + mCipher + " key with cipher " + cipher);
         }
+        int index = cipher.ordinal();
+        synchronized (mSecretKeys) {
+            SecretKey secretKey = mSecretKeys[index];
+            if (secretKey == null) {
+                secretKey = buildSecretKey(cipher);
+                mSecretKeys[index] = secretKey;
+            }
+            return secretKey;
+        }
+    }
+
+    /**
+     * Internal: build a SecretKey for a specific cipher
+     * @param cipher for the new key
+     * @return the secret key
+     */
+    private SecretKey buildSecretKey(GPKeyCipher cipher) {
         switch (cipher) {
             case DES:
                 return new SecretKeySpec(coerceKeyForDES(mSecret, 8), "DES");
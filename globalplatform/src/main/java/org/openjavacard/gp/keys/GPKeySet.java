@@ -19,6 +19,10 @@
 
 package org.openjavacard.gp.keys;
 
+import org.openjavacard.util.HexUtil;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Hashtable;
 import java.util.List;
@@ -111,6 +115,31 @@ public class GPKeySet {
         return new ArrayList<>(mKeys);
     }
 
+    /**
+     * Compute a fingerprint over the keys in this keyset
+     * <p/>
+     * The fingerprint covers id, usage, cipher and secret of each key
+     * so it can be used to tell keysets apart without revealing secrets.
+     * <p/>
+     * @return hex string of the SHA-256 digest over all keys
+     */
+    public String getFingerprint() {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (GPKey key : mKeys) {
+                byte[] secret = key.getSecret();
+                digest.update((byte) key.getId());
+                digest.update((byte) key.getUsage().ordinal());
+                digest.update((byte) key.getCipher().ordinal());
+                digest.update((byte) secret.length);
+                digest.update(secret);
+            }
+            return HexUtil.bytesToHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new Error("SHA-256 not available", e);
+        }
+    }
+
     /**
      * Retrieves the key of the given usage type from the keyset
      * @param usage of the key
@@ -44,7 +44,16 @@ import javax.smartcardio.CommandAPDU;
 import javax.smartcardio.ResponseAPDU;
 import java.nio.ByteBuffer;
 import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Card channel wrapper for GP secure messaging
@@ -69,6 +78,11 @@ public class GPSecureChannel extends CardChannel {
     /** Security policy in effect */
     private SCPSecurityPolicy mSecurityPolicy;
 
+    /** Maximum length of command data */
+    private int mMaxCommandLength = SCPWrapper.SHORT_MAX_LENGTH;
+    /** Maximum length of response data */
+    private int mMaxResponseLength = SCPWrapper.SHORT_MAX_LENGTH + 1;
+
     /** Expected SCP protocol - 0 means ANY */
     private int mExpectedProtocol = 0;
     /** Expected SCP parameters - 0 means ANY */
@@ -77,8 +91,14 @@ public class GPSecureChannel extends CardChannel {
     private SCPParameters mActiveProtocol;
     /** Derived session keys */
     private GPKeySet mSessionKeys;
+    /** Sequence counter of the session, null if not known */
+    private byte[] mSequence;
     /** Helper performing wrapping/unwrapping of APDUs */
     private SCPWrapper mWrapper;
+    /** Timing statistics */
+    private final SCPTiming mTiming = new SCPTiming();
+    /** Worker for pipelining, created on first use and kept to reuse its cipher cache */
+    private ExecutorService mWorker;
     /** True when authentication has succeeded and is unbroken */
     private boolean mIsEstablished;
 
@@ -123,6 +143,25 @@ public class GPSecureChannel extends CardChannel {
         return mActiveProtocol;
     }
 
+    /**
+     * Get the sequence counter of the session
+     * <p/>
+     * The card increments this counter for every session, so it
+     * can tell if anyone else has talked to the card since we did.
+     * <p/>
+     * Available for SCP02 and for SCP03 with pseudo-random challenges.
+     * <p/>
+     * @return the sequence counter, or null if not known
+     */
+    public byte[] getSequence() {
+        return (mSequence == null) ? null : mSequence.clone();
+    }
+
+    /** @return timing statistics of this channel */
+    public SCPTiming getTiming() {
+        return mTiming;
+    }
+
     /** @return the protocol policy in effect on this channel */
     public SCPProtocolPolicy getProtocolPolicy() {
         return mProtocolPolicy;
@@ -154,6 +193,51 @@ public class GPSecureChannel extends CardChannel {
         mSecurityPolicy = securityPolicy;
     }
 
+    /** @return true if the channel may use extended length APDUs */
+    public boolean isExtendedLength() {
+        return mMaxCommandLength > SCPWrapper.SHORT_MAX_LENGTH;
+    }
+
+    /** @return maximum length of response data */
+    public int getMaxResponseLength() {
+        return mMaxResponseLength;
+    }
+
+    /**
+     * Get the maximum length of command data
+     * <p/>
+     * This accounts for the overhead of the active protocol
+     * and therefore requires the channel to be established.
+     * <p/>
+     * @return maximum length of unwrapped command data
+     */
+    public int getMaxCommandSize() {
+        if (mWrapper == null) {
+            throw new IllegalStateException("Secure channel is not connected");
+        }
+        return mWrapper.getMaxSize();
+    }
+
+    /**
+     * Set the APDU length limits to be used on this channel
+     * <p/>
+     * Limits beyond 255 and 256 bytes enable extended length
+     * encoding and should only be used with cards that support it.
+     * <p/>
+     * @param maxCommandLength for command data
+     * @param maxResponseLength for response data
+     */
+    public void setLengthLimits(int maxCommandLength, int maxResponseLength) {
+        if (maxCommandLength < SCPWrapper.SHORT_MAX_LENGTH || maxCommandLength > SCPWrapper.EXTENDED_MAX_LENGTH) {
+            throw new IllegalArgumentException("Invalid maximum command length " + maxCommandLength);
+        }
+        if (maxResponseLength < (SCPWrapper.SHORT_MAX_LENGTH + 1) || maxResponseLength > (SCPWrapper.EXTENDED_MAX_LENGTH + 1)) {
+            throw new IllegalArgumentException("Invalid maximum response length " + maxResponseLength);
+        }
+        mMaxCommandLength = maxCommandLength;
+        mMaxResponseLength = maxResponseLength;
+    }
+
     /**
      * Inform the secure channel about the protocol to be used
      * <p/>
@@ -223,6 +307,102 @@ public class GPSecureChannel extends CardChannel {
         return rapduBytes.length;
     }
 
+    /**
+     * Transmit a sequence of commands, overlapping host and card work
+     * <p/>
+     * Commands are taken from the iterator and wrapped on a worker
+     * thread while the previous command is being processed by the
+     * card. Wrapping still happens in order, so MAC chaining stays
+     * intact. The iterator is only used from the worker thread.
+     * <p/>
+     * Responses are unwrapped on the calling thread while the worker
+     * wraps the next command. This is safe because pipelining is only
+     * used when responses are neither authenticated nor encrypted, in
+     * which case unwrapping only reads the response flags of the wrapper,
+     * which do not change during the session, and touches no state
+     * that wrapping modifies.
+     * <p/>
+     * The sequence stops at the first response that is neither a
+     * success nor a warning. A command that was wrapped ahead of
+     * time is then discarded and the chaining state is restored.
+     * <p/>
+     * When responses are authenticated or encrypted they depend on
+     * the preceding command, so commands are sent one by one.
+     * <p/>
+     * @param commands to be wrapped and sent
+     * @return the unwrapped responses
+     * @throws CardException on card-related errors
+     */
+    public List<ResponseAPDU> transmitPipelined(final Iterator<CommandAPDU> commands) throws CardException {
+        if(!mIsEstablished) {
+            throw new CardException("Secure channel is not established");
+        }
+        List<ResponseAPDU> responses = new ArrayList<>();
+        final SCPWrapper wrapper = mWrapper;
+        // responses must be unwrapped in order
+        if (wrapper.isResponseChained()) {
+            while (commands.hasNext()) {
+                ResponseAPDU response = transmitInternal(commands.next());
+                responses.add(response);
+                if (!isSuccessOrWarning(response.getSW())) {
+                    break;
+                }
+            }
+            return responses;
+        }
+        // prepare and wrap commands on a worker
+        Callable<PreparedCommand> prepare = new Callable<PreparedCommand>() {
+            @Override
+            public PreparedCommand call() throws CardException {
+                if (!commands.hasNext()) {
+                    return null;
+                }
+                long start = System.nanoTime();
+                CommandAPDU wrapped = wrapper.wrap(commands.next());
+                return new PreparedCommand(wrapped, System.nanoTime() - start);
+            }
+        };
+        ExecutorService worker = getWorker();
+        Future<PreparedCommand> next = worker.submit(prepare);
+        try {
+            while (true) {
+                // wait for the next command
+                long start = System.nanoTime();
+                PreparedCommand current = awaitCommand(next);
+                mTiming.addStall(System.nanoTime() - start);
+                if (current == null) {
+                    break;
+                }
+                mTiming.addWrap(current.nanos);
+                // remember chaining state and start wrapping the next command
+                byte[] state = wrapper.saveChainState();
+                next = worker.submit(prepare);
+                // send the current command
+                ResponseAPDU wrappedResponse;
+                start = System.nanoTime();
+                try {
+                    wrappedResponse = mChannel.transmit(current.command);
+                } catch (CardException e) {
+                    discardCommand(next, wrapper, state);
+                    throw e;
+                }
+                mTiming.addTransmit(System.nanoTime() - start);
+                mTiming.addCommand(true);
+                // stop on errors, undoing the next command
+                if (!isSuccessOrWarning(wrappedResponse.getSW())) {
+                    discardCommand(next, wrapper, state);
+                    responses.add(unwrapResponse(wrappedResponse));
+                    break;
+                }
+                responses.add(unwrapResponse(wrappedResponse));
+            }
+        } finally {
+            // leave the worker idle for the next call
+            awaitQuietly(next);
+        }
+        return responses;
+    }
+
     /**
      * Close the secure channel
      * <p/>
@@ -241,9 +421,14 @@ public class GPSecureChannel extends CardChannel {
      * <p/>
      */
     private void reset() {
+        if (mWorker != null) {
+            mWorker.shutdownNow();
+            mWorker = null;
+        }
         mIsEstablished = false;
         mWrapper = null;
         mSessionKeys = null;
+        mSequence = null;
         mActiveProtocol = null;
     }
 
@@ -263,15 +448,32 @@ public class GPSecureChannel extends CardChannel {
             throw new CardException("Secure channel is not connected");
         }
         // wrap the command (sign, encrypt)
+        long start = System.nanoTime();
         CommandAPDU wrappedCommand = mWrapper.wrap(command);
+        mTiming.addWrap(System.nanoTime() - start);
         // send the wrapped command
+        start = System.nanoTime();
         ResponseAPDU wrappedResponse = mChannel.transmit(wrappedCommand);
-        // unwrap the response, but not if it is an error
+        mTiming.addTransmit(System.nanoTime() - start);
+        mTiming.addCommand(false);
+        // unwrap the response
+        return unwrapResponse(wrappedResponse);
+    }
+
+    /**
+     * Internal: unwrap a response, but not if it is an error
+     * @param wrappedResponse to unwrap
+     * @return the unwrapped response
+     * @throws CardException on error
+     */
+    private ResponseAPDU unwrapResponse(ResponseAPDU wrappedResponse) throws CardException {
         int sw = wrappedResponse.getSW();
         ResponseAPDU response = wrappedResponse;
-        if (sw == ISO7816.SW_NO_ERROR || SW.isWarning(sw)) {
+        if (isSuccessOrWarning(sw)) {
             // unwrap the response (decrypt, verify)
+            long start = System.nanoTime();
             response = mWrapper.unwrap(wrappedResponse);
+            mTiming.addUnwrap(System.nanoTime() - start);
         } else {
             // data in error responses is illegal
             int dataLen = response.getNr();
@@ -283,6 +485,89 @@ public class GPSecureChannel extends CardChannel {
         return response;
     }
 
+    private static boolean isSuccessOrWarning(int sw) {
+        return sw == ISO7816.SW_NO_ERROR || SW.isWarning(sw);
+    }
+
+    /**
+     * Internal: wait for a command being wrapped by the worker
+     * @param future of the command
+     * @return the command or null if there are no more commands
+     * @throws CardException on error
+     */
+    private static PreparedCommand awaitCommand(Future<PreparedCommand> future) throws CardException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CardException("Interrupted while preparing command", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof CardException) {
+                throw (CardException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new CardException("Error preparing command", cause);
+        }
+    }
+
+    /**
+     * Internal: get the worker for pipelining, creating it if required
+     * @return the worker
+     */
+    private ExecutorService getWorker() {
+        if (mWorker == null) {
+            mWorker = Executors.newSingleThreadExecutor(WORKER_FACTORY);
+        }
+        return mWorker;
+    }
+
+    /**
+     * Internal: wait for a command being wrapped, ignoring errors
+     * @param future of the command
+     */
+    private static void awaitQuietly(Future<PreparedCommand> future) {
+        try {
+            awaitCommand(future);
+        } catch (CardException | RuntimeException e) {
+            LOG.debug("ignoring failed command", e);
+        }
+    }
+
+    /**
+     * Internal: discard a command wrapped ahead of time
+     * @param future of the command
+     * @param wrapper that wrapped it
+     * @param state to restore
+     */
+    private static void discardCommand(Future<PreparedCommand> future, SCPWrapper wrapper, byte[] state) {
+        awaitQuietly(future);
+        wrapper.restoreChainState(state);
+    }
+
+    /** Worker threads used for pipelining */
+    private static final ThreadFactory WORKER_FACTORY = new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "scp-pipeline");
+            thread.setDaemon(true);
+            return thread;
+        }
+    };
+
+    /** Command wrapped by the worker */
+    private static final class PreparedCommand {
+        final CommandAPDU command;
+        final long nanos;
+
+        PreparedCommand(CommandAPDU command, long nanos) {
+            this.command = command;
+            this.nanos = nanos;
+        }
+    }
+
     /**
      * Open the secure channel
      * <p/>
@@ -335,6 +620,7 @@ public class GPSecureChannel extends CardChannel {
 
         // create CardAPDU wrapper
         mWrapper = buildWrapper();
+        mWrapper.setMaxLength(mMaxCommandLength);
 
         // this is where we start using MAC
         mWrapper.startMAC();
@@ -518,11 +804,13 @@ public class GPSecureChannel extends CardChannel {
             case 2:
                 byte[] seq02 = Arrays.copyOfRange(init.cardChallenge, 0, 2);
                 LOG.debug("card sequence " + HexUtil.bytesToHex(seq02));
+                mSequence = seq02;
                 keys = SCP02Derivation.deriveSessionKeys((SCP0102Parameters)mActiveProtocol, keys, seq02);
                 break;
             case 3:
                 byte[] seq03 = init.scp03Sequence;
                 LOG.debug("card sequence " + HexUtil.bytesToHex(seq03));
+                mSequence = seq03;
                 keys = SCP03Derivation.deriveSessionKeys(keys, seq03, hostChallenge, init.cardChallenge);
                 break;
             default:
@@ -50,8 +50,8 @@ public class SCP00Wrapper extends SCPWrapper {
     }
 
     @Override
-    protected int getMaxSize() {
-        return 255;
+    public int getMaxSize() {
+        return mMaxLength;
     }
 
     @Override
@@ -59,6 +59,15 @@ public class SCP00Wrapper extends SCPWrapper {
         return data;
     }
 
+    @Override
+    public byte[] saveChainState() {
+        return new byte[0];
+    }
+
+    @Override
+    public void restoreChainState(byte[] state) {
+    }
+
     @Override
     public CommandAPDU wrap(CommandAPDU command) throws CardException {
         return command;
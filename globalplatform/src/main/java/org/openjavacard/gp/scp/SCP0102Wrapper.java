@@ -74,11 +74,13 @@ public class SCP0102Wrapper extends SCPWrapper {
 
     @Override
     public int getMaxSize() {
-        int res = 255;
+        int res = mMaxLength;
+        // the MAC is appended to the data
         if (mMAC)
             res -= 8;
+        // encrypted data is padded to full blocks, adding at least one byte
         if (mENC)
-            res -= 8; // XXX is this strictly correct? i think reasoning was padding.
+            res = (res / 8) * 8 - 1;
         return res;
     }
 
@@ -113,6 +115,16 @@ public class SCP0102Wrapper extends SCPWrapper {
         mRICV = mICV.clone();
     }
 
+    @Override
+    public byte[] saveChainState() {
+        return (mICV == null) ? new byte[0] : mICV.clone();
+    }
+
+    @Override
+    public void restoreChainState(byte[] state) {
+        mICV = (state.length == 0) ? null : state.clone();
+    }
+
     @Override
     public CommandAPDU wrap(CommandAPDU command) throws CardException {
         // fields from the original command
@@ -146,7 +158,7 @@ public class SCP0102Wrapper extends SCPWrapper {
             rmac.write(p1);
             rmac.write(p2);
             if (dataLen > 0) {
-                rmac.write(dataLen);
+                writeLc(rmac, dataLen, isExtended(dataLen, respLen));
                 rmac.write(data, 0, dataLen);
             }
         }
@@ -161,6 +173,16 @@ public class SCP0102Wrapper extends SCPWrapper {
             return command;
         }
 
+        // determine final length to decide on length encoding
+        int finalLen = dataLen;
+        if (mENC && dataLen > 0) {
+            finalLen = paddedLength(dataLen);
+        }
+        if (mMAC) {
+            finalLen += 8;
+        }
+        boolean extended = isExtended(finalLen, respLen);
+
         // perform MAC operation
         if (mMAC) {
             GPKey macKey = mKeys.getKeyByUsage(GPKeyUsage.MAC);
@@ -190,7 +212,7 @@ public class SCP0102Wrapper extends SCPWrapper {
             macBuffer.write(ins);
             macBuffer.write(p1);
             macBuffer.write(p2);
-            macBuffer.write(wrappedLen);
+            writeLc(macBuffer, wrappedLen, extended);
             macBuffer.write(data, 0, data.length);
             byte[] macData = macBuffer.toByteArray();
 
@@ -242,14 +264,14 @@ public class SCP0102Wrapper extends SCPWrapper {
         wrapped.write(p1);
         wrapped.write(p2);
         if (wrappedLen > 0) {
-            wrapped.write(wrappedLen);
+            writeLc(wrapped, wrappedLen, extended);
             wrapped.write(wrappedData, 0, wrappedData.length);
         }
         if (mMAC) {
             wrapped.write(mICV, 0, mICV.length);
         }
         if (respLen > 0) {
-            wrapped.write(respLen);
+            writeLe(wrapped, respLen, extended, wrappedLen > 0);
         }
 
         // construct a wrapper for the command
@@ -309,6 +331,25 @@ public class SCP0102Wrapper extends SCPWrapper {
         return unwrapped;
     }
 
+    /**
+     * Compute the length of encrypted command data
+     * @param dataLen of the plaintext
+     * @return length of the padded ciphertext
+     */
+    private int paddedLength(int dataLen) {
+        if (mParameters.scpVersion == 1) {
+            // SCP01 prepends a length byte and pads only if required
+            int len = dataLen + 1;
+            if ((len % 8) == 0) {
+                return len;
+            }
+            return (len + 8) & ~7;
+        } else {
+            // SCP02 always pads
+            return (dataLen + 8) & ~7;
+        }
+    }
+
     private byte clearBits(byte b, byte mask) {
         return (byte) ((b & ~mask) & 0xFF);
     }
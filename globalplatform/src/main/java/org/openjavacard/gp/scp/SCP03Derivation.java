@@ -28,6 +28,7 @@ import org.openjavacard.util.ArrayUtil;
 import org.openjavacard.util.HexUtil;
 
 import java.util.Hashtable;
+import java.util.IdentityHashMap;
 
 /**
  * SCP03 session key derivation
@@ -64,6 +65,8 @@ public class SCP03Derivation {
         byte[] context = ArrayUtil.concatenate(hostChallenge, cardChallenge);
         // create the new keyset
         GPKeySet derivedSet = new GPKeySet(name, staticKeys.getKeyVersion(), staticKeys.getDiversification());
+        // MACs keyed with each distinct static key
+        IdentityHashMap<GPKey, GPBouncy.StreamMAC> macs = new IdentityHashMap<>();
         // go through all supported key types
         for (GPKeyUsage usage : KEYS) {
             // get the static key for the type
@@ -74,7 +77,12 @@ public class SCP03Derivation {
                 if(CONSTANTS.containsKey(usage)) {
                     // perform derivation
                     byte constant = CONSTANTS.get(usage);
-                    byte[] sessionSecret = GPBouncy.scp03_kdf(staticKey, constant, context, staticKey.getLength() * 8);
+                    GPBouncy.StreamMAC mac = macs.get(staticKey);
+                    if(mac == null) {
+                        mac = new GPBouncy.StreamMAC(staticKey);
+                        macs.put(staticKey, mac);
+                    }
+                    byte[] sessionSecret = GPBouncy.scp03_kdf(mac, constant, context, staticKey.getLength() * 8);
                     sessionKey = new GPKey(staticKey.getId(), usage, GPKeyCipher.AES, sessionSecret);
                 } else {
                     // copy keys that need no derivation
@@ -19,6 +19,8 @@
 
 package org.openjavacard.gp.scp;
 
+import org.bouncycastle.crypto.engines.AESEngine;
+import org.bouncycastle.crypto.params.KeyParameter;
 import org.openjavacard.gp.crypto.GPBouncy;
 import org.openjavacard.gp.crypto.GPCrypto;
 import org.openjavacard.gp.keys.GPKey;
@@ -28,15 +30,33 @@ import org.openjavacard.gp.keys.GPKeyUsage;
 import javax.smartcardio.CardException;
 import javax.smartcardio.CommandAPDU;
 import javax.smartcardio.ResponseAPDU;
-import java.io.ByteArrayOutputStream;
-import java.nio.ByteBuffer;
-import java.util.Arrays;
 
 /**
  * Host-side APDU wrapper for SCP03
+ * <p/>
+ * All cryptographic state is set up once per session and all
+ * intermediate results live in preallocated buffers. The array
+ * based variants of wrap() and unwrap() therefore do not produce
+ * any garbage once the session is running. The APDU object
+ * variants are implemented on top of them.
+ * <p/>
  */
 public class SCP03Wrapper extends SCPWrapper {
 
+    /** AES block size */
+    private static final int BLOCK = 16;
+
+    /** Length of the MAC appended to commands and responses */
+    private static final int MAC_LENGTH = 8;
+
+    /**
+     * Maximum number of bytes added by wrapping
+     * <p/>
+     * Header, extended Lc, padding, MAC and extended Le.
+     * <p/>
+     */
+    public static final int MAX_OVERHEAD = 4 + 3 + BLOCK + MAC_LENGTH + 2;
+
     private SCP03Parameters mParameters;
 
     /**
@@ -45,20 +65,40 @@ public class SCP03Wrapper extends SCPWrapper {
      * The first half of this is used as the C-MAC.
      * <p/>
      */
-    private byte[] mICV = new byte[16];
+    private final byte[] mICV = new byte[BLOCK];
 
     /**
      * Counter for ENC operations
      * <p/>
-     * Used to generate the ENC key.
+     * Kept as a big-endian counter block and incremented in place.
+     * Encrypting it yields the IV for command and response encryption.
      * <p/>
      */
-    private long mCTR = 1;
+    private final byte[] mCounter = new byte[BLOCK];
+
+    /** Scratch block holding the CBC chaining value */
+    private final byte[] mChain = new byte[BLOCK];
+    /** Scratch block for CBC decryption and response MACs */
+    private final byte[] mBlock = new byte[BLOCK];
+
+    /** Buffer for building wrapped commands, grown as required */
+    private byte[] mCommand;
+
+    /** CMAC with the S-MAC key, created on first use */
+    private GPBouncy.StreamMAC mCommandMAC;
+    /** CMAC with the S-RMAC key, created on first use */
+    private GPBouncy.StreamMAC mResponseMAC;
+    /** AES encryption with the S-ENC key, created on first use */
+    private AESEngine mEncryptCipher;
+    /** AES decryption with the S-ENC key, created on first use */
+    private AESEngine mDecryptCipher;
 
     SCP03Wrapper(GPKeySet keys, SCP03Parameters parameters) {
         super(keys);
         // remember protocol parameters
         mParameters = parameters;
+        // the encryption counter starts at one
+        mCounter[BLOCK - 1] = 1;
     }
 
     @Override
@@ -68,23 +108,111 @@ public class SCP03Wrapper extends SCPWrapper {
 
     @Override
     public int getMaxSize() {
-        int res = 255;
+        int res = mMaxLength;
+        // the MAC is appended to the data
         if (mMAC)
             res -= 8;
+        // encrypted data is padded to full blocks, adding at least one byte
         if (mENC)
-            res -= 8; // XXX is this strictly correct? i think reasoning was padding.
+            res = (res / BLOCK) * BLOCK - 1;
         return res;
     }
 
-    private byte[] getEncryptionCounter() {
-        ByteBuffer ctrBuf = ByteBuffer.allocate(16);
-        ctrBuf.put(new byte[]{0,0,0,0,0,0,0,0});
-        ctrBuf.putLong(mCTR);
-        return ctrBuf.array();
+    @Override
+    public byte[] saveChainState() {
+        byte[] state = new byte[2 * BLOCK];
+        System.arraycopy(mICV, 0, state, 0, BLOCK);
+        System.arraycopy(mCounter, 0, state, BLOCK, BLOCK);
+        return state;
+    }
+
+    @Override
+    public void restoreChainState(byte[] state) {
+        System.arraycopy(state, 0, mICV, 0, BLOCK);
+        System.arraycopy(state, BLOCK, mCounter, 0, BLOCK);
     }
 
     private void incrementEncryptionCounter() {
-        mCTR++;
+        for (int i = BLOCK - 1; i >= 0; i--) {
+            if (++mCounter[i] != 0) {
+                break;
+            }
+        }
+    }
+
+    private GPBouncy.StreamMAC getCommandMAC() {
+        if (mCommandMAC == null) {
+            mCommandMAC = new GPBouncy.StreamMAC(mKeys.getKeyByUsage(GPKeyUsage.MAC));
+        }
+        return mCommandMAC;
+    }
+
+    private GPBouncy.StreamMAC getResponseMAC() {
+        if (mResponseMAC == null) {
+            mResponseMAC = new GPBouncy.StreamMAC(mKeys.getKeyByUsage(GPKeyUsage.RMAC));
+        }
+        return mResponseMAC;
+    }
+
+    private AESEngine getEncryptCipher() {
+        if (mEncryptCipher == null) {
+            mEncryptCipher = newCipher(mKeys.getKeyByUsage(GPKeyUsage.ENC), true);
+        }
+        return mEncryptCipher;
+    }
+
+    private AESEngine getDecryptCipher() {
+        if (mDecryptCipher == null) {
+            mDecryptCipher = newCipher(mKeys.getKeyByUsage(GPKeyUsage.ENC), false);
+        }
+        return mDecryptCipher;
+    }
+
+    private static AESEngine newCipher(GPKey key, boolean forEncryption) {
+        AESEngine cipher = new AESEngine();
+        cipher.init(forEncryption, new KeyParameter(key.getSecret()));
+        return cipher;
+    }
+
+    /**
+     * Derive the encryption IV from the counter into mChain
+     * @param response true to derive the response IV
+     */
+    private void deriveIV(boolean response) {
+        if (response) {
+            mCounter[0] = (byte) 0x80;
+        }
+        getEncryptCipher().processBlock(mCounter, 0, mChain, 0);
+        mCounter[0] = 0;
+    }
+
+    /**
+     * Encrypt in place using AES-CBC with the IV in mChain
+     */
+    private void encryptCBC(byte[] buf, int off, int len) {
+        AESEngine cipher = getEncryptCipher();
+        for (int pos = off; pos < off + len; pos += BLOCK) {
+            for (int i = 0; i < BLOCK; i++) {
+                buf[pos + i] ^= mChain[i];
+            }
+            cipher.processBlock(buf, pos, buf, pos);
+            System.arraycopy(buf, pos, mChain, 0, BLOCK);
+        }
+    }
+
+    /**
+     * Decrypt in place using AES-CBC with the IV in mChain
+     */
+    private void decryptCBC(byte[] buf, int off, int len) {
+        AESEngine cipher = getDecryptCipher();
+        for (int pos = off; pos < off + len; pos += BLOCK) {
+            System.arraycopy(buf, pos, mBlock, 0, BLOCK);
+            cipher.processBlock(buf, pos, buf, pos);
+            for (int i = 0; i < BLOCK; i++) {
+                buf[pos + i] ^= mChain[i];
+            }
+            System.arraycopy(mBlock, 0, mChain, 0, BLOCK);
+        }
     }
 
     @Override
@@ -113,18 +241,7 @@ public class SCP03Wrapper extends SCPWrapper {
 
     @Override
     public CommandAPDU wrap(CommandAPDU command) throws CardException {
-        // fields from the original command
-        int cla = command.getCLA();
-        int ins = command.getINS();
-        int p1 = command.getP1();
-        int p2 = command.getP2();
-        int dataLen = command.getNc();
-        int respLen = command.getNe();
         byte[] data = command.getData();
-        // and those fields that get replaced
-        int wrappedCla = cla | 0x04;
-        int wrappedLen = dataLen;
-        byte[] wrappedData = data;
 
         // check for length limit
         if (data.length > getMaxSize()) {
@@ -136,133 +253,204 @@ public class SCP03Wrapper extends SCPWrapper {
             return command;
         }
 
-        // perform ENC operation
-        if (mENC && wrappedLen > 0) {
-            GPKey encKey = mKeys.getKeyByUsage(GPKeyUsage.ENC);
+        // make sure the command buffer is large enough
+        int required = data.length + MAX_OVERHEAD;
+        if (mCommand == null || mCommand.length < required) {
+            mCommand = new byte[Math.max(required, mMaxLength + MAX_OVERHEAD)];
+        }
 
-            // generate counter-derived IV
-            byte[] ctr = getEncryptionCounter();
-            byte[] icv = GPCrypto.enc_aes_ecb(encKey, ctr);
+        // wrap into the command buffer
+        int length = wrap(command.getCLA(), command.getINS(), command.getP1(), command.getP2(),
+                data, 0, data.length, command.getNe(), mCommand, 0);
 
-            // perform padding
-            byte[] plainBuf = GPCrypto.pad80(wrappedData, 16);
+        // construct a wrapper for the command
+        return new CommandAPDU(mCommand, 0, length);
+    }
 
-            // perform the encryption
-            byte[] encrypted = GPCrypto.enc_aes_cbc(encKey, plainBuf, icv);
+    /**
+     * Wrap a command directly into a buffer
+     * <p/>
+     * The output buffer must have room for the command data
+     * plus {@link #MAX_OVERHEAD} bytes. Input and output may
+     * be the same buffer as long as the data does not start
+     * before the output.
+     * <p/>
+     * @param cla of the command
+     * @param ins of the command
+     * @param p1 of the command
+     * @param p2 of the command
+     * @param data buffer containing command data
+     * @param dataOff offset of command data
+     * @param dataLen length of command data
+     * @param respLen expected response length, 0 for none
+     * @param out buffer to write the wrapped command to
+     * @param outOff offset to write at
+     * @return length of the wrapped command
+     * @throws CardException if the command can not be wrapped
+     */
+    public int wrap(int cla, int ins, int p1, int p2,
+                    byte[] data, int dataOff, int dataLen, int respLen,
+                    byte[] out, int outOff) throws CardException {
+        // check for length limit
+        if (dataLen > getMaxSize()) {
+            throw new CardException("Can not wrap: C-APDU too long");
+        }
+        if (out.length - outOff < dataLen + MAX_OVERHEAD) {
+            throw new CardException("Can not wrap: output buffer too small");
+        }
+
+        // determine the final data length
+        boolean encrypt = mENC && dataLen > 0;
+        int wrappedLen = dataLen;
+        if (encrypt) {
+            wrappedLen = (dataLen / BLOCK + 1) * BLOCK;
+        }
+        // MAC is computed on length including MAC
+        if (mMAC) {
+            wrappedLen += MAC_LENGTH;
+        }
+
+        // length encoding depends on the final length
+        boolean extended = isExtended(wrappedLen, respLen);
+
+        // move the data into place first since buffers may overlap
+        int dataPos = outOff + 4 + (extended ? 3 : 1);
+        System.arraycopy(data, dataOff, out, dataPos, dataLen);
+
+        // write the header
+        int pos = outOff;
+        out[pos++] = (byte) (mMAC || mENC ? (cla | 0x04) : cla);
+        out[pos++] = (byte) ins;
+        out[pos++] = (byte) p1;
+        out[pos++] = (byte) p2;
+        pos = putLc(out, pos, wrappedLen, extended);
 
-            // replace data, adjusting size accordingly
-            wrappedLen += encrypted.length - dataLen;
-            wrappedData = encrypted;
+        // perform ENC operation in place
+        if (encrypt) {
+            int paddedLen = wrappedLen - (mMAC ? MAC_LENGTH : 0);
+            // perform padding
+            out[pos + dataLen] = (byte) 0x80;
+            for (int i = pos + dataLen + 1; i < pos + paddedLen; i++) {
+                out[i] = 0;
+            }
+            // generate counter-derived IV
+            deriveIV(false);
+            // perform the encryption
+            encryptCBC(out, pos, paddedLen);
+            pos += paddedLen;
+        } else {
+            pos += dataLen;
         }
 
         // increment encryption counter even if no data
-        if(mENC) {
+        if (mENC) {
             incrementEncryptionCounter();
         }
 
-        // perform MAC operation
+        // perform MAC operation over ICV and the command so far
         if (mMAC) {
-            GPKey macKey = mKeys.getKeyByUsage(GPKeyUsage.MAC);
-
-            // MAC is computed on length including MAC
-            wrappedLen += 8;
-
-            // collect data for the MAC
-            ByteArrayOutputStream macBuffer = new ByteArrayOutputStream();
-            macBuffer.write(mICV, 0, mICV.length);
-            macBuffer.write(wrappedCla);
-            macBuffer.write(ins);
-            macBuffer.write(p1);
-            macBuffer.write(p2);
-            macBuffer.write(wrappedLen);
-            macBuffer.write(wrappedData, 0, wrappedData.length);
-            byte[] macData = macBuffer.toByteArray();
-
-            // perform the MAC computation
-            mICV = GPBouncy.scp03_mac(macKey, macData, 128);
+            GPBouncy.StreamMAC mac = getCommandMAC();
+            mac.update(mICV, 0, BLOCK);
+            mac.update(out, outOff, pos - outOff);
+            mac.doFinal(mICV, 0);
+            System.arraycopy(mICV, 0, out, pos, MAC_LENGTH);
+            pos += MAC_LENGTH;
         }
 
-        // build wrapped command
-        ByteArrayOutputStream wrapped = new ByteArrayOutputStream();
-        wrapped.write(wrappedCla);
-        wrapped.write(ins);
-        wrapped.write(p1);
-        wrapped.write(p2);
-        wrapped.write(wrappedLen);
-        wrapped.write(wrappedData, 0, wrappedData.length);
-        if (mMAC) {
-            wrapped.write(mICV, 0, 8);
-        }
+        // append expected length
         if (respLen > 0) {
-            wrapped.write(respLen);
+            pos = putLe(out, pos, respLen, extended, true);
         }
 
-        // construct a wrapper for the command
-        return new CommandAPDU(wrapped.toByteArray());
+        return pos - outOff;
     }
 
     @Override
     public ResponseAPDU unwrap(ResponseAPDU response) throws CardException {
-        // get fields
-        byte[] data = response.getData();
-        int sw1 = response.getSW1();
-        int sw2 = response.getSW2();
+        byte[] bytes = response.getBytes();
+        int length = unwrap(bytes, 0, bytes.length);
+        // nothing was removed, so nothing changed
+        if (length == bytes.length) {
+            return response;
+        }
+        byte[] unwrapped = new byte[length];
+        System.arraycopy(bytes, 0, unwrapped, 0, length);
+        return new ResponseAPDU(unwrapped);
+    }
+
+    /**
+     * Unwrap a response in place
+     * <p/>
+     * The buffer must contain the response data followed by
+     * the status word. On return it contains the verified and
+     * decrypted response data followed by the status word.
+     * <p/>
+     * @param buf containing the response
+     * @param off of the response
+     * @param len of the response including status word
+     * @return length of the unwrapped response including status word
+     * @throws CardException if the response can not be unwrapped
+     */
+    public int unwrap(byte[] buf, int off, int len) throws CardException {
+        // check for the status word
+        if (len < 2) {
+            throw new CardException("Can not unwrap: response too short");
+        }
+        int dataLen = len - 2;
+        byte sw1 = buf[off + dataLen];
+        byte sw2 = buf[off + dataLen + 1];
 
         // perform RMAC
         if (mRMAC) {
-            // get the right key
-            GPKey rmacKey = mKeys.getKeyByUsage(GPKeyUsage.RMAC);
-
             // check for sufficient length
-            if (data.length < 16) {
+            if (dataLen < MAC_LENGTH) {
                 throw new CardException("Can not unwrap: response too short");
             }
+            dataLen -= MAC_LENGTH;
 
-            // extract the MAC value
-            byte[] mac = Arrays.copyOfRange(data, data.length - 8, data.length);
-
-            // complete MAC context with response
-            ByteArrayOutputStream rmac = new ByteArrayOutputStream();
-            rmac.write(mICV, 0, mICV.length);
-            rmac.write(data, 0, data.length - 8);
-            rmac.write(sw1);
-            rmac.write(sw2);
-
-            // perform MAC computation
-            byte[] macResult = GPBouncy.scp03_mac(rmacKey, rmac.toByteArray(), 128);
-            byte[] myMAC = Arrays.copyOfRange(macResult, 0, 8);
+            // compute MAC over ICV, data and status word
+            GPBouncy.StreamMAC mac = getResponseMAC();
+            mac.update(mICV, 0, BLOCK);
+            mac.update(buf, off, dataLen);
+            mac.update(sw1);
+            mac.update(sw2);
+            mac.doFinal(mBlock, 0);
 
             // compare MAC values
-            if (!Arrays.equals(mac, myMAC)) {
+            int diff = 0;
+            for (int i = 0; i < MAC_LENGTH; i++) {
+                diff |= mBlock[i] ^ buf[off + dataLen + i];
+            }
+            if (diff != 0) {
                 throw new CardException("Can not unwrap: bad response MAC");
             }
-
-            data = Arrays.copyOfRange(data, 0, data.length - 8);
         }
 
         // perform RENC
-        if(mRENC && data.length > 0) {
-            // RENC uses the ENC key
-            GPKey encKey = mKeys.getKeyByUsage(GPKeyUsage.ENC);
-            // get counter and modify it for RENC
-            byte[] ctr = getEncryptionCounter();
-            ctr[0] = (byte)0x80;
-            // derive the ICV
-            byte[] icv = GPCrypto.enc_aes_ecb(encKey, ctr);
+        if (mRENC && dataLen > 0) {
+            if ((dataLen % BLOCK) != 0) {
+                throw new CardException("Can not unwrap: bad response length");
+            }
+            // derive the ICV from the modified counter
+            deriveIV(true);
             // perform decryption
-            byte[] decrypted = GPCrypto.dec_aes_cbc(encKey, data, icv);
+            decryptCBC(buf, off, dataLen);
             // remove padding
-            data = GPCrypto.unpad80(decrypted);
+            int end = off + dataLen - 1;
+            while (end > off && buf[end] == 0) {
+                end--;
+            }
+            if (buf[end] != (byte) 0x80) {
+                throw new CardException("Can not unwrap: bad response padding");
+            }
+            dataLen = end - off;
         }
 
-        // assemble response APDU
-        ByteArrayOutputStream myData = new ByteArrayOutputStream();
-        myData.write(data, 0, data.length);
-        myData.write(sw1);
-        myData.write(sw2);
+        // put the status word back after the data
+        buf[off + dataLen] = sw1;
+        buf[off + dataLen + 1] = sw2;
 
-        // return response object
-        return new ResponseAPDU(myData.toByteArray());
+        return dataLen + 2;
     }
 
 }
@@ -0,0 +1,123 @@
+/*
+ * openjavacard-tools: Development tools for JavaCard
+ * Copyright (C) 2019 Ingo Albrecht <copyright@promovicz.org>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package org.openjavacard.gp.scp;
+
+/**
+ * Timing statistics of a secure channel
+ * <p/>
+ * Separates time spent in the card and the terminal from
+ * time spent on the host wrapping and unwrapping APDUs.
+ * <p/>
+ * For pipelined commands wrapping overlaps with transmission,
+ * so only the stall time, during which the channel waited for
+ * a command to be wrapped, adds to the total.
+ * <p/>
+ */
+public class SCPTiming {
+
+    /** Number of commands */
+    private long mCommands;
+    /** Number of commands sent pipelined */
+    private long mPipelined;
+    /** Time spent wrapping commands */
+    private long mWrapNanos;
+    /** Time spent transmitting, including card processing */
+    private long mTransmitNanos;
+    /** Time spent unwrapping responses */
+    private long mUnwrapNanos;
+    /** Time spent waiting for pipelined commands */
+    private long mStallNanos;
+
+    /** @return number of commands */
+    public long getCommands() {
+        return mCommands;
+    }
+
+    /** @return number of commands sent pipelined */
+    public long getPipelined() {
+        return mPipelined;
+    }
+
+    /** @return time spent wrapping commands in nanoseconds */
+    public long getWrapNanos() {
+        return mWrapNanos;
+    }
+
+    /** @return time spent transmitting in nanoseconds */
+    public long getTransmitNanos() {
+        return mTransmitNanos;
+    }
+
+    /** @return time spent unwrapping responses in nanoseconds */
+    public long getUnwrapNanos() {
+        return mUnwrapNanos;
+    }
+
+    /** @return time spent waiting for pipelined commands in nanoseconds */
+    public long getStallNanos() {
+        return mStallNanos;
+    }
+
+    /** Reset all statistics */
+    public void reset() {
+        mCommands = 0;
+        mPipelined = 0;
+        mWrapNanos = 0;
+        mTransmitNanos = 0;
+        mUnwrapNanos = 0;
+        mStallNanos = 0;
+    }
+
+    void addCommand(boolean pipelined) {
+        mCommands++;
+        if (pipelined) {
+            mPipelined++;
+        }
+    }
+
+    void addWrap(long nanos) {
+        mWrapNanos += nanos;
+    }
+
+    void addTransmit(long nanos) {
+        mTransmitNanos += nanos;
+    }
+
+    void addUnwrap(long nanos) {
+        mUnwrapNanos += nanos;
+    }
+
+    void addStall(long nanos) {
+        mStallNanos += nanos;
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.3f ms", nanos / 1000000.0);
+    }
+
+    public String toString() {
+        return mCommands + " commands (" + mPipelined + " pipelined)"
+                + ", card " + millis(mTransmitNanos)
+                + ", wrap " + millis(mWrapNanos)
+                + ", unwrap " + millis(mUnwrapNanos)
+                + ", stalled " + millis(mStallNanos);
+    }
+
+}
@@ -24,6 +24,7 @@ import org.openjavacard.gp.keys.GPKeySet;
 import javax.smartcardio.CardException;
 import javax.smartcardio.CommandAPDU;
 import javax.smartcardio.ResponseAPDU;
+import java.io.ByteArrayOutputStream;
 
 /**
  * Base class for SCP wrappers
@@ -33,6 +34,11 @@ import javax.smartcardio.ResponseAPDU;
  */
 public abstract class SCPWrapper {
 
+    /** Maximum length of a short APDU data field */
+    public static final int SHORT_MAX_LENGTH = 255;
+    /** Maximum length of an extended APDU data field */
+    public static final int EXTENDED_MAX_LENGTH = 65535;
+
     /** Session keys in use */
     protected final GPKeySet mKeys;
 
@@ -45,6 +51,9 @@ public abstract class SCPWrapper {
     /** Response encryption currently enabled? */
     protected boolean mRENC;
 
+    /** Maximum length of wrapped command data */
+    protected int mMaxLength;
+
     /**
      * Construct an SCP wrapper
      * @param keys to use for the session
@@ -57,6 +66,28 @@ public abstract class SCPWrapper {
         mENC = false;
         mRMAC = false;
         mRENC = false;
+        // short APDUs unless told otherwise
+        mMaxLength = SHORT_MAX_LENGTH;
+    }
+
+    /**
+     * Set the maximum length of wrapped command data
+     * <p/>
+     * Values beyond 255 enable extended length encoding
+     * for commands that need it.
+     * <p/>
+     * @param maxLength of command data
+     */
+    public void setMaxLength(int maxLength) {
+        if (maxLength < SHORT_MAX_LENGTH || maxLength > EXTENDED_MAX_LENGTH) {
+            throw new IllegalArgumentException("Invalid maximum APDU length " + maxLength);
+        }
+        mMaxLength = maxLength;
+    }
+
+    /** @return true if extended length commands may be produced */
+    public boolean isExtendedLength() {
+        return mMaxLength > SHORT_MAX_LENGTH;
     }
 
     /**
@@ -108,7 +139,7 @@ public abstract class SCPWrapper {
      *
      * @return maximum size for commands
      */
-    protected abstract int getMaxSize();
+    public abstract int getMaxSize();
 
     /**
      * Encrypt sensitive data
@@ -124,6 +155,33 @@ public abstract class SCPWrapper {
      */
     public abstract byte[] encryptSensitiveData(byte[] data) throws CardException;
 
+    /**
+     * Check if unwrapping depends on the preceding command
+     * <p/>
+     * This is the case when responses are authenticated or
+     * encrypted, because both use state from the command.
+     * <p/>
+     * @return true if responses must be unwrapped in order
+     */
+    public boolean isResponseChained() {
+        return mRMAC || mRENC;
+    }
+
+    /**
+     * Save the command chaining state
+     * <p/>
+     * Used to undo commands that were wrapped but never sent.
+     * <p/>
+     * @return copy of the state
+     */
+    public abstract byte[] saveChainState();
+
+    /**
+     * Restore the command chaining state
+     * @param state as returned by saveChainState()
+     */
+    public abstract void restoreChainState(byte[] state);
+
     /**
      * Wrap a command APDU using the current mode
      *
@@ -141,4 +199,88 @@ public abstract class SCPWrapper {
      */
     public abstract ResponseAPDU unwrap(ResponseAPDU response) throws CardException;
 
+    /**
+     * Determine if a command requires extended length encoding
+     * @param nc length of command data
+     * @param ne expected length of response data
+     * @return true if extended encoding is required
+     */
+    protected static boolean isExtended(int nc, int ne) {
+        return nc > SHORT_MAX_LENGTH || ne > (SHORT_MAX_LENGTH + 1);
+    }
+
+    /**
+     * Write an Lc field in short or extended form
+     * @param os to write to
+     * @param lc to encode
+     * @param extended true for extended form
+     */
+    protected static void writeLc(ByteArrayOutputStream os, int lc, boolean extended) {
+        if (extended) {
+            os.write(0);
+            os.write((lc >> 8) & 0xFF);
+        }
+        os.write(lc & 0xFF);
+    }
+
+    /**
+     * Write an Le field in short or extended form
+     * <p/>
+     * Maximum values (256 and 65536) are encoded as zeroes.
+     * <p/>
+     * @param os to write to
+     * @param le to encode
+     * @param extended true for extended form
+     * @param hasLc true if an Lc field precedes the Le field
+     */
+    protected static void writeLe(ByteArrayOutputStream os, int le, boolean extended, boolean hasLc) {
+        if (extended) {
+            if (!hasLc) {
+                os.write(0);
+            }
+            os.write((le >> 8) & 0xFF);
+        }
+        os.write(le & 0xFF);
+    }
+
+    /**
+     * Put an Lc field in short or extended form into a buffer
+     * @param buf to write to
+     * @param off to write at
+     * @param lc to encode
+     * @param extended true for extended form
+     * @return offset following the field
+     */
+    protected static int putLc(byte[] buf, int off, int lc, boolean extended) {
+        if (extended) {
+            buf[off++] = 0;
+            buf[off++] = (byte)((lc >> 8) & 0xFF);
+        }
+        buf[off++] = (byte)(lc & 0xFF);
+        return off;
+    }
+
+    /**
+     * Put an Le field in short or extended form into a buffer
+     * <p/>
+     * Maximum values (256 and 65536) are encoded as zeroes.
+     * <p/>
+     * @param buf to write to
+     * @param off to write at
+     * @param le to encode
+     * @param extended true for extended form
+     * @param hasLc true if an Lc field precedes the Le field
+     * @return offset following the field
+     */
+    protected static int putLe(byte[] buf, int off, int le, boolean extended, boolean hasLc) {
+        if (extended) {
+            if (!hasLc) {
+                buf[off++] = 0;
+            }
+            buf[off++] = (byte)((le >> 8) & 0xFF);
+        }
+        buf[off++] = (byte)(le & 0xFF);
+        return off;
+    }
+
 }
@@ -0,0 +1,769 @@
+/*
+ * openjavacard-tools: Development tools for JavaCard
+ * Copyright (C) 2019 Ingo Albrecht <copyright@promovicz.org>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package org.openjavacard.gp.simulator;
+
+import org.openjavacard.gp.keys.GPKeySet;
+import org.openjavacard.gp.protocol.GP;
+import org.openjavacard.gp.scp.SCP03Parameters;
+import org.openjavacard.gp.scp.SCPParameters;
+import org.openjavacard.iso.AID;
+import org.openjavacard.iso.ISO7816;
+import org.openjavacard.iso.SWException;
+import org.openjavacard.simulator.SimulatedDevice;
+import org.openjavacard.tlv.TLVPrimitive;
+import org.openjavacard.util.HexUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+import java.io.ByteArrayOutputStream;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Simulated GlobalPlatform card
+ * <p/>
+ * This implements an ISD with enough of the card management
+ * protocol to be used with GPCard, GPIssuerDomain and GPRegistry
+ * over a SimulatedTerminal, without any card or reader.
+ * <p/>
+ * Supported are SELECT, GET DATA, INITIALIZE UPDATE and
+ * EXTERNAL AUTHENTICATE for SCP02 and SCP03, GET STATUS
+ * in TLV and legacy format as well as INSTALL, LOAD and DELETE.
+ * <p/>
+ * Applets can be installed and selected but do not run,
+ * so any command sent to them will fail.
+ * <p/>
+ */
+public class GPSimulatedCard implements SimulatedDevice {
+
+    private static final Logger LOG = LoggerFactory.getLogger(GPSimulatedCard.class);
+
+    /** Default AID of the ISD */
+    public static final AID ISD_DEFAULT = new AID("A000000003000000");
+
+    /** ATR without extended length support */
+    private static final byte[] ATR_DEFAULT = HexUtil.hexToBytes("3B8A80018031F873F741808290003B");
+    /** ATR with extended length support */
+    private static final byte[] ATR_EXTENDED = HexUtil.hexToBytes("3B8A80018031F873F741E08290007B");
+
+    /** Card data template, split at the protocol OID */
+    private static final String CARD_DATA_HEAD =
+            "664C734A06072A864886FC6B01600C060A2A864886FC6B02020101630906072A864886FC6B03640B06092A864886FC6B04";
+    private static final String CARD_DATA_TAIL =
+            "650B06092B8510864864020103660C060A2B060104012A026E0102";
+
+    /** Key information template for DES keys */
+    private static final String KEY_INFO_DES = "E012C00401%02X8010C00402%02X8010C00403%02X8010";
+    /** Key information template for AES keys */
+    private static final String KEY_INFO_AES = "E012C00401%02X8810C00402%02X8810C00403%02X8810";
+
+    private static final int TAG_ISSUER_ID_NUMBER = 0x4200;
+    private static final int TAG_CARD_IMG_NUMBER = 0x4500;
+    private static final int TAG_CPLC = 0x9F7F;
+    private static final int TAG_FCI = 0x6F00;
+    private static final int TAG_FCI_AID = 0x8400;
+    private static final int TAG_FCI_PROPRIETARY = 0xA500;
+    private static final int TAG_FCI_MAX_LENGTH = 0x9F65;
+    private static final int TAG_LOAD_FILE = 0xC4;
+    private static final int TAG_LOAD_DAP = 0xE2;
+
+    /** GET STATUS warning: more data available */
+    private static final int SW_MORE_DATA = 0x6310;
+
+    /** Random source for challenges and identities */
+    private final SecureRandom mRandom = new SecureRandom();
+
+    /** Registry of the card */
+    private final GPSimulatedRegistry mRegistry;
+    /** Static keys of the ISD */
+    private GPKeySet mKeys = GPKeySet.GLOBALPLATFORM;
+    /** Secure channel protocol */
+    private SCPParameters mProtocol = SCPParameters.decode(3, 0x20);
+    /** Key diversification data reported in INITIALIZE UPDATE */
+    private byte[] mDiversificationData = new byte[10];
+    /** Issuer identification number */
+    private byte[] mIIN = HexUtil.hexToBytes("42");
+    /** Card image number */
+    private byte[] mCIN;
+    /** CPLC data, null if not available */
+    private byte[] mCPLC = null;
+    /** True if the ATR should indicate extended length */
+    private boolean mExtendedLength = false;
+    /** True if GET STATUS should support TLV format */
+    private boolean mStatusTLV = true;
+    /** True if GET STATUS should support ELF with modules */
+    private boolean mStatusModules = true;
+    /** True if GET STATUS should support AID search criteria */
+    private boolean mStatusCriteria = true;
+    /** Status word for rejected AID search criteria */
+    private int mStatusCriteriaError = ISO7816.SW_WRONG_DATA;
+    /** Sequence counter for secure channel sessions */
+    private int mSequence = 0;
+
+    /** Currently selected applet, null if the ISD is selected */
+    private AID mSelected;
+    /** Current secure channel session */
+    private GPSimulatedSession mSession;
+    /** AID of the package being loaded */
+    private AID mLoadAID;
+    /** Data of the package being loaded */
+    private ByteArrayOutputStream mLoadData;
+    /** Number of the next LOAD block */
+    private int mLoadBlock;
+    /** Pending GET STATUS entries */
+    private List<byte[]> mStatusEntries;
+    /** Subset of pending GET STATUS entries */
+    private byte mStatusSubset;
+
+    /** Construct a simulated card with the default ISD */
+    public GPSimulatedCard() {
+        this(ISD_DEFAULT);
+    }
+
+    /**
+     * Construct a simulated card
+     * @param isd AID for the ISD
+     */
+    public GPSimulatedCard(AID isd) {
+        mRegistry = new GPSimulatedRegistry(isd);
+        mRandom.nextBytes(mDiversificationData);
+        mCIN = new byte[8];
+        mRandom.nextBytes(mCIN);
+    }
+
+    /** @return the registry of this card */
+    public GPSimulatedRegistry getRegistry() {
+        return mRegistry;
+    }
+
+    /** @return the AID of the ISD */
+    public AID getISD() {
+        return mRegistry.getISD();
+    }
+
+    /** @return the static keys of the ISD */
+    public GPKeySet getKeys() {
+        return mKeys;
+    }
+
+    /** @return the secure channel protocol */
+    public SCPParameters getProtocol() {
+        return mProtocol;
+    }
+
+    /** @return the card image number */
+    public byte[] getCIN() {
+        return mCIN.clone();
+    }
+
+    /** @param keys to use as static keys of the ISD */
+    public void setKeys(GPKeySet keys) {
+        mKeys = keys;
+    }
+
+    /**
+     * Set the secure channel protocol
+     * <p/>
+     * Only SCP02 with explicit initiation and SCP03
+     * without response encryption are supported.
+     * <p/>
+     * @param protocol to use
+     */
+    public void setProtocol(SCPParameters protocol) {
+        int version = protocol.scpVersion;
+        if (version != 2 && version != 3) {
+            throw new IllegalArgumentException("Unsupported protocol " + protocol);
+        }
+        if (version == 3 && ((SCP03Parameters) protocol).rencSupport) {
+            throw new IllegalArgumentException("Response encryption is not supported");
+        }
+        // check that the protocol is acceptable for the session
+        SCPParameters.decode(version, protocol.scpParameters);
+        mProtocol = protocol;
+    }
+
+    /** @param iin issuer identification number */
+    public void setIIN(byte[] iin) {
+        mIIN = iin.clone();
+    }
+
+    /** @param cin card image number */
+    public void setCIN(byte[] cin) {
+        mCIN = cin.clone();
+    }
+
+    /** @param cplc data without tag, null for none */
+    public void setCPLC(byte[] cplc) {
+        mCPLC = (cplc == null) ? null : cplc.clone();
+    }
+
+    /** @param extendedLength true if the ATR should indicate extended length */
+    public void setExtendedLength(boolean extendedLength) {
+        mExtendedLength = extendedLength;
+    }
+
+    /**
+     * Restrict GET STATUS to the legacy format
+     * <p/>
+     * Useful for exercising host-side fallbacks.
+     * <p/>
+     * @param tlv false to reject TLV format
+     * @param modules false to reject ELF with modules
+     */
+    public void setStatusFormats(boolean tlv, boolean modules) {
+        mStatusTLV = tlv;
+        mStatusModules = modules;
+    }
+
+    /**
+     * Restrict GET STATUS to the empty search criteria
+     * <p/>
+     * Useful for exercising host-side fallbacks.
+     * <p/>
+     * @param criteria false to reject AID search criteria
+     */
+    public void setStatusCriteria(boolean criteria) {
+        setStatusCriteria(criteria, ISO7816.SW_WRONG_DATA);
+    }
+
+    /**
+     * Restrict GET STATUS to the empty search criteria
+     * <p/>
+     * @param criteria false to reject AID search criteria
+     * @param error status word to reject criteria with
+     */
+    public void setStatusCriteria(boolean criteria, int error) {
+        mStatusCriteria = criteria;
+        mStatusCriteriaError = error;
+    }
+
+    @Override
+    public byte[] getATR() {
+        return (mExtendedLength ? ATR_EXTENDED : ATR_DEFAULT).clone();
+    }
+
+    @Override
+    public void reset() {
+        mSelected = null;
+        mSession = null;
+        resetLoad();
+        mStatusEntries = null;
+    }
+
+    @Override
+    public ResponseAPDU process(CommandAPDU command) {
+        try {
+            return processCommand(command);
+        } catch (SWException e) {
+            LOG.trace("command failed with " + HexUtil.hex16(e.getCode()));
+            return buildResponse(null, e.getCode());
+        }
+    }
+
+    /**
+     * Internal: dispatch a command
+     * @param command to process
+     * @return the response
+     * @throws SWException on error
+     */
+    private ResponseAPDU processCommand(CommandAPDU command) throws SWException {
+        int cla = command.getCLA();
+        byte ins = (byte) command.getINS();
+        boolean secure = (cla & 0x04) != 0;
+
+        // SELECT is always plain
+        if (ins == GP.INS_SELECT && !secure) {
+            return processSelect(command);
+        }
+
+        // selected applets do not run
+        if (mSelected != null) {
+            throw new SWException(ISO7816.SW_INS_NOT_SUPPORTED);
+        }
+
+        // commands that need no secure channel
+        if (!secure) {
+            switch (ins) {
+                case GP.INS_GET_DATA:
+                    return processGetData(command);
+                case GP.INS_INITIALIZE_UPDATE:
+                    return processInitializeUpdate(command);
+                default:
+                    break;
+            }
+        }
+
+        // everything else requires a session
+        GPSimulatedSession session = mSession;
+        if (session == null) {
+            throw new SWException(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+        }
+
+        // authentication is special
+        if (ins == GP.INS_EXTERNAL_AUTHENTICATE) {
+            try {
+                session.authenticate(command);
+            } catch (SWException e) {
+                mSession = null;
+                throw e;
+            }
+            return buildResponse(null, ISO7816.SW_NO_ERROR);
+        }
+
+        // other commands require authentication
+        if (!session.isAuthenticated()) {
+            throw new SWException(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+        }
+
+        // verify and decrypt
+        CommandAPDU plain;
+        try {
+            plain = session.unwrap(command);
+        } catch (SWException e) {
+            mSession = null;
+            throw e;
+        }
+
+        // process the plain command
+        ResponseAPDU response;
+        try {
+            response = processSecure(plain, session);
+        } catch (SWException e) {
+            response = buildResponse(null, e.getCode());
+        }
+
+        // authenticate the response
+        return session.wrap(response);
+    }
+
+    /**
+     * Internal: dispatch a command that was received in a session
+     * @param command to process
+     * @param session the command was received in
+     * @return the response
+     * @throws SWException on error
+     */
+    private ResponseAPDU processSecure(CommandAPDU command, GPSimulatedSession session) throws SWException {
+        byte ins = (byte) command.getINS();
+        // abort pending GET STATUS on any other command
+        if (ins != GP.INS_GET_STATUS) {
+            mStatusEntries = null;
+        }
+        switch (ins) {
+            case GP.INS_GET_DATA:
+                return processGetData(command);
+            case GP.INS_GET_STATUS:
+                return processGetStatus(command, session);
+            case GP.INS_INSTALL:
+                return processInstall(command);
+            case GP.INS_LOAD:
+                return processLoad(command);
+            case GP.INS_DELETE:
+                return processDelete(command);
+            default:
+                throw new SWException(ISO7816.SW_INS_NOT_SUPPORTED);
+        }
+    }
+
+    /**
+     * Internal: process SELECT
+     * @param command to process
+     * @return the response
+     * @throws SWException on error
+     */
+    private ResponseAPDU processSelect(CommandAPDU command) throws SWException {
+        if (command.getP1() != GP.SELECT_P1_BY_NAME) {
+            throw new SWException(ISO7816.SW_INCORRECT_P1P2);
+        }
+        AID isd = mRegistry.getISD();
+        AID aid = (command.getNc() == 0) ? isd : new AID(command.getData());
+        // selecting always terminates the session
+        mSession = null;
+        resetLoad();
+        mStatusEntries = null;
+        if (aid.equals(isd)) {
+            mSelected = null;
+            ByteArrayOutputStream proprietary = new ByteArrayOutputStream();
+            write(proprietary, new TLVPrimitive(TAG_FCI_MAX_LENGTH, new byte[]{(byte) 0xFF}));
+            ByteArrayOutputStream fci = new ByteArrayOutputStream();
+            write(fci, new TLVPrimitive(TAG_FCI_AID, isd.getBytes()));
+            write(fci, new TLVPrimitive(TAG_FCI_PROPRIETARY, proprietary.toByteArray()));
+            byte[] data = new TLVPrimitive(TAG_FCI, fci.toByteArray()).getEncoded();
+            return buildResponse(data, ISO7816.SW_NO_ERROR);
+        }
+        if (mRegistry.isSelectable(aid)) {
+            mSelected = aid;
+            return buildResponse(null, ISO7816.SW_NO_ERROR);
+        }
+        throw new SWException(ISO7816.SW_FILE_NOT_FOUND);
+    }
+
+    /**
+     * Internal: process GET DATA
+     * @param command to process
+     * @return the response
+     * @throws SWException on error
+     */
+    private ResponseAPDU processGetData(CommandAPDU command) throws SWException {
+        short p1p2 = (short) ((command.getP1() << 8) | command.getP2());
+        byte[] data;
+        switch (p1p2) {
+            case GP.GET_DATA_P12_CARD_DATA:
+                data = HexUtil.hexToBytes(CARD_DATA_HEAD
+                        + HexUtil.hex8(mProtocol.scpVersion)
+                        + HexUtil.hex8(mProtocol.scpParameters)
+                        + CARD_DATA_TAIL);
+                break;
+            case GP.GET_DATA_P12_KEY_INFO_TEMPLATE:
+                int version = getKeyVersion();
+                String format = (mProtocol.scpVersion == 3) ? KEY_INFO_AES : KEY_INFO_DES;
+                data = HexUtil.hexToBytes(String.format(format, version, version, version));
+                break;
+            case GP.GET_DATA_P12_ISSUER_ID_NUMBER:
+                data = new TLVPrimitive(TAG_ISSUER_ID_NUMBER, mIIN).getEncoded();
+                break;
+            case GP.GET_DATA_P12_CARD_IMG_NUMBER:
+                data = new TLVPrimitive(TAG_CARD_IMG_NUMBER, mCIN).getEncoded();
+                break;
+            case GP.GET_DATA_P12_CPLC:
+                if (mCPLC == null) {
+                    throw new SWException(ISO7816.SW_REFERENCED_DATA_NOT_FOUND);
+                }
+                data = new TLVPrimitive(TAG_CPLC, mCPLC).getEncoded();
+                break;
+            default:
+                throw new SWException(ISO7816.SW_REFERENCED_DATA_NOT_FOUND);
+        }
+        return buildResponse(data, ISO7816.SW_NO_ERROR);
+    }
+
+    /**
+     * Internal: process INITIALIZE UPDATE
+     * @param command to process
+     * @return the response
+     * @throws SWException on error
+     */
+    private ResponseAPDU processInitializeUpdate(CommandAPDU command) throws SWException {
+        // any previous session ends here
+        mSession = null;
+        // check key version
+        int keyVersion = getKeyVersion();
+        int p1 = command.getP1();
+        if (p1 != 0 && p1 != keyVersion) {
+            throw new SWException(ISO7816.SW_REFERENCED_DATA_NOT_FOUND);
+        }
+        byte[] hostChallenge = command.getData();
+        if (hostChallenge.length != 8) {
+            throw new SWException(ISO7816.SW_WRONG_LENGTH);
+        }
+        // start a new session
+        int sequence = ++mSequence;
+        byte[] random = new byte[8];
+        mRandom.nextBytes(random);
+        mSession = new GPSimulatedSession(mProtocol, mKeys, keyVersion,
+                mDiversificationData, sequence, hostChallenge, random);
+        return buildResponse(mSession.getInitResponse(), ISO7816.SW_NO_ERROR);
+    }
+
+    /**
+     * Internal: process GET STATUS
+     * @param command to process
+     * @param session for determining response overhead
+     * @return the response
+     * @throws SWException on error
+     */
+    private ResponseAPDU processGetStatus(CommandAPDU command, GPSimulatedSession session) throws SWException {
+        byte p1 = (byte) command.getP1();
+        int p2 = command.getP2();
+        boolean tlv = (p2 & GP.GET_STATUS_P2_FORMAT_TLV) != 0;
+        boolean next = (p2 & GP.GET_STATUS_P2_GET_NEXT) != 0;
+        if ((p2 & ~(GP.GET_STATUS_P2_FORMAT_TLV | GP.GET_STATUS_P2_GET_NEXT)) != 0) {
+            throw new SWException(ISO7816.SW_INCORRECT_P1P2);
+        }
+        if (tlv && !mStatusTLV) {
+            throw new SWException(ISO7816.SW_INCORRECT_P1P2);
+        }
+        if (p1 == GP.GET_STATUS_P1_EXM_AND_ELF_ONLY && !mStatusModules) {
+            throw new SWException(ISO7816.SW_INCORRECT_P1P2);
+        }
+        if (next) {
+            if (mStatusEntries == null || mStatusSubset != p1) {
+                throw new SWException(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+            }
+        } else {
+            byte[] prefix = parseCriteria(command.getData());
+            if (prefix.length > 0 && !mStatusCriteria) {
+                throw new SWException(mStatusCriteriaError);
+            }
+            mStatusEntries = mRegistry.encodeStatus(p1, tlv, prefix);
+            mStatusSubset = p1;
+            if (mStatusEntries.isEmpty()) {
+                mStatusEntries = null;
+                throw new SWException(ISO7816.SW_REFERENCED_DATA_NOT_FOUND);
+            }
+        }
+        // fill one page
+        int ne = command.getNe();
+        int limit = ((ne == 0) ? 256 : ne) - session.getResponseOverhead();
+        ByteArrayOutputStream page = new ByteArrayOutputStream();
+        while (!mStatusEntries.isEmpty()) {
+            byte[] entry = mStatusEntries.get(0);
+            if (page.size() > 0 && page.size() + entry.length > limit) {
+                break;
+            }
+            page.write(entry, 0, entry.length);
+            mStatusEntries.remove(0);
+        }
+        int sw = ISO7816.SW_NO_ERROR;
+        if (mStatusEntries.isEmpty()) {
+            mStatusEntries = null;
+        } else {
+            sw = SW_MORE_DATA;
+        }
+        return buildResponse(page.toByteArray(), sw);
+    }
+
+    /**
+     * Internal: process INSTALL
+     * @param command to process
+     * @return the response
+     * @throws SWException on error
+     */
+    private ResponseAPDU processInstall(CommandAPDU command) throws SWException {
+        byte p1 = (byte) command.getP1();
+        byte[] data = command.getData();
+        int off = 0;
+        try {
+            if (p1 == GP.INSTALL_P1_FOR_LOAD) {
+                AID aid = new AID(data, off + 1, data[off]);
+                off += 1 + data[off];
+                int sdLen = data[off++];
+                if (sdLen != 0 && !new AID(data, off, sdLen).equals(mRegistry.getISD())) {
+                    throw new SWException(ISO7816.SW_REFERENCED_DATA_NOT_FOUND);
+                }
+                if (mRegistry.hasPackage(aid)) {
+                    throw new SWException(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+                }
+                resetLoad();
+                mLoadAID = aid;
+                mLoadData = new ByteArrayOutputStream();
+            } else if ((p1 & GP.INSTALL_P1_FOR_INSTALL) != 0) {
+                if ((p1 & ~(GP.INSTALL_P1_FOR_INSTALL | GP.INSTALL_P1_FOR_MAKE_SELECTABLE)) != 0) {
+                    throw new SWException(ISO7816.SW_INCORRECT_P1P2);
+                }
+                AID packageAID = new AID(data, off + 1, data[off]);
+                off += 1 + data[off];
+                AID moduleAID = new AID(data, off + 1, data[off]);
+                off += 1 + data[off];
+                AID appletAID = new AID(data, off + 1, data[off]);
+                off += 1 + data[off];
+                byte[] privileges = Arrays.copyOfRange(data, off + 1, off + 1 + data[off]);
+                if (privileges.length == 0) {
+                    throw new SWException(ISO7816.SW_WRONG_DATA);
+                }
+                boolean selectable = (p1 & GP.INSTALL_P1_FOR_MAKE_SELECTABLE) != 0;
+                mRegistry.install(packageAID, moduleAID, appletAID, privileges, selectable);
+            } else if (p1 == GP.INSTALL_P1_FOR_MAKE_SELECTABLE) {
+                off += 2;
+                AID appletAID = new AID(data, off + 1, data[off]);
+                mRegistry.makeSelectable(appletAID);
+            } else {
+                throw new SWException(ISO7816.SW_INCORRECT_P1P2);
+            }
+        } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+            throw new SWException(ISO7816.SW_WRONG_DATA);
+        }
+        return buildResponse(new byte[]{0}, ISO7816.SW_NO_ERROR);
+    }
+
+    /**
+     * Internal: process LOAD
+     * @param command to process
+     * @return the response
+     * @throws SWException on error
+     */
+    private ResponseAPDU processLoad(CommandAPDU command) throws SWException {
+        if (mLoadAID == null) {
+            throw new SWException(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+        }
+        if (command.getP2() != (mLoadBlock & 0xFF)) {
+            resetLoad();
+            throw new SWException(ISO7816.SW_INCORRECT_P1P2);
+        }
+        byte[] block = command.getData();
+        mLoadData.write(block, 0, block.length);
+        mLoadBlock++;
+        if ((byte) command.getP1() != GP.LOAD_P1_LAST_BLOCK) {
+            return buildResponse(null, ISO7816.SW_NO_ERROR);
+        }
+        AID aid = mLoadAID;
+        byte[] loadFile = mLoadData.toByteArray();
+        resetLoad();
+        try {
+            parseLoadFile(aid, loadFile);
+        } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+            throw new SWException(ISO7816.SW_WRONG_DATA);
+        }
+        return buildResponse(new byte[]{0}, ISO7816.SW_NO_ERROR);
+    }
+
+    /**
+     * Internal: process DELETE
+     * @param command to process
+     * @return the response
+     * @throws SWException on error
+     */
+    private ResponseAPDU processDelete(CommandAPDU command) throws SWException {
+        byte[] data = command.getData();
+        if (data.length < 2 || data[0] != 0x4F || data[1] + 2 != data.length) {
+            throw new SWException(ISO7816.SW_WRONG_DATA);
+        }
+        boolean related = (command.getP2() & GP.DELETE_P2_DELETE_RELATED) != 0;
+        mRegistry.delete(new AID(data, 2, data[1]), related);
+        return buildResponse(new byte[]{0}, ISO7816.SW_NO_ERROR);
+    }
+
+    /**
+     * Internal: parse and register a complete load file
+     * @param aid from INSTALL [for LOAD]
+     * @param data of the load file
+     * @throws SWException on error
+     */
+    private void parseLoadFile(AID aid, byte[] data) throws SWException {
+        int off = 0;
+        // skip DAP blocks
+        if ((data[off] & 0xFF) == TAG_LOAD_DAP) {
+            off++;
+            int[] len = readLength(data, off);
+            off = len[1] + len[0];
+        }
+        // load file data block
+        if ((data[off++] & 0xFF) != TAG_LOAD_FILE) {
+            throw new SWException(ISO7816.SW_WRONG_DATA);
+        }
+        int[] len = readLength(data, off);
+        off = len[1];
+        int end = off + len[0];
+        if (end != data.length) {
+            throw new SWException(ISO7816.SW_WRONG_DATA);
+        }
+        // scan CAP components
+        AID packageAID = null;
+        byte[] version = null;
+        AID[] modules = new AID[0];
+        while (off < end) {
+            int tag = data[off] & 0xFF;
+            int size = ((data[off + 1] & 0xFF) << 8) | (data[off + 2] & 0xFF);
+            int info = off + 3;
+            if (tag == 1) {
+                // header: magic, minor, major, flags, package info
+                int pkg = info + 7;
+                version = new byte[]{data[pkg + 1], data[pkg]};
+                packageAID = new AID(data, pkg + 3, data[pkg + 2]);
+            } else if (tag == 3) {
+                // applets: count, then AID and install method offset
+                int count = data[info] & 0xFF;
+                int pos = info + 1;
+                modules = new AID[count];
+                for (int i = 0; i < count; i++) {
+                    int aidLen = data[pos];
+                    modules[i] = new AID(data, pos + 1, aidLen);
+                    pos += 1 + aidLen + 2;
+                }
+            }
+            off = info + size;
+        }
+        if (packageAID == null || !packageAID.equals(aid)) {
+            throw new SWException(ISO7816.SW_WRONG_DATA);
+        }
+        if (mRegistry.hasPackage(aid)) {
+            throw new SWException(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+        }
+        mRegistry.addPackage(aid, version, modules);
+    }
+
+    /** @return the key version to report */
+    private int getKeyVersion() {
+        int version = mKeys.getKeyVersion();
+        return (version == 0) ? 0xFF : version;
+    }
+
+    /** Internal: abort any pending load */
+    private void resetLoad() {
+        mLoadAID = null;
+        mLoadData = null;
+        mLoadBlock = 0;
+    }
+
+    /**
+     * Internal: parse a BER length
+     * @param data to parse
+     * @param off of the length
+     * @return the length and the offset following it
+     */
+    private static int[] readLength(byte[] data, int off) {
+        int first = data[off++] & 0xFF;
+        if (first < 0x80) {
+            return new int[]{first, off};
+        }
+        int count = first & 0x7F;
+        if (count > 3) {
+            throw new IllegalArgumentException("Length too long");
+        }
+        int length = 0;
+        for (int i = 0; i < count; i++) {
+            length = (length << 8) | (data[off++] & 0xFF);
+        }
+        return new int[]{length, off};
+    }
+
+    /**
+     * Internal: parse GET STATUS criteria
+     * @param data of the command
+     * @return the AID prefix to match
+     * @throws SWException on error
+     */
+    private static byte[] parseCriteria(byte[] data) throws SWException {
+        if (data.length < 2 || data[0] != 0x4F || (data[1] & 0xFF) + 2 > data.length) {
+            throw new SWException(ISO7816.SW_WRONG_DATA);
+        }
+        return Arrays.copyOfRange(data, 2, 2 + data[1]);
+    }
+
+    private static void write(ByteArrayOutputStream bos, TLVPrimitive tlv) {
+        byte[] encoded = tlv.getEncoded();
+        bos.write(encoded, 0, encoded.length);
+    }
+
+    private static ResponseAPDU buildResponse(byte[] data, int sw) {
+        int length = (data == null) ? 0 : data.length;
+        byte[] response = new byte[length + 2];
+        if (data != null) {
+            System.arraycopy(data, 0, response, 0, length);
+        }
+        response[length] = (byte) (sw >> 8);
+        response[length + 1] = (byte) sw;
+        return new ResponseAPDU(response);
+    }
+
+}
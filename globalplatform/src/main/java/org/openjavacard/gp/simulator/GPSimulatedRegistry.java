@@ -0,0 +1,325 @@
+/*
+ * openjavacard-tools: Development tools for JavaCard
+ * Copyright (C) 2019 Ingo Albrecht <copyright@promovicz.org>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package org.openjavacard.gp.simulator;
+
+import org.openjavacard.gp.protocol.GP;
+import org.openjavacard.iso.AID;
+import org.openjavacard.iso.ISO7816;
+import org.openjavacard.iso.SWException;
+import org.openjavacard.tlv.TLVPrimitive;
+import org.openjavacard.util.ArrayUtil;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * In-memory registry of a simulated card
+ * <p/>
+ * Contains the ISD, executable load files and applets,
+ * and knows how to encode them for GET STATUS.
+ * <p/>
+ */
+public class GPSimulatedRegistry {
+
+    private static final int TAG_GP_REGISTRY = 0xE300;
+    private static final int TAG_GP_REGISTRY_AID = 0x4F00;
+    private static final int TAG_GP_REGISTRY_STATE = 0x9F70;
+    private static final int TAG_GP_REGISTRY_PRIVILEGES = 0xC500;
+    private static final int TAG_GP_REGISTRY_MODULE = 0x8400;
+    private static final int TAG_GP_REGISTRY_PACKAGE = 0xC400;
+    private static final int TAG_GP_REGISTRY_DOMAIN = 0xCC00;
+    private static final int TAG_GP_REGISTRY_VERSION = 0xCE00;
+
+    /** Privileges of the ISD */
+    private static final byte[] ISD_PRIVILEGES = {(byte) 0x9E, (byte) 0xFE, (byte) 0x80};
+
+    /** The ISD */
+    private final Entry mISD;
+    /** Executable load files by AID */
+    private final LinkedHashMap<AID, Entry> mPackages = new LinkedHashMap<>();
+    /** Applets and security domains by AID */
+    private final LinkedHashMap<AID, Entry> mApplets = new LinkedHashMap<>();
+
+    /**
+     * Construct an empty registry
+     * @param isd AID of the ISD
+     */
+    public GPSimulatedRegistry(AID isd) {
+        mISD = new Entry(isd, GP.CARD_STATE_SECURED, ISD_PRIVILEGES);
+    }
+
+    /** @return AID of the ISD */
+    public AID getISD() {
+        return mISD.aid;
+    }
+
+    /** @return number of executable load files */
+    public synchronized int getPackageCount() {
+        return mPackages.size();
+    }
+
+    /** @return number of applets */
+    public synchronized int getAppletCount() {
+        return mApplets.size();
+    }
+
+    /**
+     * Check for an executable load file
+     * @param aid of the package
+     * @return true if present
+     */
+    public synchronized boolean hasPackage(AID aid) {
+        return mPackages.containsKey(aid);
+    }
+
+    /**
+     * Check for an applet
+     * @param aid of the applet
+     * @return true if present
+     */
+    public synchronized boolean hasApplet(AID aid) {
+        return mApplets.containsKey(aid);
+    }
+
+    /**
+     * Add an executable load file
+     * @param aid of the package
+     * @param version of the package as major, minor
+     * @param modules contained in the package
+     */
+    public synchronized void addPackage(AID aid, byte[] version, AID... modules) {
+        if (mPackages.containsKey(aid)) {
+            throw new IllegalArgumentException("Package " + aid + " already exists");
+        }
+        Entry entry = new Entry(aid, GP.ELF_STATE_LOADED, new byte[]{0});
+        entry.domain = mISD.aid;
+        entry.version = version;
+        entry.modules.addAll(Arrays.asList(modules));
+        mPackages.put(aid, entry);
+    }
+
+    /**
+     * Add an applet
+     * @param aid of the applet
+     * @param packageAID of the package it is instantiated from
+     * @param privileges of the applet
+     */
+    public synchronized void addApplet(AID aid, AID packageAID, byte[] privileges) {
+        if (mApplets.containsKey(aid)) {
+            throw new IllegalArgumentException("Applet " + aid + " already exists");
+        }
+        if (!mPackages.containsKey(packageAID)) {
+            throw new IllegalArgumentException("Package " + packageAID + " does not exist");
+        }
+        Entry entry = new Entry(aid, GP.APPLET_STATE_SELECTABLE, privileges.clone());
+        entry.domain = mISD.aid;
+        entry.pkg = packageAID;
+        mApplets.put(aid, entry);
+    }
+
+    /**
+     * Internal: check if an applet can be selected
+     * @param aid of the applet
+     * @return true if selectable
+     */
+    synchronized boolean isSelectable(AID aid) {
+        Entry entry = mApplets.get(aid);
+        return entry != null && (entry.state & GP.APPLET_STATE_SELECTABLE) == GP.APPLET_STATE_SELECTABLE;
+    }
+
+    /**
+     * Internal: install an applet from a loaded module
+     * @param packageAID containing the module
+     * @param moduleAID to instantiate
+     * @param appletAID of the new applet
+     * @param privileges for the new applet
+     * @param selectable true if the applet should be made selectable
+     * @throws SWException on error
+     */
+    synchronized void install(AID packageAID, AID moduleAID, AID appletAID,
+                              byte[] privileges, boolean selectable) throws SWException {
+        Entry pkg = mPackages.get(packageAID);
+        if (pkg == null || !pkg.modules.contains(moduleAID)) {
+            throw new SWException(ISO7816.SW_REFERENCED_DATA_NOT_FOUND);
+        }
+        if (appletAID.equals(mISD.aid) || mApplets.containsKey(appletAID)) {
+            throw new SWException(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+        }
+        byte state = selectable ? GP.APPLET_STATE_SELECTABLE : GP.APPLET_STATE_INSTALLED;
+        Entry entry = new Entry(appletAID, state, privileges.clone());
+        entry.domain = mISD.aid;
+        entry.pkg = packageAID;
+        mApplets.put(appletAID, entry);
+    }
+
+    /**
+     * Internal: make an installed applet selectable
+     * @param appletAID of the applet
+     * @throws SWException on error
+     */
+    synchronized void makeSelectable(AID appletAID) throws SWException {
+        Entry entry = mApplets.get(appletAID);
+        if (entry == null) {
+            throw new SWException(ISO7816.SW_REFERENCED_DATA_NOT_FOUND);
+        }
+        entry.state = GP.APPLET_STATE_SELECTABLE;
+    }
+
+    /**
+     * Internal: delete an object
+     * @param aid of the object
+     * @param related true if dependent objects should be deleted
+     * @throws SWException on error
+     */
+    synchronized void delete(AID aid, boolean related) throws SWException {
+        if (aid.equals(mISD.aid)) {
+            throw new SWException(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+        }
+        if (mApplets.remove(aid) != null) {
+            return;
+        }
+        if (!mPackages.containsKey(aid)) {
+            throw new SWException(ISO7816.SW_REFERENCED_DATA_NOT_FOUND);
+        }
+        // check for dependent applets
+        Iterator<Entry> it = mApplets.values().iterator();
+        while (it.hasNext()) {
+            Entry applet = it.next();
+            if (aid.equals(applet.pkg)) {
+                if (!related) {
+                    throw new SWException(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+                }
+                it.remove();
+            }
+        }
+        mPackages.remove(aid);
+    }
+
+    /**
+     * Internal: encode registry entries for GET STATUS
+     * <p/>
+     * Each element of the result is one encoded entry.
+     * <p/>
+     * @param p1Subset of the registry to encode
+     * @param tlv true for TLV format, false for legacy format
+     * @param prefix of AIDs to include
+     * @return list of encoded entries
+     * @throws SWException on error
+     */
+    synchronized List<byte[]> encodeStatus(byte p1Subset, boolean tlv, byte[] prefix) throws SWException {
+        List<Entry> entries = new ArrayList<>();
+        boolean modules = false;
+        switch (p1Subset) {
+            case GP.GET_STATUS_P1_ISD_ONLY:
+                entries.add(mISD);
+                break;
+            case GP.GET_STATUS_P1_APP_AND_SD_ONLY:
+                entries.addAll(mApplets.values());
+                break;
+            case GP.GET_STATUS_P1_EXM_AND_ELF_ONLY:
+                modules = true;
+                entries.addAll(mPackages.values());
+                break;
+            case GP.GET_STATUS_P1_ELF_ONLY:
+                entries.addAll(mPackages.values());
+                break;
+            default:
+                throw new SWException(ISO7816.SW_INCORRECT_P1P2);
+        }
+        List<byte[]> res = new ArrayList<>();
+        for (Entry entry : entries) {
+            byte[] aid = entry.aid.getBytes();
+            if (aid.length >= prefix.length && ArrayUtil.startsWith(aid, prefix)) {
+                res.add(tlv ? entry.encodeTLV(modules) : entry.encodeLegacy(modules));
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Registry entry
+     */
+    private static class Entry {
+        final AID aid;
+        final byte[] privileges;
+        final List<AID> modules = new ArrayList<>();
+        byte state;
+        AID pkg;
+        AID domain;
+        byte[] version;
+
+        Entry(AID aid, byte state, byte[] privileges) {
+            this.aid = aid;
+            this.state = state;
+            this.privileges = privileges;
+        }
+
+        byte[] encodeTLV(boolean withModules) {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            write(bos, new TLVPrimitive(TAG_GP_REGISTRY_AID, aid.getBytes()));
+            write(bos, new TLVPrimitive(TAG_GP_REGISTRY_STATE, new byte[]{state}));
+            write(bos, new TLVPrimitive(TAG_GP_REGISTRY_PRIVILEGES, privileges));
+            if (pkg != null) {
+                write(bos, new TLVPrimitive(TAG_GP_REGISTRY_PACKAGE, pkg.getBytes()));
+            }
+            if (domain != null) {
+                write(bos, new TLVPrimitive(TAG_GP_REGISTRY_DOMAIN, domain.getBytes()));
+            }
+            if (version != null) {
+                write(bos, new TLVPrimitive(TAG_GP_REGISTRY_VERSION, version));
+            }
+            if (withModules) {
+                for (AID module : modules) {
+                    write(bos, new TLVPrimitive(TAG_GP_REGISTRY_MODULE, module.getBytes()));
+                }
+            }
+            return new TLVPrimitive(TAG_GP_REGISTRY, bos.toByteArray()).getEncoded();
+        }
+
+        byte[] encodeLegacy(boolean withModules) {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            write(bos, aid);
+            bos.write(state);
+            bos.write(privileges[0]);
+            if (withModules) {
+                bos.write(modules.size());
+                for (AID module : modules) {
+                    write(bos, module);
+                }
+            }
+            return bos.toByteArray();
+        }
+
+        private static void write(ByteArrayOutputStream bos, TLVPrimitive tlv) {
+            byte[] encoded = tlv.getEncoded();
+            bos.write(encoded, 0, encoded.length);
+        }
+
+        private static void write(ByteArrayOutputStream bos, AID aid) {
+            bos.write(aid.getLength());
+            bos.write(aid.getBytes(), 0, aid.getLength());
+        }
+    }
+
+}
@@ -0,0 +1,407 @@
+/*
+ * openjavacard-tools: Development tools for JavaCard
+ * Copyright (C) 2019 Ingo Albrecht <copyright@promovicz.org>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package org.openjavacard.gp.simulator;
+
+import org.openjavacard.gp.crypto.GPBouncy;
+import org.openjavacard.gp.crypto.GPCrypto;
+import org.openjavacard.gp.keys.GPKey;
+import org.openjavacard.gp.keys.GPKeySet;
+import org.openjavacard.gp.keys.GPKeyUsage;
+import org.openjavacard.gp.protocol.GP;
+import org.openjavacard.gp.scp.SCP0102Parameters;
+import org.openjavacard.gp.scp.SCP02Derivation;
+import org.openjavacard.gp.scp.SCP03Derivation;
+import org.openjavacard.gp.scp.SCP03Parameters;
+import org.openjavacard.gp.scp.SCPParameters;
+import org.openjavacard.iso.ISO7816;
+import org.openjavacard.iso.SW;
+import org.openjavacard.iso.SWException;
+import org.openjavacard.util.ArrayUtil;
+
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Card-side secure channel session for the simulator
+ * <p/>
+ * This mirrors the host-side SCP wrappers, verifying and
+ * decrypting commands and authenticating responses.
+ * <p/>
+ * Supported are SCP02 with explicit initiation and SCP03,
+ * with C-MAC, C-ENC and R-MAC. R-ENC is not supported.
+ * <p/>
+ */
+class GPSimulatedSession {
+
+    /** Protocol parameters */
+    private final SCPParameters mParameters;
+    /** Session keys */
+    private final GPKeySet mKeys;
+    /** Host challenge from INITIALIZE UPDATE */
+    private final byte[] mHostChallenge;
+    /** Card challenge (including the sequence counter for SCP02) */
+    private final byte[] mCardChallenge;
+    /** Response to INITIALIZE UPDATE */
+    private final byte[] mInitResponse;
+
+    /** True once EXTERNAL AUTHENTICATE has succeeded */
+    private boolean mAuthenticated;
+    /** Command authentication enabled */
+    private boolean mMAC;
+    /** Command encryption enabled */
+    private boolean mENC;
+    /** Response authentication enabled */
+    private boolean mRMAC;
+
+    /** Chaining value for C-MAC, null before the first command */
+    private byte[] mICV;
+    /** Chaining value for SCP02 R-MAC */
+    private byte[] mRICV;
+    /** SCP02 R-MAC input collected from the last command */
+    private byte[] mRMACCommand;
+    /** SCP03 encryption counter */
+    private long mCTR;
+
+    /**
+     * Start a session by processing INITIALIZE UPDATE
+     *
+     * @param parameters of the protocol
+     * @param staticKeys of the card
+     * @param keyVersion of the static keys
+     * @param diversificationData to report
+     * @param sequence counter for this session
+     * @param hostChallenge sent by the host
+     * @param random challenge for this session
+     */
+    GPSimulatedSession(SCPParameters parameters, GPKeySet staticKeys, int keyVersion,
+                       byte[] diversificationData, int sequence,
+                       byte[] hostChallenge, byte[] random) {
+        mParameters = parameters;
+        mHostChallenge = hostChallenge.clone();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        bos.write(diversificationData, 0, diversificationData.length);
+        bos.write(keyVersion);
+        bos.write(parameters.scpVersion);
+        byte[] cryptogram;
+        if (parameters.scpVersion == 3) {
+            byte[] seq = new byte[]{(byte) (sequence >> 16), (byte) (sequence >> 8), (byte) sequence};
+            mCardChallenge = Arrays.copyOf(random, 8);
+            mKeys = SCP03Derivation.deriveSessionKeys(staticKeys, seq, mHostChallenge, mCardChallenge);
+            byte[] context = ArrayUtil.concatenate(mHostChallenge, mCardChallenge);
+            cryptogram = GPBouncy.scp03_kdf(mKeys.getKeyByUsage(GPKeyUsage.MAC), (byte) 0x00, context, 64);
+            bos.write(parameters.scpParameters);
+            bos.write(mCardChallenge, 0, mCardChallenge.length);
+            bos.write(cryptogram, 0, cryptogram.length);
+            bos.write(seq, 0, seq.length);
+        } else {
+            byte[] seq = new byte[]{(byte) (sequence >> 8), (byte) sequence};
+            mCardChallenge = ArrayUtil.concatenate(seq, Arrays.copyOf(random, 6));
+            mKeys = SCP02Derivation.deriveSessionKeys((SCP0102Parameters) parameters, staticKeys, seq);
+            byte[] context = ArrayUtil.concatenate(mHostChallenge, mCardChallenge);
+            cryptogram = GPCrypto.mac_3des_nulliv(mKeys.getKeyByUsage(GPKeyUsage.ENC), context);
+            bos.write(mCardChallenge, 0, mCardChallenge.length);
+            bos.write(cryptogram, 0, cryptogram.length);
+        }
+        mInitResponse = bos.toByteArray();
+    }
+
+    /** @return response data for INITIALIZE UPDATE */
+    byte[] getInitResponse() {
+        return mInitResponse.clone();
+    }
+
+    /** @return true if the host has authenticated */
+    boolean isAuthenticated() {
+        return mAuthenticated;
+    }
+
+    /**
+     * Process EXTERNAL AUTHENTICATE
+     * @param command as received
+     * @throws SWException if authentication fails
+     */
+    void authenticate(CommandAPDU command) throws SWException {
+        if (mAuthenticated) {
+            throw new SWException(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+        }
+        // the command itself is always MACed
+        mMAC = true;
+        byte[] data = verifyAndDecrypt(command);
+        if (data.length != 8) {
+            throw new SWException(ISO7816.SW_WRONG_LENGTH);
+        }
+        // check the host cryptogram
+        if (!Arrays.equals(data, computeHostCryptogram())) {
+            throw new SWException(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+        }
+        // check the requested security level
+        int level = command.getP1();
+        int known = GP.EXTERNAL_AUTHENTICATE_P1_MAC | GP.EXTERNAL_AUTHENTICATE_P1_ENC
+                | GP.EXTERNAL_AUTHENTICATE_P1_RMAC;
+        if ((level & ~known) != 0) {
+            throw new SWException(ISO7816.SW_INCORRECT_P1P2);
+        }
+        boolean enc = (level & GP.EXTERNAL_AUTHENTICATE_P1_ENC) != 0;
+        boolean rmac = (level & GP.EXTERNAL_AUTHENTICATE_P1_RMAC) != 0;
+        if (rmac && !isRMACSupported()) {
+            throw new SWException(ISO7816.SW_INCORRECT_P1P2);
+        }
+        // commit the new state
+        mMAC = (level & GP.EXTERNAL_AUTHENTICATE_P1_MAC) != 0;
+        mENC = enc;
+        mRMAC = rmac;
+        mRICV = mICV.clone();
+        mCTR = 1;
+        mAuthenticated = true;
+    }
+
+    /**
+     * Verify and decrypt a command
+     * <p/>
+     * Commands without secure messaging are only accepted
+     * when the session does not require C-MAC.
+     * <p/>
+     * @param command as received
+     * @return the plain command
+     * @throws SWException if verification fails
+     */
+    CommandAPDU unwrap(CommandAPDU command) throws SWException {
+        int cla = command.getCLA();
+        CommandAPDU plain;
+        if ((cla & 0x04) == 0) {
+            if (mMAC) {
+                throw new SWException(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+            }
+            plain = command;
+        } else {
+            byte[] data = verifyAndDecrypt(command);
+            plain = buildCommand(cla & ~0x04, command.getINS(), command.getP1(), command.getP2(),
+                    data, command.getNe());
+        }
+        // remember command for SCP02 R-MAC
+        if (mRMAC && mParameters.scpVersion == 2) {
+            ByteArrayOutputStream rmac = new ByteArrayOutputStream();
+            rmac.write(plain.getCLA() & ~0x07);
+            rmac.write(plain.getINS());
+            rmac.write(plain.getP1());
+            rmac.write(plain.getP2());
+            int nc = plain.getNc();
+            if (nc > 0) {
+                writeLc(rmac, nc, isExtended(nc, plain.getNe()));
+                rmac.write(plain.getData(), 0, nc);
+            }
+            mRMACCommand = rmac.toByteArray();
+        }
+        return plain;
+    }
+
+    /**
+     * Authenticate a response
+     * @param response to wrap
+     * @return the wrapped response
+     */
+    ResponseAPDU wrap(ResponseAPDU response) {
+        int sw = response.getSW();
+        if (!mRMAC || (sw != ISO7816.SW_NO_ERROR && !SW.isWarning(sw))) {
+            return response;
+        }
+        byte[] data = response.getData();
+        ByteArrayOutputStream macData = new ByteArrayOutputStream();
+        byte[] mac;
+        if (mParameters.scpVersion == 3) {
+            macData.write(mICV, 0, mICV.length);
+            macData.write(data, 0, data.length);
+            macData.write(response.getSW1());
+            macData.write(response.getSW2());
+            GPKey rmacKey = mKeys.getKeyByUsage(GPKeyUsage.RMAC);
+            mac = Arrays.copyOf(GPBouncy.scp03_mac(rmacKey, macData.toByteArray(), 128), 8);
+        } else {
+            macData.write(mRMACCommand, 0, mRMACCommand.length);
+            macData.write(data.length);
+            macData.write(data, 0, data.length);
+            macData.write(response.getSW1());
+            macData.write(response.getSW2());
+            GPKey rmacKey = mKeys.getKeyByUsage(GPKeyUsage.RMAC);
+            mac = GPCrypto.mac_des_3des(rmacKey, macData.toByteArray(), mRICV);
+            mRICV = mac;
+        }
+        ByteArrayOutputStream wrapped = new ByteArrayOutputStream();
+        wrapped.write(data, 0, data.length);
+        wrapped.write(mac, 0, mac.length);
+        wrapped.write(response.getSW1());
+        wrapped.write(response.getSW2());
+        return new ResponseAPDU(wrapped.toByteArray());
+    }
+
+    /** @return number of bytes added to response data by wrapping */
+    int getResponseOverhead() {
+        return mRMAC ? 8 : 0;
+    }
+
+    /**
+     * Internal: verify the C-MAC of a command and decrypt its data
+     * @param command as received
+     * @return plain command data
+     * @throws SWException if verification fails
+     */
+    private byte[] verifyAndDecrypt(CommandAPDU command) throws SWException {
+        byte[] raw = command.getBytes();
+        byte[] data = command.getData();
+        if ((command.getCLA() & 0x04) == 0 || data.length < 8) {
+            throw new SWException(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+        }
+        // length encoding follows the received command
+        boolean extended = raw.length > 7 && raw[4] == 0;
+        byte[] mac = Arrays.copyOfRange(data, data.length - 8, data.length);
+        byte[] payload = Arrays.copyOf(data, data.length - 8);
+        byte[] plain;
+        if (mParameters.scpVersion == 3) {
+            // SCP03 MACs the encrypted data
+            ByteArrayOutputStream macData = new ByteArrayOutputStream();
+            byte[] icv = (mICV == null) ? new byte[16] : mICV;
+            macData.write(icv, 0, icv.length);
+            macData.write(command.getCLA());
+            macData.write(command.getINS());
+            macData.write(command.getP1());
+            macData.write(command.getP2());
+            writeLc(macData, data.length, extended);
+            macData.write(payload, 0, payload.length);
+            GPKey macKey = mKeys.getKeyByUsage(GPKeyUsage.MAC);
+            byte[] result = GPBouncy.scp03_mac(macKey, macData.toByteArray(), 128);
+            checkMAC(mac, result);
+            mICV = result;
+            // decrypt
+            plain = payload;
+            if (mENC) {
+                if (payload.length > 0) {
+                    GPKey encKey = mKeys.getKeyByUsage(GPKeyUsage.ENC);
+                    ByteBuffer ctr = ByteBuffer.allocate(16);
+                    ctr.putLong(8, mCTR);
+                    byte[] iv = GPCrypto.enc_aes_ecb(encKey, ctr.array());
+                    plain = unpad(GPCrypto.dec_aes_cbc(encKey, checkBlocks(payload, 16), iv));
+                }
+                mCTR++;
+            }
+        } else {
+            SCP0102Parameters parameters = (SCP0102Parameters) mParameters;
+            // SCP02 MACs the plain data
+            plain = payload;
+            if (mENC && payload.length > 0) {
+                GPKey encKey = mKeys.getKeyByUsage(GPKeyUsage.ENC);
+                plain = unpad(GPCrypto.dec_3des_cbc_nulliv(encKey, checkBlocks(payload, 8)));
+            }
+            GPKey macKey = mKeys.getKeyByUsage(GPKeyUsage.MAC);
+            byte[] icv;
+            if (mICV == null) {
+                icv = new byte[8];
+            } else if (parameters.icvEncrypt) {
+                icv = GPCrypto.enc_des_ecb(macKey, mICV);
+            } else {
+                icv = mICV;
+            }
+            ByteArrayOutputStream macData = new ByteArrayOutputStream();
+            if (parameters.cmacUnmodified && mAuthenticated) {
+                // EXTERNAL AUTHENTICATE is always MACed with its secure CLA
+                macData.write(command.getCLA() & ~0x04);
+            } else {
+                macData.write(command.getCLA());
+            }
+            macData.write(command.getINS());
+            macData.write(command.getP1());
+            macData.write(command.getP2());
+            writeLc(macData, plain.length + (parameters.cmacUnmodified ? 0 : 8), extended);
+            macData.write(plain, 0, plain.length);
+            byte[] result = GPCrypto.mac_des_3des(macKey, macData.toByteArray(), icv);
+            checkMAC(mac, result);
+            mICV = result;
+        }
+        return plain;
+    }
+
+    /**
+     * Internal: compute the expected host cryptogram
+     * @return the cryptogram
+     */
+    private byte[] computeHostCryptogram() {
+        if (mParameters.scpVersion == 3) {
+            byte[] context = ArrayUtil.concatenate(mHostChallenge, mCardChallenge);
+            GPKey macKey = mKeys.getKeyByUsage(GPKeyUsage.MAC);
+            return GPBouncy.scp03_kdf(macKey, (byte) 0x01, context, 64);
+        } else {
+            byte[] context = ArrayUtil.concatenate(mCardChallenge, mHostChallenge);
+            GPKey encKey = mKeys.getKeyByUsage(GPKeyUsage.ENC);
+            return GPCrypto.mac_3des_nulliv(encKey, context);
+        }
+    }
+
+    /** @return true if the protocol supports R-MAC */
+    private boolean isRMACSupported() {
+        if (mParameters.scpVersion == 3) {
+            return ((SCP03Parameters) mParameters).rmacSupport;
+        } else {
+            return ((SCP0102Parameters) mParameters).rmacSupport;
+        }
+    }
+
+    private static void checkMAC(byte[] received, byte[] computed) throws SWException {
+        if (!Arrays.equals(received, Arrays.copyOf(computed, 8))) {
+            throw new SWException(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+        }
+    }
+
+    private static byte[] checkBlocks(byte[] data, int blockSize) throws SWException {
+        if ((data.length % blockSize) != 0) {
+            throw new SWException(ISO7816.SW_WRONG_LENGTH);
+        }
+        return data;
+    }
+
+    private static byte[] unpad(byte[] data) throws SWException {
+        try {
+            return GPCrypto.unpad80(data);
+        } catch (RuntimeException e) {
+            throw new SWException(ISO7816.SW_WRONG_DATA);
+        }
+    }
+
+    private static boolean isExtended(int nc, int ne) {
+        return nc > 255 || ne > 256;
+    }
+
+    private static void writeLc(ByteArrayOutputStream os, int lc, boolean extended) {
+        if (extended) {
+            os.write(0);
+            os.write((lc >> 8) & 0xFF);
+        }
+        os.write(lc & 0xFF);
+    }
+
+    private static CommandAPDU buildCommand(int cla, int ins, int p1, int p2, byte[] data, int ne) {
+        if (ne > 0) {
+            return new CommandAPDU(cla, ins, p1, p2, data, ne);
+        } else {
+            return new CommandAPDU(cla, ins, p1, p2, data);
+        }
+    }
+
+}
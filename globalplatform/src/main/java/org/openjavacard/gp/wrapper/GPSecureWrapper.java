@@ -40,6 +40,7 @@ import javax.smartcardio.CardException;
 import javax.smartcardio.CommandAPDU;
 import javax.smartcardio.ResponseAPDU;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 
 /**
@@ -57,6 +58,14 @@ import java.util.List;
  */
 public class GPSecureWrapper extends GPBasicWrapper {
 
+    /**
+     * GET STATUS criteria matching all entries
+     * <p/>
+     * Criteria are matched as an AID prefix, so the empty AID matches everything.
+     * <p/>
+     */
+    private static final byte[] STATUS_CRITERIA_ALL = {0x4F, 0x00};
+
     /** Reference to the secure channel */
     private GPSecureChannel mSecure;
 
@@ -103,28 +112,30 @@ public class GPSecureWrapper extends GPBasicWrapper {
     /**
      * Perform a GlobalPlatform READ STATUS operation
      * <p/>
-     * Convenience form. XXX: document
+     * Convenience form reading all entries of the subset.
      * <p/>
-     * @param p1Subset
-     * @param p2Format
+     * @param p1Subset subset of the registry to read
+     * @param p2Format format for returned entries
      * @return data retrieved
      * @throws CardException on error
      */
     public List<byte[]> performReadStatus(byte p1Subset, byte p2Format) throws CardException {
-        byte[] criteria = {0x4F, 0x00}; // XXX !?
-        return performReadStatus(p1Subset, p2Format, criteria);
+        return performReadStatus(p1Subset, p2Format, STATUS_CRITERIA_ALL);
     }
 
     /**
-     * Perform a GlobalPlatform SET STATUS operation
-     *
-     * @param p1Subset
-     * @param p2Format
-     * @param criteria
+     * Perform a GlobalPlatform READ STATUS operation
+     * <p/>
+     * Criteria are given as a TLV search template, usually
+     * an AID tag that the card matches as a prefix.
+     * <p/>
+     * @param p1Subset subset of the registry to read
+     * @param p2Format format for returned entries
+     * @param criteria for the search
      * @return data retrieved
      * @throws CardException on error
      */
-    private ArrayList<byte[]> performReadStatus(byte p1Subset, byte p2Format, byte[] criteria) throws CardException {
+    public List<byte[]> performReadStatus(byte p1Subset, byte p2Format, byte[] criteria) throws CardException {
         LOG.trace("performReadStatus()");
         ArrayList<byte[]> res = new ArrayList<>();
         boolean first = true;
@@ -139,7 +150,8 @@ public class GPSecureWrapper extends GPBasicWrapper {
             CommandAPDU command = APDUUtil.buildCommand(
                     GP.CLA_GP,
                     GP.INS_GET_STATUS,
-                    p1Subset, (byte) (getParam | p2Format), criteria);
+                    p1Subset, (byte) (getParam | p2Format), criteria,
+                    mSecure.getMaxResponseLength());
             // run the command
             ResponseAPDU response = transactSecure(command);
             // get SW and data
@@ -181,6 +193,20 @@ public class GPSecureWrapper extends GPBasicWrapper {
         transactSecureAndCheck(command);
     }
 
+    /**
+     * Perform a sequence of STORE DATA operations
+     * <p/>
+     * Commands are pipelined by the secure channel.
+     * <p/>
+     * @param blocks to store
+     * @throws CardException on error
+     */
+    public void performStoreDataSequence(Iterator<byte[]> blocks) throws CardException {
+        LOG.trace("performStoreDataSequence()");
+        performBlockSequence(GP.INS_STORE_DATA,
+                GP.STORE_DATA_P1_MORE_BLOCKS, GP.STORE_DATA_P1_LAST_BLOCK, blocks);
+    }
+
     public void performSetStatusISD(AID aid, byte state) throws CardException {
         LOG.trace("performSetStatusISD()");
         // build the command
@@ -256,6 +282,57 @@ public class GPSecureWrapper extends GPBasicWrapper {
         transactSecureAndCheck(command);
     }
 
+    /**
+     * Perform a sequence of LOAD operations
+     * <p/>
+     * Commands are pipelined by the secure channel.
+     * <p/>
+     * @param blocks to load
+     * @throws CardException on error
+     */
+    public void performLoadSequence(Iterator<byte[]> blocks) throws CardException {
+        LOG.trace("performLoadSequence()");
+        performBlockSequence(GP.INS_LOAD,
+                GP.LOAD_P1_MORE_BLOCKS, GP.LOAD_P1_LAST_BLOCK, blocks);
+    }
+
+    /**
+     * Internal: perform a numbered sequence of block commands
+     * @param ins of the commands
+     * @param p1More for all blocks but the last
+     * @param p1Last for the last block
+     * @param blocks to send
+     * @throws CardException on error
+     */
+    private void performBlockSequence(final byte ins, final byte p1More, final byte p1Last,
+                                      final Iterator<byte[]> blocks) throws CardException {
+        // build commands as they are requested
+        Iterator<CommandAPDU> commands = new Iterator<CommandAPDU>() {
+            private int mBlockNumber = 0;
+            @Override
+            public boolean hasNext() {
+                return blocks.hasNext();
+            }
+            @Override
+            public CommandAPDU next() {
+                byte[] block = blocks.next();
+                boolean lastBlock = !blocks.hasNext();
+                LOG.debug("sending block " + (mBlockNumber + 1) + ", " + block.length + " bytes");
+                CommandAPDU command = APDUUtil.buildCommand(
+                        GP.CLA_GP, ins,
+                        lastBlock ? p1Last : p1More,
+                        (byte) mBlockNumber++,
+                        block);
+                return command;
+            }
+        };
+        // execute them
+        List<ResponseAPDU> responses = mSecure.transmitPipelined(commands);
+        for (ResponseAPDU response : responses) {
+            checkResponse(response);
+        }
+    }
+
     public GPInstallForLoadResponse performInstallForLoad(GPInstallForLoadRequest request) throws CardException {
         LOG.trace("performInstallForLoad()");
         // serialize the request
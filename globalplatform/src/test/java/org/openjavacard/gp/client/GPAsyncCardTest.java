@@ -0,0 +1,52 @@
+/*
+ * openjavacard-tools: Development tools for JavaCard
+ * Copyright (C) 2019 Ingo Albrecht <copyright@promovicz.org>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package org.openjavacard.gp.client;
+
+import junit.framework.TestCase;
+import org.junit.Assert;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+public class GPAsyncCardTest extends TestCase {
+
+    private static final Runnable NOTHING = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    public void testDefaultThreadFactory() throws Exception {
+        ThreadFactory factory = GPAsyncCard.getDefaultThreadFactory();
+        Assert.assertSame(factory, GPAsyncCard.getDefaultThreadFactory());
+        Thread thread = factory.newThread(NOTHING);
+        Assert.assertTrue(thread.getName().startsWith("gp-async-"));
+        Assert.assertTrue(thread.isDaemon());
+        // runtimes with virtual threads must use them
+        Method isVirtual;
+        try {
+            isVirtual = Thread.class.getMethod("isVirtual");
+        } catch (NoSuchMethodException e) {
+            return;
+        }
+        Assert.assertEquals(Boolean.TRUE, isVirtual.invoke(thread));
+    }
+
+}
@@ -0,0 +1,145 @@
+/*
+ * openjavacard-tools: Development tools for JavaCard
+ * Copyright (C) 2019 Ingo Albrecht <copyright@promovicz.org>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package org.openjavacard.gp.client;
+
+import junit.framework.TestCase;
+import org.junit.Assert;
+import org.openjavacard.iso.AID;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class GPJournalTest extends TestCase {
+
+    private static final AID PACKAGE = new AID("D276000177100101");
+    private static final AID APPLET = new AID("D27600017710010102");
+
+    public void testRecordAndReplay() throws IOException {
+        File file = File.createTempFile("journal", ".log");
+        try {
+            GPJournal journal = new GPJournal(file);
+            journal.record("card1", GPJournal.Operation.LOAD, null, 1000, PACKAGE);
+            journal.record("card1", GPJournal.Operation.INSTALL, null, 2000, APPLET, PACKAGE);
+            journal.record("card2", GPJournal.Operation.LOAD, new CardFailure("6A80"), 3000, PACKAGE);
+            Assert.assertTrue(journal.isCompleted("card1", GPJournal.Operation.LOAD, PACKAGE));
+            Assert.assertFalse(journal.isCompleted("card2", GPJournal.Operation.LOAD, PACKAGE));
+            journal.close();
+            // entries read back
+            List<GPJournal.Entry> entries = GPJournal.readEntries(file);
+            Assert.assertEquals(3, entries.size());
+            Assert.assertEquals(APPLET, entries.get(1).getAID());
+            Assert.assertEquals(2, entries.get(1).getAIDs().size());
+            Assert.assertEquals("6A80", entries.get(2).getError());
+            // a crash leaves a partial line
+            try (FileOutputStream os = new FileOutputStream(file, true)) {
+                os.write("123\tcard1\tDEL".getBytes(StandardCharsets.UTF_8));
+            }
+            // state is replayed and the partial line dropped
+            journal = new GPJournal(file);
+            Assert.assertTrue(journal.isCompleted("card1", GPJournal.Operation.INSTALL, APPLET));
+            journal.record("card1", GPJournal.Operation.DELETE, null, 500, PACKAGE);
+            Assert.assertFalse(journal.isCompleted("card1", GPJournal.Operation.LOAD, PACKAGE));
+            journal.close();
+            Assert.assertEquals(4, GPJournal.readEntries(file).size());
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testContent() throws IOException {
+        File file = File.createTempFile("journal", ".log");
+        try {
+            // a line written without content
+            try (FileOutputStream os = new FileOutputStream(file)) {
+                os.write(("123\tcard1\tLOAD\t" + PACKAGE + "\t1000\tOK\n").getBytes(StandardCharsets.UTF_8));
+            }
+            GPJournal journal = new GPJournal(file);
+            Assert.assertTrue(journal.isCompleted("card1", GPJournal.Operation.LOAD, PACKAGE));
+            Assert.assertFalse(journal.isCompleted("card1", GPJournal.Operation.LOAD, PACKAGE, "0102"));
+            journal.record("card1", GPJournal.Operation.LOAD, "0102", null, 1000, PACKAGE);
+            Assert.assertTrue(journal.isCompleted("card1", GPJournal.Operation.LOAD, PACKAGE, "0102"));
+            Assert.assertFalse(journal.isCompleted("card1", GPJournal.Operation.LOAD, PACKAGE, "0304"));
+            journal.close();
+            // content is read back
+            List<GPJournal.Entry> entries = GPJournal.readEntries(file);
+            Assert.assertEquals(2, entries.size());
+            Assert.assertNull(entries.get(0).getContent());
+            Assert.assertEquals(1000, entries.get(0).getNanos());
+            Assert.assertEquals("0102", entries.get(1).getContent());
+            Assert.assertTrue(entries.get(1).isSuccess());
+            // and replayed
+            journal = new GPJournal(file);
+            Assert.assertTrue(journal.isCompleted("card1", GPJournal.Operation.LOAD, PACKAGE, "0102"));
+            journal.close();
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testGroupCommit() throws Exception {
+        File file = File.createTempFile("journal", ".log");
+        final int threads = 8;
+        final int perThread = 200;
+        try {
+            final GPJournal journal = new GPJournal(file);
+            final AtomicReference<Exception> failure = new AtomicReference<>();
+            List<Thread> workers = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                final String card = "card" + t;
+                Thread worker = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            for (int i = 0; i < perThread; i++) {
+                                journal.record(card, GPJournal.Operation.LOAD, null, i, PACKAGE);
+                            }
+                        } catch (IOException e) {
+                            failure.set(e);
+                        }
+                    }
+                });
+                workers.add(worker);
+                worker.start();
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            Assert.assertNull(failure.get());
+            // concurrent writers share syncs
+            Assert.assertTrue(journal.getSyncCount() < threads * perThread);
+            journal.close();
+            Assert.assertEquals(threads * perThread, GPJournal.readEntries(file).size());
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static class CardFailure extends Exception {
+        CardFailure(String message) {
+            super(message);
+        }
+    }
+
+}
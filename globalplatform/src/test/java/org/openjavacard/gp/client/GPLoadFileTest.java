@@ -0,0 +1,82 @@
+/*
+ * openjavacard-tools: Development tools for JavaCard
+ * Copyright (C) 2019 Ingo Albrecht <copyright@promovicz.org>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package org.openjavacard.gp.client;
+
+import junit.framework.TestCase;
+import org.junit.Assert;
+import org.openjavacard.cap.file.CapComponentType;
+import org.openjavacard.cap.file.CapFileComponent;
+import org.openjavacard.cap.file.CapFilePackage;
+import org.openjavacard.cap.file.CapFileReader;
+import org.openjavacard.cap.test.CapTestFiles;
+import org.openjavacard.tlv.TLVLength;
+import org.openjavacard.util.ArrayUtil;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.List;
+
+public class GPLoadFileTest extends TestCase {
+
+    private static final int[] BLOCK_SIZES = {1, 7, 128, 239, 4096};
+
+    /** Reference implementation materializing the whole load file */
+    private static byte[][] referenceBlocks(CapFilePackage pkg, int blockSize) {
+        ByteArrayOutputStream components = new ByteArrayOutputStream();
+        for (CapComponentType type : CapComponentType.LOAD_ORDER) {
+            CapFileComponent component = pkg.getComponentByType(type);
+            if (component != null) {
+                components.write(component.getData(), 0, component.getData().length);
+            }
+        }
+        byte[] data = components.toByteArray();
+        byte[] header = ArrayUtil.concatenate(new byte[]{(byte) 0xC4}, TLVLength.lengthBytes(data.length));
+        return ArrayUtil.splitBlocks(ArrayUtil.concatenate(header, data), blockSize);
+    }
+
+    public void testStreamingBlocks() throws IOException {
+        for (InputStream stream : CapTestFiles.getFiles()) {
+            CapFilePackage pkg = CapFileReader.readStream(stream).getPackage();
+            for (int blockSize : BLOCK_SIZES) {
+                byte[][] expected = referenceBlocks(pkg, blockSize);
+                GPLoadFile file = GPLoadFile.generateCombinedLoadFile(pkg, blockSize);
+                Assert.assertEquals(expected.length, file.getNumBlocks());
+                // sequential access
+                Iterator<byte[]> it = file.blockIterator();
+                int total = 0;
+                for (byte[] block : expected) {
+                    Assert.assertTrue(it.hasNext());
+                    Assert.assertArrayEquals(block, it.next());
+                    total += block.length;
+                }
+                Assert.assertFalse(it.hasNext());
+                Assert.assertEquals(total, file.getTotalSize());
+                // random access
+                List<byte[]> blocks = file.getBlocks();
+                Assert.assertEquals(expected.length, blocks.size());
+                Assert.assertArrayEquals(expected[expected.length - 1], blocks.get(expected.length - 1));
+                Assert.assertArrayEquals(expected[expected.length / 2], blocks.get(expected.length / 2));
+            }
+        }
+    }
+
+}
@@ -0,0 +1,86 @@
+/*
+ * openjavacard-tools: Development tools for JavaCard
+ * Copyright (C) 2019 Ingo Albrecht <copyright@promovicz.org>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package org.openjavacard.gp.crypto;
+
+import junit.framework.TestCase;
+import org.bouncycastle.crypto.engines.AESEngine;
+import org.bouncycastle.crypto.generators.KDFCounterBytesGenerator;
+import org.bouncycastle.crypto.macs.CMac;
+import org.bouncycastle.crypto.params.KDFCounterParameters;
+import org.junit.Assert;
+import org.openjavacard.gp.keys.GPKey;
+import org.openjavacard.util.HexUtil;
+
+import java.util.Arrays;
+
+public class GPBouncyTest extends TestCase {
+
+    private static final GPKey KEY = GPKey.GLOBALPLATFORM_MASTER;
+
+    private static final byte[] CONTEXT = HexUtil.hexToBytes("0102030405060708a1a2a3a4a5a6a7a8");
+
+    /** Reference implementation of the SCP03 KDF using the BouncyCastle generator */
+    private static byte[] referenceKDF(GPKey key, byte constant, byte[] context, int bits) {
+        byte[] prefix = new byte[15];
+        prefix[11] = constant;
+        prefix[13] = (byte) (bits >> 8);
+        prefix[14] = (byte) bits;
+        KDFCounterBytesGenerator kdf = new KDFCounterBytesGenerator(new CMac(new AESEngine()));
+        kdf.init(new KDFCounterParameters(key.getSecret(), prefix, context, 8));
+        byte[] result = new byte[bits / 8];
+        kdf.generateBytes(result, 0, result.length);
+        return result;
+    }
+
+    public void testKDF() {
+        Assert.assertArrayEquals(referenceKDF(KEY, (byte) 0x04, CONTEXT, 128),
+                GPBouncy.scp03_kdf(KEY, (byte) 0x04, CONTEXT, 128));
+        Assert.assertArrayEquals(referenceKDF(KEY, (byte) 0x00, CONTEXT, 64),
+                GPBouncy.scp03_kdf(KEY, (byte) 0x00, CONTEXT, 64));
+        // output longer than one block
+        Assert.assertArrayEquals(referenceKDF(KEY, (byte) 0x06, CONTEXT, 256),
+                GPBouncy.scp03_kdf(KEY, (byte) 0x06, CONTEXT, 256));
+    }
+
+    public void testStreamMAC() {
+        byte[] msg = new byte[67];
+        for (int i = 0; i < msg.length; i++) {
+            msg[i] = (byte) i;
+        }
+        byte[] expected = GPBouncy.scp03_mac(KEY, msg, 128);
+        GPBouncy.StreamMAC mac = new GPBouncy.StreamMAC(KEY);
+        // fed in slices
+        mac.update(msg, 0, 16);
+        mac.update(msg[16]);
+        mac.update(msg, 17, msg.length - 17);
+        Assert.assertArrayEquals(expected, mac.doFinal());
+        // reset after doFinal
+        mac.update(msg, 0, msg.length);
+        byte[] out = new byte[18];
+        Assert.assertEquals(16, mac.doFinal(out, 2));
+        Assert.assertArrayEquals(expected, Arrays.copyOfRange(out, 2, 18));
+        // explicit reset discards data
+        mac.update(msg, 0, 5);
+        mac.reset();
+        mac.update(msg, 0, msg.length);
+        Assert.assertArrayEquals(expected, mac.doFinal());
+    }
+
+}
@@ -0,0 +1,113 @@
+/*
+ * openjavacard-tools: Development tools for JavaCard
+ * Copyright (C) 2019 Ingo Albrecht <copyright@promovicz.org>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package org.openjavacard.gp.crypto;
+
+import junit.framework.TestCase;
+import org.junit.Assert;
+import org.openjavacard.gp.keys.GPKey;
+import org.openjavacard.gp.keys.GPKeyCipher;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import java.util.Arrays;
+
+public class GPCryptoTest extends TestCase {
+
+    private static final GPKey KEY = GPKey.GLOBALPLATFORM_MASTER;
+
+    private static final byte[] IV8 = {1, 2, 3, 4, 5, 6, 7, 8};
+    private static final byte[] IV16 = {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16};
+
+    private static byte[] message(int length) {
+        byte[] res = new byte[length];
+        for (int i = 0; i < length; i++) {
+            res[i] = (byte) (i * 7 + 3);
+        }
+        return res;
+    }
+
+    /** Reference implementation of the SCP02 MAC using plain JCE */
+    private static byte[] referenceMAC(byte[] text, byte[] iv) throws Exception {
+        byte[] padded = GPCrypto.pad80(text, 8);
+        byte[] finalIV = iv;
+        if (padded.length > 8) {
+            Cipher des = Cipher.getInstance("DES/CBC/NoPadding");
+            des.init(Cipher.ENCRYPT_MODE, KEY.getSecretKey(GPKeyCipher.DES), new IvParameterSpec(iv));
+            byte[] partial = des.doFinal(padded, 0, padded.length - 8);
+            finalIV = Arrays.copyOfRange(partial, partial.length - 8, partial.length);
+        }
+        Cipher des3 = Cipher.getInstance("DESede/CBC/NoPadding");
+        des3.init(Cipher.ENCRYPT_MODE, KEY.getSecretKey(GPKeyCipher.DES3), new IvParameterSpec(finalIV));
+        return des3.doFinal(padded, padded.length - 8, 8);
+    }
+
+    public void testMacDes3Des() throws Exception {
+        for (int length = 0; length <= 40; length++) {
+            byte[] text = message(length);
+            byte[] expected = referenceMAC(text, IV8);
+            Assert.assertArrayEquals(expected, GPCrypto.mac_des_3des(KEY, text, IV8));
+            // same again with an offset into a larger buffer
+            byte[] buf = new byte[length + 4];
+            System.arraycopy(text, 0, buf, 3, length);
+            byte[] out = new byte[10];
+            GPCrypto.mac_des_3des(KEY, buf, 3, length, IV8, out, 1);
+            Assert.assertArrayEquals(expected, Arrays.copyOfRange(out, 1, 9));
+        }
+    }
+
+    public void testAESRoundTrip() {
+        byte[] text = message(48);
+        byte[] encrypted = GPCrypto.enc_aes_cbc(KEY, text, IV16);
+        byte[] out = new byte[52];
+        int length = GPCrypto.enc_aes_cbc(KEY, text, 0, text.length, IV16, out, 2);
+        Assert.assertEquals(48, length);
+        Assert.assertArrayEquals(encrypted, Arrays.copyOfRange(out, 2, 50));
+        // repeated use of the cached cipher gives the same result
+        Assert.assertArrayEquals(encrypted, GPCrypto.enc_aes_cbc(KEY, text, IV16));
+        // a different IV gives a different result
+        Assert.assertFalse(Arrays.equals(encrypted, GPCrypto.enc_aes_cbc_nulliv(KEY, text)));
+        // decrypt in place
+        length = GPCrypto.dec_aes_cbc(KEY, out, 2, 48, IV16, out, 2);
+        Assert.assertEquals(48, length);
+        Assert.assertArrayEquals(text, Arrays.copyOfRange(out, 2, 50));
+    }
+
+    public void test3DESRoundTrip() {
+        byte[] text = message(24);
+        byte[] encrypted = GPCrypto.enc_3des_cbc(KEY, text, IV8);
+        byte[] out = new byte[24];
+        GPCrypto.enc_3des_cbc(KEY, text, 0, text.length, IV8, out, 0);
+        Assert.assertArrayEquals(encrypted, out);
+        Assert.assertArrayEquals(text, GPCrypto.dec_3des_cbc(KEY, encrypted, IV8));
+    }
+
+    public void testErrorRecovery() {
+        try {
+            GPCrypto.enc_aes_cbc(KEY, message(15), IV16);
+            Assert.fail("Encrypted unaligned data");
+        } catch (RuntimeException e) {
+            // expected
+        }
+        byte[] text = message(16);
+        byte[] encrypted = GPCrypto.enc_aes_cbc(KEY, text, IV16);
+        Assert.assertArrayEquals(text, GPCrypto.dec_aes_cbc(KEY, encrypted, IV16));
+    }
+
+}
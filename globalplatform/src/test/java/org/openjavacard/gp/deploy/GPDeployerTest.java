@@ -0,0 +1,175 @@
+/*
+ * openjavacard-tools: Development tools for JavaCard
+ * Copyright (C) 2019 Ingo Albrecht <copyright@promovicz.org>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package org.openjavacard.gp.deploy;
+
+import junit.framework.TestCase;
+import org.junit.Assert;
+import org.openjavacard.cap.file.CapFile;
+import org.openjavacard.cap.file.CapFilePackage;
+import org.openjavacard.cap.file.CapFileReader;
+import org.openjavacard.cap.test.CapTestFiles;
+import org.openjavacard.gp.client.GPCard;
+import org.openjavacard.gp.client.GPContext;
+import org.openjavacard.gp.client.GPJournal;
+import org.openjavacard.gp.keys.GPKey;
+import org.openjavacard.gp.keys.GPKeyCipher;
+import org.openjavacard.gp.keys.GPKeySet;
+import org.openjavacard.gp.keys.GPKeyUsage;
+import org.openjavacard.gp.simulator.GPSimulatedCard;
+import org.openjavacard.iso.AID;
+import org.openjavacard.simulator.SimulatedTerminal;
+
+import javax.smartcardio.CardTerminal;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+public class GPDeployerTest extends TestCase {
+
+    private static CapFile readDemoCapFile() throws IOException {
+        List<InputStream> files = CapTestFiles.getFiles();
+        return CapFileReader.readStream(files.get(files.size() - 1));
+    }
+
+    private static GPDeployer.CardFactory cardFactory() {
+        return cardFactory(new GPContext());
+    }
+
+    private static GPDeployer.CardFactory cardFactory(final GPContext context) {
+        return new GPDeployer.CardFactory() {
+            @Override
+            public GPCard createCard(CardTerminal terminal) {
+                return new GPCard(context, terminal);
+            }
+        };
+    }
+
+    public void testDeploy() throws IOException, InterruptedException {
+        CapFile capFile = readDemoCapFile();
+        CapFilePackage pkg = capFile.getPackage();
+        AID module = pkg.getApplets().get(0).getAID();
+        GPDeployment deployment = new GPDeployment();
+        deployment.addCapFile(capFile);
+        deployment.addApplet(new GPDeployment.Applet(null, module, null, null, null));
+        // several good cards
+        List<GPSimulatedCard> cards = new ArrayList<>();
+        List<CardTerminal> terminals = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            GPSimulatedCard card = new GPSimulatedCard();
+            cards.add(card);
+            terminals.add(new SimulatedTerminal("Simulator " + i, card));
+        }
+        // and one with the wrong keys
+        GPSimulatedCard wrong = new GPSimulatedCard();
+        GPKeySet keys = new GPKeySet("Zero");
+        keys.putKey(new GPKey(0, GPKeyUsage.MASTER, GPKeyCipher.GENERIC, new byte[16]));
+        wrong.setKeys(keys);
+        terminals.add(new SimulatedTerminal("Simulator wrong", wrong));
+        // deploy
+        GPDeployer deployer = new GPDeployer(deployment, cardFactory());
+        GPDeployReport report = deployer.deploy(terminals);
+        Assert.assertEquals(5, report.getResults().size());
+        Assert.assertEquals(4, report.getSucceeded());
+        Assert.assertEquals(1, report.getFailed());
+        Assert.assertTrue(report.getCommands() > 0);
+        Assert.assertTrue(report.getCardsPerHour() > 0);
+        for (GPDeployResult result : report.getResults()) {
+            Assert.assertEquals(!result.getTerminal().endsWith("wrong"), result.isSuccess());
+        }
+        for (GPSimulatedCard card : cards) {
+            Assert.assertTrue(card.getRegistry().hasPackage(pkg.getPackageAID()));
+            Assert.assertTrue(card.getRegistry().hasApplet(module));
+        }
+        // load files were shared between cards
+        Assert.assertSame(deployment.getLoadFile(pkg, 239), deployment.getLoadFile(pkg, 239));
+        // deploying again keeps packages and replaces applets
+        report = deployer.deploy(terminals.subList(0, 2));
+        Assert.assertEquals(2, report.getSucceeded());
+        Assert.assertTrue(cards.get(0).getRegistry().hasApplet(module));
+    }
+
+    public void testResume() throws IOException, InterruptedException {
+        CapFile capFile = readDemoCapFile();
+        CapFilePackage pkg = capFile.getPackage();
+        AID module = pkg.getApplets().get(0).getAID();
+        GPDeployment deployment = new GPDeployment();
+        deployment.addCapFile(capFile);
+        deployment.addApplet(new GPDeployment.Applet(null, module, null, null, null));
+        GPSimulatedCard card = new GPSimulatedCard();
+        SimulatedTerminal terminal = new SimulatedTerminal("Simulator", card);
+        List<CardTerminal> terminals = new ArrayList<>();
+        terminals.add(terminal);
+        File file = File.createTempFile("journal", ".log");
+        try {
+            GPContext context = new GPContext();
+            GPJournal journal = new GPJournal(file);
+            context.setJournal(journal);
+            GPDeployer deployer = new GPDeployer(deployment, cardFactory(context));
+            Assert.assertEquals(1, deployer.deploy(terminals).getSucceeded());
+            journal.close();
+            // the journal has the steps
+            List<GPJournal.Entry> entries = GPJournal.readEntries(file);
+            Assert.assertEquals(2, entries.size());
+            Assert.assertEquals(GPJournal.Operation.LOAD, entries.get(0).getOperation());
+            Assert.assertEquals(GPJournal.Operation.INSTALL, entries.get(1).getOperation());
+            // resuming a completed card does no card management at all
+            journal = new GPJournal(file);
+            context.setJournal(journal);
+            deployer.setResume(true);
+            long before = terminal.getCommandCount();
+            Assert.assertEquals(1, deployer.deploy(terminals).getSucceeded());
+            long resumed = terminal.getCommandCount() - before;
+            journal.close();
+            Assert.assertEquals(2, GPJournal.readEntries(file).size());
+            // while a plain run reinstalls the applet
+            deployer.setResume(false);
+            context.setJournal(null);
+            before = terminal.getCommandCount();
+            Assert.assertEquals(1, deployer.deploy(terminals).getSucceeded());
+            Assert.assertTrue(terminal.getCommandCount() - before > resumed);
+            Assert.assertTrue(card.getRegistry().hasApplet(module));
+            // a load of different content is not skipped
+            String identity = entries.get(0).getCard();
+            String hash = deployment.getLoadFile(pkg, 239).getHash();
+            Assert.assertEquals(hash, entries.get(0).getContent());
+            journal = new GPJournal(file);
+            journal.record(identity, GPJournal.Operation.LOAD, "00", null, 0, pkg.getPackageAID());
+            context.setJournal(journal);
+            deployer.setResume(true);
+            deployment.setReload(true);
+            Assert.assertEquals(1, deployer.deploy(terminals).getSucceeded());
+            journal.close();
+            entries = GPJournal.readEntries(file);
+            GPJournal.Entry last = null;
+            for (GPJournal.Entry entry : entries) {
+                if (entry.getOperation() == GPJournal.Operation.LOAD) {
+                    last = entry;
+                }
+            }
+            Assert.assertEquals(hash, last.getContent());
+            Assert.assertTrue(card.getRegistry().hasApplet(module));
+        } finally {
+            file.delete();
+        }
+    }
+
+}
@@ -154,4 +154,26 @@ public class SCP02WrapperTest extends TestCase {
         Assert.assertArrayEquals(HexUtil.hexToBytes("9000"), r7.getBytes());
     }
 
+    public void testMaxSize() throws CardException {
+        int[] limits = {SCPWrapper.SHORT_MAX_LENGTH, 2048};
+        for (int limit : limits) {
+            for (int enc = 0; enc < 2; enc++) {
+                SCP0102Wrapper wrap = new SCP0102Wrapper(GPKeySet.GLOBALPLATFORM, SCP02_15);
+                wrap.setMaxLength(limit);
+                if (enc != 0) {
+                    wrap.startENC();
+                }
+                int max = wrap.getMaxSize();
+                CommandAPDU c = wrap.wrap(new CommandAPDU(0x80, 0xE8, 0x00, 0x00, new byte[max]));
+                // the largest command fits
+                Assert.assertTrue(c.getNc() <= limit);
+                // and one more byte would not
+                Assert.assertTrue(c.getNc() + (enc != 0 ? 8 : 1) > limit);
+            }
+        }
+        SCP0102Wrapper wrap = new SCP0102Wrapper(GPKeySet.GLOBALPLATFORM, SCP02_15);
+        wrap.startENC();
+        Assert.assertEquals(239, wrap.getMaxSize());
+    }
+
 }
@@ -21,14 +21,18 @@ package org.openjavacard.gp.scp;
 
 import junit.framework.TestCase;
 import org.junit.Assert;
+import org.openjavacard.gp.crypto.GPBouncy;
+import org.openjavacard.gp.crypto.GPCrypto;
 import org.openjavacard.gp.keys.GPKey;
 import org.openjavacard.gp.keys.GPKeySet;
+import org.openjavacard.gp.keys.GPKeyUsage;
 import org.openjavacard.util.APDUUtil;
 import org.openjavacard.util.HexUtil;
 
 import javax.smartcardio.CardException;
 import javax.smartcardio.CommandAPDU;
 import javax.smartcardio.ResponseAPDU;
+import java.util.Arrays;
 
 public class SCP03WrapperTest extends TestCase {
 
@@ -154,4 +158,122 @@ public class SCP03WrapperTest extends TestCase {
         Assert.assertArrayEquals(HexUtil.hexToBytes("9000"), r7.getBytes());
     }
 
+    public void test_SCP03_70_WrapExtended_CMAC() throws CardException {
+        SCP03Wrapper wrap = new SCP03Wrapper(GPKeySet.GLOBALPLATFORM, SCP03_70);
+        wrap.setMaxLength(1024);
+        // short commands keep their encoding
+        CommandAPDU c0 = wrap.wrap(plain5);
+        Assert.assertArrayEquals(HexUtil.hexToBytes("142000300d01020304056cba3161d0e5f44e00"), c0.getBytes());
+        wrap.unwrap(buildResponse("9000"));
+        // long commands get extended encoding
+        byte[] data = new byte[300];
+        for(int i = 0; i < data.length; i++) {
+            data[i] = (byte)i;
+        }
+        CommandAPDU plain300 = APDUUtil.buildCommand((byte)0x10, (byte)0x20, (short)0x30, data);
+        CommandAPDU c1 = wrap.wrap(plain300);
+        byte[] c1Bytes = c1.getBytes();
+        Assert.assertEquals(308, c1.getNc());
+        Assert.assertEquals(256, c1.getNe());
+        Assert.assertArrayEquals(HexUtil.hexToBytes("14200030000134"), Arrays.copyOfRange(c1Bytes, 0, 7));
+        Assert.assertArrayEquals(data, Arrays.copyOfRange(c1Bytes, 7, 307));
+        Assert.assertArrayEquals(HexUtil.hexToBytes("0100"), Arrays.copyOfRange(c1Bytes, 315, 317));
+        // MAC must cover the extended header, chained from the previous MAC
+        byte[] icv = GPBouncy.scp03_mac(GPKeySet.GLOBALPLATFORM.getKeyByUsage(GPKeyUsage.MAC),
+                HexUtil.hexToBytes("00000000000000000000000000000000" + "142000300d0102030405"), 128);
+        byte[] macInput = new byte[16 + 307];
+        System.arraycopy(icv, 0, macInput, 0, 16);
+        System.arraycopy(c1Bytes, 0, macInput, 16, 307);
+        byte[] mac = GPBouncy.scp03_mac(GPKeySet.GLOBALPLATFORM.getKeyByUsage(GPKeyUsage.MAC), macInput, 64);
+        Assert.assertArrayEquals(mac, Arrays.copyOfRange(c1Bytes, 307, 315));
+    }
+
+    public void test_SCP03_70_WrapTooLong() {
+        SCP03Wrapper wrap = new SCP03Wrapper(GPKeySet.GLOBALPLATFORM, SCP03_70);
+        CommandAPDU plain300 = APDUUtil.buildCommand((byte)0x10, (byte)0x20, (short)0x30, new byte[300]);
+        try {
+            wrap.wrap(plain300);
+            fail("Wrapped overlong command in short mode");
+        } catch (CardException e) {
+            // expected
+        }
+    }
+
+    public void test_SCP03_70_WrapIntoBuffer() throws CardException {
+        SCP03Wrapper ref = new SCP03Wrapper(GPKeySet.GLOBALPLATFORM, SCP03_70);
+        SCP03Wrapper wrap = new SCP03Wrapper(GPKeySet.GLOBALPLATFORM, SCP03_70);
+        ref.startENC();
+        wrap.startENC();
+        CommandAPDU[] commands = {plain5, plain8, plain12, plain16};
+        byte[] out = new byte[64];
+        for (CommandAPDU command : commands) {
+            byte[] expected = ref.wrap(command).getBytes();
+            byte[] data = command.getData();
+            int length = wrap.wrap(command.getCLA(), command.getINS(), command.getP1(), command.getP2(),
+                    data, 0, data.length, command.getNe(), out, 3);
+            Assert.assertArrayEquals(expected, Arrays.copyOfRange(out, 3, 3 + length));
+        }
+    }
+
+    public void test_SCP03_70_UnwrapRMAC_RENC() throws CardException {
+        GPKey encKey = GPKeySet.GLOBALPLATFORM.getKeyByUsage(GPKeyUsage.ENC);
+        GPKey macKey = GPKeySet.GLOBALPLATFORM.getKeyByUsage(GPKeyUsage.MAC);
+        GPKey rmacKey = GPKeySet.GLOBALPLATFORM.getKeyByUsage(GPKeyUsage.RMAC);
+        SCP03Wrapper wrap = new SCP03Wrapper(GPKeySet.GLOBALPLATFORM, SCP03_70);
+        wrap.startENC();
+        wrap.startRMAC();
+        wrap.startRENC();
+        byte[] c0 = wrap.wrap(plain5).getBytes();
+        // full ICV after the command
+        byte[] macInput = new byte[16 + c0.length - 9];
+        System.arraycopy(c0, 0, macInput, 16, c0.length - 9);
+        byte[] icv = GPBouncy.scp03_mac(macKey, macInput, 128);
+        // encrypted response using the current counter
+        byte[] ctr = HexUtil.hexToBytes("80000000000000000000000000000002");
+        byte[] encIV = GPCrypto.enc_aes_ecb(encKey, ctr);
+        byte[] encrypted = GPCrypto.enc_aes_cbc(encKey, GPCrypto.pad80(HexUtil.hexToBytes("CAFE"), 16), encIV);
+        // response MAC
+        byte[] rmacInput = new byte[16 + encrypted.length + 2];
+        System.arraycopy(icv, 0, rmacInput, 0, 16);
+        System.arraycopy(encrypted, 0, rmacInput, 16, encrypted.length);
+        rmacInput[rmacInput.length - 2] = (byte) 0x90;
+        byte[] rmac = GPBouncy.scp03_mac(rmacKey, rmacInput, 64);
+        String response = HexUtil.bytesToHex(encrypted) + HexUtil.bytesToHex(rmac) + "9000";
+        Assert.assertArrayEquals(HexUtil.hexToBytes("CAFE9000"), wrap.unwrap(buildResponse(response)).getBytes());
+        // a modified response must be rejected
+        wrap = new SCP03Wrapper(GPKeySet.GLOBALPLATFORM, SCP03_70);
+        wrap.startENC();
+        wrap.startRMAC();
+        wrap.startRENC();
+        wrap.wrap(plain5);
+        try {
+            wrap.unwrap(buildResponse(response.substring(0, response.length() - 4) + "9001"));
+            fail("Accepted response with bad MAC");
+        } catch (CardException e) {
+            // expected
+        }
+    }
+
+    public void testMaxSize() throws CardException {
+        int[] limits = {SCPWrapper.SHORT_MAX_LENGTH, 2048};
+        for (int limit : limits) {
+            for (int enc = 0; enc < 2; enc++) {
+                SCP03Wrapper wrap = new SCP03Wrapper(GPKeySet.GLOBALPLATFORM, SCP03_70);
+                wrap.setMaxLength(limit);
+                if (enc != 0) {
+                    wrap.startENC();
+                }
+                int max = wrap.getMaxSize();
+                CommandAPDU c = wrap.wrap(new CommandAPDU(0x80, 0xE8, 0x00, 0x00, new byte[max]));
+                // the largest command fits
+                Assert.assertTrue(c.getNc() <= limit);
+                // and one more byte would not
+                Assert.assertTrue(c.getNc() + (enc != 0 ? 16 : 1) > limit);
+            }
+        }
+        SCP03Wrapper wrap = new SCP03Wrapper(GPKeySet.GLOBALPLATFORM, SCP03_70);
+        wrap.startENC();
+        Assert.assertEquals(239, wrap.getMaxSize());
+    }
+
 }
@@ -0,0 +1,673 @@
+/*
+ * openjavacard-tools: Development tools for JavaCard
+ * Copyright (C) 2019 Ingo Albrecht <copyright@promovicz.org>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package org.openjavacard.gp.simulator;
+
+import junit.framework.TestCase;
+import org.junit.Assert;
+import org.openjavacard.gp.client.GPAsyncCard;
+import org.openjavacard.gp.client.GPCard;
+import org.openjavacard.gp.client.GPCardProfiles;
+import org.openjavacard.gp.client.GPContext;
+import org.openjavacard.gp.client.GPIssuerDomain;
+import org.openjavacard.gp.client.GPJournal;
+import org.openjavacard.gp.client.GPLoadFile;
+import org.openjavacard.gp.client.GPRegistry;
+import org.openjavacard.gp.client.GPRegistryCache;
+import org.openjavacard.gp.keys.GPKey;
+import org.openjavacard.gp.keys.GPKeyCipher;
+import org.openjavacard.gp.keys.GPKeySet;
+import org.openjavacard.gp.keys.GPKeyUsage;
+import org.openjavacard.gp.protocol.GP;
+import org.openjavacard.gp.scp.GPSecureChannel;
+import org.openjavacard.gp.scp.SCPParameters;
+import org.openjavacard.gp.scp.SCPSecurityPolicy;
+import org.openjavacard.iso.AID;
+import org.openjavacard.iso.ISO7816;
+import org.openjavacard.simulator.SimulatedTerminal;
+import org.openjavacard.tlv.TLVLength;
+import org.openjavacard.util.APDUUtil;
+import org.openjavacard.util.ArrayUtil;
+import org.openjavacard.util.HexUtil;
+
+import javax.smartcardio.CardException;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class GPSimulatedCardTest extends TestCase {
+
+    private static final AID PACKAGE = new AID("D276000177100101");
+    private static final AID MODULE = new AID("D27600017710010101");
+    private static final AID APPLET = new AID("D27600017710010102");
+
+    private GPCard connect(GPSimulatedCard card, SCPSecurityPolicy policy) throws CardException {
+        return connect(new SimulatedTerminal("Simulator", card), policy);
+    }
+
+    private GPCard connect(SimulatedTerminal terminal, SCPSecurityPolicy policy) throws CardException {
+        return connect(terminal, new GPContext(), policy);
+    }
+
+    private GPCard connect(SimulatedTerminal terminal, GPContext context, SCPSecurityPolicy policy) throws CardException {
+        GPCard gp = new GPCard(context, terminal);
+        gp.setSecurityPolicy(policy);
+        gp.connect();
+        return gp;
+    }
+
+    private GPLoadFile buildLoadFile(int blockSize) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        // header component
+        bos.write(0x01);
+        bos.write(0x00);
+        bos.write(10 + PACKAGE.getLength());
+        bos.write(HexUtil.hexToBytes("DECAFFED0102040001"), 0, 9);
+        bos.write(PACKAGE.getLength());
+        bos.write(PACKAGE.getBytes(), 0, PACKAGE.getLength());
+        // applet component
+        bos.write(0x03);
+        bos.write(0x00);
+        bos.write(4 + MODULE.getLength());
+        bos.write(0x01);
+        bos.write(MODULE.getLength());
+        bos.write(MODULE.getBytes(), 0, MODULE.getLength());
+        bos.write(0x00);
+        bos.write(0x10);
+        // some filler to force several blocks
+        bos.write(0x06);
+        bos.write(0x01);
+        bos.write(0x00);
+        bos.write(new byte[256], 0, 256);
+        byte[] components = bos.toByteArray();
+        byte[] header = ArrayUtil.concatenate(new byte[]{(byte) 0xC4}, TLVLength.lengthBytes(components.length));
+        byte[] raw = ArrayUtil.concatenate(header, components);
+        GPLoadFile file = new GPLoadFile(PACKAGE);
+        for (byte[] block : ArrayUtil.splitBlocks(raw, blockSize)) {
+            file.addBlock(block);
+        }
+        return file;
+    }
+
+    private void runLifecycle(GPCard gp, GPSimulatedCard card) throws CardException {
+        runLifecycle(gp, card, true);
+    }
+
+    private void runLifecycle(GPCard gp, GPSimulatedCard card, boolean modules) throws CardException {
+        GPIssuerDomain isd = gp.getIssuerDomain();
+        GPRegistry registry = gp.getRegistry();
+        // empty card
+        registry.update();
+        Assert.assertEquals(card.getISD(), registry.getISD().getAID());
+        Assert.assertTrue(registry.getAllApps().isEmpty());
+        Assert.assertTrue(registry.getAllELFs().isEmpty());
+        // load and install
+        isd.loadFile(buildLoadFile(100));
+        isd.installApplet(PACKAGE, MODULE, APPLET, null, null);
+        Assert.assertTrue(card.getRegistry().hasApplet(APPLET));
+        registry.update();
+        Assert.assertTrue(registry.hasPackage(PACKAGE));
+        Assert.assertTrue(registry.hasApplet(APPLET));
+        Assert.assertEquals(modules, registry.findPackage(PACKAGE).hasModule(MODULE));
+        if (modules) {
+            Assert.assertSame(registry.findPackage(PACKAGE), registry.findPackageForModule(MODULE));
+            Assert.assertTrue(registry.findChildren(card.getISD()).contains(registry.findApplet(APPLET)));
+        }
+        // deleting a package in use fails
+        try {
+            isd.deleteObject(PACKAGE);
+            Assert.fail("Deleted package with dependent applet");
+        } catch (CardException e) {
+            // expected
+        }
+        // delete with related objects
+        isd.deleteObject(PACKAGE, true);
+        registry.update();
+        Assert.assertFalse(registry.hasPackage(PACKAGE));
+        Assert.assertFalse(registry.hasApplet(APPLET));
+        Assert.assertEquals(0, card.getRegistry().getPackageCount());
+    }
+
+    public void testSCP03() throws CardException {
+        GPSimulatedCard card = new GPSimulatedCard();
+        GPCard gp = connect(card, SCPSecurityPolicy.CMAC);
+        try {
+            Assert.assertEquals(3, gp.getProtocol().scpVersion);
+            Assert.assertArrayEquals(card.getCIN(), gp.getCardCIN());
+            runLifecycle(gp, card);
+        } finally {
+            gp.disconnect();
+        }
+    }
+
+    public void testSCP03RMAC() throws CardException {
+        GPSimulatedCard card = new GPSimulatedCard();
+        GPCard gp = connect(card, SCPSecurityPolicy.RMAC);
+        try {
+            runLifecycle(gp, card);
+        } finally {
+            gp.disconnect();
+        }
+    }
+
+    public void testSCP02() throws CardException {
+        GPSimulatedCard card = new GPSimulatedCard();
+        card.setProtocol(SCPParameters.fromString("SCP02-15"));
+        GPCard gp = connect(card, SCPSecurityPolicy.CENC);
+        try {
+            Assert.assertEquals(2, gp.getProtocol().scpVersion);
+            runLifecycle(gp, card);
+        } finally {
+            gp.disconnect();
+        }
+    }
+
+    public void testSCP02RMAC() throws CardException {
+        GPSimulatedCard card = new GPSimulatedCard();
+        card.setProtocol(SCPParameters.fromString("SCP02-35"));
+        GPCard gp = connect(card, SCPSecurityPolicy.RMAC);
+        try {
+            runLifecycle(gp, card);
+        } finally {
+            gp.disconnect();
+        }
+    }
+
+    public void testLegacyStatus() throws CardException {
+        GPSimulatedCard card = new GPSimulatedCard();
+        card.setStatusFormats(false, false);
+        GPCard gp = connect(card, SCPSecurityPolicy.CMAC);
+        try {
+            runLifecycle(gp, card, false);
+        } finally {
+            gp.disconnect();
+        }
+    }
+
+    public void testStatusPaging() throws CardException {
+        GPSimulatedCard card = new GPSimulatedCard();
+        for (int i = 0; i < 40; i++) {
+            AID aid = new AID("D2760001771001" + HexUtil.hex8(i));
+            card.getRegistry().addPackage(aid, new byte[]{1, 0}, MODULE);
+        }
+        GPCard gp = connect(card, SCPSecurityPolicy.CMAC);
+        try {
+            GPRegistry registry = gp.getRegistry();
+            registry.update();
+            List<GPRegistry.ELFEntry> elfs = registry.getAllELFs();
+            Assert.assertEquals(40, elfs.size());
+            for (GPRegistry.ELFEntry elf : elfs) {
+                Assert.assertSame(elf, registry.findPackage(elf.getAID()));
+            }
+            // lists are unmodifiable snapshots
+            try {
+                elfs.clear();
+                Assert.fail("Modified registry snapshot");
+            } catch (UnsupportedOperationException e) {
+                // expected
+            }
+            registry.update();
+            Assert.assertEquals(40, elfs.size());
+        } finally {
+            gp.disconnect();
+        }
+    }
+
+    public void testIncrementalRegistry() throws CardException {
+        GPSimulatedCard card = new GPSimulatedCard();
+        for (int i = 0; i < 40; i++) {
+            AID aid = new AID("D2760001771002" + HexUtil.hex8(i));
+            card.getRegistry().addPackage(aid, new byte[]{1, 0}, MODULE);
+        }
+        SimulatedTerminal terminal = new SimulatedTerminal("Simulator", card);
+        GPCard gp = connect(terminal, SCPSecurityPolicy.CMAC);
+        try {
+            GPIssuerDomain isd = gp.getIssuerDomain();
+            GPRegistry registry = gp.getRegistry();
+            registry.update();
+            // load needs only INSTALL and LOAD commands
+            GPLoadFile file = buildLoadFile(100);
+            file.addModuleAID(MODULE);
+            long count = terminal.getCommandCount();
+            isd.loadFile(file);
+            Assert.assertEquals(1 + file.getNumBlocks(), terminal.getCommandCount() - count);
+            Assert.assertTrue(registry.hasPackage(PACKAGE));
+            Assert.assertSame(registry.findPackage(PACKAGE), registry.findPackageForModule(MODULE));
+            // install needs only INSTALL
+            count = terminal.getCommandCount();
+            isd.installApplet(PACKAGE, MODULE, APPLET, null, null);
+            Assert.assertEquals(1, terminal.getCommandCount() - count);
+            Assert.assertEquals(PACKAGE, registry.findApplet(APPLET).getPackage());
+            // delete removes related entries
+            count = terminal.getCommandCount();
+            isd.deleteObject(PACKAGE, true);
+            Assert.assertEquals(1, terminal.getCommandCount() - count);
+            Assert.assertFalse(registry.hasPackage(PACKAGE));
+            Assert.assertFalse(registry.hasApplet(APPLET));
+            Assert.assertEquals(40, registry.getAllELFs().size());
+        } finally {
+            gp.disconnect();
+        }
+    }
+
+    public void testVerifiedRegistry() throws CardException {
+        GPSimulatedCard card = new GPSimulatedCard();
+        GPCard gp = connect(card, SCPSecurityPolicy.CMAC);
+        try {
+            GPIssuerDomain isd = gp.getIssuerDomain();
+            GPRegistry registry = gp.getRegistry();
+            registry.setVerifyChanges(true);
+            registry.update();
+            // module information comes from the card
+            isd.loadFile(buildLoadFile(100));
+            Assert.assertTrue(registry.findPackage(PACKAGE).hasModule(MODULE));
+            isd.installApplet(PACKAGE, MODULE, APPLET, null, null);
+            Assert.assertTrue(registry.hasApplet(APPLET));
+            isd.deleteObject(PACKAGE, true);
+            Assert.assertFalse(registry.hasPackage(PACKAGE));
+            Assert.assertFalse(registry.hasApplet(APPLET));
+        } finally {
+            gp.disconnect();
+        }
+    }
+
+    public void testTargetedQuery() throws CardException {
+        GPSimulatedCard card = new GPSimulatedCard();
+        for (int i = 0; i < 40; i++) {
+            AID aid = new AID("D2760001771003" + HexUtil.hex8(i));
+            card.getRegistry().addPackage(aid, new byte[]{1, 0}, MODULE);
+        }
+        SimulatedTerminal terminal = new SimulatedTerminal("Simulator", card);
+        GPCard gp = connect(terminal, SCPSecurityPolicy.CMAC);
+        try {
+            GPRegistry registry = gp.getRegistry();
+            // lookups take one exchange each
+            long count = terminal.getCommandCount();
+            Assert.assertTrue(registry.hasPackage(new AID("D276000177100305")));
+            Assert.assertFalse(registry.hasPackage(new AID("D2760001771004")));
+            Assert.assertFalse(registry.hasApplet(APPLET));
+            Assert.assertEquals(3, terminal.getCommandCount() - count);
+            // prefix queries
+            Assert.assertEquals(40, registry.queryPackages(new AID("D2760001771003")).size());
+            Assert.assertEquals(0, registry.queryApplets(new AID("D2760001771003")).size());
+        } finally {
+            gp.disconnect();
+        }
+    }
+
+    public void testTargetedQueryFallback() throws CardException {
+        GPSimulatedCard card = new GPSimulatedCard();
+        card.setStatusCriteria(false);
+        card.getRegistry().addPackage(PACKAGE, new byte[]{1, 0}, MODULE);
+        GPCard gp = connect(card, SCPSecurityPolicy.CMAC);
+        try {
+            GPRegistry registry = gp.getRegistry();
+            Assert.assertTrue(registry.hasPackage(PACKAGE));
+            Assert.assertFalse(registry.hasApplet(APPLET));
+            Assert.assertEquals(1, registry.queryPackages(PACKAGE).size());
+        } finally {
+            gp.disconnect();
+        }
+    }
+
+    public void testTargetedQueryKeepsFormat() throws CardException {
+        int[] errors = {ISO7816.SW_INCORRECT_P1P2, ISO7816.SW_FUNC_NOT_SUPPORTED};
+        for (int error : errors) {
+            GPSimulatedCard card = new GPSimulatedCard();
+            card.setStatusCriteria(false, error);
+            card.getRegistry().addPackage(PACKAGE, new byte[]{1, 0}, MODULE);
+            GPCard gp = connect(card, SCPSecurityPolicy.CMAC);
+            try {
+                GPRegistry registry = gp.getRegistry();
+                // rejected criteria fall back to a full update
+                Assert.assertEquals(1, registry.queryPackages(PACKAGE).size());
+                Assert.assertEquals(0, registry.queryApplets(APPLET).size());
+                // which still uses TLV format with module information
+                Assert.assertEquals(PACKAGE, registry.findPackageForModule(MODULE).getAID());
+                Assert.assertEquals(1, registry.findPackage(PACKAGE).getModules().size());
+            } finally {
+                gp.disconnect();
+            }
+        }
+    }
+
+    public void testJournalFailureKeepsRegistry() throws CardException, IOException {
+        File file = File.createTempFile("journal", ".log");
+        try {
+            GPContext context = new GPContext();
+            GPJournal journal = new GPJournal(file);
+            context.setJournal(journal);
+            SimulatedTerminal terminal = new SimulatedTerminal("Simulator", new GPSimulatedCard());
+            GPCard gp = connect(terminal, context, SCPSecurityPolicy.CMAC);
+            try {
+                GPRegistry registry = gp.getRegistry();
+                registry.update();
+                // journal writes fail from now on
+                journal.close();
+                try {
+                    gp.getIssuerDomain().loadFile(buildLoadFile(100));
+                    fail("Load succeeded without journal");
+                } catch (CardException e) {
+                    // expected
+                }
+                try {
+                    gp.getIssuerDomain().installApplet(PACKAGE, MODULE, APPLET, null, null);
+                    fail("Install succeeded without journal");
+                } catch (CardException e) {
+                    // expected
+                }
+                // the model still reflects the card, without reading it again
+                long count = terminal.getCommandCount();
+                Assert.assertTrue(registry.hasPackage(PACKAGE));
+                Assert.assertTrue(registry.hasApplet(APPLET));
+                Assert.assertEquals(0, terminal.getCommandCount() - count);
+            } finally {
+                context.setJournal(null);
+                gp.disconnect();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testRegistryCache() throws CardException, IOException {
+        File directory = Files.createTempDirectory("registry").toFile();
+        GPRegistryCache cache = new GPRegistryCache(directory);
+        GPContext context = new GPContext();
+        context.setRegistryCache(cache);
+        GPSimulatedCard card = new GPSimulatedCard();
+        SimulatedTerminal terminal = new SimulatedTerminal("Simulator", card);
+        try {
+            // first session reads the registry
+            GPCard gp = connect(terminal, context, SCPSecurityPolicy.CMAC);
+            try {
+                gp.getRegistry().update();
+                gp.getIssuerDomain().loadFile(buildLoadFile(100));
+                gp.getIssuerDomain().installApplet(PACKAGE, MODULE, APPLET, null, null);
+            } finally {
+                gp.disconnect();
+            }
+            // next session uses the snapshot
+            gp = connect(terminal, context, SCPSecurityPolicy.CMAC);
+            try {
+                GPRegistry registry = gp.getRegistry();
+                long count = terminal.getCommandCount();
+                Assert.assertEquals(card.getISD(), registry.getISD().getAID());
+                Assert.assertTrue(registry.hasPackage(PACKAGE));
+                Assert.assertEquals(PACKAGE, registry.findApplet(APPLET).getPackage());
+                Assert.assertEquals(0, terminal.getCommandCount() - count);
+            } finally {
+                gp.disconnect();
+            }
+            // a change made without a session makes the snapshot stale
+            AID other = new AID("D276000177100211030001");
+            card.getRegistry().addApplet(other, PACKAGE, new byte[]{0});
+            gp = connect(terminal, context, SCPSecurityPolicy.CMAC);
+            try {
+                long count = terminal.getCommandCount();
+                Assert.assertTrue(gp.getRegistry().hasApplet(other));
+                Assert.assertTrue(terminal.getCommandCount() - count > 0);
+            } finally {
+                gp.disconnect();
+            }
+            // a foreign session makes the snapshot stale
+            connect(terminal, SCPSecurityPolicy.CMAC).disconnect();
+            gp = connect(terminal, context, SCPSecurityPolicy.CMAC);
+            try {
+                long count = terminal.getCommandCount();
+                Assert.assertTrue(gp.getRegistry().hasApplet(APPLET));
+                Assert.assertTrue(terminal.getCommandCount() - count > 0);
+            } finally {
+                gp.disconnect();
+            }
+        } finally {
+            cache.clear();
+            directory.delete();
+        }
+    }
+
+    public void testCardProfiles() throws CardException, IOException {
+        File directory = Files.createTempDirectory("profiles").toFile();
+        GPCardProfiles profiles = new GPCardProfiles(directory);
+        GPContext context = new GPContext();
+        context.setCardProfiles(profiles);
+        GPSimulatedCard card = new GPSimulatedCard(new AID("A000000018434D00"));
+        card.setStatusFormats(false, false);
+        card.getRegistry().addPackage(PACKAGE, new byte[]{1, 0}, MODULE);
+        SimulatedTerminal terminal = new SimulatedTerminal("Simulator", card);
+        try {
+            // first session probes the card
+            long count = terminal.getCommandCount();
+            GPCard gp = connect(terminal, context, SCPSecurityPolicy.CMAC);
+            try {
+                gp.getRegistry().update();
+                Assert.assertTrue(gp.getRegistry().hasPackage(PACKAGE));
+            } finally {
+                gp.disconnect();
+            }
+            long probed = terminal.getCommandCount() - count;
+            // next session starts from the profile
+            count = terminal.getCommandCount();
+            gp = connect(terminal, context, SCPSecurityPolicy.CMAC);
+            try {
+                Assert.assertEquals(card.getISD(), gp.getProfile().getISD());
+                Assert.assertTrue(gp.getProfile().isUseLegacyGeneric());
+                Assert.assertTrue(gp.getProfile().isUseLegacyELF());
+                gp.getRegistry().update();
+                Assert.assertTrue(gp.getRegistry().hasPackage(PACKAGE));
+            } finally {
+                gp.disconnect();
+            }
+            // two failed SELECTs and three failed GET STATUS are gone
+            Assert.assertEquals(probed - 5, terminal.getCommandCount() - count);
+        } finally {
+            profiles.clear();
+            directory.delete();
+        }
+    }
+
+    public void testLoadBlockSize() throws CardException, IOException {
+        File directory = Files.createTempDirectory("profiles").toFile();
+        GPCardProfiles profiles = new GPCardProfiles(directory);
+        GPContext context = new GPContext();
+        context.setCardProfiles(profiles);
+        GPSimulatedCard card = new GPSimulatedCard();
+        SimulatedTerminal terminal = new SimulatedTerminal("Simulator", card);
+        try {
+            GPCard gp = connect(terminal, context, SCPSecurityPolicy.CENC);
+            try {
+                GPIssuerDomain isd = gp.getIssuerDomain();
+                // largest legal block with C-MAC and C-ENC
+                Assert.assertEquals(239, isd.getMaxBlockSize());
+                Assert.assertEquals(239, isd.getLoadBlockSize(false));
+                // tuning tries each candidate once
+                int[] expected = {239, 119, 128};
+                for (int blockSize : expected) {
+                    Assert.assertEquals(blockSize, isd.getLoadBlockSize(true));
+                    isd.loadFile(buildLoadFile(blockSize));
+                    Assert.assertTrue(gp.getProfile().getLoadRate(blockSize) > 0);
+                    isd.deleteObject(PACKAGE);
+                }
+                // then sticks with the best one
+                int best = gp.getProfile().getBestBlockSize(239);
+                Assert.assertEquals(best, isd.getLoadBlockSize(true));
+                Assert.assertEquals(best, isd.getLoadBlockSize(false));
+            } finally {
+                gp.disconnect();
+            }
+        } finally {
+            profiles.clear();
+            directory.delete();
+        }
+    }
+
+    public void testPipelinedLoad() throws CardException {
+        GPSimulatedCard card = new GPSimulatedCard();
+        GPCard gp = connect(card, SCPSecurityPolicy.CMAC);
+        try {
+            GPSecureChannel secure = gp.getSecureChannel();
+            GPIssuerDomain isd = gp.getIssuerDomain();
+            // LOAD blocks are pipelined
+            isd.loadFile(buildLoadFile(32));
+            Assert.assertTrue(card.getRegistry().hasPackage(PACKAGE));
+            Assert.assertTrue(secure.getTiming().getPipelined() > 0);
+            isd.deleteObject(PACKAGE);
+            // a failure discards the command wrapped ahead
+            CommandAPDU load = APDUUtil.buildCommand(GP.CLA_GP, GP.INS_LOAD,
+                    GP.LOAD_P1_MORE_BLOCKS, (byte) 0, new byte[16]);
+            List<ResponseAPDU> responses = secure.transmitPipelined(Arrays.asList(load, load, load).iterator());
+            Assert.assertEquals(1, responses.size());
+            Assert.assertEquals(ISO7816.SW_CONDITIONS_NOT_SATISFIED, responses.get(0).getSW());
+            // and the channel remains usable
+            runLifecycle(gp, card);
+        } finally {
+            gp.disconnect();
+        }
+    }
+
+    public void testPipelineWorker() throws CardException, InterruptedException {
+        GPSimulatedCard card = new GPSimulatedCard();
+        GPCard gp = connect(card, SCPSecurityPolicy.CMAC);
+        final List<Thread> workers = new ArrayList<>();
+        try {
+            final CommandAPDU load = APDUUtil.buildCommand(GP.CLA_GP, GP.INS_LOAD,
+                    GP.LOAD_P1_MORE_BLOCKS, (byte) 0, new byte[16]);
+            for (int i = 0; i < 2; i++) {
+                final Iterator<CommandAPDU> commands = Arrays.asList(load, load).iterator();
+                gp.getSecureChannel().transmitPipelined(new Iterator<CommandAPDU>() {
+                    @Override
+                    public boolean hasNext() {
+                        return commands.hasNext();
+                    }
+                    @Override
+                    public CommandAPDU next() {
+                        workers.add(Thread.currentThread());
+                        return commands.next();
+                    }
+                });
+            }
+        } finally {
+            gp.disconnect();
+        }
+        // all calls share one worker
+        Assert.assertEquals(4, workers.size());
+        Thread worker = workers.get(0);
+        Assert.assertNotSame(Thread.currentThread(), worker);
+        for (Thread thread : workers) {
+            Assert.assertSame(worker, thread);
+        }
+        // which is stopped when the channel is closed
+        worker.join(5000);
+        Assert.assertFalse(worker.isAlive());
+    }
+
+    public void testSequentialLoad() throws CardException {
+        GPSimulatedCard card = new GPSimulatedCard();
+        GPCard gp = connect(card, SCPSecurityPolicy.RMAC);
+        try {
+            // responses are chained, so nothing is pipelined
+            gp.getIssuerDomain().loadFile(buildLoadFile(32));
+            Assert.assertTrue(card.getRegistry().hasPackage(PACKAGE));
+            Assert.assertEquals(0, gp.getSecureChannel().getTiming().getPipelined());
+        } finally {
+            gp.disconnect();
+        }
+    }
+
+    public void testAsyncCard() {
+        final AtomicInteger threads = new AtomicInteger();
+        GPContext context = new GPContext();
+        context.setThreadFactory(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                threads.incrementAndGet();
+                return new Thread(r);
+            }
+        });
+        List<GPAsyncCard> asyncs = new ArrayList<>();
+        try {
+            GPSimulatedCard[] cards = {new GPSimulatedCard(), new GPSimulatedCard()};
+            List<CompletableFuture<GPRegistry>> registries = new ArrayList<>();
+            List<CompletableFuture<Boolean>> results = new ArrayList<>();
+            for (GPSimulatedCard card : cards) {
+                GPCard gp = new GPCard(context, new SimulatedTerminal("Simulator", card));
+                GPAsyncCard async = new GPAsyncCard(gp);
+                asyncs.add(async);
+                // queued operations run in order
+                async.connect();
+                async.loadFile(buildLoadFile(100));
+                async.installApplet(PACKAGE, MODULE, APPLET, null, null);
+                registries.add(async.updateRegistry());
+                results.add(async.submit(new GPAsyncCard.Operation<Boolean>() {
+                    @Override
+                    public Boolean perform(GPCard card) {
+                        GPRegistry registry = card.getRegistry();
+                        return registry.hasPackage(PACKAGE) && registry.hasApplet(APPLET);
+                    }
+                }));
+                // failures complete exceptionally
+                CompletableFuture<Void> failed = async.deleteObject(new AID("D2760001771001FF"), false);
+                try {
+                    failed.join();
+                    Assert.fail("Deleted missing object");
+                } catch (CompletionException e) {
+                    Assert.assertTrue(e.getCause() instanceof CardException);
+                }
+                async.disconnect().join();
+            }
+            for (int i = 0; i < cards.length; i++) {
+                Assert.assertNotNull(registries.get(i).join());
+                Assert.assertTrue(results.get(i).join());
+                Assert.assertTrue(cards[i].getRegistry().hasApplet(APPLET));
+            }
+            // one thread per card
+            Assert.assertEquals(cards.length, threads.get());
+        } finally {
+            for (GPAsyncCard async : asyncs) {
+                async.close();
+            }
+        }
+    }
+
+    public void testWrongKeys() {
+        GPSimulatedCard card = new GPSimulatedCard();
+        GPKey key = new GPKey(0, GPKeyUsage.MASTER, GPKeyCipher.GENERIC, new byte[16]);
+        GPKeySet keys = new GPKeySet("Zero");
+        keys.putKey(key);
+        card.setKeys(keys);
+        try {
+            connect(card, SCPSecurityPolicy.CMAC);
+            Assert.fail("Connected with wrong keys");
+        } catch (CardException e) {
+            // expected
+        }
+    }
+
+}
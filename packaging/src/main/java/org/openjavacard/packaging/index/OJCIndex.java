@@ -0,0 +1,308 @@
+/*
+ * openjavacard-tools: Development tools for JavaCard
+ * Copyright (C) 2019 Ingo Albrecht <copyright@promovicz.org>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package org.openjavacard.packaging.index;
+
+import org.openjavacard.iso.AID;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Index of the CAP files in a repository
+ * <p/>
+ * Remembers size and modification time of each file so
+ * that updates only need to parse files that changed.
+ * <p/>
+ * Persisted in a compact binary format that can be
+ * read back without touching any CAP file.
+ * <p/>
+ * Immutable once built.
+ */
+public class OJCIndex {
+
+    private static final int MAGIC = 0x4F4A4349;
+    private static final int VERSION = 1;
+
+    /** Indexed state of one CAP file */
+    static class FileRecord {
+        final long mSize;
+        final long mModified;
+        final List<OJCIndexEntry> mEntries;
+
+        FileRecord(long size, long modified, List<OJCIndexEntry> entries) {
+            mSize = size;
+            mModified = modified;
+            mEntries = entries;
+        }
+    }
+
+    /** Records by relative path */
+    private final Map<String, FileRecord> mFiles;
+    /** All entries, ordered by path */
+    private final List<OJCIndexEntry> mEntries;
+
+    OJCIndex(Map<String, FileRecord> files) {
+        mFiles = new TreeMap<>(files);
+        List<OJCIndexEntry> entries = new ArrayList<>();
+        for (FileRecord record : mFiles.values()) {
+            entries.addAll(record.mEntries);
+        }
+        mEntries = Collections.unmodifiableList(entries);
+    }
+
+    /** @return an index without any files */
+    public static OJCIndex empty() {
+        return new OJCIndex(new TreeMap<String, FileRecord>());
+    }
+
+    /** @return number of indexed CAP files */
+    public int getFileCount() {
+        return mFiles.size();
+    }
+
+    /** @return all indexed packages */
+    public List<OJCIndexEntry> getEntries() {
+        return mEntries;
+    }
+
+    /**
+     * Find all versions of a package by AID
+     * @param aid of the package
+     * @return matching entries, newest version first
+     */
+    public List<OJCIndexEntry> findByAID(AID aid) {
+        List<OJCIndexEntry> res = new ArrayList<>();
+        for (OJCIndexEntry entry : mEntries) {
+            if (aid.equals(entry.getPackageAID())) {
+                res.add(entry);
+            }
+        }
+        sortByVersion(res);
+        return res;
+    }
+
+    /**
+     * Find all versions of a package by name
+     * @param name of the package
+     * @return matching entries, newest version first
+     */
+    public List<OJCIndexEntry> findByName(String name) {
+        List<OJCIndexEntry> res = new ArrayList<>();
+        for (OJCIndexEntry entry : mEntries) {
+            if (name.equals(entry.getPackageName())) {
+                res.add(entry);
+            }
+        }
+        sortByVersion(res);
+        return res;
+    }
+
+    /**
+     * Find a specific version of a package
+     * @param aid of the package
+     * @param version of the package
+     * @return the first matching entry, null if none
+     */
+    public OJCIndexEntry find(AID aid, String version) {
+        for (OJCIndexEntry entry : mEntries) {
+            if (aid.equals(entry.getPackageAID()) && version.equals(entry.getPackageVersion())) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /** Internal: get the record of a file */
+    FileRecord getRecord(String path) {
+        return mFiles.get(path);
+    }
+
+    /**
+     * Read an index from a file
+     * @param file to read
+     * @return the index
+     * @throws IOException on error or if the file is not a valid index
+     */
+    public static OJCIndex read(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not an index file: " + file);
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported index version " + version + " in " + file);
+            }
+            int fileCount = in.readInt();
+            Map<String, FileRecord> files = new TreeMap<>();
+            for (int i = 0; i < fileCount; i++) {
+                String path = in.readUTF();
+                long size = in.readLong();
+                long modified = in.readLong();
+                int entryCount = in.readUnsignedShort();
+                List<OJCIndexEntry> entries = new ArrayList<>(entryCount);
+                for (int j = 0; j < entryCount; j++) {
+                    String name = readString(in);
+                    AID aid = readAID(in);
+                    String pkgVersion = readString(in);
+                    List<OJCIndexEntry.Reference> applets = readReferences(in);
+                    List<OJCIndexEntry.Reference> imports = readReferences(in);
+                    entries.add(new OJCIndexEntry(path, name, aid, pkgVersion, applets, imports));
+                }
+                files.put(path, new FileRecord(size, modified, entries));
+            }
+            return new OJCIndex(files);
+        }
+    }
+
+    /**
+     * Write the index to a file
+     * <p/>
+     * The file is replaced atomically.
+     * <p/>
+     * @param file to write
+     * @throws IOException on error
+     */
+    public void write(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(mFiles.size());
+            for (Map.Entry<String, FileRecord> item : mFiles.entrySet()) {
+                FileRecord record = item.getValue();
+                out.writeUTF(item.getKey());
+                out.writeLong(record.mSize);
+                out.writeLong(record.mModified);
+                out.writeShort(record.mEntries.size());
+                for (OJCIndexEntry entry : record.mEntries) {
+                    writeString(out, entry.getPackageName());
+                    writeAID(out, entry.getPackageAID());
+                    writeString(out, entry.getPackageVersion());
+                    writeReferences(out, entry.getApplets());
+                    writeReferences(out, entry.getImports());
+                }
+            }
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Compare version strings
+     * <p/>
+     * Versions are compared by their numeric dot-separated parts.
+     * Missing or non-numeric parts count as zero.
+     * <p/>
+     * @return negative, zero or positive like a comparator
+     */
+    static int compareVersions(String a, String b) {
+        String[] as = a == null ? new String[0] : a.split("\\.");
+        String[] bs = b == null ? new String[0] : b.split("\\.");
+        for (int i = 0; i < Math.max(as.length, bs.length); i++) {
+            int c = Integer.compare(versionPart(as, i), versionPart(bs, i));
+            if (c != 0) {
+                return c;
+            }
+        }
+        return 0;
+    }
+
+    private static int versionPart(String[] parts, int index) {
+        if (index >= parts.length) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(parts[index].trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static void sortByVersion(List<OJCIndexEntry> entries) {
+        Collections.sort(entries, new Comparator<OJCIndexEntry>() {
+            @Override
+            public int compare(OJCIndexEntry a, OJCIndexEntry b) {
+                return compareVersions(b.getPackageVersion(), a.getPackageVersion());
+            }
+        });
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        String value = in.readUTF();
+        return value.isEmpty() ? null : value;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeUTF(value == null ? "" : value);
+    }
+
+    private static AID readAID(DataInputStream in) throws IOException {
+        int length = in.readUnsignedByte();
+        if (length == 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new AID(bytes);
+    }
+
+    private static void writeAID(DataOutputStream out, AID aid) throws IOException {
+        if (aid == null) {
+            out.writeByte(0);
+        } else {
+            byte[] bytes = aid.getBytes();
+            out.writeByte(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static List<OJCIndexEntry.Reference> readReferences(DataInputStream in) throws IOException {
+        int count = in.readUnsignedShort();
+        List<OJCIndexEntry.Reference> res = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            AID aid = readAID(in);
+            String label = readString(in);
+            res.add(new OJCIndexEntry.Reference(aid, label));
+        }
+        return res;
+    }
+
+    private static void writeReferences(DataOutputStream out, List<OJCIndexEntry.Reference> references) throws IOException {
+        out.writeShort(references.size());
+        for (OJCIndexEntry.Reference reference : references) {
+            writeAID(out, reference.getAID());
+            writeString(out, reference.getLabel());
+        }
+    }
+
+}
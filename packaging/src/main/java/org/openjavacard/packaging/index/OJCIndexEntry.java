@@ -0,0 +1,104 @@
+/*
+ * openjavacard-tools: Development tools for JavaCard
+ * Copyright (C) 2019 Ingo Albrecht <copyright@promovicz.org>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package org.openjavacard.packaging.index;
+
+import org.openjavacard.iso.AID;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Index entry for one package in a CAP file
+ */
+public class OJCIndexEntry {
+
+    /** Reference to another package or to an applet */
+    public static class Reference {
+        private final AID mAID;
+        private final String mLabel;
+
+        Reference(AID aid, String label) {
+            mAID = aid;
+            mLabel = label;
+        }
+
+        public AID getAID() {
+            return mAID;
+        }
+
+        /** @return version of an import or name of an applet */
+        public String getLabel() {
+            return mLabel;
+        }
+
+        public String toString() {
+            return mAID + " " + mLabel;
+        }
+    }
+
+    private final String mPath;
+    private final String mPackageName;
+    private final AID mPackageAID;
+    private final String mPackageVersion;
+    private final List<Reference> mApplets;
+    private final List<Reference> mImports;
+
+    OJCIndexEntry(String path, String packageName, AID packageAID, String packageVersion,
+                  List<Reference> applets, List<Reference> imports) {
+        mPath = path;
+        mPackageName = packageName;
+        mPackageAID = packageAID;
+        mPackageVersion = packageVersion;
+        mApplets = Collections.unmodifiableList(applets);
+        mImports = Collections.unmodifiableList(imports);
+    }
+
+    /** @return path of the CAP file, relative to the repository */
+    public String getPath() {
+        return mPath;
+    }
+
+    public String getPackageName() {
+        return mPackageName;
+    }
+
+    public AID getPackageAID() {
+        return mPackageAID;
+    }
+
+    public String getPackageVersion() {
+        return mPackageVersion;
+    }
+
+    /** @return applets with their names */
+    public List<Reference> getApplets() {
+        return mApplets;
+    }
+
+    /** @return imported packages with their versions */
+    public List<Reference> getImports() {
+        return mImports;
+    }
+
+    public String toString() {
+        return "OJCIndexEntry " + mPackageAID + " " + mPackageVersion + " (" + mPackageName + ") in " + mPath;
+    }
+
+}
@@ -0,0 +1,230 @@
+/*
+ * openjavacard-tools: Development tools for JavaCard
+ * Copyright (C) 2019 Ingo Albrecht <copyright@promovicz.org>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package org.openjavacard.packaging.index;
+
+import org.openjavacard.cap.file.CapFile;
+import org.openjavacard.cap.file.CapFileApplet;
+import org.openjavacard.cap.file.CapFileImport;
+import org.openjavacard.cap.file.CapFilePackage;
+import org.openjavacard.cap.file.CapFileReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Indexer for a repository of CAP files
+ * <p/>
+ * Walks the directory tree in parallel on a fork-join pool.
+ * Files are only parsed if they are new or if their size or
+ * modification time differ from the previous index. Parsing
+ * only touches the manifest, so component data is never read.
+ * <p/>
+ * Files that fail to parse are indexed without packages, so
+ * they are not retried until they change.
+ */
+public class OJCIndexer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(OJCIndexer.class);
+
+    private static final String SUFFIX_CAP = ".cap";
+
+    /** Number of files handled by one task */
+    private static final int FILES_PER_TASK = 16;
+
+    private final File mRoot;
+    private ForkJoinPool mPool = ForkJoinPool.commonPool();
+
+    private final AtomicInteger mParsed = new AtomicInteger();
+    private final AtomicInteger mReused = new AtomicInteger();
+    private final AtomicInteger mFailed = new AtomicInteger();
+
+    /**
+     * Construct an indexer
+     * @param root directory of the repository
+     */
+    public OJCIndexer(File root) {
+        mRoot = root;
+    }
+
+    /** @param pool to run on instead of the common pool */
+    public void setPool(ForkJoinPool pool) {
+        mPool = pool;
+    }
+
+    /** @return number of files parsed by the last update */
+    public int getParsedCount() {
+        return mParsed.get();
+    }
+
+    /** @return number of files taken from the previous index by the last update */
+    public int getReusedCount() {
+        return mReused.get();
+    }
+
+    /** @return number of files that failed to parse in the last update */
+    public int getFailedCount() {
+        return mFailed.get();
+    }
+
+    /**
+     * Build an index of the repository
+     * @param previous index to update, may be null
+     * @return the new index
+     * @throws IOException if the repository can not be read
+     */
+    public OJCIndex update(OJCIndex previous) throws IOException {
+        if (!mRoot.isDirectory()) {
+            throw new IOException("Not a directory: " + mRoot);
+        }
+        mParsed.set(0);
+        mReused.set(0);
+        mFailed.set(0);
+        if (previous == null) {
+            previous = OJCIndex.empty();
+        }
+        Map<String, OJCIndex.FileRecord> files = mPool.invoke(new DirectoryTask(previous, mRoot, ""));
+        LOG.debug("indexed " + mRoot + ": " + mParsed + " parsed, " + mReused + " reused, " + mFailed + " failed");
+        return new OJCIndex(files);
+    }
+
+    /** Task indexing a directory and its subdirectories */
+    private class DirectoryTask extends RecursiveTask<Map<String, OJCIndex.FileRecord>> {
+        private final OJCIndex mPrevious;
+        private final File mDirectory;
+        private final String mPrefix;
+
+        DirectoryTask(OJCIndex previous, File directory, String prefix) {
+            mPrevious = previous;
+            mDirectory = directory;
+            mPrefix = prefix;
+        }
+
+        @Override
+        protected Map<String, OJCIndex.FileRecord> compute() {
+            Map<String, OJCIndex.FileRecord> res = new HashMap<>();
+            File[] children = mDirectory.listFiles();
+            if (children == null) {
+                LOG.warn("could not list " + mDirectory);
+                return res;
+            }
+            Arrays.sort(children);
+            List<RecursiveTask<Map<String, OJCIndex.FileRecord>>> tasks = new ArrayList<>();
+            List<File> files = new ArrayList<>();
+            for (File child : children) {
+                String path = mPrefix + child.getName();
+                if (child.isDirectory()) {
+                    // avoid cycles through links
+                    if (!Files.isSymbolicLink(child.toPath())) {
+                        tasks.add(new DirectoryTask(mPrevious, child, path + "/"));
+                    }
+                } else if (child.getName().endsWith(SUFFIX_CAP)) {
+                    files.add(child);
+                    if (files.size() == FILES_PER_TASK) {
+                        tasks.add(new FileTask(mPrevious, files, mPrefix));
+                        files = new ArrayList<>();
+                    }
+                }
+            }
+            // fork the tasks and handle remaining files meanwhile
+            for (RecursiveTask<Map<String, OJCIndex.FileRecord>> task : tasks) {
+                task.fork();
+            }
+            res.putAll(new FileTask(mPrevious, files, mPrefix).compute());
+            for (int i = tasks.size() - 1; i >= 0; i--) {
+                res.putAll(tasks.get(i).join());
+            }
+            return res;
+        }
+    }
+
+    /** Task indexing a batch of files */
+    private class FileTask extends RecursiveTask<Map<String, OJCIndex.FileRecord>> {
+        private final OJCIndex mPrevious;
+        private final List<File> mFiles;
+        private final String mPrefix;
+
+        FileTask(OJCIndex previous, List<File> files, String prefix) {
+            mPrevious = previous;
+            mFiles = files;
+            mPrefix = prefix;
+        }
+
+        @Override
+        protected Map<String, OJCIndex.FileRecord> compute() {
+            Map<String, OJCIndex.FileRecord> res = new HashMap<>();
+            for (File file : mFiles) {
+                String path = mPrefix + file.getName();
+                long size = file.length();
+                long modified = file.lastModified();
+                OJCIndex.FileRecord record = mPrevious.getRecord(path);
+                if (record != null && record.mSize == size && record.mModified == modified) {
+                    mReused.incrementAndGet();
+                } else {
+                    record = new OJCIndex.FileRecord(size, modified, indexFile(file, path));
+                }
+                res.put(path, record);
+            }
+            return res;
+        }
+    }
+
+    private List<OJCIndexEntry> indexFile(File file, String path) {
+        LOG.trace("indexing " + path);
+        List<OJCIndexEntry> res = new ArrayList<>();
+        CapFile capFile;
+        try {
+            capFile = CapFileReader.readFile(file);
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("could not read " + file + ": " + e.getMessage());
+            mFailed.incrementAndGet();
+            return res;
+        }
+        mParsed.incrementAndGet();
+        for (CapFilePackage pkg : capFile.getPackages()) {
+            List<OJCIndexEntry.Reference> applets = new ArrayList<>();
+            for (CapFileApplet applet : pkg.getApplets()) {
+                if (applet != null) {
+                    applets.add(new OJCIndexEntry.Reference(applet.getAID(), applet.getName()));
+                }
+            }
+            List<OJCIndexEntry.Reference> imports = new ArrayList<>();
+            for (CapFileImport imp : pkg.getImports()) {
+                if (imp != null) {
+                    imports.add(new OJCIndexEntry.Reference(imp.getAID(), imp.getVersion()));
+                }
+            }
+            res.add(new OJCIndexEntry(path, pkg.getPackageName(), pkg.getPackageAID(),
+                    pkg.getPackageVersion(), applets, imports));
+        }
+        return res;
+    }
+
+}
@@ -19,5 +19,48 @@
 
 package org.openjavacard.packaging.manager;
 
+import org.openjavacard.iso.AID;
+import org.openjavacard.packaging.index.OJCIndexEntry;
+
+import java.io.File;
+
+/**
+ * Package available from a repository
+ */
 public class OJCPackage {
+
+    private final File mFile;
+    private final OJCIndexEntry mEntry;
+
+    OJCPackage(File file, OJCIndexEntry entry) {
+        mFile = file;
+        mEntry = entry;
+    }
+
+    /** @return CAP file containing the package */
+    public File getFile() {
+        return mFile;
+    }
+
+    /** @return index information on the package */
+    public OJCIndexEntry getEntry() {
+        return mEntry;
+    }
+
+    public String getName() {
+        return mEntry.getPackageName();
+    }
+
+    public AID getAID() {
+        return mEntry.getPackageAID();
+    }
+
+    public String getVersion() {
+        return mEntry.getPackageVersion();
+    }
+
+    public String toString() {
+        return "OJCPackage " + getAID() + " " + getVersion() + " (" + getName() + ")";
+    }
+
 }
@@ -20,32 +20,144 @@
 package org.openjavacard.packaging.manager;
 
 import org.openjavacard.iso.AID;
+import org.openjavacard.packaging.index.OJCIndex;
+import org.openjavacard.packaging.index.OJCIndexEntry;
+import org.openjavacard.packaging.index.OJCIndexer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
+/**
+ * Source of packages
+ * <p/>
+ * Packages come from a repository directory of CAP files,
+ * which is indexed on initialization. The index is kept in
+ * the repository and updated incrementally.
+ * <p/>
+ * Without a repository no packages are available.
+ */
 public class OJCPackageContext {
 
     private static final Logger LOG = LoggerFactory.getLogger(OJCPackageContext.class);
 
-    public void initialize() {
+    /** Default name of the index file in a repository */
+    public static final String INDEX_NAME = ".ojc-index";
+
+    private final File mRepository;
+    private final File mIndexFile;
+
+    private OJCIndex mIndex = OJCIndex.empty();
+
+    /**
+     * Construct a context without a repository
+     */
+    public OJCPackageContext() {
+        this(null, null);
+    }
+
+    /**
+     * Construct a context with a repository
+     * @param repository directory containing CAP files
+     */
+    public OJCPackageContext(File repository) {
+        this(repository, new File(repository, INDEX_NAME));
+    }
+
+    /**
+     * Construct a context with a repository
+     * @param repository directory containing CAP files
+     * @param indexFile to keep the index in
+     */
+    public OJCPackageContext(File repository, File indexFile) {
+        mRepository = repository;
+        mIndexFile = indexFile;
+    }
+
+    /** @return the current index */
+    public OJCIndex getIndex() {
+        return mIndex;
+    }
+
+    /**
+     * Load and update the repository index
+     * @throws IOException if the repository can not be indexed
+     */
+    public void initialize() throws IOException {
         LOG.debug("initialize()");
+        if (mRepository == null) {
+            return;
+        }
+        OJCIndex previous = null;
+        if (mIndexFile.isFile()) {
+            try {
+                previous = OJCIndex.read(mIndexFile);
+            } catch (IOException e) {
+                LOG.warn("rebuilding unreadable index " + mIndexFile, e);
+            }
+        }
+        OJCIndexer indexer = new OJCIndexer(mRepository);
+        mIndex = indexer.update(previous);
+        if (previous == null || indexer.getReusedCount() != mIndex.getFileCount()
+                || previous.getFileCount() != mIndex.getFileCount()) {
+            try {
+                mIndex.write(mIndexFile);
+            } catch (IOException e) {
+                // the repository may be read-only
+                LOG.warn("could not write index " + mIndexFile, e);
+            }
+        }
     }
 
     public List<OJCPackage> getPackages() {
-        return new ArrayList<>();
+        List<OJCPackage> res = new ArrayList<>();
+        for (OJCIndexEntry entry : mIndex.getEntries()) {
+            res.add(toPackage(entry));
+        }
+        return res;
     }
 
+    /**
+     * Find the newest version of a package by AID
+     * @param aid of the package
+     * @return the package, null if not available
+     */
     public OJCPackage findPackageByAID(AID aid) {
         LOG.debug("findPackageByAID(" + aid + ")");
-        return null;
+        return first(mIndex.findByAID(aid));
     }
 
+    /**
+     * Find the newest version of a package by name
+     * @param name of the package
+     * @return the package, null if not available
+     */
     public OJCPackage findPackageByName(String name) {
         LOG.debug("findPackageByName(" + name + ")");
-        return null;
+        return first(mIndex.findByName(name));
+    }
+
+    /**
+     * Find a specific version of a package
+     * @param aid of the package
+     * @param version of the package
+     * @return the package, null if not available
+     */
+    public OJCPackage findPackage(AID aid, String version) {
+        LOG.debug("findPackage(" + aid + ", " + version + ")");
+        OJCIndexEntry entry = mIndex.find(aid, version);
+        return entry == null ? null : toPackage(entry);
+    }
+
+    private OJCPackage first(List<OJCIndexEntry> entries) {
+        return entries.isEmpty() ? null : toPackage(entries.get(0));
+    }
+
+    private OJCPackage toPackage(OJCIndexEntry entry) {
+        return new OJCPackage(new File(mRepository, entry.getPath()), entry);
     }
 
 }
@@ -0,0 +1,133 @@
+/*
+ * openjavacard-tools: Development tools for JavaCard
+ * Copyright (C) 2019 Ingo Albrecht <copyright@promovicz.org>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package org.openjavacard.packaging.index;
+
+import junit.framework.TestCase;
+import org.junit.Assert;
+import org.openjavacard.cap.test.CapTestFiles;
+import org.openjavacard.packaging.manager.OJCPackage;
+import org.openjavacard.packaging.manager.OJCPackageContext;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+public class OJCIndexerTest extends TestCase {
+
+    private File mRoot;
+
+    @Override
+    protected void setUp() throws Exception {
+        mRoot = Files.createTempDirectory("repository").toFile();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        delete(mRoot);
+    }
+
+    public void testIndex() throws IOException {
+        // two copies of every test file in a tree, and a broken file
+        List<File> files = new ArrayList<>();
+        int count = 0;
+        for (byte[] data : CapTestFiles.getBytes()) {
+            files.add(write(new File(mRoot, "a/" + count + ".cap"), data));
+            files.add(write(new File(mRoot, "b/c/" + count + ".cap"), data));
+            count++;
+        }
+        write(new File(mRoot, "broken.cap"), new byte[]{1, 2, 3});
+        write(new File(mRoot, "readme.txt"), new byte[]{1, 2, 3});
+        // build the index
+        OJCIndexer indexer = new OJCIndexer(mRoot);
+        OJCIndex index = indexer.update(null);
+        Assert.assertEquals(2 * count, indexer.getParsedCount());
+        Assert.assertEquals(1, indexer.getFailedCount());
+        Assert.assertEquals(2 * count + 1, index.getFileCount());
+        Assert.assertEquals(2 * count, index.getEntries().size());
+        OJCIndexEntry entry = index.getEntries().get(0);
+        Assert.assertEquals(2, index.findByAID(entry.getPackageAID()).size());
+        Assert.assertNotNull(index.find(entry.getPackageAID(), entry.getPackageVersion()));
+        // persist and reopen
+        File indexFile = new File(mRoot, "index");
+        index.write(indexFile);
+        OJCIndex reopened = OJCIndex.read(indexFile);
+        Assert.assertEquals(index.getFileCount(), reopened.getFileCount());
+        Assert.assertEquals(index.getEntries().size(), reopened.getEntries().size());
+        OJCIndexEntry read = reopened.getEntries().get(0);
+        Assert.assertEquals(entry.getPath(), read.getPath());
+        Assert.assertEquals(entry.getPackageAID(), read.getPackageAID());
+        Assert.assertEquals(entry.getApplets().size(), read.getApplets().size());
+        Assert.assertEquals(entry.getImports().size(), read.getImports().size());
+        // update incrementally
+        Assert.assertTrue(files.get(0).setLastModified(files.get(0).lastModified() - 10000));
+        Assert.assertTrue(files.get(1).delete());
+        index = indexer.update(reopened);
+        Assert.assertEquals(1, indexer.getParsedCount());
+        Assert.assertEquals(2 * count - 1, indexer.getReusedCount());
+        Assert.assertEquals(2 * count, index.getFileCount());
+    }
+
+    public void testContext() throws IOException {
+        int count = 0;
+        for (byte[] data : CapTestFiles.getBytes()) {
+            write(new File(mRoot, count + ".cap"), data);
+            count++;
+        }
+        OJCPackageContext context = new OJCPackageContext(mRoot);
+        context.initialize();
+        Assert.assertEquals(count, context.getPackages().size());
+        Assert.assertTrue(new File(mRoot, OJCPackageContext.INDEX_NAME).isFile());
+        // lookups work from the reopened index
+        OJCPackage pkg = context.getPackages().get(0);
+        context = new OJCPackageContext(mRoot);
+        context.initialize();
+        Assert.assertEquals(pkg.getFile(), context.findPackageByAID(pkg.getAID()).getFile());
+        Assert.assertEquals(pkg.getAID(), context.findPackageByName(pkg.getName()).getAID());
+        Assert.assertNotNull(context.findPackage(pkg.getAID(), pkg.getVersion()));
+    }
+
+    public void testCompareVersions() {
+        Assert.assertTrue(OJCIndex.compareVersions("1.10", "1.9") > 0);
+        Assert.assertTrue(OJCIndex.compareVersions("1.0", "2.0") < 0);
+        Assert.assertEquals(0, OJCIndex.compareVersions("1.0", "1"));
+    }
+
+    private static File write(File file, byte[] data) throws IOException {
+        file.getParentFile().mkdirs();
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            fos.write(data);
+        }
+        return file;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+}
@@ -19,15 +19,26 @@
 
 package org.openjavacard.testbench.main;
 
+import org.openjavacard.cap.file.CapFilePackage;
+import org.openjavacard.cap.file.CapFileReader;
 import org.openjavacard.generic.GenericContext;
 import org.openjavacard.gp.client.GPContext;
+import org.openjavacard.util.HexUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.smartcardio.CardException;
 import javax.smartcardio.CardTerminal;
+import javax.smartcardio.CommandAPDU;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class Bench {
 
@@ -40,19 +51,67 @@ public class Bench {
 
     private List<BenchReader> mReaders;
 
+    private BenchResults mResults;
+    private CapFilePackage mPackage;
+    private CommandAPDU mApdu;
+
     public Bench(BenchConfiguration config) {
         mConfig = config;
         mContext = new GPContext();
         mGeneric = new GenericContext();
         mReaders = new ArrayList<>();
+        mResults = new BenchResults();
+    }
+
+    public BenchConfiguration getConfiguration() {
+        return mConfig;
     }
 
     public GPContext getContext() {
         return mContext;
     }
 
+    public BenchResults getResults() {
+        return mResults;
+    }
+
+    /** @return package for the LOAD_DELETE workload */
+    public CapFilePackage getPackage() {
+        return mPackage;
+    }
+
+    /** @return command for the ECHO workload */
+    public CommandAPDU getApdu() {
+        return mApdu;
+    }
+
     public void configure() {
         LOG.debug("configure()");
+        // determine workloads
+        if(mConfig.workloads.isEmpty()) {
+            mConfig.workloads.add(BenchWorkload.REGISTRY);
+        }
+        if(mConfig.iterations < 1) {
+            throw new Error("Need at least one iteration");
+        }
+        LOG.info("using workloads " + mConfig.workloads);
+        // read the CAP file if needed
+        if(mConfig.workloads.contains(BenchWorkload.LOAD_DELETE)) {
+            if(mConfig.cap == null) {
+                throw new Error("The LOAD_DELETE workload needs a CAP file");
+            }
+            try {
+                mPackage = CapFileReader.readFile(mConfig.cap).getPackage();
+            } catch (IOException e) {
+                throw new Error("Could not read CAP file " + mConfig.cap, e);
+            }
+        }
+        // parse the echo command
+        try {
+            mApdu = new CommandAPDU(HexUtil.hexToBytes(mConfig.apdu));
+        } catch (IllegalArgumentException e) {
+            throw new Error("Invalid APDU " + mConfig.apdu, e);
+        }
         // determine readers to use
         List<CardTerminal> terminals;
         if(mConfig.allReaders) {
@@ -103,11 +162,59 @@ public class Bench {
         for(BenchReader reader: mReaders) {
             reader.runSession();
         }
+        for(BenchResults.Entry entry: mResults.getEntries()) {
+            LOG.info(entry.toString());
+        }
+        writeReports();
     }
 
     private void executePoll() {
+        final Map<String, BenchReader> readers = new HashMap<>();
+        BenchMonitor monitor = new BenchMonitor(mGeneric.getTerminals(), mConfig.workers);
         for(BenchReader reader: mReaders) {
-            reader.startPolling();
+            readers.put(reader.getName(), reader);
+            monitor.addTerminal(reader.getTerminal());
+        }
+        // run a session for every inserted card
+        monitor.addListener(new BenchMonitor.Listener() {
+            @Override
+            public void cardInserted(CardTerminal terminal) {
+                readers.get(terminal.getName()).runSession();
+                writeReports();
+            }
+            @Override
+            public void cardRemoved(CardTerminal terminal) {
+                LOG.debug("card removed from \"" + terminal.getName() + "\"");
+            }
+        });
+        monitor.start();
+        try {
+            monitor.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Write the configured reports
+     * <p/>
+     * Called after sessions in poll mode, so that
+     * the reports are current when the bench is killed.
+     */
+    public synchronized void writeReports() {
+        try {
+            if(mConfig.csv != null) {
+                try (Writer writer = new OutputStreamWriter(new FileOutputStream(mConfig.csv), StandardCharsets.UTF_8)) {
+                    mResults.writeCsv(writer);
+                }
+            }
+            if(mConfig.json != null) {
+                try (Writer writer = new OutputStreamWriter(new FileOutputStream(mConfig.json), StandardCharsets.UTF_8)) {
+                    mResults.writeJson(writer);
+                }
+            }
+        } catch (IOException e) {
+            LOG.error("Error writing reports", e);
         }
     }
 
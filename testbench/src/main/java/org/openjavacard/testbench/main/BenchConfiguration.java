@@ -21,6 +21,7 @@ package org.openjavacard.testbench.main;
 
 import com.beust.jcommander.Parameter;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -44,4 +45,52 @@ public class BenchConfiguration {
     )
     BenchMode mode = BenchMode.ONCE;
 
+    @Parameter(
+            names = "--workers",
+            description = "Number of concurrent card sessions in poll mode"
+    )
+    int workers = 4;
+
+    @Parameter(
+            names = "--workload",
+            description = "Workload to run in each session (may be repeated)"
+    )
+    List<BenchWorkload> workloads = new ArrayList<>();
+
+    @Parameter(
+            names = "--iterations",
+            description = "Number of times each workload is run per session"
+    )
+    int iterations = 1;
+
+    @Parameter(
+            names = "--cap",
+            description = "CAP file for the LOAD_DELETE workload"
+    )
+    File cap;
+
+    @Parameter(
+            names = "--apdu",
+            description = "Command APDU for the ECHO workload (hex)"
+    )
+    String apdu = "00A4040000";
+
+    @Parameter(
+            names = "--apdu-count",
+            description = "Number of APDUs sent per ECHO workload"
+    )
+    int apduCount = 16;
+
+    @Parameter(
+            names = "--csv",
+            description = "Write a CSV report to the given file"
+    )
+    File csv;
+
+    @Parameter(
+            names = "--json",
+            description = "Write a JSON report to the given file"
+    )
+    File json;
+
 }
@@ -0,0 +1,137 @@
+/*
+ * openjavacard-tools: Development tools for JavaCard
+ * Copyright (C) 2019 Ingo Albrecht <copyright@promovicz.org>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package org.openjavacard.testbench.main;
+
+/**
+ * Latency histogram with bounded relative error
+ * <p/>
+ * Values are counted in logarithmic buckets, each divided
+ * into 64 linear sub-buckets, so that percentiles are
+ * accurate to about 1.5% with constant memory per histogram.
+ * Count, sum, minimum and maximum are exact.
+ * <p/>
+ * Not synchronized.
+ */
+public class BenchHistogram {
+
+    private static final int SUB_BITS = 6;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int BUCKET_COUNT = (64 - SUB_BITS) * SUB_COUNT;
+
+    private final long[] mCounts = new long[BUCKET_COUNT];
+    private long mCount;
+    private long mSum;
+    private long mMin = Long.MAX_VALUE;
+    private long mMax = Long.MIN_VALUE;
+
+    /**
+     * Record a value
+     * @param value to record, must not be negative
+     */
+    public void record(long value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Negative value " + value);
+        }
+        mCounts[indexOf(value)]++;
+        mCount++;
+        mSum += value;
+        mMin = Math.min(mMin, value);
+        mMax = Math.max(mMax, value);
+    }
+
+    /** @return an independent copy of this histogram */
+    public BenchHistogram copy() {
+        BenchHistogram res = new BenchHistogram();
+        System.arraycopy(mCounts, 0, res.mCounts, 0, BUCKET_COUNT);
+        res.mCount = mCount;
+        res.mSum = mSum;
+        res.mMin = mMin;
+        res.mMax = mMax;
+        return res;
+    }
+
+    /** @return number of recorded values */
+    public long getCount() {
+        return mCount;
+    }
+
+    /** @return smallest recorded value, 0 if empty */
+    public long getMin() {
+        return mCount == 0 ? 0 : mMin;
+    }
+
+    /** @return largest recorded value, 0 if empty */
+    public long getMax() {
+        return mCount == 0 ? 0 : mMax;
+    }
+
+    /** @return mean of recorded values, 0 if empty */
+    public long getMean() {
+        return mCount == 0 ? 0 : mSum / mCount;
+    }
+
+    /**
+     * Get a percentile
+     * <p/>
+     * Returns the upper bound of the bucket containing the
+     * value of the given rank, clamped to the recorded range.
+     * <p/>
+     * @param percentile between 0 and 100
+     * @return value at the percentile, 0 if empty
+     */
+    public long getPercentile(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("Invalid percentile " + percentile);
+        }
+        if (mCount == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * mCount));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mCounts[i];
+            if (seen >= rank) {
+                return Math.max(mMin, Math.min(mMax, upperBoundOf(i)));
+            }
+        }
+        return mMax;
+    }
+
+    /** @return index of the bucket counting the given value */
+    static int indexOf(long value) {
+        if (value < SUB_COUNT) {
+            return (int) value;
+        }
+        int msb = 63 - Long.numberOfLeadingZeros(value);
+        int shift = msb - SUB_BITS;
+        return (shift + 1) * SUB_COUNT + (int) ((value >>> shift) - SUB_COUNT);
+    }
+
+    /** @return largest value counted in the bucket with the given index */
+    static long upperBoundOf(int index) {
+        if (index < SUB_COUNT) {
+            return index;
+        }
+        int shift = index / SUB_COUNT - 1;
+        long sub = index % SUB_COUNT;
+        return ((SUB_COUNT + sub + 1) << shift) - 1;
+    }
+
+}
@@ -0,0 +1,323 @@
+/*
+ * openjavacard-tools: Development tools for JavaCard
+ * Copyright (C) 2019 Ingo Albrecht <copyright@promovicz.org>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package org.openjavacard.testbench.main;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.CardTerminals;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Card presence monitor for many terminals
+ * <p/>
+ * A single thread waits for changes on all terminals using
+ * {@link CardTerminals#waitForChange(long)} and dispatches
+ * insertion and removal events to a bounded pool of workers.
+ * <p/>
+ * Events for one terminal are delivered in order and never
+ * concurrently, so a listener can run a whole card session
+ * from its insertion callback. Sessions in different terminals
+ * run in parallel, up to the number of workers.
+ */
+public class BenchMonitor {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BenchMonitor.class);
+
+    /** Timeout for each wait, bounds the time needed to stop */
+    private static final long WAIT_TIMEOUT = 1000;
+
+    /**
+     * Hook for presence events
+     * <p/>
+     * Called on a worker thread.
+     */
+    public interface Listener {
+        /**
+         * Called when a card has been inserted
+         * <p/>
+         * This is where sessions should be started.
+         * Also called for cards present when monitoring starts.
+         * <p/>
+         * @param terminal with the new card
+         */
+        void cardInserted(CardTerminal terminal);
+
+        /**
+         * Called when a card has been removed
+         * @param terminal that the card was removed from
+         */
+        void cardRemoved(CardTerminal terminal);
+    }
+
+    private final CardTerminals mTerminals;
+    private final Set<String> mWatched;
+    private final List<Listener> mListeners;
+    private final ExecutorService mWorkers;
+
+    /** Per-terminal event queues, by terminal name */
+    private final Map<String, Slot> mSlots;
+
+    private Thread mThread;
+    private volatile boolean mStopped;
+
+    /**
+     * Construct a monitor
+     * @param terminals to monitor
+     * @param workers maximum number of concurrent event handlers
+     */
+    public BenchMonitor(CardTerminals terminals, int workers) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("Need at least one worker");
+        }
+        mTerminals = terminals;
+        mWatched = new HashSet<>();
+        mListeners = new ArrayList<>();
+        mSlots = new HashMap<>();
+        mWorkers = new ThreadPoolExecutor(workers, workers,
+                60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new WorkerFactory());
+    }
+
+    /**
+     * Restrict monitoring to the given terminal
+     * <p/>
+     * If no terminals are added then all terminals are monitored.
+     * <p/>
+     * @param terminal to monitor
+     */
+    public synchronized void addTerminal(CardTerminal terminal) {
+        mWatched.add(terminal.getName());
+    }
+
+    /**
+     * Register a hook for presence events
+     * @param listener to add
+     */
+    public synchronized void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    /** Start monitoring */
+    public synchronized void start() {
+        LOG.debug("start()");
+        if (mThread == null) {
+            mStopped = false;
+            mThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    monitor();
+                }
+            }, BenchMonitor.class.getSimpleName());
+            mThread.start();
+        }
+    }
+
+    /**
+     * Stop monitoring
+     * <p/>
+     * Waits for the monitor thread and for running handlers.
+     * <p/>
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void stop() throws InterruptedException {
+        LOG.debug("stop()");
+        Thread thread;
+        synchronized (this) {
+            thread = mThread;
+            mThread = null;
+        }
+        mStopped = true;
+        if (thread != null) {
+            thread.join();
+        }
+        mWorkers.shutdown();
+        mWorkers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Wait until the monitor stops
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void join() throws InterruptedException {
+        Thread thread;
+        synchronized (this) {
+            thread = mThread;
+        }
+        if (thread != null) {
+            thread.join();
+        }
+    }
+
+    private void monitor() {
+        // cards present initially count as insertions
+        Set<String> present = new HashSet<>();
+        try {
+            for (CardTerminal terminal : mTerminals.list(CardTerminals.State.CARD_PRESENT)) {
+                if (isWatched(terminal)) {
+                    present.add(terminal.getName());
+                    dispatch(terminal, true);
+                }
+            }
+        } catch (CardException e) {
+            LOG.error("error listing terminals", e);
+        }
+        // wait for changes
+        while (!mStopped) {
+            try {
+                if (!mTerminals.waitForChange(WAIT_TIMEOUT)) {
+                    continue;
+                }
+                // removals first, in case a card was swapped
+                for (CardTerminal terminal : mTerminals.list(CardTerminals.State.CARD_REMOVAL)) {
+                    if (isWatched(terminal) && present.remove(terminal.getName())) {
+                        dispatch(terminal, false);
+                    }
+                }
+                for (CardTerminal terminal : mTerminals.list(CardTerminals.State.CARD_INSERTION)) {
+                    if (isWatched(terminal) && present.add(terminal.getName())) {
+                        dispatch(terminal, true);
+                    }
+                }
+            } catch (CardException e) {
+                // readers may come and go, so keep trying
+                LOG.error("error waiting for card changes", e);
+                try {
+                    Thread.sleep(WAIT_TIMEOUT);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private synchronized boolean isWatched(CardTerminal terminal) {
+        return mWatched.isEmpty() || mWatched.contains(terminal.getName());
+    }
+
+    private void dispatch(CardTerminal terminal, boolean inserted) {
+        String name = terminal.getName();
+        LOG.debug("card " + (inserted ? "inserted into" : "removed from") + " \"" + name + "\"");
+        Slot slot;
+        synchronized (this) {
+            slot = mSlots.get(name);
+            if (slot == null) {
+                slot = new Slot(terminal);
+                mSlots.put(name, slot);
+            }
+        }
+        slot.post(new Event(inserted, System.nanoTime()));
+    }
+
+    private List<Listener> getListeners() {
+        synchronized (this) {
+            return new ArrayList<>(mListeners);
+        }
+    }
+
+    /** Presence event */
+    private static class Event {
+        final boolean mInserted;
+        final long mDetected;
+        Event(boolean inserted, long detected) {
+            mInserted = inserted;
+            mDetected = detected;
+        }
+    }
+
+    /**
+     * Event queue of one terminal
+     * <p/>
+     * At most one task per terminal is queued
+     * or running in the pool at any time.
+     */
+    private class Slot implements Runnable {
+        private final CardTerminal mTerminal;
+        private final ArrayDeque<Event> mEvents = new ArrayDeque<>();
+        private boolean mScheduled;
+
+        Slot(CardTerminal terminal) {
+            mTerminal = terminal;
+        }
+
+        void post(Event event) {
+            synchronized (this) {
+                mEvents.add(event);
+                if (mScheduled) {
+                    return;
+                }
+                mScheduled = true;
+            }
+            mWorkers.execute(this);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Event event;
+                synchronized (this) {
+                    event = mEvents.poll();
+                    if (event == null) {
+                        mScheduled = false;
+                        return;
+                    }
+                }
+                long latency = System.nanoTime() - event.mDetected;
+                LOG.debug("handling event for \"" + mTerminal.getName() + "\" after "
+                        + TimeUnit.NANOSECONDS.toMicros(latency) + " us");
+                for (Listener listener : getListeners()) {
+                    try {
+                        if (event.mInserted) {
+                            listener.cardInserted(mTerminal);
+                        } else {
+                            listener.cardRemoved(mTerminal);
+                        }
+                    } catch (RuntimeException e) {
+                        LOG.error("error in listener for \"" + mTerminal.getName() + "\"", e);
+                    }
+                }
+            }
+        }
+    }
+
+    /** Factory naming worker threads */
+    private static class WorkerFactory implements ThreadFactory {
+        private final AtomicInteger mCount = new AtomicInteger();
+        @Override
+        public Thread newThread(Runnable r) {
+            return new Thread(r, BenchMonitor.class.getSimpleName() + "-worker-" + mCount.incrementAndGet());
+        }
+    }
+
+}
@@ -19,14 +19,25 @@
 
 package org.openjavacard.testbench.main;
 
+import org.openjavacard.cap.file.CapFilePackage;
 import org.openjavacard.gp.client.GPCard;
 import org.openjavacard.gp.client.GPContext;
+import org.openjavacard.gp.client.GPIssuerDomain;
+import org.openjavacard.gp.client.GPLoadFile;
 import org.openjavacard.util.ATRUtil;
+import org.openjavacard.util.HexUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.smartcardio.Card;
+import javax.smartcardio.CardChannel;
 import javax.smartcardio.CardException;
 import javax.smartcardio.CardTerminal;
+import javax.smartcardio.ResponseAPDU;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
 
 public class BenchReader {
 
@@ -35,8 +46,6 @@ public class BenchReader {
     private final Bench mBench;
     private final CardTerminal mTerminal;
 
-    private PollingThread mThread;
-
     public BenchReader(Bench bench, CardTerminal terminal) {
         mBench = bench;
         mTerminal = terminal;
@@ -50,86 +59,189 @@ public class BenchReader {
         return mTerminal;
     }
 
+    /**
+     * Run the configured workloads on the card in the reader
+     * <p/>
+     * Samples are collected for the whole session and then
+     * added to the results under the model of the card. The
+     * model is determined by GlobalPlatform workloads and
+     * falls back to the ATR of the card.
+     */
     public void runSession() {
         LOG.info("runSession()");
         try {
             if(!mTerminal.isCardPresent()) {
                 LOG.info("no card present");
-            } else {
-                GPContext context = mBench.getContext();
-                GPCard card = new GPCard(context, mTerminal);
-                LOG.info("connecting to card");
-                card.connect();
-                LOG.info("Protocol " + card.getCard().getProtocol());
-                LOG.info("ATR " + ATRUtil.toString(card.getCard().getATR()));
-                LOG.info("ISD " + card.getISD().toString());
-                card.getRegistry().update();
-                card.disconnect();
+                return;
             }
         } catch (CardException e) {
-            LOG.error("Error connecting to card", e);
+            LOG.error("Error checking card presence", e);
+            return;
+        }
+        BenchConfiguration config = mBench.getConfiguration();
+        Session session = new Session();
+        for(int i = 0; i < config.iterations; i++) {
+            for(BenchWorkload workload: config.workloads) {
+                try {
+                    runWorkload(session, workload);
+                } catch (CardException | RuntimeException e) {
+                    LOG.error("Error in workload " + workload + " in phase " + session.mPhase, e);
+                    session.fail();
+                }
+            }
         }
+        session.commit();
+    }
+
+    private void runWorkload(Session session, BenchWorkload workload) throws CardException {
+        LOG.debug("running workload " + workload);
+        switch (workload) {
+            case CONNECT:
+                runConnect(session);
+                break;
+            case ECHO:
+                runEcho(session);
+                break;
+            default:
+                runGP(session, workload);
+                break;
+        }
+    }
+
+    private void runConnect(Session session) throws CardException {
+        session.begin("connect");
+        Card card = mTerminal.connect("*");
+        session.end();
+        session.identify(card);
+        session.begin("disconnect");
+        card.disconnect(true);
+        session.end();
     }
 
-    public synchronized void startPolling() {
-        LOG.info("startPolling()");
-        if(mThread == null) {
-            mThread = new PollingThread(this);
-            mThread.start();
+    private void runEcho(Session session) throws CardException {
+        BenchConfiguration config = mBench.getConfiguration();
+        session.begin("connect");
+        Card card = mTerminal.connect("*");
+        session.end();
+        try {
+            session.identify(card);
+            CardChannel channel = card.getBasicChannel();
+            for(int i = 0; i < config.apduCount; i++) {
+                session.begin("apdu");
+                ResponseAPDU response = channel.transmit(mBench.getApdu());
+                if(response.getSW() != 0x9000) {
+                    throw new CardException("Echo command failed with SW " + HexUtil.hex16(response.getSW()));
+                }
+                session.end();
+            }
+        } finally {
+            card.disconnect(true);
         }
     }
 
-    public synchronized void stopPolling() {
-        LOG.info("stopPolling()");
-        if(mThread != null) {
-            mThread.interrupt();
+    private void runGP(Session session, BenchWorkload workload) throws CardException {
+        GPContext context = mBench.getContext();
+        GPCard card = new GPCard(context, mTerminal);
+        session.begin("handshake");
+        card.connect();
+        session.end();
+        try {
+            session.identify(card);
+            switch (workload) {
+                case REGISTRY:
+                    session.begin("registry");
+                    card.getRegistry().update();
+                    session.end();
+                    break;
+                case LOAD_DELETE:
+                    runLoadDelete(session, card);
+                    break;
+                default:
+                    break;
+            }
+        } finally {
+            card.disconnect();
         }
     }
 
-    private class PollingThread extends Thread {
-        BenchReader mReader;
-        PollingThread(BenchReader reader) {
-            setName(BenchReader.class.getSimpleName()
-                    + "(" + reader.getName() + ")");
-            mReader = reader;
+    private void runLoadDelete(Session session, GPCard card) throws CardException {
+        CapFilePackage pkg = mBench.getPackage();
+        GPIssuerDomain issuer = card.getIssuerDomain();
+        // clean up after earlier failures
+        card.getRegistry().update();
+        if(card.getRegistry().hasPackage(pkg.getPackageAID())) {
+            LOG.debug("deleting leftover package " + pkg.getPackageAID());
+            issuer.deleteObject(pkg.getPackageAID(), true);
         }
-        @Override
-        public void run() {
-            LOG.debug("polling \"" + mTerminal.getName() + "\"");
-            try {
-                boolean present;
-                while(true) {
-                    // handle interruptions
-                    if(Thread.interrupted()) {
-                        return;
-                    }
-                    // check presence
-                    present = mTerminal.isCardPresent();
-                    if (present) {
-                        // run session
-                        LOG.debug("running test session");
-                        runSession();
-                        // wait for removal
-                        do {
-                            if(Thread.interrupted()) {
-                                return;
-                            }
-                            //LOG.trace("waiting for removal");
-                        } while(!mTerminal.waitForCardAbsent(100));
-                        LOG.debug("card removed");
-                    } else {
-                        // wait for insertion
-                        do {
-                            if(Thread.interrupted()) {
-                                return;
-                            }
-                            //LOG.trace("waiting for insertion");
-                        } while(!mTerminal.waitForCardPresent(100));
-                        LOG.debug("card inserted");
-                    }
-                }
-            } catch (CardException e) {
-                LOG.error("error polling for \"" + mTerminal.getName() + "\"", e);
+        // generating the load file is not part of the measurement
+        GPLoadFile file;
+        try {
+            file = GPLoadFile.generateCombinedLoadFile(pkg, issuer.getLoadBlockSize(false));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error generating load file", e);
+        }
+        session.begin("load");
+        issuer.loadFile(file);
+        session.end();
+        session.begin("delete");
+        issuer.deleteObject(pkg.getPackageAID(), true);
+        session.end();
+    }
+
+    /**
+     * Measurements of one card session
+     */
+    private class Session {
+        private final List<String> mPhases = new ArrayList<>();
+        private final List<Long> mNanos = new ArrayList<>();
+        private final List<String> mFailures = new ArrayList<>();
+        private String mModel;
+        private String mPhase;
+        private long mBegin;
+
+        void begin(String phase) {
+            mPhase = phase;
+            mBegin = System.nanoTime();
+        }
+
+        void end() {
+            mPhases.add(mPhase);
+            mNanos.add(System.nanoTime() - mBegin);
+            mPhase = null;
+        }
+
+        void fail() {
+            if(mPhase != null) {
+                mFailures.add(mPhase);
+                mPhase = null;
+            }
+        }
+
+        void identify(Card card) {
+            if(mModel == null) {
+                String atr = HexUtil.bytesToHex(card.getATR().getBytes());
+                LOG.info("ATR " + ATRUtil.toString(card.getATR()));
+                mModel = "atr=" + atr;
+            }
+        }
+
+        void identify(GPCard card) {
+            // the GP model is more specific than the ATR
+            if(mModel == null || mModel.startsWith("atr=")) {
+                LOG.info("ISD " + card.getISD().toString());
+                mModel = card.getModel();
+            }
+        }
+
+        void commit() {
+            String reader = getName();
+            String model = mModel != null ? mModel : "unknown";
+            BenchResults results = mBench.getResults();
+            for(int i = 0; i < mPhases.size(); i++) {
+                results.record(reader, model, mPhases.get(i), mNanos.get(i));
+            }
+            for(String phase: mFailures) {
+                results.fail(reader, model, phase);
             }
         }
     }
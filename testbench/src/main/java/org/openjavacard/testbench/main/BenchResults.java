@@ -0,0 +1,239 @@
+/*
+ * openjavacard-tools: Development tools for JavaCard
+ * Copyright (C) 2019 Ingo Albrecht <copyright@promovicz.org>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package org.openjavacard.testbench.main;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency results of a benchmark run
+ * <p/>
+ * Samples are kept per reader, card model and phase.
+ * Each sample is also counted in the aggregates for its
+ * reader and for its card model, which are reported with
+ * a model or reader of {@link #ALL}.
+ * <p/>
+ * Reports give latencies in microseconds.
+ * <p/>
+ * Thread-safe.
+ */
+public class BenchResults {
+
+    /** Placeholder for aggregated readers or models */
+    public static final String ALL = "*";
+
+    private final Map<String, Entry> mEntries = new TreeMap<>();
+
+    /**
+     * Record a successful phase
+     * @param reader that the card is in
+     * @param model of the card
+     * @param phase that was measured
+     * @param nanos taken by the phase
+     */
+    public synchronized void record(String reader, String model, String phase, long nanos) {
+        for (Entry entry : entriesFor(reader, model, phase)) {
+            entry.mHistogram.record(nanos);
+        }
+    }
+
+    /**
+     * Record a failed phase
+     * @param reader that the card is in
+     * @param model of the card
+     * @param phase that failed
+     */
+    public synchronized void fail(String reader, String model, String phase) {
+        for (Entry entry : entriesFor(reader, model, phase)) {
+            entry.mFailures++;
+        }
+    }
+
+    /** @return snapshot of all entries, ordered by reader, model and phase */
+    public synchronized List<Entry> getEntries() {
+        List<Entry> res = new ArrayList<>();
+        for (Entry entry : mEntries.values()) {
+            res.add(entry.copy());
+        }
+        return res;
+    }
+
+    /**
+     * Write results as CSV
+     * @param writer to write to
+     * @throws IOException on error
+     */
+    public void writeCsv(Writer writer) throws IOException {
+        PrintWriter pw = new PrintWriter(writer);
+        pw.println("reader,model,phase,count,failures,mean_us,p50_us,p95_us,p99_us,max_us");
+        for (Entry entry : getEntries()) {
+            BenchHistogram h = entry.mHistogram;
+            pw.println(csvString(entry.mReader) + "," + csvString(entry.mModel) + "," + csvString(entry.mPhase)
+                    + "," + h.getCount() + "," + entry.mFailures
+                    + "," + micros(h.getMean())
+                    + "," + micros(h.getPercentile(50))
+                    + "," + micros(h.getPercentile(95))
+                    + "," + micros(h.getPercentile(99))
+                    + "," + micros(h.getMax()));
+        }
+        pw.flush();
+        if (pw.checkError()) {
+            throw new IOException("Error writing CSV");
+        }
+    }
+
+    /**
+     * Write results as JSON
+     * @param writer to write to
+     * @throws IOException on error
+     */
+    public void writeJson(Writer writer) throws IOException {
+        PrintWriter pw = new PrintWriter(writer);
+        pw.println("{");
+        pw.println("  \"unit\": \"us\",");
+        pw.println("  \"results\": [");
+        List<Entry> entries = getEntries();
+        for (int i = 0; i < entries.size(); i++) {
+            Entry entry = entries.get(i);
+            BenchHistogram h = entry.mHistogram;
+            pw.print("    {");
+            pw.print("\"reader\": " + jsonString(entry.mReader));
+            pw.print(", \"model\": " + jsonString(entry.mModel));
+            pw.print(", \"phase\": " + jsonString(entry.mPhase));
+            pw.print(", \"count\": " + h.getCount());
+            pw.print(", \"failures\": " + entry.mFailures);
+            pw.print(", \"mean\": " + micros(h.getMean()));
+            pw.print(", \"p50\": " + micros(h.getPercentile(50)));
+            pw.print(", \"p95\": " + micros(h.getPercentile(95)));
+            pw.print(", \"p99\": " + micros(h.getPercentile(99)));
+            pw.print(", \"max\": " + micros(h.getMax()));
+            pw.println(i + 1 < entries.size() ? "}," : "}");
+        }
+        pw.println("  ]");
+        pw.println("}");
+        pw.flush();
+        if (pw.checkError()) {
+            throw new IOException("Error writing JSON");
+        }
+    }
+
+    private List<Entry> entriesFor(String reader, String model, String phase) {
+        List<Entry> res = new ArrayList<>();
+        res.add(entryFor(reader, model, phase));
+        res.add(entryFor(reader, ALL, phase));
+        res.add(entryFor(ALL, model, phase));
+        return res;
+    }
+
+    private Entry entryFor(String reader, String model, String phase) {
+        String key = reader + "\u0000" + model + "\u0000" + phase;
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            entry = new Entry(reader, model, phase);
+            mEntries.put(key, entry);
+        }
+        return entry;
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    private static String csvString(String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+            return value;
+        }
+        return "\"" + value.replace("\"", "\"\"") + "\"";
+    }
+
+    private static String jsonString(String value) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    /** Results for one reader, model and phase */
+    public static class Entry {
+        private final String mReader;
+        private final String mModel;
+        private final String mPhase;
+        private BenchHistogram mHistogram = new BenchHistogram();
+        private long mFailures;
+
+        Entry(String reader, String model, String phase) {
+            mReader = reader;
+            mModel = model;
+            mPhase = phase;
+        }
+
+        public String getReader() {
+            return mReader;
+        }
+
+        public String getModel() {
+            return mModel;
+        }
+
+        public String getPhase() {
+            return mPhase;
+        }
+
+        public BenchHistogram getHistogram() {
+            return mHistogram;
+        }
+
+        public long getFailures() {
+            return mFailures;
+        }
+
+        private Entry copy() {
+            Entry res = new Entry(mReader, mModel, mPhase);
+            res.mHistogram = mHistogram.copy();
+            res.mFailures = mFailures;
+            return res;
+        }
+
+        @Override
+        public String toString() {
+            return mReader + " " + mModel + " " + mPhase
+                    + ": count " + mHistogram.getCount()
+                    + " failures " + mFailures
+                    + " p50 " + micros(mHistogram.getPercentile(50)) + " us"
+                    + " p95 " + micros(mHistogram.getPercentile(95)) + " us"
+                    + " p99 " + micros(mHistogram.getPercentile(99)) + " us"
+                    + " max " + micros(mHistogram.getMax()) + " us";
+        }
+    }
+
+}
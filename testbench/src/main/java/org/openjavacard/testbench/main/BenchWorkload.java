@@ -0,0 +1,38 @@
+/*
+ * openjavacard-tools: Development tools for JavaCard
+ * Copyright (C) 2019 Ingo Albrecht <copyright@promovicz.org>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package org.openjavacard.testbench.main;
+
+/**
+ * Workloads run in each card session
+ * <p/>
+ * Phases measured by each workload are given in brackets.
+ */
+public enum BenchWorkload {
+    /** Plain connection to the card [connect, disconnect] */
+    CONNECT,
+    /** GlobalPlatform connection with secure channel [handshake] */
+    HANDSHAKE,
+    /** Reading the card registry [handshake, registry] */
+    REGISTRY,
+    /** Loading and deleting the configured CAP file [handshake, load, delete] */
+    LOAD_DELETE,
+    /** Raw command APDUs on a plain connection [connect, apdu] */
+    ECHO,
+}
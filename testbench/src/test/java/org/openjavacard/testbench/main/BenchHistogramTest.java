@@ -0,0 +1,112 @@
+/*
+ * openjavacard-tools: Development tools for JavaCard
+ * Copyright (C) 2019 Ingo Albrecht <copyright@promovicz.org>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package org.openjavacard.testbench.main;
+
+import junit.framework.TestCase;
+import org.junit.Assert;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class BenchHistogramTest extends TestCase {
+
+    public void testBuckets() {
+        // small values have exact buckets
+        Assert.assertEquals(0, BenchHistogram.indexOf(0));
+        Assert.assertEquals(0, BenchHistogram.upperBoundOf(0));
+        Assert.assertEquals(63, BenchHistogram.indexOf(63));
+        Assert.assertEquals(63, BenchHistogram.upperBoundOf(63));
+        // and so do those of the first logarithmic bucket
+        Assert.assertEquals(64, BenchHistogram.indexOf(64));
+        Assert.assertEquals(64, BenchHistogram.upperBoundOf(64));
+        Assert.assertEquals(127, BenchHistogram.indexOf(127));
+        // after which sub-buckets get wider
+        Assert.assertEquals(128, BenchHistogram.indexOf(128));
+        Assert.assertEquals(128, BenchHistogram.indexOf(129));
+        Assert.assertEquals(129, BenchHistogram.upperBoundOf(128));
+        // the largest value ends up in the last bucket
+        int last = BenchHistogram.indexOf(Long.MAX_VALUE);
+        Assert.assertEquals((64 - 6) * 64 - 1, last);
+        Assert.assertEquals(Long.MAX_VALUE, BenchHistogram.upperBoundOf(last));
+    }
+
+    public void testBucketBounds() {
+        Random random = new Random(1);
+        for (int i = 0; i < 100000; i++) {
+            long value = random.nextLong() >>> (1 + random.nextInt(63));
+            int index = BenchHistogram.indexOf(value);
+            long upper = BenchHistogram.upperBoundOf(index);
+            Assert.assertTrue(upper >= value);
+            Assert.assertTrue(index == 0 || BenchHistogram.upperBoundOf(index - 1) < value);
+            Assert.assertTrue((upper - value) <= value / 64);
+        }
+    }
+
+    public void testPercentiles() {
+        Random random = new Random(2);
+        int count = 10000;
+        long[] values = new long[count];
+        BenchHistogram histogram = new BenchHistogram();
+        for (int i = 0; i < count; i++) {
+            // latencies between 1us and 1s, spread logarithmically
+            values[i] = (long) Math.pow(10, 3 + random.nextDouble() * 6);
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+        Assert.assertEquals(count, histogram.getCount());
+        Assert.assertEquals(values[0], histogram.getMin());
+        Assert.assertEquals(values[count - 1], histogram.getMax());
+        for (double percentile : new double[]{0, 1, 25, 50, 90, 95, 99, 99.9, 100}) {
+            int rank = (int) Math.max(1, Math.ceil(percentile / 100.0 * count));
+            long exact = values[rank - 1];
+            long estimate = histogram.getPercentile(percentile);
+            Assert.assertTrue(estimate >= exact);
+            Assert.assertTrue((estimate - exact) <= exact / 64);
+        }
+    }
+
+    public void testEmpty() {
+        BenchHistogram histogram = new BenchHistogram();
+        Assert.assertEquals(0, histogram.getCount());
+        Assert.assertEquals(0, histogram.getMin());
+        Assert.assertEquals(0, histogram.getMax());
+        Assert.assertEquals(0, histogram.getMean());
+        Assert.assertEquals(0, histogram.getPercentile(50));
+        Assert.assertEquals(0, histogram.getPercentile(100));
+        Assert.assertEquals(0, histogram.copy().getCount());
+    }
+
+    public void testInvalid() {
+        BenchHistogram histogram = new BenchHistogram();
+        try {
+            histogram.record(-1);
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            histogram.getPercentile(101);
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+}
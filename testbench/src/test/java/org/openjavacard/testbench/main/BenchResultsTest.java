@@ -0,0 +1,64 @@
+/*
+ * openjavacard-tools: Development tools for JavaCard
+ * Copyright (C) 2019 Ingo Albrecht <copyright@promovicz.org>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package org.openjavacard.testbench.main;
+
+import junit.framework.TestCase;
+import org.junit.Assert;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+public class BenchResultsTest extends TestCase {
+
+    private static BenchResults buildResults() {
+        BenchResults results = new BenchResults();
+        // values at bucket boundaries are reported exactly
+        results.record("Reader, \"A\"", "Model", "connect", (1 << 21) - 1);
+        results.record("Reader, \"A\"", "Model", "connect", (1 << 22) - 1);
+        results.fail("Reader, \"A\"", "Model", "connect");
+        return results;
+    }
+
+    public void testCsv() throws IOException {
+        StringWriter writer = new StringWriter();
+        buildResults().writeCsv(writer);
+        String[] lines = writer.toString().split("\r?\n");
+        Assert.assertEquals(4, lines.length);
+        Assert.assertEquals("reader,model,phase,count,failures,mean_us,p50_us,p95_us,p99_us,max_us", lines[0]);
+        // rows are ordered by reader, aggregates first
+        Assert.assertEquals("*,Model,connect,2,1,3145,2097,4194,4194,4194", lines[1]);
+        Assert.assertEquals("\"Reader, \"\"A\"\"\",*,connect,2,1,3145,2097,4194,4194,4194", lines[2]);
+        Assert.assertEquals("\"Reader, \"\"A\"\"\",Model,connect,2,1,3145,2097,4194,4194,4194", lines[3]);
+    }
+
+    public void testJson() throws IOException {
+        StringWriter writer = new StringWriter();
+        BenchResults results = new BenchResults();
+        results.record("Reader \"A\"\\1\n", "Model", "connect", 1000);
+        results.writeJson(writer);
+        String json = writer.toString();
+        Assert.assertTrue(json.contains("\"reader\": \"Reader \\\"A\\\"\\\\1\\u000a\""));
+        Assert.assertTrue(json.contains("\"reader\": \"*\""));
+        Assert.assertTrue(json.contains("\"count\": 1, \"failures\": 0, \"mean\": 1"));
+        // the raw newline does not end up in the output
+        Assert.assertFalse(json.contains("1\n"));
+    }
+
+}
@@ -14,6 +14,8 @@ public abstract class BasicCommand implements Runnable {
 
     protected final Logger LOG;
 
+    private boolean mFailed;
+
     public BasicCommand() {
         LOG = LoggerFactory.getLogger(getClass());
     }
@@ -21,6 +23,7 @@ public abstract class BasicCommand implements Runnable {
     @Override
     public void run() {
         LOG.trace("run()");
+        mFailed = false;
         try {
             prepare();
             beforeExecute();
@@ -29,10 +32,16 @@ public abstract class BasicCommand implements Runnable {
         } catch (HelpException e) {
             throw new Error("Help not implemented");
         } catch (Exception e) {
+            mFailed = true;
             e.printStackTrace();
         }
     }
 
+    /** @return true if the last run failed with an exception */
+    public boolean isFailed() {
+        return mFailed;
+    }
+
     protected void prepare() throws Exception {
         LOG.trace("prepare()");
         // abort and show help if requested
@@ -4,20 +4,12 @@ import com.beust.jcommander.Parameter;
 import org.openjavacard.gp.client.GPCard;
 import org.openjavacard.gp.client.GPContext;
 import org.openjavacard.gp.keys.GPKeySet;
-import org.openjavacard.gp.scp.SCPProtocolPolicy;
 import org.openjavacard.iso.AID;
-import org.openjavacard.util.HexUtil;
 
 import javax.smartcardio.CardException;
 import java.io.PrintStream;
 
-public abstract class BasicGPCommand extends BasicSCPCommand {
-
-    @Parameter(
-            names = "--isd", order = 200,
-            description = "AID of the issuer security domain"
-    )
-    protected AID isd;
+public abstract class BasicGPCommand extends BasicGPHostCommand {
 
     @Parameter(
             names = "--force-protected", order = 800,
@@ -25,46 +17,69 @@ public abstract class BasicGPCommand extends BasicSCPCommand {
     )
     protected boolean forceProtected = false;
 
-    @Parameter(
-            names = "--log-keys", order = 900,
-            description = "Allow writing keys into the debug log"
-    )
-    protected boolean logKeys = false;
-
     GPContext mContext;
     GPCard mCard;
+    GPSession mSession;
 
     protected abstract void performOperation(GPContext context, GPCard card) throws CardException;
 
+    /**
+     * Share the connection with other commands
+     * @param session to use, null for a private connection
+     */
+    public void setSession(GPSession session) {
+        mSession = session;
+    }
+
     @Override
     protected void beforeExecute() throws Exception {
         super.beforeExecute();
 
         PrintStream os = System.out;
 
-        mContext = new GPContext();
+        String configuration = getConfiguration();
+        if(mSession != null) {
+            GPCard card = mSession.reuse(mTerminal, configuration);
+            if(card != null) {
+                os.println("Reusing session");
+                mContext = card.getContext();
+                mCard = card;
+                return;
+            }
+        }
+
+        mContext = buildContext();
         mCard = findSingleGPCard(isd, getKeySet());
 
         AID isdConf = mCard.getISD();
         os.println("Host GP configuration:");
         os.println("  ISD " + ((isdConf==null)?"auto":isdConf));
-        int protocol = HexUtil.unsigned8(scpProtocol);
-        int parameters = HexUtil.unsigned8(scpParameters);
-        SCPProtocolPolicy protocolPolicy = new SCPProtocolPolicy(protocol, parameters);
         os.println("  Key diversification " + scpDiversification);
-        mCard.setDiversification(scpDiversification);
-        os.println("  Protocol policy " + protocolPolicy);
-        mCard.setProtocolPolicy(protocolPolicy);
+        os.println("  Protocol policy " + getProtocolPolicy());
         os.println("  Security policy " + scpSecurity);
-        mCard.setSecurityPolicy(scpSecurity);
+        if(extendedLength) {
+            os.println("  Forcing extended length");
+        }
+        configureCard(mCard);
 
+        if(mSession != null) {
+            mSession.attach(configuration, mContext, mCard);
+        }
         mCard.connect();
     }
 
     @Override
     protected void execute() throws Exception {
         super.execute();
-        performOperation(mContext, mCard);
+        try {
+            performOperation(mContext, mCard);
+        } catch (CardException e) {
+            // card state is unknown, so do not reuse it
+            if(mSession != null) {
+                mSession.disconnect();
+            }
+            throw e;
+        }
     }
 
     @Override
@@ -72,9 +87,16 @@ public abstract class BasicGPCommand extends BasicSCPCommand {
         super.afterExecute();
         PrintStream os = System.out;
 
+        // sessions stay connected
+        if(mSession != null) {
+            return;
+        }
+
         os.println("DISCONNECTING");
         mCard.disconnect();
         os.println();
+
+        closeContext(mContext);
     }
 
     public GPCard findSingleGPCard(AID sd, GPKeySet keys) {
@@ -0,0 +1,121 @@
+package org.openjavacard.tool.command.base;
+
+import com.beust.jcommander.Parameter;
+import org.openjavacard.gp.client.GPCard;
+import org.openjavacard.gp.client.GPCardProfiles;
+import org.openjavacard.gp.client.GPContext;
+import org.openjavacard.gp.client.GPJournal;
+import org.openjavacard.gp.client.GPRegistryCache;
+import org.openjavacard.gp.keys.GPKeySet;
+import org.openjavacard.gp.scp.SCPProtocolPolicy;
+import org.openjavacard.iso.AID;
+import org.openjavacard.util.HexUtil;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Base for commands using the host GP configuration
+ * <p/>
+ * Provides the options and helpers for building a context
+ * and configuring cards, without connecting to any card.
+ * Commands working on a single card use {@link BasicGPCommand}.
+ */
+public abstract class BasicGPHostCommand extends BasicSCPCommand {
+
+    @Parameter(
+            names = "--isd", order = 200,
+            description = "AID of the issuer security domain"
+    )
+    protected AID isd;
+
+    @Parameter(
+            names = "--extended-length", order = 300,
+            description = "Use extended length APDUs even if not indicated by the card"
+    )
+    protected boolean extendedLength = false;
+
+    @Parameter(
+            names = "--registry-cache", order = 300,
+            description = "Directory for caching card registries between sessions"
+    )
+    protected File registryCache;
+
+    @Parameter(
+            names = "--card-profiles", order = 300,
+            description = "Directory for remembering card model quirks"
+    )
+    protected File cardProfiles;
+
+    @Parameter(
+            names = "--journal", order = 300,
+            description = "File for journaling card management operations"
+    )
+    protected File journal;
+
+    @Parameter(
+            names = "--log-keys", order = 900,
+            description = "Allow writing keys into the debug log"
+    )
+    protected boolean logKeys = false;
+
+    protected GPContext buildContext() throws IOException {
+        GPContext context = new GPContext();
+        if(journal != null) {
+            context.setJournal(new GPJournal(journal));
+        }
+        if(registryCache != null) {
+            context.setRegistryCache(new GPRegistryCache(registryCache));
+        }
+        if(cardProfiles != null) {
+            context.setCardProfiles(new GPCardProfiles(cardProfiles));
+        }
+        return context;
+    }
+
+    protected void closeContext(GPContext context) throws IOException {
+        GPJournal contextJournal = context.getJournal();
+        if(contextJournal != null) {
+            context.setJournal(null);
+            contextJournal.close();
+        }
+    }
+
+    /**
+     * Describe the host configuration for session reuse
+     * @return string that differs if a new connection is required
+     */
+    protected String getConfiguration() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(isd).append('|');
+        // identify keys by digest - toString() would print the secrets
+        GPKeySet keys = getKeySet();
+        sb.append(keys.getName()).append('|');
+        sb.append(keys.getKeyVersion()).append('|');
+        sb.append(keys.getFingerprint()).append('|');
+        sb.append(scpDiversification).append('|');
+        sb.append(getProtocolPolicy()).append('|');
+        sb.append(scpSecurity).append('|');
+        sb.append(extendedLength).append('|');
+        sb.append(registryCache).append('|');
+        sb.append(cardProfiles).append('|');
+        sb.append(journal);
+        return sb.toString();
+    }
+
+    protected SCPProtocolPolicy getProtocolPolicy() {
+        int protocol = HexUtil.unsigned8(scpProtocol);
+        int parameters = HexUtil.unsigned8(scpParameters);
+        return new SCPProtocolPolicy(protocol, parameters);
+    }
+
+    protected void configureCard(GPCard card) {
+        card.setDiversification(scpDiversification);
+        card.setProtocolPolicy(getProtocolPolicy());
+        card.setSecurityPolicy(scpSecurity);
+        if(extendedLength) {
+            card.setForceExtendedLength(true);
+        }
+    }
+
+}
@@ -40,7 +40,7 @@ public abstract class BasicTerminalCommand extends BasicCommand {
         return terminals.get(0);
     }
 
-    private List<CardTerminal> findTerminals(String prefix) {
+    protected List<CardTerminal> findTerminals(String prefix) {
         LOG.trace("findTerminals()");
         ArrayList<CardTerminal> found = new ArrayList<>();
         TerminalFactory tf = TerminalFactory.getDefault();
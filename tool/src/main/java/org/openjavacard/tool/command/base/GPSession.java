@@ -0,0 +1,136 @@
+/*
+ * openjavacard-tools: Development tools for JavaCard
+ * Copyright (C) 2019 Ingo Albrecht <copyright@promovicz.org>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package org.openjavacard.tool.command.base;
+
+import org.openjavacard.gp.client.GPCard;
+import org.openjavacard.gp.client.GPContext;
+import org.openjavacard.gp.client.GPJournal;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+import java.io.IOException;
+
+/**
+ * Connection shared by several GP commands
+ * <p/>
+ * Used by scripts so that consecutive commands reuse
+ * one connected card and its secure channel.
+ * <p/>
+ * A connection is reused when the terminal and the host
+ * configuration of the command match, and the card is
+ * still present and connected. Otherwise it is replaced.
+ */
+public class GPSession {
+
+    private static final Logger LOG = LoggerFactory.getLogger(GPSession.class);
+
+    /** Host configuration the card was connected with */
+    private String mConfiguration;
+    /** Context of the connection */
+    private GPContext mContext;
+    /** Connected card */
+    private GPCard mCard;
+
+    /** @return true if a card is connected */
+    public boolean isConnected() {
+        return mCard != null;
+    }
+
+    /**
+     * Get the connected card if it can be reused
+     * <p/>
+     * Disconnects the card if it can not be reused.
+     * <p/>
+     * @param terminal the command wants to use
+     * @param configuration of the command
+     * @return the card or null if a new connection is required
+     */
+    GPCard reuse(CardTerminal terminal, String configuration) {
+        if (mCard == null) {
+            return null;
+        }
+        boolean usable = false;
+        if (!mCard.getTerminal().getName().equals(terminal.getName())) {
+            LOG.debug("terminal changed");
+        } else if (!mConfiguration.equals(configuration)) {
+            LOG.debug("configuration changed");
+        } else if (!mCard.isConnected()) {
+            LOG.debug("card disconnected");
+        } else {
+            try {
+                usable = terminal.isCardPresent();
+                if (!usable) {
+                    LOG.debug("card removed");
+                }
+            } catch (CardException e) {
+                LOG.debug("error checking card presence", e);
+            }
+        }
+        if (!usable) {
+            disconnect();
+            return null;
+        }
+        return mCard;
+    }
+
+    /**
+     * Remember a new connection
+     * @param configuration the card was connected with
+     * @param context of the connection
+     * @param card that was connected
+     */
+    void attach(String configuration, GPContext context, GPCard card) {
+        disconnect();
+        mConfiguration = configuration;
+        mContext = context;
+        mCard = card;
+    }
+
+    /**
+     * Disconnect the card, if any
+     * <p/>
+     * Errors are logged, since the card may be gone already.
+     */
+    public void disconnect() {
+        if (mCard == null) {
+            return;
+        }
+        LOG.debug("closing session");
+        try {
+            mCard.disconnect();
+        } catch (CardException | RuntimeException e) {
+            LOG.warn("error disconnecting", e);
+        }
+        GPJournal journal = mContext.getJournal();
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                LOG.warn("error closing journal", e);
+            }
+        }
+        mConfiguration = null;
+        mContext = null;
+        mCard = null;
+    }
+
+}
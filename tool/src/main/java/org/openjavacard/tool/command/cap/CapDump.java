@@ -28,8 +28,8 @@ import com.fasterxml.jackson.dataformat.xml.XmlMapper;
 import org.openjavacard.cap.base.CapPackage;
 import org.openjavacard.cap.base.CapPackageReader;
 import org.openjavacard.cap.file.CapFile;
+import org.openjavacard.cap.file.CapFileCache;
 import org.openjavacard.cap.file.CapFilePackage;
-import org.openjavacard.cap.file.CapFileReader;
 import org.openjavacard.jackson.OJCJacksonModule;
 import org.openjavacard.tool.command.base.BasicCommand;
 
@@ -67,16 +67,24 @@ public class CapDump extends BasicCommand {
             CapFile capFile;
             try {
                 os.println("Reading CAP file " + file);
-                capFile = CapFileReader.readFile(file);
+                capFile = CapFileCache.getDefault().read(file);
             } catch (Exception ex) {
                 throw new Error("Error reading CAP file", ex);
             }
 
-            CapFilePackage capFilePkg = capFile.getPackage();
-            CapPackageReader capReader = new CapPackageReader();
+            final CapFilePackage capFilePkg = capFile.getPackage();
             CapPackage capPkg;
             try {
-                capPkg = capReader.read(capFilePkg);
+                capPkg = CapFileCache.getDefault().getDerived(capFile, "model:" + capFilePkg.getPackageAID(),
+                        new CapFileCache.Derivation<CapPackage>() {
+                            @Override
+                            public CapPackage derive(CapFile file) throws IOException {
+                                CapPackage pkg = new CapPackageReader().read(capFilePkg);
+                                // report problems here instead of during output
+                                pkg.decodeAll();
+                                return pkg;
+                            }
+                        });
             } catch (IOException e) {
                 throw new Error("Error parsing CAP file", e);
             }
@@ -24,10 +24,10 @@ import com.beust.jcommander.Parameters;
 import org.openjavacard.cap.file.CapComponentType;
 import org.openjavacard.cap.file.CapFile;
 import org.openjavacard.cap.file.CapFileApplet;
+import org.openjavacard.cap.file.CapFileCache;
 import org.openjavacard.cap.file.CapFileComponent;
 import org.openjavacard.cap.file.CapFileImport;
 import org.openjavacard.cap.file.CapFilePackage;
-import org.openjavacard.cap.file.CapFileReader;
 import org.openjavacard.tool.command.base.BasicCommand;
 
 import java.io.File;
@@ -74,7 +74,7 @@ public class CapInfo extends BasicCommand {
             os.println("Reading CAP file " + file + "...");
             CapFile capFile;
             try {
-                capFile = CapFileReader.readFile(file);
+                capFile = CapFileCache.getDefault().read(file);
             } catch (IOException e) {
                 throw new Error("Error reading CAP file", e);
             }
@@ -22,9 +22,9 @@ package org.openjavacard.tool.command.cap;
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.Parameters;
 import org.openjavacard.cap.file.CapFile;
+import org.openjavacard.cap.file.CapFileCache;
 import org.openjavacard.cap.file.CapFileComponent;
 import org.openjavacard.cap.file.CapFilePackage;
-import org.openjavacard.cap.file.CapFileReader;
 import org.openjavacard.gp.client.GPLoadFile;
 import org.openjavacard.tool.command.base.BasicCommand;
 
@@ -44,6 +44,12 @@ public class CapSize extends BasicCommand {
     )
     private List<File> capFiles;
 
+    @Parameter(
+            names = "--block-size",
+            description = "Block size for computing the number of LOAD commands"
+    )
+    private int blockSize = GPLoadFile.DEFAULT_BLOCK_SIZE;
+
     @Override
     public void execute() {
         PrintStream os = System.out;
@@ -54,7 +60,7 @@ public class CapSize extends BasicCommand {
             CapFile cap;
             try {
                 os.println("Reading CAP file " + file);
-                cap = CapFileReader.readFile(file);
+                cap = CapFileCache.getDefault().read(file);
             } catch (Exception ex) {
                 throw new Error("Exception reading CAP file", ex);
             }
@@ -63,7 +69,7 @@ public class CapSize extends BasicCommand {
             GPLoadFile loadFile;
             try {
                 pkg = cap.getPackages().get(0);
-                loadFile = GPLoadFile.generateCombinedLoadFile(pkg, 128);
+                loadFile = GPLoadFile.getCombinedLoadFile(CapFileCache.getDefault(), cap, pkg, blockSize);
             } catch (Exception e) {
                 throw new Error("Could not generate load file", e);
             }
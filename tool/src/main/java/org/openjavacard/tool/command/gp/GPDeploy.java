@@ -0,0 +1,140 @@
+/*
+ * openjavacard-tools: Development tools for JavaCard
+ * Copyright (C) 2019 Ingo Albrecht <copyright@promovicz.org>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package org.openjavacard.tool.command.gp;
+
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.Parameters;
+import org.openjavacard.gp.client.GPCard;
+import org.openjavacard.gp.client.GPContext;
+import org.openjavacard.gp.deploy.GPDeployReport;
+import org.openjavacard.gp.deploy.GPDeployResult;
+import org.openjavacard.gp.deploy.GPDeployer;
+import org.openjavacard.gp.deploy.GPDeployment;
+import org.openjavacard.gp.keys.GPKeySet;
+import org.openjavacard.tool.command.base.BasicGPHostCommand;
+import org.openjavacard.tool.command.base.HelpException;
+
+import javax.smartcardio.CardTerminal;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+@Parameters(
+        commandNames = "gp-deploy",
+        commandDescription = "GlobalPlatform: deploy a manifest to the cards in all matching terminals"
+)
+public class GPDeploy extends BasicGPHostCommand {
+
+    @Parameter(
+            description = "Deployment manifest",
+            required = true
+    )
+    private List<File> manifests;
+
+    @Parameter(
+            names = "--reload",
+            description = "Reload packages that are already present"
+    )
+    private boolean reload = false;
+
+    @Parameter(
+            names = "--resume",
+            description = "Skip steps the journal records as completed (needs --journal)"
+    )
+    private boolean resume = false;
+
+    private List<CardTerminal> mTerminals;
+
+    @Override
+    protected void prepare() throws Exception {
+        // we work on many terminals, so skip single-card preparation
+        if(aHelp) {
+            throw new HelpException(this);
+        }
+        mTerminals = new ArrayList<>();
+        for(CardTerminal terminal: findTerminals(aTerminal)) {
+            if(terminal.isCardPresent()) {
+                mTerminals.add(terminal);
+            }
+        }
+        if(mTerminals.isEmpty()) {
+            throw new Error("No cards present in any terminal");
+        }
+    }
+
+    @Override
+    protected void execute() throws Exception {
+        PrintStream os = System.out;
+
+        if(manifests.size() != 1) {
+            throw new Error("Exactly one manifest must be given");
+        }
+        if(resume && journal == null) {
+            throw new Error("Resuming requires a journal");
+        }
+        File manifest = manifests.get(0);
+        GPDeployment deployment;
+        try {
+            os.println("Reading manifest " + manifest);
+            deployment = GPDeployment.readManifest(manifest);
+        } catch (IOException e) {
+            throw new Error("Error reading manifest", e);
+        }
+        if(reload) {
+            deployment.setReload(true);
+        }
+        os.println("  " + deployment.getCapFiles().size() + " CAP files");
+        os.println("  " + deployment.getApplets().size() + " applets");
+
+        final GPContext context = buildContext();
+        final GPKeySet keys = getKeySet();
+        GPDeployer deployer = new GPDeployer(deployment, new GPDeployer.CardFactory() {
+            @Override
+            public GPCard createCard(CardTerminal terminal) {
+                GPCard card = new GPCard(context, terminal);
+                if(isd != null) {
+                    card.setISD(isd);
+                }
+                card.setKeys(keys);
+                configureCard(card);
+                return card;
+            }
+        });
+        deployer.setListener(new GPDeployer.Listener() {
+            @Override
+            public void cardFinished(GPDeployResult result) {
+                System.out.println(result);
+            }
+        });
+
+        deployer.setResume(resume);
+
+        os.println("Deploying to " + mTerminals.size() + " terminals");
+        try {
+            GPDeployReport report = deployer.deploy(mTerminals);
+            os.println(report);
+        } finally {
+            closeContext(context);
+        }
+    }
+
+}
@@ -126,7 +126,6 @@ public class GPInstall extends BasicGPCommand {
             if(reinstall) {
                 os.println("Deleting old applet " + appAID);
                 issuer.deleteObject(appAID);
-                registry.update();
             } else {
                 throw new Error("Card already has applet " + appAID);
             }
@@ -139,7 +138,6 @@ public class GPInstall extends BasicGPCommand {
             load.setFiles(capFiles);
             load.setReload(reload);
             load.performOperation(context, card);
-            registry.update();
         }
 
         // determine and check the package id
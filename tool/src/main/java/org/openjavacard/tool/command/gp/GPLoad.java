@@ -22,8 +22,8 @@ package org.openjavacard.tool.command.gp;
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.Parameters;
 import org.openjavacard.cap.file.CapFile;
+import org.openjavacard.cap.file.CapFileCache;
 import org.openjavacard.cap.file.CapFilePackage;
-import org.openjavacard.cap.file.CapFileReader;
 import org.openjavacard.gp.client.GPCard;
 import org.openjavacard.gp.client.GPContext;
 import org.openjavacard.gp.client.GPIssuerDomain;
@@ -63,6 +63,12 @@ public class GPLoad extends BasicGPCommand {
     )
     private boolean lazy = false;
 
+    @Parameter(
+            names = "--tune-block-size",
+            description = "Measure throughput with different block sizes (needs --card-profiles)"
+    )
+    private boolean tuneBlockSize = false;
+
     public List<File> getFiles() {
         return files;
     }
@@ -89,8 +95,6 @@ public class GPLoad extends BasicGPCommand {
 
     @Override
     protected void performOperation(GPContext context, GPCard card) throws CardException {
-        GPRegistry registry = card.getRegistry();
-
         // load all CAP files specified
         List<CapFile> capFiles = loadFiles(files);
 
@@ -109,16 +113,12 @@ public class GPLoad extends BasicGPCommand {
             }
         }
 
-        // prepare might have deleted packages, so update registry
-        registry.update();
-
         // prepare was reverse-order, load the other way around
         Collections.reverse(capFilesToLoad);
 
         // load the packages that we have decided to load
         for(CapFile capFile: capFilesToLoad) {
-            CapFilePackage pkg = capFile.getPackage();
-            loadOne(card, pkg);
+            loadOne(card, capFile);
         }
     }
 
@@ -129,7 +129,7 @@ public class GPLoad extends BasicGPCommand {
             CapFile capFile;
             try {
                 os.println("Reading file " + file);
-                capFile = CapFileReader.readFile(file);
+                capFile = CapFileCache.getDefault().read(file);
                 CapFilePackage pkg = capFile.getPackage();
                 os.println("  aid " + pkg.getPackageAID());
                 os.println("  package " + pkg.getPackageName());
@@ -164,15 +164,19 @@ public class GPLoad extends BasicGPCommand {
         return shouldLoad;
     }
 
-    private void loadOne(GPCard card, CapFilePackage pkg) throws CardException {
+    private void loadOne(GPCard card, CapFile capFile) throws CardException {
         PrintStream os = System.out;
+        CapFilePackage pkg = capFile.getPackage();
         GPIssuerDomain issuer = card.getIssuerDomain();
 
         os.println("Loading package " + pkg.getPackageAID());
 
+        int blockSize = issuer.getLoadBlockSize(tuneBlockSize);
+        os.println("  block size " + blockSize);
+
         GPLoadFile loadFile;
         try {
-            loadFile = GPLoadFile.generateCombinedLoadFile(pkg, 128);
+            loadFile = GPLoadFile.getCombinedLoadFile(CapFileCache.getDefault(), capFile, pkg, blockSize);
         } catch (Exception e) {
             throw new Error("Error slicing CAP file", e);
         }
@@ -19,6 +19,7 @@
 
 package org.openjavacard.tool.command.pkg;
 
+import com.beust.jcommander.Parameter;
 import org.openjavacard.gp.client.GPCard;
 import org.openjavacard.gp.client.GPContext;
 import org.openjavacard.packaging.manager.OJCPackageContext;
@@ -26,10 +27,18 @@ import org.openjavacard.packaging.manager.OJCPackageManager;
 import org.openjavacard.tool.command.base.BasicGPCommand;
 
 import javax.smartcardio.CardException;
+import java.io.File;
+import java.io.IOException;
 import java.io.PrintStream;
 
 public abstract class PkgCommand extends BasicGPCommand {
 
+    @Parameter(
+            names = "--repository",
+            description = "Directory of CAP files to take packages from"
+    )
+    File repository;
+
     OJCPackageContext mPkgContext;
 
     @Override
@@ -42,7 +51,21 @@ public abstract class PkgCommand extends BasicGPCommand {
         PrintStream os = System.out;
         os.println("INITIALIZE PACKAGING");
         os.println();
-        mPkgContext = new OJCPackageContext();
+        if(repository == null) {
+            mPkgContext = new OJCPackageContext();
+        } else {
+            mPkgContext = new OJCPackageContext(repository);
+        }
+        try {
+            mPkgContext.initialize();
+        } catch (IOException e) {
+            throw new Error("Error indexing repository", e);
+        }
+        if(repository != null) {
+            os.println("Repository " + repository + ": "
+                    + mPkgContext.getIndex().getEntries().size() + " packages");
+            os.println();
+        }
     }
 
     @Override
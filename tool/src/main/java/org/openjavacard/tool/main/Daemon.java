@@ -0,0 +1,300 @@
+/*
+ * openjavacard-tools: Development tools for JavaCard
+ * Copyright (C) 2019 Ingo Albrecht <copyright@promovicz.org>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package org.openjavacard.tool.main;
+
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.Parameters;
+import org.openjavacard.tool.command.base.GPSession;
+import org.openjavacard.util.HexUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Properties;
+
+@Parameters(
+        commandNames = "daemon",
+        commandDescription = "Run as a daemon serving commands for \"remote\" clients"
+)
+public class Daemon implements Runnable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(Daemon.class);
+
+    @Parameter(
+            names = "--port",
+            description = "Port to listen on (on the loopback interface, 0 for any free port)"
+    )
+    int port = 0;
+
+    @Parameter(
+            names = "--state",
+            description = "State file for clients (port and access token)"
+    )
+    File state = DaemonProtocol.getDefaultStateFile();
+
+    @Parameter(
+            names = "--session",
+            description = "Keep the card connected between commands (until a \"disconnect\" command)"
+    )
+    boolean session = false;
+
+    private final Tool mTool;
+
+    private GPSession mSession;
+
+    private boolean mStopped;
+
+    public Daemon(Tool tool) {
+        mTool = tool;
+    }
+
+    /**
+     * Serve requests until stopped
+     * <p/>
+     * Requests are handled one at a time on the calling thread.
+     * This serializes access to terminals and keeps the thread
+     * binding that PC/SC requires for exclusive card access.
+     */
+    @Override
+    public void run() {
+        byte[] token = new byte[16];
+        new SecureRandom().nextBytes(token);
+        mSession = session ? new GPSession() : null;
+        mStopped = false;
+        try (ServerSocket server = new ServerSocket(port, 16, InetAddress.getLoopbackAddress())) {
+            writeState(server.getLocalPort(), token);
+            System.out.println("Daemon listening on " + server.getLocalSocketAddress());
+            try {
+                while (!mStopped) {
+                    try (Socket socket = server.accept()) {
+                        handleConnection(socket, token);
+                    } catch (IOException | RuntimeException e) {
+                        LOG.warn("error handling client", e);
+                    }
+                }
+            } finally {
+                if (!state.delete()) {
+                    LOG.warn("could not delete state file " + state);
+                }
+            }
+        } catch (IOException e) {
+            throw new Error("Daemon failed", e);
+        } finally {
+            if (mSession != null) {
+                mSession.disconnect();
+            }
+        }
+        System.out.println("Daemon stopped");
+    }
+
+    /**
+     * Write the state file for clients
+     * <p/>
+     * The file is only accessible to the owner since
+     * the token grants access to the daemon.
+     */
+    private void writeState(int localPort, byte[] token) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty(DaemonProtocol.PROPERTY_PORT, Integer.toString(localPort));
+        properties.setProperty(DaemonProtocol.PROPERTY_TOKEN, HexUtil.bytesToHex(token));
+        File dir = state.getAbsoluteFile().getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create directory " + dir);
+        }
+        File temp = new File(dir, state.getName() + ".tmp");
+        Files.deleteIfExists(temp.toPath());
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            Files.createFile(temp.toPath(),
+                    PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } else {
+            Files.createFile(temp.toPath());
+            temp.setReadable(false, false);
+            temp.setReadable(true, true);
+        }
+        try (OutputStream os = new FileOutputStream(temp)) {
+            properties.store(os, "openjavacard-tools daemon");
+        }
+        Files.move(temp.toPath(), state.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private void handleConnection(Socket socket, byte[] token) throws IOException {
+        socket.setSoTimeout(DaemonProtocol.REQUEST_TIMEOUT);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        // read and check the request
+        int version = in.readInt();
+        if (version != DaemonProtocol.VERSION) {
+            LOG.warn("client has protocol version " + version);
+            return;
+        }
+        byte[] clientToken = HexUtil.hexToBytes(in.readUTF());
+        if (!MessageDigest.isEqual(token, clientToken)) {
+            LOG.warn("client presented wrong token");
+            return;
+        }
+        String directory = in.readUTF();
+        byte op = in.readByte();
+        String[] arguments = new String[0];
+        if (op == DaemonProtocol.OP_RUN) {
+            int count = in.readInt();
+            if (count < 0 || count > DaemonProtocol.MAX_ARGUMENTS) {
+                LOG.warn("client sent " + count + " arguments");
+                return;
+            }
+            arguments = new String[count];
+            for (int i = 0; i < count; i++) {
+                arguments[i] = in.readUTF();
+            }
+        } else if (op != DaemonProtocol.OP_STOP) {
+            LOG.warn("client sent unknown operation " + op);
+            return;
+        }
+        // commands may take as long as they need
+        socket.setSoTimeout(0);
+        // perform the operation with output going to the client
+        PrintStream cOut = new PrintStream(new FrameOutputStream(out, DaemonProtocol.FRAME_OUT), true, "UTF-8");
+        PrintStream cErr = new PrintStream(new FrameOutputStream(out, DaemonProtocol.FRAME_ERR), true, "UTF-8");
+        int status;
+        if (op == DaemonProtocol.OP_STOP) {
+            cOut.println("Stopping daemon");
+            mStopped = true;
+            status = 0;
+        } else {
+            // relative paths in arguments would resolve in our directory
+            if (isSameDirectory(directory)) {
+                status = runCommand(arguments, cOut, cErr);
+            } else {
+                cErr.println("Daemon runs in " + System.getProperty("user.dir")
+                        + ", run the client from there instead of " + directory);
+                status = 2;
+            }
+        }
+        cOut.flush();
+        cErr.flush();
+        out.writeByte(DaemonProtocol.FRAME_EXIT);
+        out.writeInt(status);
+        out.flush();
+    }
+
+    private int runCommand(String[] arguments, PrintStream cOut, PrintStream cErr) {
+        LOG.debug("running remote command " + String.join(" ", arguments));
+        // handle session directives
+        if (arguments.length == 1 && arguments[0].equals("disconnect")) {
+            if (mSession != null) {
+                mSession.disconnect();
+            }
+            return 0;
+        }
+        if (arguments.length > 0 && arguments[0].equals("daemon")) {
+            cErr.println("Already running as a daemon");
+            return 1;
+        }
+        // commands print to the standard streams
+        PrintStream oldOut = System.out;
+        PrintStream oldErr = System.err;
+        System.setOut(cOut);
+        System.setErr(cErr);
+        try {
+            return mTool.run(arguments, mSession);
+        } catch (Throwable t) {
+            t.printStackTrace();
+            return 1;
+        } finally {
+            System.out.flush();
+            System.err.flush();
+            System.setOut(oldOut);
+            System.setErr(oldErr);
+        }
+    }
+
+    /**
+     * Check if a client directory is our working directory
+     * @param directory of the client
+     * @return true if both are the same
+     */
+    private static boolean isSameDirectory(String directory) {
+        File ours = new File(System.getProperty("user.dir"));
+        File theirs = new File(directory);
+        try {
+            return ours.getCanonicalFile().equals(theirs.getCanonicalFile());
+        } catch (IOException e) {
+            LOG.warn("could not compare directories", e);
+            return false;
+        }
+    }
+
+    /**
+     * Stream writing output frames of one type to the client
+     * <p/>
+     * Standard output and error share the connection,
+     * so writes are serialized on the underlying stream.
+     */
+    private static class FrameOutputStream extends OutputStream {
+        private final DataOutputStream mOut;
+        private final byte mType;
+
+        FrameOutputStream(DataOutputStream out, byte type) {
+            mOut = out;
+            mType = type;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+            synchronized (mOut) {
+                mOut.writeByte(mType);
+                mOut.writeInt(len);
+                mOut.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            synchronized (mOut) {
+                mOut.flush();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,149 @@
+/*
+ * openjavacard-tools: Development tools for JavaCard
+ * Copyright (C) 2019 Ingo Albrecht <copyright@promovicz.org>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package org.openjavacard.tool.main;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Properties;
+
+/**
+ * Thin client for the tool daemon
+ * <p/>
+ * Forwards its arguments to a running daemon and relays
+ * the output and exit status of the command. Only depends
+ * on the JDK so that none of the tool machinery is loaded.
+ * <p/>
+ * Commands are refused unless the client runs in the working
+ * directory of the daemon, since relative paths in arguments
+ * are resolved by the daemon.
+ * <p/>
+ * Usage: remote [--state FILE] [--stop] [COMMAND ARGS...]
+ */
+final class DaemonClient {
+
+    /** First argument selecting the client in Main */
+    static final String COMMAND = "remote";
+
+    private DaemonClient() {
+    }
+
+    /**
+     * Run the client
+     * @param arguments of the client, without the selecting argument
+     * @return exit status for the process
+     */
+    static int run(String[] arguments) {
+        File state = DaemonProtocol.getDefaultStateFile();
+        boolean stop = false;
+        int index = 0;
+        // parse client options
+        while (index < arguments.length) {
+            String argument = arguments[index];
+            if (argument.equals("--state") && index + 1 < arguments.length) {
+                state = new File(arguments[index + 1]);
+                index += 2;
+            } else if (argument.equals("--stop")) {
+                stop = true;
+                index++;
+            } else {
+                break;
+            }
+        }
+        String[] command = Arrays.copyOfRange(arguments, index, arguments.length);
+        // find the daemon
+        Properties properties = new Properties();
+        try (InputStream is = new FileInputStream(state)) {
+            properties.load(is);
+        } catch (IOException e) {
+            System.err.println("Daemon not running (could not read " + state + ")");
+            return 2;
+        }
+        String portString = properties.getProperty(DaemonProtocol.PROPERTY_PORT);
+        String token = properties.getProperty(DaemonProtocol.PROPERTY_TOKEN);
+        if (portString == null || !portString.matches("[0-9]+") || token == null) {
+            System.err.println("Invalid daemon state in " + state);
+            return 2;
+        }
+        int port = Integer.parseInt(portString);
+        // talk to it
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out.writeInt(DaemonProtocol.VERSION);
+            out.writeUTF(token);
+            out.writeUTF(System.getProperty("user.dir"));
+            if (stop) {
+                out.writeByte(DaemonProtocol.OP_STOP);
+            } else {
+                out.writeByte(DaemonProtocol.OP_RUN);
+                out.writeInt(command.length);
+                for (String argument : command) {
+                    out.writeUTF(argument);
+                }
+            }
+            out.flush();
+            return relay(in);
+        } catch (EOFException e) {
+            System.err.println("Daemon closed the connection");
+            return 2;
+        } catch (IOException e) {
+            System.err.println("Could not talk to daemon: " + e.getMessage());
+            return 2;
+        }
+    }
+
+    private static int relay(DataInputStream in) throws IOException {
+        byte[] buffer = new byte[8192];
+        while (true) {
+            byte type = in.readByte();
+            if (type == DaemonProtocol.FRAME_EXIT) {
+                return in.readInt();
+            }
+            PrintStream target;
+            if (type == DaemonProtocol.FRAME_OUT) {
+                target = System.out;
+            } else if (type == DaemonProtocol.FRAME_ERR) {
+                target = System.err;
+            } else {
+                throw new IOException("Unknown frame type " + type);
+            }
+            int remaining = in.readInt();
+            while (remaining > 0) {
+                int chunk = Math.min(remaining, buffer.length);
+                in.readFully(buffer, 0, chunk);
+                target.write(buffer, 0, chunk);
+                remaining -= chunk;
+            }
+            target.flush();
+        }
+    }
+
+}
@@ -0,0 +1,74 @@
+/*
+ * openjavacard-tools: Development tools for JavaCard
+ * Copyright (C) 2019 Ingo Albrecht <copyright@promovicz.org>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package org.openjavacard.tool.main;
+
+import java.io.File;
+
+/**
+ * Wire protocol between the tool daemon and its client
+ * <p/>
+ * Kept free of dependencies so that the client can use it
+ * without loading any of the tool machinery.
+ * <p/>
+ * A request consists of the protocol version, the access token,
+ * the working directory of the client, an operation code and
+ * for command requests the argument vector. The response is a
+ * sequence of output frames followed by an exit frame.
+ * <p/>
+ * All fields are written with DataOutputStream.
+ */
+final class DaemonProtocol {
+
+    /** Protocol version, bumped on incompatible changes */
+    static final int VERSION = 1;
+
+    /** Operation: run a command */
+    static final byte OP_RUN = 1;
+    /** Operation: stop the daemon */
+    static final byte OP_STOP = 2;
+
+    /** Frame: data written to standard output */
+    static final byte FRAME_OUT = 1;
+    /** Frame: data written to standard error */
+    static final byte FRAME_ERR = 2;
+    /** Frame: command finished, followed by exit status */
+    static final byte FRAME_EXIT = 3;
+
+    /** Maximum number of arguments in a request */
+    static final int MAX_ARGUMENTS = 4096;
+
+    /** Timeout for reading a request, in milliseconds */
+    static final int REQUEST_TIMEOUT = 10000;
+
+    /** State file property: port the daemon listens on */
+    static final String PROPERTY_PORT = "port";
+    /** State file property: token required for access */
+    static final String PROPERTY_TOKEN = "token";
+
+    /** @return the default location of the daemon state file */
+    static File getDefaultStateFile() {
+        File home = new File(System.getProperty("user.home"));
+        return new File(new File(home, ".openjavacard"), "daemon.properties");
+    }
+
+    private DaemonProtocol() {
+    }
+
+}
@@ -19,11 +19,21 @@
 
 package org.openjavacard.tool.main;
 
+import java.util.Arrays;
+
 public class Main {
 
     public static void main(String[] arguments) {
+        // the daemon client avoids loading the tool
+        if (arguments.length > 0 && arguments[0].equals(DaemonClient.COMMAND)) {
+            int status = DaemonClient.run(Arrays.copyOfRange(arguments, 1, arguments.length));
+            System.exit(status);
+        }
         Tool tool = new Tool();
-        tool.run(arguments);
+        int status = tool.run(arguments);
+        if (status != 0) {
+            System.exit(status);
+        }
     }
 
 }
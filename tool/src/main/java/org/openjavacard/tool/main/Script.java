@@ -22,6 +22,7 @@ package org.openjavacard.tool.main;
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.Parameters;
+import org.openjavacard.tool.command.base.GPSession;
 
 import java.io.BufferedReader;
 import java.io.File;
@@ -41,6 +42,12 @@ public class Script implements Runnable {
     )
     List<File> scripts;
 
+    @Parameter(
+            names = "--session",
+            description = "Keep the card connected between commands (until a \"disconnect\" line)"
+    )
+    boolean session = false;
+
     private final Tool mTool;
 
     public Script(Tool tool) {
@@ -49,6 +56,7 @@ public class Script implements Runnable {
 
     @Override
     public void run() {
+        GPSession gpSession = session ? new GPSession() : null;
         try {
             for(File script: scripts) {
                 FileReader fr = new FileReader(script);
@@ -76,6 +84,13 @@ public class Script implements Runnable {
                     }
                     // tokenize the line
                     String[] tokens = line.split("\\s+");
+                    // handle session directives
+                    if (tokens.length == 1 && tokens[0].equals("disconnect")) {
+                        if (gpSession != null) {
+                            gpSession.disconnect();
+                        }
+                        continue;
+                    }
                     // process command if there is one
                     if (tokens.length > 0) {
                         // build a fresh commander
@@ -84,13 +99,17 @@ public class Script implements Runnable {
                         String command = jc.getParsedCommand();
                         if (command != null) {
                             JCommander commandJc = jc.getCommands().get(command);
-                            mTool.runCommand(command, commandJc);
+                            mTool.runCommand(command, commandJc, gpSession);
                         }
                     }
                 }
             }
         } catch (IOException e) {
             throw new Error(e);
+        } finally {
+            if (gpSession != null) {
+                gpSession.disconnect();
+            }
         }
     }
 }
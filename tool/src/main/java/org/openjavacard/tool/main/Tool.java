@@ -32,7 +32,11 @@ import org.openjavacard.tool.command.generic.GenericAPDU;
 import org.openjavacard.tool.command.generic.GenericReaders;
 import org.openjavacard.tool.command.generic.ScanFID;
 import org.openjavacard.tool.command.generic.ScanName;
+import org.openjavacard.tool.command.base.BasicCommand;
+import org.openjavacard.tool.command.base.BasicGPCommand;
+import org.openjavacard.tool.command.base.GPSession;
 import org.openjavacard.tool.command.gp.GPDelete;
+import org.openjavacard.tool.command.gp.GPDeploy;
 import org.openjavacard.tool.command.gp.GPExtradite;
 import org.openjavacard.tool.command.gp.GPIdentity;
 import org.openjavacard.tool.command.gp.GPInfo;
@@ -72,7 +76,11 @@ public class Tool {
         mContext = new GPContext();
     }
 
-    void run(String[] arguments) {
+    int run(String[] arguments) {
+        return run(arguments, null);
+    }
+
+    int run(String[] arguments, GPSession session) {
         // build commander
         JCommander jc = makeCommander();
         // add tool object
@@ -80,13 +88,14 @@ public class Tool {
         // core commands
         jc.addCommand(new Help(jc));
         jc.addCommand(new Script(this));
+        jc.addCommand(new Daemon(this));
         // parse the command
         jc.parse(arguments);
         // execute the command
-        runMainCommand(jc);
+        return runMainCommand(jc, session) ? 0 : 1;
     }
 
-    private void runMainCommand(JCommander jc) {
+    private boolean runMainCommand(JCommander jc, GPSession session) {
         // get defined commands
         Map<String, JCommander> commands = jc.getCommands();
         // get the command
@@ -98,22 +107,33 @@ public class Tool {
         // run help if appropriate
         JCommander helpCommand = commands.get("help");
         if (help || commandName == "help") {
-            runCommand("help", helpCommand);
-            return;
+            return runCommand("help", helpCommand);
         }
         // run the command
         JCommander command = commands.get(commandName);
-        runCommand(commandName, command);
+        return runCommand(commandName, command, session);
     }
 
-    void runCommand(String name, JCommander jc) {
+    boolean runCommand(String name, JCommander jc) {
+        return runCommand(name, jc, null);
+    }
+
+    boolean runCommand(String name, JCommander jc, GPSession session) {
         LOG.debug("running command " + name);
+        boolean success = true;
         for (Object o : jc.getObjects()) {
+            if (session != null && o instanceof BasicGPCommand) {
+                ((BasicGPCommand) o).setSession(session);
+            }
             if (o instanceof Runnable) {
                 Runnable r = (Runnable) o;
                 r.run();
+                if (o instanceof BasicCommand && ((BasicCommand) o).isFailed()) {
+                    success = false;
+                }
             }
         }
+        return success;
     }
 
     JCommander makeCommander() {
@@ -134,6 +154,7 @@ public class Tool {
         jc.addCommand(new GPList());
         jc.addCommand(new GPLoad());
         jc.addCommand(new GPInstall());
+        jc.addCommand(new GPDeploy());
         jc.addCommand(new GPDelete());
         jc.addCommand(new GPExtradite());
         jc.addCommand(new GPState());